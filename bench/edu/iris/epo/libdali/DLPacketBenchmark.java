@@ -0,0 +1,43 @@
+package edu.iris.epo.libdali;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * DataLink packet header parsing benchmark.
+ * 
+ * @author kevin
+ */
+@BenchmarkMode(Mode.Throughput)
+@Fork(1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+public class DLPacketBenchmark implements DataLinkConst {
+    private static final String HEADER = "PACKET IU_ANMO_00_BHZ/MSEED 42 "
+            + "1490000000000000 1489999999000000 1490000000990000 512";
+
+    private final byte[] buf = HEADER.getBytes(ASCII);
+    private final DLPacket dlpacket = new DLPacket();
+    private final String text = HEADER.substring("PACKET ".length());
+
+    @Benchmark
+    public boolean parseBytes() {
+        return dlpacket.parse(buf, buf.length);
+    }
+
+    @Benchmark
+    public boolean parseString() {
+        return dlpacket.parse(text);
+    }
+}
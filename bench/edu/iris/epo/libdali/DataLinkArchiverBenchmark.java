@@ -0,0 +1,81 @@
+package edu.iris.epo.libdali;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * SDS archive benchmark with 512 byte packets for 100 streams, starting a
+ * new day and deleting the previous days every 200000 packets to keep the
+ * disk usage bounded.
+ * 
+ * @author kevin
+ */
+@BenchmarkMode(Mode.Throughput)
+@Fork(1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+public class DataLinkArchiverBenchmark implements DataLinkConst {
+    private static final long DAY_MICROS = 86400L * 1000000L;
+    private static final long DAY_PACKETS = 200000;
+
+    private DataLinkArchiver archiver;
+    private long count;
+    private final byte[] data = new byte[SLINKPACKETSIZE];
+    private File dir;
+    private final Streamid[] streamids = new Streamid[100];
+
+    @Benchmark
+    public boolean write() throws IOException {
+        final long n = count++;
+        if (n % DAY_PACKETS == 0) {
+            delete(dir);
+        }
+        return archiver.write(streamids[(int) (n % streamids.length)],
+                n / DAY_PACKETS * DAY_MICROS, data, 0, data.length);
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("DataLinkArchiverBenchmark").toFile();
+        archiver = new DataLinkArchiver(dir);
+        for (int i = 0; i < streamids.length; i++) {
+            streamids[i] = StreamidTable.getInstance()
+                    .getStreamid("IU_S" + i + "_00_BHZ/MSEED");
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        archiver.close();
+        delete(dir);
+        dir.delete();
+    }
+
+    private void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                delete(f);
+            }
+        }
+        if (file != dir) {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package edu.iris.epo.libdali;
+
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.iris.epo.libdali.DataLinkClient.DL_RETVAL;
+
+/**
+ * DataLink client receive benchmark, each operation is one packet.
+ * 
+ * @author kevin
+ */
+@BenchmarkMode(Mode.Throughput)
+@Fork(1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+public class DataLinkClientBenchmark implements DataLinkConst {
+    /** The client collecting from the embedded DataLink server */
+    @State(Scope.Thread)
+    public static class Collect {
+        private DataLinkClient dlc;
+        private DataLinkServer server;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            server = new DataLinkServer(
+                    DataLinkClientBenchmark.class.getSimpleName(),
+                    new DataLinkRing(COLLECT_PACKETS, SLINKPACKETSIZE), null);
+            if (!server.start(new InetSocketAddress("localhost", 0))) {
+                throw new IllegalStateException("server did not start");
+            }
+            final byte[] packet = new byte[SLINKPACKETSIZE];
+            for (int i = 0; i < COLLECT_PACKETS; i++) {
+                server.write("IU_ANMO_00_BHZ/MSEED", i, i + 1, packet, 0,
+                        packet.length);
+            }
+            // the commands are logged at the INFO level
+            final Logger logger = Logger.getLogger(
+                    DataLinkClientBenchmark.class.getName());
+            logger.setLevel(java.util.logging.Level.WARNING);
+            dlc = new DataLinkClient(
+                    DataLinkClientBenchmark.class.getSimpleName(),
+                    new DataLinkLogger(logger));
+            final InetSocketAddress address = server.getAddress();
+            dlc.getDataLinkProperties().setProperty(
+                    DataLinkPropertiesKey.ADDRESS, address.getHostString() +
+                            DATALINK_ADDRESS_SEP + address.getPort());
+            if (!dlc.connect() || dlc.exchangeIDs().isError()) {
+                throw new IllegalStateException("client did not connect");
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            dlc.close();
+            server.close();
+        }
+    }
+
+    /** The client receiving from an in-memory stream */
+    @State(Scope.Thread)
+    public static class Receive {
+        private DataLinkClient dlc;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            final byte[] packet = new byte[SLINKPACKETSIZE];
+            final byte[] header = ("PACKET IU_ANMO_00_BHZ/MSEED 42 "
+                    + "1490000000000000 1489999999000000 1490000000990000 "
+                    + packet.length).getBytes(ASCII);
+            final byte[] frame = new byte[3 + header.length + packet.length];
+            frame[0] = 'D';
+            frame[1] = 'L';
+            frame[2] = (byte) header.length;
+            System.arraycopy(header, 0, frame, 3, header.length);
+            System.arraycopy(packet, 0, frame, 3 + header.length,
+                    packet.length);
+            dlc = new DataLinkClient(
+                    DataLinkClientBenchmark.class.getSimpleName(), null);
+            dlc.setInputStream(new RepeatInputStream(frame));
+        }
+    }
+
+    /**
+     * Input stream which repeats the same bytes forever.
+     */
+    private static class RepeatInputStream extends InputStream {
+        private final byte[] buf;
+        private int pos;
+
+        RepeatInputStream(byte[] buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int available() {
+            return buf.length - pos;
+        }
+
+        @Override
+        public int read() {
+            final int b = buf[pos++] & 0xFF;
+            if (pos == buf.length) {
+                pos = 0;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            len = Math.min(len, buf.length - pos);
+            System.arraycopy(buf, pos, b, off, len);
+            if ((pos += len) == buf.length) {
+                pos = 0;
+            }
+            return len;
+        }
+    }
+
+    /** The number of packets collected per invocation */
+    private static final int COLLECT_PACKETS = 10000;
+
+    /**
+     * Collect all packets in the ring, then end streaming.
+     */
+    @Benchmark
+    @OperationsPerInvocation(COLLECT_PACKETS)
+    public long collect(Collect state) {
+        final DataLinkClient dlc = state.dlc;
+        DL_RETVAL retVal = dlc.position(DATALINK_POSITION_EARLIEST, 0);
+        long pktid = 0;
+        for (int i = 0; i < COLLECT_PACKETS && !retVal.isError(); i++) {
+            retVal = dlc.collect(false, true);
+            pktid = dlc.getPacket().getPktid();
+        }
+        // end streaming and drain the packets in the air
+        while (!(retVal = dlc.collect(true, true)).isError() &&
+                dlc.getPacket().getDatasize() != 0) {
+        }
+        if (retVal.isError()) {
+            throw new IllegalStateException("collect returned " + retVal);
+        }
+        return pktid;
+    }
+
+    /**
+     * Receive the packet header and data.
+     */
+    @Benchmark
+    public DL_RETVAL recvpacket(Receive state) {
+        final DL_RETVAL retVal = state.dlc.recvheader(true);
+        if (retVal.isError()) {
+            return retVal;
+        }
+        return state.dlc.readPacket();
+    }
+}
@@ -0,0 +1,46 @@
+package edu.iris.epo.libdali;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * WRITE header encoding benchmark, the formatted header is the encoding used
+ * by <code>sendpacket</code> before the header encoder.
+ * 
+ * @author kevin
+ */
+@BenchmarkMode(Mode.Throughput)
+@Fork(1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+public class DataLinkEncoderBenchmark implements DataLinkConst {
+    private final byte[] buf = new byte[3 + MAXHEADERLEN];
+    private final long dataend = 1490000000990000L;
+    private final long datastart = 1489999999000000L;
+    private final IStreamid streamid = new Streamid("IU_ANMO_00_BHZ/MSEED");
+
+    @Benchmark
+    public int encoder() {
+        return DataLinkEncoder.putWriteHeader(buf, 3, streamid, datastart,
+                dataend, true, SLINKPACKETSIZE);
+    }
+
+    @Benchmark
+    public int format() {
+        final String header =
+                String.format("WRITE %s %d %d %s %d", streamid.getText(),
+                        datastart, dataend, "A", SLINKPACKETSIZE);
+        return DataLinkEncoder.putAscii(buf, 3, header);
+    }
+}
@@ -0,0 +1,65 @@
+package edu.iris.epo.libdali;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Journal append benchmark with 512 byte packets.
+ * 
+ * @author kevin
+ */
+@BenchmarkMode(Mode.Throughput)
+@Fork(1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+public class DataLinkJournalBenchmark implements DataLinkConst {
+    private final byte[] data = new byte[SLINKPACKETSIZE];
+    private File dir;
+    private DataLinkJournal journal;
+    private final DLPacket packet = new DLPacket();
+
+    @Benchmark
+    public long append() throws IOException {
+        packet.setPktid(packet.getPktid() + 1);
+        return journal.append(packet, data);
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("DataLinkJournalBenchmark").toFile();
+        journal = new DataLinkJournal(dir, 64 << 20);
+        // keep the disk usage bounded
+        journal.setRetention(256L << 20, 0);
+        byte[] header = "PACKET IU_ANMO_00_BHZ/MSEED 1 2 3 4 512"
+                .getBytes(ASCII);
+        packet.parse(header, header.length);
+    }
+
+    @TearDown
+    public void tearDown() {
+        journal.close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,43 @@
+package edu.iris.epo.libdali;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency histogram recording benchmark, the cost added to every packet.
+ * 
+ * @author kevin
+ */
+@BenchmarkMode(Mode.Throughput)
+@Fork(1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+public class DataLinkLatencyBenchmark {
+    private final long arrival = 1490000000000000L;
+    private final DataLinkLatency latency = new DataLinkLatency();
+    private final DLPacket packet = new DLPacket();
+
+    @Benchmark
+    public void record() {
+        latency.record(packet, arrival);
+    }
+
+    @Setup
+    public void setup() {
+        packet.setStreamid("IU_ANMO_00_BHZ/MSEED");
+        packet.setDataend(arrival - 2000000);
+        packet.setPkttime(arrival - 1000000);
+    }
+}
@@ -0,0 +1,114 @@
+package edu.iris.epo.libdali;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * miniSEED decoder benchmark with 512 byte Steim1 and Steim2 records, the
+ * decoded bytes per second are the records per second times 512. The header
+ * benchmark reads the routing values without decoding the data.
+ * 
+ * @author kevin
+ */
+@BenchmarkMode(Mode.Throughput)
+@Fork(1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+public class MiniSeedDecoderBenchmark implements DataLinkConst {
+    private final MiniSeedDecoder decoder = new MiniSeedDecoder();
+    private final MiniSeedHeader header = new MiniSeedHeader();
+    /** A Steim2 record holds at most 7 samples per 4 bytes */
+    private final int[] samples = new int[SLINKPACKETSIZE * 7 / 4];
+    private byte[] steim1;
+    private byte[] steim2;
+
+    /**
+     * Create a record with every word using the same Steim code.
+     * 
+     * @param encoding
+     *            the encoding.
+     * @param code
+     *            the nibble, dnib, bits and differences per word.
+     * @return the record.
+     */
+    private byte[] createRecord(int encoding, int[] code) {
+        final ByteBuffer bb = ByteBuffer.allocate(SLINKPACKETSIZE);
+        bb.put("000001D ANMO 00BHZIU".getBytes(ASCII));
+        bb.putShort((short) 2020).putShort((short) 100);
+        bb.putInt(0).putShort((short) 0);
+        bb.putShort((short) 0).putShort((short) 40).putShort((short) 1);
+        bb.putInt(1).putInt(0);
+        bb.putShort((short) 64).putShort((short) 48);
+        bb.putShort((short) 1000).putShort((short) 0);
+        bb.put((byte) encoding).put((byte) 1).put((byte) 9).put((byte) 0);
+        final Random random = new Random(42);
+        final int range = 1 << (code[2] - 1);
+        int count = 0;
+        int sample = 0;
+        for (int frame = 64; frame < SLINKPACKETSIZE; frame += 64) {
+            int control = 0;
+            for (int w = (frame == 64) ? 3 : 1; w < 16; w++) {
+                int word = (code[1] < 0) ? 0 : code[1] << 30;
+                for (int i = 0; i < code[3]; i++) {
+                    final int diff = random.nextInt(2 * range) - range;
+                    if (count++ == 0) {
+                        bb.putInt(68, sample);
+                    } else {
+                        sample += diff;
+                    }
+                    word |= (diff & ((1 << code[2]) - 1)) <<
+                            (code[2] * (code[3] - 1 - i));
+                }
+                control |= code[0] << (30 - 2 * w);
+                bb.putInt(frame + 4 * w, word);
+            }
+            bb.putInt(frame, control);
+        }
+        bb.putInt(72, sample);
+        bb.putShort(30, (short) count);
+        return bb.array();
+    }
+
+    @Benchmark
+    public long header() {
+        header.wrap(steim2, 0, steim2.length);
+        return header.getStartTime() + header.getSampleCount() +
+                header.getEncoding() + (long) header.getSampleRate();
+    }
+
+    @Setup
+    public void setup() {
+        steim1 = createRecord(MiniSeedDecoder.ENCODING_STEIM1,
+                new int[] { 1, -1, 8, 4 });
+        steim2 = createRecord(MiniSeedDecoder.ENCODING_STEIM2,
+                new int[] { 3, 2, 4, 7 });
+        if (decoder.decode(steim1, 0, steim1.length, samples) < 0 ||
+                decoder.decode(steim2, 0, steim2.length, samples) < 0) {
+            throw new IllegalStateException(decoder.getError());
+        }
+    }
+
+    @Benchmark
+    public int steim1() {
+        return decoder.decode(steim1, 0, steim1.length, samples);
+    }
+
+    @Benchmark
+    public int steim2() {
+        return decoder.decode(steim2, 0, steim2.length, samples);
+    }
+}
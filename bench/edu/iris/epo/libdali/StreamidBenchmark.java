@@ -0,0 +1,45 @@
+package edu.iris.epo.libdali;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Stream ID construction benchmark.
+ * 
+ * @author kevin
+ */
+@BenchmarkMode(Mode.Throughput)
+@Fork(1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+public class StreamidBenchmark implements DataLinkConst {
+    private final String text = "IU_ANMO_00_BHZ/MSEED";
+    private final byte[] textBytes = text.getBytes(ASCII);
+
+    @Benchmark
+    public IStreamid components() {
+        return new Streamid("IU", "ANMO", "00", "BHZ", MSEED_TYPE);
+    }
+
+    @Benchmark
+    public IStreamid interned() {
+        return StreamidTable.getInstance().getStreamid(textBytes, 0,
+                textBytes.length);
+    }
+
+    @Benchmark
+    public IStreamid text() {
+        return new Streamid(text);
+    }
+}
@@ -0,0 +1,513 @@
+/**
+ *    Copyright (C) 2017 IRIS (http://www.iris.edu/hq/).
+ *    
+ *    All inquiries should be sent to John Taber <taber@iris.edu>.
+ *    
+ *    This file is part of Jlibdali.
+ *
+ *    Jlibdali is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    Jlibdali is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with Jlibdali.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.iris.epo.libdali;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.logging.Level;
+
+import edu.iris.epo.libdali.DataLinkClient.DL_RETVAL;
+
+/**
+ * The state and parsing shared by the blocking {@link DataLinkClient} and the
+ * non-blocking {@link DataLinkConnection}.
+ * 
+ * @author kevin
+ */
+public abstract class AbstractDataLinkClient implements DataLinkConst {
+    /** The empty read buffer while the client is not connected */
+    private static final byte[] EMPTY_BUFFER = new byte[0];
+
+    SocketAddress address;
+    /** The pool for the read buffer */
+    final DataLinkBufferPool bufferPool = DataLinkBufferPool.getInstance();
+    int bytesread;
+    String clientid;
+    final DLPacket dlpacket = new DLPacket();
+    final DataLinkProperties dlprops;
+    boolean initFlag;
+    int iotimeout;
+    final IDataLinkLogger logger;
+    private String logprefix;
+    int maxpktsize;
+    DataLinkMetrics metrics = new DataLinkMetrics();
+    /** True if the client registers and unregisters the metrics */
+    private boolean ownMetrics = true;
+    /** The read buffer which is leased from the pool while connected */
+    byte[] readBuffer = EMPTY_BUFFER;
+    String readText;
+    int resp_size;
+    String resp_status;
+    String resp_value;
+    float serverproto;
+    volatile boolean streamingFlag;
+    boolean streamingEndFlag;
+    volatile boolean terminateFlag;
+    boolean writeperm;
+
+    /**
+     * Create the DataLink client.
+     * 
+     * @param progname
+     *            the program name, usually the simple name of the main class.
+     * @param logger
+     *            the logger or null for the default.
+     */
+    AbstractDataLinkClient(String progname, IDataLinkLogger logger) {
+        // ensure address is never null
+        address = DATALINK_ADDRESS;
+        iotimeout = DATALINK_IOTIMEOUT;
+        dlprops = new DataLinkProperties();
+        setLogprefix();
+        if (logger == null) {
+            logger = DataLinkUtils.createLogger();
+        }
+        this.logger = logger;
+        clientid = DataLinkUtils.genClientid(progname);
+    }
+
+    /**
+     * Get the read buffer with room for the number of bytes, leasing a larger
+     * buffer from the pool if needed. The contents of the read buffer are not
+     * kept when a larger buffer is leased. The smaller buffer is not released
+     * to the pool since it may still be held by a caller of
+     * {@link #getReadBuffer()}.
+     * 
+     * @param len
+     *            the number of bytes.
+     * @return the read buffer.
+     */
+    byte[] ensureReadBuffer(int len) {
+        byte[] buf = readBuffer;
+        if (buf.length < len) {
+            buf = bufferPool.lease(len);
+            readBuffer = buf;
+        }
+        return buf;
+    }
+
+    /**
+     * Get the address of the DataLink server.
+     * 
+     * @return the address of the DataLink server.
+     */
+    public SocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Get the number of bytes read.
+     * 
+     * @return the number of bytes read.
+     */
+    public int getBytesread() {
+        return bytesread;
+    }
+
+    /**
+     * Get the data link properties.
+     * 
+     * @return the data link properties.
+     */
+    public DataLinkProperties getDataLinkProperties() {
+        return dlprops;
+    }
+
+    /**
+     * Get the maximum packet size for server.
+     * 
+     * @return the maximum packet size for server.
+     */
+    public int getMaxPktSize() {
+        return maxpktsize;
+    }
+
+    String getMessage(Exception ex) {
+        String msg = ex.getMessage();
+        if (msg == null) {
+            msg = ex.toString();
+        }
+        return msg;
+    }
+
+    /**
+     * Get the metrics.
+     * 
+     * @return the metrics.
+     */
+    public DataLinkMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Get the last packet read.
+     * 
+     * @return the last packet read.
+     */
+    public DLPacket getPacket() {
+        return dlpacket;
+    }
+
+    /**
+     * Get the largest packet data size accepted from the server.
+     * 
+     * @return the negotiated server packet size if larger than the
+     *         {@link DataLinkConst#MAXPACKETSIZE}, the maximum packet size
+     *         otherwise.
+     */
+    int getPacketLimit() {
+        return Math.max(maxpktsize, MAXPACKETSIZE);
+    }
+
+    /**
+     * Get the read buffer, which is leased from the buffer pool when the
+     * client connects and released when the client is closed.
+     * <p>
+     * The read buffer is replaced by a larger buffer when a larger reply or
+     * packet is read, a buffer returned earlier is then no longer updated but
+     * is not reused by the pool. The contents are only valid until the next
+     * reply or packet is read and the buffer must not be used after the
+     * client is closed.
+     * 
+     * @return the read buffer, which is empty if the client is not connected.
+     */
+    public byte[] getReadBuffer() {
+        return readBuffer;
+    }
+
+    /**
+     * Get the bytes in the read buffer as text.
+     * 
+     * @return the bytes in the read buffer as text.
+     */
+    public String getReadText() {
+        String s = readText;
+        if (s != null) {
+            return s;
+        }
+        s = new String(readBuffer, 0, bytesread, ASCII);
+        readText = s;
+        return s;
+    }
+
+    /**
+     * @return the <code>resp_value</code> as a long or
+     *         <code>Long.MIN_VALUE</code> if none.
+     */
+    public long getReponseValueLong() {
+        try {
+            return Long.parseLong(resp_value);
+        } catch (Exception ex) {
+        }
+        return Long.MIN_VALUE;
+    }
+
+    /**
+     * @return the <code>resp_status</code>, for example "OK", "ERROR" or
+     *         "INFO".
+     */
+    public String getResponseStatus() {
+        return resp_status;
+    }
+
+    /**
+     * @return the <code>resp_value</code>
+     */
+    public String getResponseValue() {
+        return resp_value;
+    }
+
+    /**
+     * Gets the server version of the DataLink protocol.
+     * 
+     * @return the server version of the DataLink protocol.
+     */
+    public float getServerProto() {
+        return serverproto;
+    }
+
+    /**
+     * Initialize the client. This method should be called after setting the
+     * properties and before calling <code>connect</code>. If the
+     * <code>connect</code> method is called and this method has not already
+     * been called it will be called prior to connecting.
+     * 
+     * @return true if success, false if errors.
+     */
+    public boolean init() {
+        initFlag = true;
+        boolean successFlag = true;
+
+        int index;
+        DataLinkPropertiesKey key;
+        String value;
+
+        key = DataLinkPropertiesKey.ADDRESS;
+        value = dlprops.getProperty(key);
+        try {
+            String hostname;
+            int port;
+            index = value.indexOf(DATALINK_ADDRESS_SEP);
+            // if only host name is specified
+            if (index < 0) {
+                hostname = value;
+                port = DATALINK_PORT;
+            } else { // host name and port are specified
+                hostname = value.substring(0, index);
+                if (hostname.isEmpty()) {
+                    hostname = DATALINK_HOSTNAME;
+                }
+                port = Integer.parseInt(value.substring(index + 1));
+            }
+            SocketAddress address;
+            if (!DATALINK_HOSTNAME.equals(hostname) || DATALINK_PORT != port) {
+                address = new InetSocketAddress(hostname, port);
+            } else {
+                address = DATALINK_ADDRESS;
+            }
+            if (!this.address.equals(address)) {
+                this.address = address;
+                log(Level.INFO, "init: %s (%s)", key, address.toString());
+                setLogprefix();
+            }
+        } catch (Exception ex) {
+            successFlag = false;
+            log(Level.WARNING, "init: invalid %s (%s)", key, value);
+        }
+
+        key = DataLinkPropertiesKey.IOTIMEOUT;
+        value = dlprops.getProperty(key);
+        try {
+            int iotimeout = Integer.parseInt(value);
+            if (this.iotimeout != iotimeout) {
+                this.iotimeout = iotimeout;
+                log(Level.INFO, "init: %s (%d)", key, iotimeout);
+            }
+        } catch (Exception ex) {
+            successFlag = false;
+            log(Level.WARNING, "init: invalid %s (%s)", key, value);
+        }
+
+        return successFlag;
+    }
+
+    /**
+     * Determines if this client is streaming.
+     * 
+     * @return true if streaming, false otherwise.
+     */
+    public boolean isStreaming() {
+        return streamingFlag;
+    }
+
+    /**
+     * Determines if this client is terminated.
+     * 
+     * @return true if terminated, false otherwise.
+     */
+    public boolean isTerminated() {
+        return terminateFlag;
+    }
+
+    /**
+     * Checks if there is write permission.
+     * 
+     * @return true if there is write permission, otherwise false.
+     */
+    public boolean isWritePerm() {
+        return writeperm;
+    }
+
+    void log(Level level, String format, Object... args) {
+        logger.log(level, logprefix + String.format(format, args));
+    }
+
+    /**
+     * Parse the server reply to a command. This method sets the
+     * <code>resp_size</code>, <code>resp_status</code> and
+     * <code>resp_value</code> values if successful.
+     * 
+     * @param respstr
+     *            the response string.
+     * @return true if successful, false otherwise.
+     */
+    boolean parseReply(String respstr) {
+        try {
+            // status, value, size
+            String ra[] = respstr.split(RE_WS, 3);
+            if (ra.length == 3) {
+                resp_status = ra[0];
+                resp_value = ra[1];
+                resp_size = Integer.parseInt(ra[2]);
+                return true;
+            }
+        } catch (Exception ex) {
+        }
+        return false;
+    }
+
+    /**
+     * Parse the server response to the ID command and verify the DataLink
+     * signature. This method sets the <code>serverproto</code>,
+     * <code>maxpktsize</code> and <code>writeperm</code> values from the
+     * server capabilities.
+     * 
+     * @param respstr
+     *            the response string.
+     * @return the DataLink return value.
+     */
+    DL_RETVAL parseServerId(String respstr) {
+        // Verify DataLink signature in server response
+        if (!DATALINK_ID.regionMatches(true, 0, respstr, 0,
+                DATALINK_ID.length())) {
+            log(Level.WARNING, "exchangeIDs: Unrecognized server ID: %11.11s",
+                    respstr);
+            return DL_RETVAL.NO_DATALINK_ID;
+        }
+
+        /*
+         * Search for capabilities flags in server ID by looking for "::" The
+         * expected format of the complete server ID is:
+         * "ID DataLink <optional text> <:: optional capability flags>"
+         */
+        String s = "::";
+        int index = respstr.indexOf(s);
+        if (index > 0 && index < respstr.length() - s.length()) {
+            s = respstr.substring(3, index).trim();
+            log(Level.FINER, "exchangeIDs: ID (%s)", s);
+
+            int endIndex;
+            int fromIndex = index + 1;
+
+            s = "DLPROTO:";
+            index = respstr.indexOf(s, fromIndex);
+            if (index > 0) {
+                endIndex = respstr.indexOf(' ', index + s.length());
+                if (endIndex < 0) {
+                    endIndex = respstr.length();
+                }
+                s = respstr.substring(index + s.length(), endIndex);
+                try {
+                    serverproto = Float.parseFloat(s);
+                    log(Level.FINER, "exchangeIDs: DLPROTO (%.1f)",
+                            serverproto);
+                } catch (Exception ex) {
+                    log(Level.WARNING,
+                            "exchangeIDs: could not parse protocol version from DLPROTO flag: %s",
+                            s);
+                }
+            }
+
+            s = "PACKETSIZE:";
+            index = respstr.indexOf(s, fromIndex);
+            if (index > 0) {
+                endIndex = respstr.indexOf(' ', index + s.length());
+                if (endIndex < 0) {
+                    endIndex = respstr.length();
+                }
+                s = respstr.substring(index + s.length(), endIndex);
+                try {
+                    maxpktsize = Integer.parseInt(s);
+                    log(Level.FINER, "exchangeIDs: PACKETSIZE (%d)",
+                            maxpktsize);
+                } catch (Exception ex) {
+                    log(Level.WARNING,
+                            "exchangeIDs: could not parse protocol version from PACKETSIZE flag: %s",
+                            s);
+                }
+            }
+
+            s = "WRITE";
+            index = respstr.indexOf(s, fromIndex);
+            if (index > 0) {
+                writeperm = true;
+                log(Level.FINER, "exchangeIDs: WRITE");
+            }
+        } else {
+            log(Level.FINER, "exchangeIDs: (%s)", respstr);
+        }
+        return DL_RETVAL._NO_ERROR;
+    }
+
+    /**
+     * Register the metrics as a JMX MBean for the connection to the server,
+     * unless the metrics were set by the caller.
+     */
+    void registerMetrics() {
+        if (!ownMetrics) {
+            return;
+        }
+        final String name = clientid + "@" + address;
+        if (!metrics.register(name)) {
+            log(Level.WARNING, "registerMetrics: %s was not registered",
+                    name);
+        }
+    }
+
+    /**
+     * Release the read buffer to the buffer pool when the client is closed.
+     */
+    void releaseBuffers() {
+        final byte[] buf = readBuffer;
+        if (buf != EMPTY_BUFFER) {
+            readBuffer = EMPTY_BUFFER;
+            bytesread = 0;
+            bufferPool.release(buf);
+        }
+    }
+
+    final void setLogprefix() {
+        logprefix = String.format("[%s] DL_", address.toString());
+    }
+
+    /**
+     * Set the metrics, which allows the metrics to be shared by successive
+     * connections. The caller then registers and unregisters the metrics.
+     * 
+     * @param metrics
+     *            the metrics.
+     */
+    public void setMetrics(DataLinkMetrics metrics) {
+        this.metrics = metrics;
+        ownMetrics = false;
+    }
+
+    /**
+     * Set the terminate parameter of a DataLink connection.
+     */
+    public void terminate() {
+        if (!terminateFlag) {
+            log(Level.INFO, "terminate: Terminating connection");
+            terminateFlag = true;
+        }
+    }
+
+    /**
+     * Unregister the metrics when the client is closed, unless the metrics
+     * were set by the caller.
+     */
+    void unregisterMetrics() {
+        if (ownMetrics) {
+            metrics.unregister();
+        }
+    }
+}
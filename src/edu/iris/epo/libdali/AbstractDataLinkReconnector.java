@@ -0,0 +1,274 @@
+/**
+ *    Copyright (C) 2017 IRIS (http://www.iris.edu/hq/).
+ *    
+ *    All inquiries should be sent to John Taber <taber@iris.edu>.
+ *    
+ *    This file is part of Jlibdali.
+ *
+ *    Jlibdali is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    Jlibdali is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with Jlibdali.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.iris.epo.libdali;
+
+import java.util.Random;
+import java.util.logging.Level;
+
+import edu.iris.epo.libdali.DataLinkClient.DL_RETVAL;
+
+/**
+ * The reconnection shared by the {@link DataLinkCollector} and the
+ * {@link DataLinkWriteQueue}.
+ * <p>
+ * A new {@link DataLinkClient} is connected after a jittered exponential
+ * backoff when the connection is lost, the connection is then negotiated by
+ * the subclass.
+ * 
+ * @author kevin
+ */
+public abstract class AbstractDataLinkReconnector implements DataLinkConst {
+    /** The default maximum reconnect delay in milliseconds */
+    public static final long DEFAULT_MAX_DELAY = 30000;
+
+    /** The default minimum reconnect delay in milliseconds */
+    public static final long DEFAULT_MIN_DELAY = 500;
+
+    /**
+     * Determines if the response status is an error.
+     * 
+     * @param dlc
+     *            the DataLink client.
+     * @return true if the server replied with an error, false otherwise.
+     */
+    static boolean isErrorStatus(DataLinkClient dlc) {
+        final String status = dlc.getResponseStatus();
+        return status != null && status.startsWith("ERROR");
+    }
+
+    /** The number of connection attempts since the last success */
+    int attempts;
+    /** True if a connection has been made */
+    private boolean connected;
+    /** The client for the current connection or null if none */
+    volatile DataLinkClient dlc;
+    final DataLinkProperties dlprops = new DataLinkProperties();
+    final IDataLinkLogger logger;
+    private long maxDelay = DEFAULT_MAX_DELAY;
+    /**
+     * The metrics shared by the connections, which are registered for the
+     * lifetime of the reconnector rather than by each connection
+     */
+    final DataLinkMetrics metrics = new DataLinkMetrics();
+    private long minDelay = DEFAULT_MIN_DELAY;
+    final String progname;
+    private final Random random = new Random();
+    private long reconnects;
+    volatile boolean terminateFlag;
+
+    /**
+     * Create the reconnector.
+     * 
+     * @param progname
+     *            the program name, usually the simple name of the main class.
+     * @param logger
+     *            the logger or null for the default.
+     */
+    AbstractDataLinkReconnector(String progname, IDataLinkLogger logger) {
+        if (logger == null) {
+            logger = DataLinkUtils.createLogger();
+        }
+        this.logger = logger;
+        this.progname = progname;
+    }
+
+    /**
+     * Connect to the DataLink server, after the reconnect delay if a
+     * connection has been made before or the last attempt failed.
+     * 
+     * @return the client or null if the connection failed or this was
+     *         terminated.
+     */
+    DataLinkClient connect() {
+        if (connected || attempts != 0) {
+            sleep(getDelay(attempts));
+            if (terminateFlag) {
+                return null;
+            }
+        }
+        attempts++;
+        final DataLinkClient dlc = new DataLinkClient(progname, logger);
+        dlc.getDataLinkProperties().getProperties()
+                .putAll(dlprops.getProperties());
+        dlc.setMetrics(metrics);
+        this.dlc = dlc;
+        final DL_RETVAL retVal = negotiate(dlc);
+        if (retVal.isError() || terminateFlag) {
+            log(Level.WARNING, "connect: attempt %d failed (%s)", attempts,
+                    retVal);
+            disconnect();
+            return null;
+        }
+        if (connected) {
+            reconnects++;
+            metrics.addReconnect();
+        }
+        connected = true;
+        return dlc;
+    }
+
+    /**
+     * Close the current connection if any.
+     */
+    void disconnect() {
+        final DataLinkClient dlc = this.dlc;
+        if (dlc != null) {
+            this.dlc = null;
+            dlc.close();
+        }
+    }
+
+    /**
+     * Get the DataLink properties used for each connection.
+     * 
+     * @return the DataLink properties.
+     */
+    public DataLinkProperties getDataLinkProperties() {
+        return dlprops;
+    }
+
+    /**
+     * Get the reconnect delay.
+     * 
+     * @param attempts
+     *            the number of failed attempts.
+     * @return the delay in milliseconds, half of the exponential delay plus a
+     *         random amount up to the other half so that clients which lost
+     *         their connections at the same time do not reconnect together.
+     */
+    private long getDelay(int attempts) {
+        long delay = minDelay;
+        for (int i = 0; i < attempts && delay < maxDelay; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, maxDelay);
+        final long half = delay / 2;
+        return half + (long) (random.nextDouble() * (delay - half));
+    }
+
+    /**
+     * Get the metrics shared by the connections, which are registered as a
+     * JMX MBean until this is closed.
+     * 
+     * @return the metrics.
+     */
+    public DataLinkMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Get the number of times a connection has been made again.
+     * 
+     * @return the number of reconnects.
+     */
+    public long getReconnects() {
+        return reconnects;
+    }
+
+    /**
+     * Determines if this is terminated.
+     * 
+     * @return true if terminated, false otherwise.
+     */
+    public boolean isTerminated() {
+        return terminateFlag;
+    }
+
+    void log(Level level, String format, Object... args) {
+        logger.log(level, progname + ": " + String.format(format, args));
+    }
+
+    /**
+     * Connect the new client and prepare it for use.
+     * 
+     * @param dlc
+     *            the DataLink client which is not yet connected.
+     * @return the DataLink return value.
+     */
+    abstract DL_RETVAL negotiate(DataLinkClient dlc);
+
+    /**
+     * Register the shared metrics as a JMX MBean named after the program,
+     * they remain registered while the connection is lost and are
+     * unregistered when the subclass is closed.
+     */
+    void registerMetrics() {
+        if (!metrics.register(progname)) {
+            log(Level.WARNING, "registerMetrics: %s was not registered",
+                    progname);
+        }
+    }
+
+    /**
+     * Set the reconnect delays.
+     * 
+     * @param minDelay
+     *            the delay before the first reconnect in milliseconds.
+     * @param maxDelay
+     *            the maximum delay in milliseconds.
+     */
+    public void setBackoff(long minDelay, long maxDelay) {
+        if (minDelay <= 0 || maxDelay < minDelay) {
+            throw new IllegalArgumentException(
+                    "Invalid delay (" + minDelay + ", " + maxDelay + ")");
+        }
+        this.minDelay = minDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Sleep for the delay or until terminated. An interrupt terminates this
+     * so the reconnect loop stops, and the interrupt status is kept for the
+     * caller.
+     * 
+     * @param delay
+     *            the delay in milliseconds.
+     */
+    synchronized void sleep(long delay) {
+        final long end = System.currentTimeMillis() + delay;
+        long remaining = delay;
+        while (!terminateFlag && remaining > 0) {
+            try {
+                wait(remaining);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                terminateFlag = true;
+                return;
+            }
+            remaining = end - System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Terminate the connection, this may be called from any thread.
+     */
+    public void terminate() {
+        terminateFlag = true;
+        final DataLinkClient dlc = this.dlc;
+        if (dlc != null) {
+            dlc.terminate();
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+}
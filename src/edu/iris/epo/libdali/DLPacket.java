@@ -27,6 +27,100 @@ package edu.iris.epo.libdali;
  * @author kevin
  */
 public class DLPacket implements DataLinkConst {
+    /** The prefix of a packet header */
+    private static final byte[] PACKET_PREFIX =
+            { 'P', 'A', 'C', 'K', 'E', 'T', ' ' };
+
+    /**
+     * Determines if the header is a packet header.
+     * 
+     * @param buf
+     *            the buffer containing the header.
+     * @param len
+     *            the header length.
+     * @return true if the header is a packet header, false otherwise.
+     */
+    public static boolean isPacketHeader(byte[] buf, int len) {
+        if (len <= PACKET_PREFIX.length) {
+            return false;
+        }
+        for (int i = 0; i < PACKET_PREFIX.length; i++) {
+            if (buf[i] != PACKET_PREFIX[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parse the decimal number.
+     * 
+     * @param buf
+     *            the buffer.
+     * @param start
+     *            the start index of the number.
+     * @param end
+     *            the end index of the number.
+     * @return the number or <code>Long.MIN_VALUE</code> if not a valid
+     *         number.
+     */
+    private static long parseLong(byte[] buf, int start, int end) {
+        boolean negative = false;
+        if (start < end && buf[start] == '-') {
+            negative = true;
+            start++;
+        }
+        // limit the number of digits so that the value cannot overflow
+        if (start == end || end - start > 18) {
+            return Long.MIN_VALUE;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            final int digit = buf[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return Long.MIN_VALUE;
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Skip the token.
+     * 
+     * @param buf
+     *            the buffer.
+     * @param index
+     *            the start index.
+     * @param end
+     *            the end index.
+     * @return the index of the first whitespace or the end index if none.
+     */
+    private static int skipToken(byte[] buf, int index, int end) {
+        while (index < end && buf[index] > ' ') {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * Skip the whitespace.
+     * 
+     * @param buf
+     *            the buffer.
+     * @param index
+     *            the start index.
+     * @param end
+     *            the end index.
+     * @return the index of the first non-whitespace or the end index if none.
+     */
+    private static int skipWhitespace(byte[] buf, int index, int end) {
+        while (index < end && buf[index] >= 0 && buf[index] <= ' ') {
+            index++;
+        }
+        return index;
+    }
+
     /** Data end time in microseconds */
     private long dataend;
 
@@ -42,6 +136,9 @@ public class DLPacket implements DataLinkConst {
     /** Packet time in microseconds */
     private long pkttime;
 
+    /** Stream ID index in the stream ID table or -1 if none */
+    private int streamIndex = -1;
+
     /** Stream ID */
     private String streamid;
 
@@ -51,8 +148,10 @@ public class DLPacket implements DataLinkConst {
     public void clear() {
         dataend = 0;
         datasize = 0;
+        datastart = 0;
         pktid = 0;
         pkttime = 0;
+        streamIndex = -1;
         streamid = null;
     }
 
@@ -91,6 +190,17 @@ public class DLPacket implements DataLinkConst {
         return pkttime;
     }
 
+    /**
+     * Get the dense index of the stream ID in the {@link StreamidTable}, which
+     * is set when the header is parsed from the buffer.
+     * 
+     * @return the stream ID index or -1 if none.
+     * @see StreamidTable#getStreamid(int)
+     */
+    public int getStreamIndex() {
+        return streamIndex;
+    }
+
     /**
      * @return the streamid
      */
@@ -127,7 +237,7 @@ public class DLPacket implements DataLinkConst {
                 if (sdatasize <= MAXPACKETSIZE) {
                     this.setStreamid(streamid);
                     this.setPktid(spktid);
-                    this.setPktid(spkttime);
+                    this.setPkttime(spkttime);
                     this.setDatastart(datastart);
                     this.setDataend(sdataend);
                     this.setDatasize(sdatasize);
@@ -139,6 +249,87 @@ public class DLPacket implements DataLinkConst {
         return false;
     }
 
+    /**
+     * Parse the packet header in the buffer without allocating. The header
+     * must be in the form "PACKET streamid pktid pkttime datastart dataend
+     * datasize" and the stream ID is interned with the {@link StreamidTable}.
+     * 
+     * @param buf
+     *            the buffer containing the header.
+     * @param len
+     *            the header length.
+     * @return true if successful, false otherwise.
+     * @see #isPacketHeader(byte[], int)
+     */
+    public boolean parse(byte[] buf, int len) {
+        return parse(buf, len, MAXPACKETSIZE);
+    }
+
+    /**
+     * Parse the packet header in the buffer without allocating, accepting
+     * packets up to the maximum data size such as the packet size negotiated
+     * with the server.
+     * 
+     * @param buf
+     *            the buffer containing the header.
+     * @param len
+     *            the header length.
+     * @param maxsize
+     *            the maximum data size.
+     * @return true if successful, false otherwise.
+     * @see #parse(byte[], int)
+     */
+    public boolean parse(byte[] buf, int len, int maxsize) {
+        if (!isPacketHeader(buf, len)) {
+            return false;
+        }
+        int start = skipWhitespace(buf, PACKET_PREFIX.length, len);
+        int end = skipToken(buf, start, len);
+        if (start == end) {
+            return false;
+        }
+        final int sstart = start, send = end;
+        long spktid = 0, spkttime = 0, sdatastart = 0, sdataend = 0;
+        long value = 0;
+        for (int field = 0; field < 5; field++) {
+            start = skipWhitespace(buf, end, len);
+            end = skipToken(buf, start, len);
+            if ((value = parseLong(buf, start, end)) == Long.MIN_VALUE) {
+                return false;
+            }
+            switch (field) {
+            case 0:
+                spktid = value;
+                break;
+            case 1:
+                spkttime = value;
+                break;
+            case 2:
+                sdatastart = value;
+                break;
+            case 3:
+                sdataend = value;
+                break;
+            }
+        }
+        // value is the data size
+        if (skipWhitespace(buf, end, len) != len || value < 0 ||
+                value > maxsize) {
+            return false;
+        }
+        // only intern the stream ID of a valid header
+        final Streamid streamid = StreamidTable.getInstance()
+                .getStreamid(buf, sstart, send - sstart);
+        this.streamid = streamid.getText();
+        this.streamIndex = streamid.getIndex();
+        this.pktid = spktid;
+        this.pkttime = spkttime;
+        this.datastart = sdatastart;
+        this.dataend = sdataend;
+        this.datasize = (int) value;
+        return true;
+    }
+
     /**
      * @param dataend
      *            the dataend to set in microseconds
@@ -191,6 +382,16 @@ public class DLPacket implements DataLinkConst {
      */
     public void setStreamid(String streamid) {
         this.streamid = streamid;
+        this.streamIndex = -1;
+    }
+
+    /**
+     * @param streamid
+     *            the streamid to set
+     */
+    public void setStreamid(Streamid streamid) {
+        this.streamid = streamid.getText();
+        this.streamIndex = streamid.getIndex();
     }
 
     @Override
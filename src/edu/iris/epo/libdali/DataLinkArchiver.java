@@ -0,0 +1,558 @@
+/**
+ *    Copyright (C) 2017 IRIS (http://www.iris.edu/hq/).
+ *    
+ *    All inquiries should be sent to John Taber <taber@iris.edu>.
+ *    
+ *    This file is part of Jlibdali.
+ *
+ *    Jlibdali is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    Jlibdali is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with Jlibdali.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.iris.epo.libdali;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Archive writer for miniSEED packets in the SeisComP Data Structure (SDS)
+ * layout:
+ * <p>
+ * <code>YEAR/NET/STA/CHAN.D/NET.STA.LOC.CHAN.D.YEAR.DOY</code>
+ * <p>
+ * Packets are archived by the day of their start time. The day files are
+ * kept open in a least recently used cache of file channels and the packets
+ * for each file are batched in a pooled direct buffer and appended when the
+ * buffer is full. The files are flushed and forced to the disk on a schedule
+ * by {@link #poll()}, which is also called for each packet written. The cache
+ * is keyed by the stream and the day, so when the packets of a stream roll
+ * over to the next day a late packet for the previous day is still appended
+ * to the open file, which is closed once it is the least recently used.
+ * <p>
+ * The archiver is not thread safe, it is intended to be fed from a single
+ * collection thread.
+ * 
+ * @author kevin
+ */
+public class DataLinkArchiver implements Closeable, DataLinkConst {
+    /** An open day file */
+    private static class DayFile {
+        /** The pending appends */
+        private final ByteBuffer buffer;
+        private final FileChannel channel;
+
+        private DayFile(FileChannel channel, ByteBuffer buffer) {
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+
+    /** The stream and day of a day file */
+    private static class DayKey {
+        /** The epoch day */
+        private long day;
+        private Streamid streamid;
+
+        private DayKey(Streamid streamid, long day) {
+            this.streamid = streamid;
+            this.day = day;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof DayKey)) {
+                return false;
+            }
+            final DayKey other = (DayKey) obj;
+            return day == other.day && streamid.equals(other.streamid);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * streamid.hashCode() + Long.hashCode(day);
+        }
+    }
+
+    /** The size of the append buffer for each file in bytes */
+    public static final int BATCH_SIZE = 16 * 1024;
+
+    /** The default interval between forcing the files in milliseconds */
+    public static final long DEFAULT_FORCE_INTERVAL = 1000;
+
+    /** The default maximum number of open files */
+    public static final int DEFAULT_MAX_OPEN_FILES = 512;
+
+    /** The number of microseconds in a day */
+    private static final long DAY_MICROS = 86400L * 1000000L;
+
+    /** The SDS data type */
+    private static final String SDS_TYPE = "D";
+
+    /**
+     * Get the SDS path of a day file relative to the archive directory.
+     * 
+     * @param streamid
+     *            the stream ID.
+     * @param datastart
+     *            the Unix/POSIX epoch start time in microseconds.
+     * @return the path.
+     * @throws IllegalArgumentException
+     *             if the stream ID is not valid in a path.
+     * @see #isValid(Streamid)
+     */
+    public static String getPath(Streamid streamid, long datastart) {
+        if (!isValid(streamid)) {
+            throw new IllegalArgumentException(
+                    "Invalid stream ID (" + streamid + ")");
+        }
+        final LocalDate date =
+                LocalDate.ofEpochDay(Math.floorDiv(datastart, DAY_MICROS));
+        final String net = streamid.getW();
+        final String sta = streamid.getX();
+        final String loc = StreamidSeed.getLoc(streamid.getY());
+        final String chan = streamid.getZ();
+        return String.format("%d/%s/%s/%s.%s/%s.%s.%s.%s.%s.%d.%03d",
+                date.getYear(), net, sta, chan, SDS_TYPE, net, sta, loc, chan,
+                SDS_TYPE, date.getYear(), date.getDayOfYear());
+    }
+
+    /**
+     * Determines if the stream ID may be used in an SDS path, the network,
+     * station and channel codes must be valid directories so that the path
+     * can not leave the archive directory.
+     * 
+     * @param streamid
+     *            the stream ID.
+     * @return true if the stream ID is valid, false otherwise.
+     */
+    public static boolean isValid(Streamid streamid) {
+        return isValidDir(streamid.getW()) && isValidDir(streamid.getX()) &&
+                isValidName(streamid.getY()) && isValidDir(streamid.getZ());
+    }
+
+    /**
+     * Determines if the stream ID component may be used as a directory.
+     * 
+     * @param s
+     *            the stream ID component.
+     * @return true if the component is not empty, has no path separators and
+     *         is not a relative directory, false otherwise.
+     */
+    private static boolean isValidDir(String s) {
+        return isValidName(s) && !s.isEmpty() && !".".equals(s) &&
+                !"..".equals(s);
+    }
+
+    /**
+     * Determines if the stream ID component may be used in a file name.
+     * 
+     * @param s
+     *            the stream ID component.
+     * @return true if the component has no path separators, false otherwise.
+     */
+    private static boolean isValidName(String s) {
+        return s != null && s.indexOf('/') < 0 && s.indexOf('\\') < 0 &&
+                s.indexOf('\0') < 0;
+    }
+
+    private final DataLinkBufferPool bufferPool =
+            DataLinkBufferPool.getInstance();
+    /** The open day files by stream and day in least recently used order */
+    private final LinkedHashMap<DayKey, DayFile> files =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private long forceInterval = DEFAULT_FORCE_INTERVAL;
+    /** The key reused to look up the open day files */
+    private final DayKey lookup = new DayKey(null, 0);
+    private final int maxOpenFiles;
+    /** The time of the next force in milliseconds */
+    private long nextForce;
+    private long opened;
+    private long packets;
+    /** The archive directory */
+    private final File root;
+
+    /**
+     * Create the archiver with the default maximum number of open files.
+     * 
+     * @param root
+     *            the archive directory.
+     */
+    public DataLinkArchiver(File root) {
+        this(root, DEFAULT_MAX_OPEN_FILES);
+    }
+
+    /**
+     * Create the archiver.
+     * 
+     * @param root
+     *            the archive directory.
+     * @param maxOpenFiles
+     *            the maximum number of open files, which should be more than
+     *            the number of streams since interleaved streams would
+     *            otherwise reopen a file for each packet, and up to twice
+     *            that if late packets are expected after the day rollover.
+     */
+    public DataLinkArchiver(File root, int maxOpenFiles) {
+        if (maxOpenFiles <= 0) {
+            throw new IllegalArgumentException(
+                    "Invalid maximum open files (" + maxOpenFiles + ")");
+        }
+        this.root = root;
+        this.maxOpenFiles = maxOpenFiles;
+        nextForce = System.currentTimeMillis() + forceInterval;
+    }
+
+    /**
+     * Flush, force and close all of the open files.
+     */
+    @Override
+    public void close() throws IOException {
+        IOException exception = null;
+        for (DayFile df : files.values()) {
+            try {
+                close(df);
+            } catch (IOException ex) {
+                if (exception == null) {
+                    exception = ex;
+                }
+            }
+        }
+        files.clear();
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    /**
+     * Flush, force and close the day file.
+     * 
+     * @param df
+     *            the day file.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private void close(DayFile df) throws IOException {
+        try {
+            flush(df);
+            df.channel.force(false);
+        } finally {
+            df.channel.close();
+            bufferPool.release(df.buffer);
+        }
+    }
+
+    /**
+     * Append the pending packets of all of the open files.
+     * 
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    public void flush() throws IOException {
+        for (DayFile df : files.values()) {
+            flush(df);
+        }
+    }
+
+    /**
+     * Append the pending packets of the day file.
+     * 
+     * @param df
+     *            the day file.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private void flush(DayFile df) throws IOException {
+        final ByteBuffer buffer = df.buffer;
+        if (buffer.position() != 0) {
+            buffer.flip();
+            try {
+                write(df.channel, buffer);
+            } finally {
+                buffer.clear();
+            }
+        }
+    }
+
+    /**
+     * Flush all of the open files and force them to the disk.
+     * 
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    public void force() throws IOException {
+        for (DayFile df : files.values()) {
+            flush(df);
+            df.channel.force(false);
+        }
+        nextForce = System.currentTimeMillis() + forceInterval;
+    }
+
+    /**
+     * Get the day file for a packet, opening it if needed.
+     * 
+     * @param streamid
+     *            the stream ID.
+     * @param datastart
+     *            the Unix/POSIX epoch start time in microseconds.
+     * @return the day file.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private DayFile getDayFile(Streamid streamid, long datastart)
+            throws IOException {
+        final long day = Math.floorDiv(datastart, DAY_MICROS);
+        lookup.streamid = streamid;
+        lookup.day = day;
+        DayFile df = files.get(lookup);
+        lookup.streamid = null;
+        if (df != null) {
+            return df;
+        }
+        final File file = getFile(streamid, datastart);
+        final File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Could not create directory " + dir);
+        }
+        final FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        df = new DayFile(channel, bufferPool.leaseDirect(BATCH_SIZE));
+        opened++;
+        if (files.size() >= maxOpenFiles) {
+            final Iterator<DayFile> it = files.values().iterator();
+            final DayFile eldest = it.next();
+            it.remove();
+            try {
+                close(eldest);
+            } catch (IOException ex) {
+                close(df);
+                throw ex;
+            }
+        }
+        files.put(new DayKey(streamid, day), df);
+        return df;
+    }
+
+    /**
+     * Get the SDS day file for a packet.
+     * 
+     * @param streamid
+     *            the stream ID.
+     * @param datastart
+     *            the Unix/POSIX epoch start time in microseconds.
+     * @return the file.
+     * @throws IllegalArgumentException
+     *             if the stream ID is not valid in a path.
+     */
+    public File getFile(Streamid streamid, long datastart) {
+        return new File(root, getPath(streamid, datastart));
+    }
+
+    /**
+     * Get the number of times a file has been opened.
+     * 
+     * @return the number of times a file has been opened.
+     */
+    public long getOpened() {
+        return opened;
+    }
+
+    /**
+     * Get the number of open files.
+     * 
+     * @return the number of open files.
+     */
+    public int getOpenFiles() {
+        return files.size();
+    }
+
+    /**
+     * Get the number of packets archived.
+     * 
+     * @return the number of packets.
+     */
+    public long getPackets() {
+        return packets;
+    }
+
+    /**
+     * Get the archive directory.
+     * 
+     * @return the archive directory.
+     */
+    public File getRoot() {
+        return root;
+    }
+
+    /**
+     * Determines if the stream is archived.
+     * 
+     * @param streamid
+     *            the stream ID.
+     * @return true if the stream is a miniSEED stream with a valid SDS path,
+     *         false otherwise.
+     */
+    private boolean isArchived(Streamid streamid) {
+        return MSEED_TYPE.equals(streamid.getType()) && isValid(streamid);
+    }
+
+    /**
+     * Force the files to the disk if the force interval has elapsed, this
+     * should be called periodically when no packets are written.
+     * 
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    public void poll() throws IOException {
+        if (System.currentTimeMillis() >= nextForce) {
+            force();
+        }
+    }
+
+    /**
+     * Set the interval between forcing the files to the disk.
+     * 
+     * @param forceInterval
+     *            the interval in milliseconds.
+     */
+    public void setForceInterval(long forceInterval) {
+        if (forceInterval <= 0) {
+            throw new IllegalArgumentException(
+                    "Invalid force interval (" + forceInterval + ")");
+        }
+        this.forceInterval = forceInterval;
+        nextForce = System.currentTimeMillis() + forceInterval;
+    }
+
+    /**
+     * Archive a packet read by a DataLink client.
+     * 
+     * @param packet
+     *            the DataLink packet.
+     * @param data
+     *            the packet data.
+     * @return true if the packet was archived, false if it is not a miniSEED
+     *         packet or the stream ID is not valid in an SDS path.
+     * @throws IOException
+     *             if an I/O error occurs.
+     * @see AbstractDataLinkClient#getPacket()
+     * @see AbstractDataLinkClient#getReadBuffer()
+     */
+    public boolean write(DLPacket packet, byte[] data) throws IOException {
+        final StreamidTable table = StreamidTable.getInstance();
+        final int index = packet.getStreamIndex();
+        final Streamid streamid = index >= 0 ? table.getStreamid(index)
+                : table.getStreamid(packet.getStreamid());
+        return write(streamid, packet.getDatastart(), data, 0,
+                packet.getDatasize());
+    }
+
+    /**
+     * Archive a packet.
+     * 
+     * @param streamid
+     *            the stream ID.
+     * @param datastart
+     *            the Unix/POSIX epoch start time in microseconds.
+     * @param data
+     *            the packet data.
+     * @param off
+     *            the offset of the packet data.
+     * @param len
+     *            the length of the packet data.
+     * @return true if the packet was archived, false if it is not a miniSEED
+     *         packet or the stream ID is not valid in an SDS path.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    public boolean write(Streamid streamid, long datastart, byte[] data,
+            int off, int len) throws IOException {
+        if (!isArchived(streamid)) {
+            return false;
+        }
+        final DayFile df = getDayFile(streamid, datastart);
+        final ByteBuffer buffer = df.buffer;
+        if (len > buffer.remaining()) {
+            flush(df);
+        }
+        if (len > buffer.remaining()) {
+            write(df.channel, ByteBuffer.wrap(data, off, len));
+        } else {
+            buffer.put(data, off, len);
+        }
+        packets++;
+        poll();
+        return true;
+    }
+
+    /**
+     * Archive a packet from a byte buffer such as the buffer of a
+     * {@link DataLinkPayload}.
+     * 
+     * @param streamid
+     *            the stream ID.
+     * @param datastart
+     *            the Unix/POSIX epoch start time in microseconds.
+     * @param data
+     *            the packet data from the position to the limit, the position
+     *            of the buffer is not changed.
+     * @return true if the packet was archived, false if it is not a miniSEED
+     *         packet or the stream ID is not valid in an SDS path.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    public boolean write(Streamid streamid, long datastart, ByteBuffer data)
+            throws IOException {
+        if (!isArchived(streamid)) {
+            return false;
+        }
+        final DayFile df = getDayFile(streamid, datastart);
+        final ByteBuffer buffer = df.buffer;
+        final int len = data.remaining();
+        if (len > buffer.remaining()) {
+            flush(df);
+        }
+        if (len > buffer.remaining()) {
+            write(df.channel, data.duplicate());
+        } else {
+            buffer.put(data.duplicate());
+        }
+        packets++;
+        poll();
+        return true;
+    }
+
+    /**
+     * Write all of the buffer to the channel.
+     * 
+     * @param channel
+     *            the channel.
+     * @param buffer
+     *            the buffer.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private void write(FileChannel channel, ByteBuffer buffer)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
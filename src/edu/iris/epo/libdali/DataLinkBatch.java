@@ -0,0 +1,259 @@
+/**
+ *    Copyright (C) 2017 IRIS (http://www.iris.edu/hq/).
+ *    
+ *    All inquiries should be sent to John Taber <taber@iris.edu>.
+ *    
+ *    This file is part of Jlibdali.
+ *
+ *    Jlibdali is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    Jlibdali is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with Jlibdali.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.iris.epo.libdali;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A batch of packets to be written to the DataLink server with a single
+ * gathering write.
+ * <p>
+ * The packet data is not copied, the packet data buffers must not be modified
+ * until the batch has been written.
+ * 
+ * @author kevin
+ * @see DataLinkClient#writeBatch(DataLinkBatch)
+ */
+public class DataLinkBatch implements DataLinkConst {
+    /** The initial number of packets */
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final boolean ack;
+    private ByteBuffer[] buffers = new ByteBuffer[INITIAL_CAPACITY * 2];
+    private int bytes;
+    private int count;
+    /** The time the first packet was added in milliseconds */
+    private long firstTime;
+    private byte[] headers = new byte[INITIAL_CAPACITY * (3 + MAXHEADERLEN)];
+    private int headersLen;
+    private int[] headerOffsets = new int[INITIAL_CAPACITY];
+    private final long linger;
+    private final int maxbytes;
+    private int maxpacketlen;
+    private int[] packetlens = new int[INITIAL_CAPACITY];
+    private byte[][] packets = new byte[INITIAL_CAPACITY][];
+
+    /**
+     * Create the batch.
+     * 
+     * @param maxbytes
+     *            the number of bytes at which the batch should be written.
+     * @param linger
+     *            the maximum time in milliseconds a packet should wait in the
+     *            batch.
+     * @param ack
+     *            if true request acknowledgement, false otherwise.
+     */
+    public DataLinkBatch(int maxbytes, long linger, boolean ack) {
+        this.maxbytes = maxbytes;
+        this.linger = linger;
+        this.ack = ack;
+    }
+
+    /**
+     * Add a packet to the batch.
+     * 
+     * @param packet
+     *            the packet data buffer to send.
+     * @param packetlen
+     *            the Length of data in bytes to send from the packet data
+     *            buffer.
+     * @param streamid
+     *            the stream ID of packet.
+     * @param datastart
+     *            the Unix/POSIX epoch start time in microseconds.
+     * @param dataend
+     *            the Unix/POSIX epoch end time in microseconds.
+     * @return true if the batch is full and should be written, false
+     *         otherwise.
+     * @throws IllegalArgumentException
+     *             if the packet header is too long.
+     */
+    public boolean add(byte[] packet, int packetlen, IStreamid streamid,
+            long datastart, long dataend) {
+        // Create packet header with command:
+        // "WRITE streamid hpdatastart hpdataend flags size"
+        final int headerlen = DataLinkEncoder.getWriteHeaderLength(streamid,
+                datastart, dataend, packetlen);
+        if (headerlen > MAXHEADERLEN) {
+            throw new IllegalArgumentException(
+                    "Invalid header length (" + headerlen + ")");
+        }
+        if (count == packets.length) {
+            final int capacity = count * 2;
+            headerOffsets = Arrays.copyOf(headerOffsets, capacity);
+            packetlens = Arrays.copyOf(packetlens, capacity);
+            packets = Arrays.copyOf(packets, capacity);
+            buffers = new ByteBuffer[capacity * 2];
+        }
+        if (headersLen + 3 + headerlen > headers.length) {
+            headers = Arrays.copyOf(headers, headers.length * 2);
+        }
+        if (count == 0) {
+            firstTime = System.currentTimeMillis();
+        }
+        headerOffsets[count] = headersLen;
+        headers[headersLen++] = 'D';
+        headers[headersLen++] = 'L';
+        headers[headersLen++] = (byte) headerlen;
+        headersLen = DataLinkEncoder.putWriteHeader(headers, headersLen,
+                streamid, datastart, dataend, ack, packetlen);
+        packets[count] = packet;
+        packetlens[count] = packetlen;
+        count++;
+        bytes += 3 + headerlen + packetlen;
+        if (maxpacketlen < packetlen) {
+            maxpacketlen = packetlen;
+        }
+        return isFull();
+    }
+
+    /**
+     * Clear the batch.
+     */
+    public void clear() {
+        Arrays.fill(packets, 0, count, null);
+        Arrays.fill(buffers, null);
+        count = 0;
+        bytes = 0;
+        headersLen = 0;
+        maxpacketlen = 0;
+        firstTime = 0;
+    }
+
+    /**
+     * Get the buffers for the gathering write, the buffers are only valid
+     * until the batch is modified.
+     * 
+     * @return the buffers, the number of buffers is returned by
+     *         {@link #getBufferCount()}.
+     */
+    ByteBuffer[] getBuffers() {
+        int index = 0;
+        int headerEnd;
+        for (int i = 0; i < count; i++) {
+            headerEnd = (i + 1 < count) ? headerOffsets[i + 1] : headersLen;
+            buffers[index++] = ByteBuffer.wrap(headers, headerOffsets[i],
+                    headerEnd - headerOffsets[i]);
+            if (packetlens[i] > 0) {
+                buffers[index++] =
+                        ByteBuffer.wrap(packets[i], 0, packetlens[i]);
+            }
+        }
+        return buffers;
+    }
+
+    /**
+     * Get the number of buffers for the gathering write.
+     * 
+     * @return the number of buffers.
+     */
+    int getBufferCount() {
+        int index = count;
+        for (int i = 0; i < count; i++) {
+            if (packetlens[i] > 0) {
+                index++;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Get the number of bytes in the batch including the headers.
+     * 
+     * @return the number of bytes.
+     */
+    public int getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Get the time remaining before the oldest packet has been waiting for the
+     * linger time.
+     * 
+     * @return the time in milliseconds, 0 if the batch should be written or
+     *         <code>Long.MAX_VALUE</code> if the batch is empty.
+     * @see DataLinkClient#writeExpired(DataLinkBatch)
+     */
+    public long getLingerDelay() {
+        if (count == 0) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, firstTime + linger - System.currentTimeMillis());
+    }
+
+    /**
+     * Get the largest packet length in the batch.
+     * 
+     * @return the largest packet length.
+     */
+    public int getMaxPacketlen() {
+        return maxpacketlen;
+    }
+
+    /**
+     * Determines if acknowledgement is requested.
+     * 
+     * @return true if acknowledgement is requested, false otherwise.
+     */
+    public boolean isAck() {
+        return ack;
+    }
+
+    /**
+     * Determines if the batch is empty.
+     * 
+     * @return true if empty, false otherwise.
+     */
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Determines if the oldest packet has been waiting for the linger time.
+     * 
+     * @return true if the batch should be written, false otherwise.
+     */
+    public boolean isExpired() {
+        return count != 0 &&
+                System.currentTimeMillis() - firstTime >= linger;
+    }
+
+    /**
+     * Determines if the batch has reached the maximum number of bytes.
+     * 
+     * @return true if the batch should be written, false otherwise.
+     */
+    public boolean isFull() {
+        return bytes >= maxbytes;
+    }
+
+    /**
+     * Get the number of packets in the batch.
+     * 
+     * @return the number of packets.
+     */
+    public int size() {
+        return count;
+    }
+}
@@ -0,0 +1,245 @@
+/**
+ *    Copyright (C) 2017 IRIS (http://www.iris.edu/hq/).
+ *    
+ *    All inquiries should be sent to John Taber <taber@iris.edu>.
+ *    
+ *    This file is part of Jlibdali.
+ *
+ *    Jlibdali is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    Jlibdali is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with Jlibdali.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.iris.epo.libdali;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Shared pool of byte arrays and direct byte buffers in power of two size
+ * classes.
+ * <p>
+ * Clients lease buffers of the size they need and release them when closed
+ * so that many mostly idle clients do not each hold buffers of the maximum
+ * packet size. Sizes larger than {@link #MAX_SIZE} are allocated but not
+ * pooled. A released buffer must not be used again.
+ * 
+ * @author kevin
+ */
+public class DataLinkBufferPool implements DataLinkConst {
+    /**
+     * The pooled buffers of one size class, the buffers are kept in stacks so
+     * that leasing and releasing do not allocate.
+     */
+    private static final class SizeClass {
+        private final byte[][] arrays;
+        private int arrayCount;
+        private final ByteBuffer[] buffers;
+        private int bufferCount;
+
+        private SizeClass(int maxBuffers) {
+            arrays = new byte[maxBuffers][];
+            buffers = new ByteBuffer[maxBuffers];
+        }
+    }
+
+    /** The default maximum number of buffers of each type in a size class */
+    public static final int DEFAULT_MAX_BUFFERS = 64;
+
+    /** The largest pooled size */
+    public static final int MAX_SIZE = 1 << 20;
+
+    /** The smallest size */
+    public static final int MIN_SIZE = SLINKPACKETSIZE;
+
+    /** The shared pool */
+    private static final DataLinkBufferPool instance =
+            new DataLinkBufferPool(DEFAULT_MAX_BUFFERS);
+
+    /**
+     * Get the index of the size class.
+     * 
+     * @param size
+     *            the size of the size class.
+     * @return the index.
+     */
+    private static int getIndex(int size) {
+        return Integer.numberOfTrailingZeros(size) -
+                Integer.numberOfTrailingZeros(MIN_SIZE);
+    }
+
+    /**
+     * Get the shared pool.
+     * 
+     * @return the shared pool.
+     */
+    public static DataLinkBufferPool getInstance() {
+        return instance;
+    }
+
+    /**
+     * Get the size of the size class for the size.
+     * 
+     * @param size
+     *            the size.
+     * @return the size of the size class, the size if larger than
+     *         {@link #MAX_SIZE}.
+     */
+    public static int getSizeClass(int size) {
+        if (size <= MIN_SIZE) {
+            return MIN_SIZE;
+        }
+        if (size > MAX_SIZE) {
+            return size;
+        }
+        return Integer.highestOneBit(size - 1) << 1;
+    }
+
+    private final SizeClass[] sizeClasses;
+
+    /**
+     * Create the pool.
+     * 
+     * @param maxBuffers
+     *            the maximum number of buffers of each type kept in each size
+     *            class.
+     */
+    public DataLinkBufferPool(int maxBuffers) {
+        if (maxBuffers < 0) {
+            throw new IllegalArgumentException(
+                    "Invalid max buffers (" + maxBuffers + ")");
+        }
+        sizeClasses = new SizeClass[getIndex(MAX_SIZE) + 1];
+        for (int i = 0; i < sizeClasses.length; i++) {
+            sizeClasses[i] = new SizeClass(maxBuffers);
+        }
+    }
+
+    /**
+     * Get the number of pooled byte arrays and direct buffers.
+     * 
+     * @return the number of buffers.
+     */
+    public int getPooled() {
+        int count = 0;
+        for (SizeClass sizeClass : sizeClasses) {
+            synchronized (sizeClass) {
+                count += sizeClass.arrayCount + sizeClass.bufferCount;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get the size class for a buffer being released.
+     * 
+     * @param capacity
+     *            the capacity of the buffer.
+     * @return the size class or null if the buffer is not pooled.
+     */
+    private SizeClass getReleaseClass(int capacity) {
+        if (capacity < MIN_SIZE || capacity > MAX_SIZE ||
+                Integer.bitCount(capacity) != 1) {
+            return null;
+        }
+        return sizeClasses[getIndex(capacity)];
+    }
+
+    /**
+     * Lease a byte array.
+     * 
+     * @param size
+     *            the minimum size.
+     * @return the byte array, whose length is the size of the size class.
+     */
+    public byte[] lease(int size) {
+        final int classSize = getSizeClass(size);
+        if (classSize <= MAX_SIZE) {
+            final SizeClass sizeClass = sizeClasses[getIndex(classSize)];
+            synchronized (sizeClass) {
+                if (sizeClass.arrayCount != 0) {
+                    final byte[] buf =
+                            sizeClass.arrays[--sizeClass.arrayCount];
+                    sizeClass.arrays[sizeClass.arrayCount] = null;
+                    return buf;
+                }
+            }
+        }
+        return new byte[classSize];
+    }
+
+    /**
+     * Lease a direct byte buffer.
+     * 
+     * @param size
+     *            the minimum size.
+     * @return the byte buffer, whose capacity is the size of the size class,
+     *         with the position 0 and the limit the size.
+     */
+    public ByteBuffer leaseDirect(int size) {
+        final int classSize = getSizeClass(size);
+        ByteBuffer buffer = null;
+        if (classSize <= MAX_SIZE) {
+            final SizeClass sizeClass = sizeClasses[getIndex(classSize)];
+            synchronized (sizeClass) {
+                if (sizeClass.bufferCount != 0) {
+                    buffer = sizeClass.buffers[--sizeClass.bufferCount];
+                    sizeClass.buffers[sizeClass.bufferCount] = null;
+                }
+            }
+        }
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(classSize);
+        }
+        buffer.clear().limit(size);
+        return buffer;
+    }
+
+    /**
+     * Release a byte array leased from the pool.
+     * 
+     * @param buf
+     *            the byte array or null if none.
+     */
+    public void release(byte[] buf) {
+        if (buf == null) {
+            return;
+        }
+        final SizeClass sizeClass = getReleaseClass(buf.length);
+        if (sizeClass != null) {
+            synchronized (sizeClass) {
+                if (sizeClass.arrayCount < sizeClass.arrays.length) {
+                    sizeClass.arrays[sizeClass.arrayCount++] = buf;
+                }
+            }
+        }
+    }
+
+    /**
+     * Release a direct byte buffer leased from the pool.
+     * 
+     * @param buffer
+     *            the byte buffer or null if none.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || buffer.isReadOnly()) {
+            return;
+        }
+        final SizeClass sizeClass = getReleaseClass(buffer.capacity());
+        if (sizeClass != null) {
+            synchronized (sizeClass) {
+                if (sizeClass.bufferCount < sizeClass.buffers.length) {
+                    sizeClass.buffers[sizeClass.bufferCount++] = buffer;
+                }
+            }
+        }
+    }
+}
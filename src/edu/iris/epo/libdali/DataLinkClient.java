@@ -24,11 +24,12 @@ package edu.iris.epo.libdali;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketAddress;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 
@@ -37,7 +38,8 @@ import java.util.logging.Level;
  * 
  * @author kevin
  */
-public class DataLinkClient implements Closeable, DataLinkConst {
+public class DataLinkClient extends AbstractDataLinkClient
+        implements Closeable {
     /** DataLink return value */
     public enum DL_RETVAL {
         /** No error, success */
@@ -120,31 +122,26 @@ public class DataLinkClient implements Closeable, DataLinkConst {
         return "Jlibdali version " + VERSION;
     }
 
-    private SocketAddress address;
-    private int bytesread;
-    private String clientid;
-    private final DLPacket dlpacket = new DLPacket();
-    private final DataLinkProperties dlprops;
-    private boolean initFlag;
-    private int iotimeout;
+    private SocketChannel channel;
+    /** True if packet payloads are read into pooled direct buffers */
+    private boolean directFlag;
+    /** The input stream used instead of the channel by the benchmarks */
     private InputStream is;
-    private final IDataLinkLogger logger;
-    private String logprefix;
-    private int maxpktsize;
-    private OutputStream os;
-    private byte[] readBuffer = new byte[MAXPACKETSIZE];
-    private String readText;
-    private int resp_size;
-    private String resp_status;
-    private String resp_value;
-    private byte[] sendBuffer = new byte[MAXPACKETSIZE];
+    /** The selection key of the channel */
+    private SelectionKey key;
+    private ByteBuffer packetBuffer;
+    /** The payload of the last packet read in the direct read mode */
+    private DataLinkPayload payload;
+    /** The selector used to wait for the channel with the I/O timeout */
+    private volatile Selector selector;
+    /**
+     * The send buffer for the preamble and header, which has room for the
+     * longest stream ID and values before the header length is checked
+     */
+    private byte[] sendBuffer = new byte[3 + 2 * MAXHEADERLEN];
+    private final ByteBuffer[] sendBuffers = new ByteBuffer[2];
     private int sendBuflen;
-    private float serverproto;
     private Socket socket;
-    private boolean streamingEndFlag;
-    private volatile boolean streamingFlag;
-    private volatile boolean terminateFlag;
-    private boolean writeperm;
 
     /**
      * Create the DataLink client.
@@ -155,40 +152,59 @@ public class DataLinkClient implements Closeable, DataLinkConst {
      *            the logger or null for the default.
      */
     public DataLinkClient(String progname, IDataLinkLogger logger) {
-        // ensure address is never null
-        address = DATALINK_ADDRESS;
-        iotimeout = DATALINK_IOTIMEOUT;
-        dlprops = new DataLinkProperties();
-        setLogprefix();
-        if (logger == null) {
-            logger = DataLinkUtils.createLogger();
-        }
-        this.logger = logger;
-        clientid = DataLinkUtils.genClientid(progname);
-        sendBuffer[sendBuflen++] = 'D';
-        sendBuffer[sendBuflen++] = 'L';
+        super(progname, logger);
+        sendBuffer[0] = 'D';
+        sendBuffer[1] = 'L';
+        sendBuffers[0] = ByteBuffer.wrap(sendBuffer);
         if (first.compareAndSet(false, true)) {
-            logger.log(Level.INFO, DataLinkClient.getVersion());
+            this.logger.log(Level.INFO, DataLinkClient.getVersion());
         }
     }
 
-    private void addBuffer(byte b) {
-        sendBuffer[sendBuflen++] = b;
+    private void addBuffer(IStreamid streamid) {
+        sendBuflen =
+                DataLinkEncoder.putStreamid(sendBuffer, sendBuflen, streamid);
     }
 
-    private void addBuffer(int b) {
-        sendBuffer[sendBuflen++] = (byte) b;
+    private void addBuffer(long value) {
+        sendBuflen = DataLinkEncoder.putLong(sendBuffer, sendBuflen, value);
     }
 
     private void addBuffer(String s) {
-        int len = s.length();
-        for (int i = 0; i < len; i++) {
-            addBuffer((byte) s.charAt(i));
+        sendBuflen = DataLinkEncoder.putAscii(sendBuffer, sendBuflen, s);
+    }
+
+    /**
+     * Wait for the channel to be ready for the operations.
+     * 
+     * @param ops
+     *            the selection key operations.
+     * @return true if the channel is ready, false if the I/O timeout elapsed
+     *         or the client was terminated.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private boolean await(int ops) throws IOException {
+        final Selector selector = this.selector;
+        if (selector == null || terminateFlag) {
+            return false;
+        }
+        key.interestOps(ops);
+        try {
+            final int n = selector.select(iotimeout);
+            selector.selectedKeys().clear();
+            return n != 0;
+        } finally {
+            key.interestOps(SelectionKey.OP_READ);
         }
     }
 
+    /**
+     * Clear the header in the send buffer, the header starts after the
+     * preamble and the header length.
+     */
     private final void clearBuffer() {
-        sendBuflen = 2;
+        sendBuflen = 3;
     }
 
     /**
@@ -198,10 +214,15 @@ public class DataLinkClient implements Closeable, DataLinkConst {
     public void close() {
         streamingFlag = false;
         terminateFlag = true;
-        closeQuietly(socket);
+        closeQuietly(channel);
+        closeQuietly(selector);
+        unregisterMetrics();
+        releaseBuffers();
         initFlag = false;
-        os = null;
         is = null;
+        channel = null;
+        key = null;
+        selector = null;
         socket = null;
     }
 
@@ -221,7 +242,31 @@ public class DataLinkClient implements Closeable, DataLinkConst {
      * @return the DataLink return value.
      */
     public DL_RETVAL collect(boolean endflag, boolean blockflag) {
-        dlpacket.clear();
+        return collect(endflag, blockflag, dlpacket, null);
+    }
+
+    /**
+     * Collect a packet streaming from the DataLink server into the specified
+     * packet and data buffer rather than the client packet and read buffer.
+     * 
+     * @param endflag
+     *            true to end, false otherwise.
+     * @param blockflag
+     *            true to block until data is available, false otherwise.
+     * @param packet
+     *            the packet for the header.
+     * @param data
+     *            the buffer for the packet data, at least
+     *            {@link DataLinkConst#MAXPACKETSIZE} bytes and the negotiated
+     *            server packet size, or null for the read buffer.
+     * @return the DataLink return value, <code>INVALIDARG</code> if the
+     *         packet data was larger than the buffer, in which case the
+     *         packet data is discarded.
+     * @see #collect(boolean, boolean)
+     */
+    public DL_RETVAL collect(boolean endflag, boolean blockflag,
+            DLPacket packet, byte[] data) {
+        packet.clear();
         if (terminateFlag) {
             return DL_RETVAL._NO_ERROR;
         }
@@ -281,13 +326,14 @@ public class DataLinkClient implements Closeable, DataLinkConst {
                 break;
             }
             if (!retVal.isError()) {
-                retVal = readPacket();
+                retVal = readPacket(packet, data);
                 break;
             } else if (retVal != DL_RETVAL.SOCKET_TIMEOUT) {
                 break;
             }
         }
-        return retVal;
+        metrics.addCollect();
+        return metrics.addError(retVal);
     }
 
     /**
@@ -299,17 +345,30 @@ public class DataLinkClient implements Closeable, DataLinkConst {
         if (!initFlag) {
             init();
         }
-        final Socket socket = new Socket();
+        SocketChannel channel = null;
+        Selector selector = null;
         try {
+            channel = SocketChannel.open();
+            final Socket socket = channel.socket();
             socket.connect(address, iotimeout);
-            socket.setSoTimeout(iotimeout);
-            is = socket.getInputStream();
-            os = socket.getOutputStream();
+            // each command is sent with a single write
+            socket.setTcpNoDelay(true);
+            // the channel is non-blocking and the selector waits for it with
+            // the I/O timeout since the socket timeout only applies to the
+            // socket input stream
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            key = channel.register(selector, SelectionKey.OP_READ);
+            this.channel = channel;
+            this.selector = selector;
             this.socket = socket;
+            ensureReadBuffer(DataLinkBufferPool.MIN_SIZE);
+            registerMetrics();
             return true;
         } catch (Exception ex) {
             log(Level.WARNING, "connect: %s", getMessage(ex));
-            closeQuietly(socket);
+            closeQuietly(channel);
+            closeQuietly(selector);
             return false;
         }
     }
@@ -331,101 +390,22 @@ public class DataLinkClient implements Closeable, DataLinkConst {
                     "exchangeIDs: Connection in streaming mode, cannot continue");
             return DL_RETVAL.STREAMING_ERROR;
         }
-        String header = String.format("ID %s", clientid);
+        String header = "ID " + clientid;
         DL_RETVAL retVal = sendpacket(header, null, 0, true);
         // Check for errors
         if (retVal.isError()) {
             return retVal;
         }
-        String respstr = getReadText();
-        // Verify DataLink signature in server response
-        if (!DATALINK_ID.regionMatches(true, 0, respstr, 0,
-                DATALINK_ID.length())) {
-            log(Level.WARNING, "exchangeIDs: Unrecognized server ID: %11.11s",
-                    respstr);
-            return DL_RETVAL.NO_DATALINK_ID;
-        }
-
-        /*
-         * Search for capabilities flags in server ID by looking for "::" The
-         * expected format of the complete server ID is:
-         * "ID DataLink <optional text> <:: optional capability flags>"
-         */
-        String s = "::";
-        int index = respstr.indexOf(s);
-        if (index > 0 && index < respstr.length() - s.length()) {
-            s = respstr.substring(3, index).trim();
-            log(Level.FINER, "exchangeIDs: ID (%s)", s);
-
-            int endIndex;
-            int fromIndex = index + 1;
-
-            s = "DLPROTO:";
-            index = respstr.indexOf(s, fromIndex);
-            if (index > 0) {
-                endIndex = respstr.indexOf(' ', index + s.length());
-                if (endIndex < 0) {
-                    endIndex = respstr.length();
-                }
-                s = respstr.substring(index + s.length(), endIndex);
-                try {
-                    serverproto = Float.parseFloat(s);
-                    log(Level.FINER, "exchangeIDs: DLPROTO (%.1f)",
-                            serverproto);
-                } catch (Exception ex) {
-                    log(Level.WARNING,
-                            "exchangeIDs: could not parse protocol version from DLPROTO flag: %s",
-                            s);
-                }
-            }
-
-            s = "PACKETSIZE:";
-            index = respstr.indexOf(s, fromIndex);
-            if (index > 0) {
-                endIndex = respstr.indexOf(' ', index + s.length());
-                if (endIndex < 0) {
-                    endIndex = respstr.length();
-                }
-                s = respstr.substring(index + s.length(), endIndex);
-                try {
-                    maxpktsize = Integer.parseInt(s);
-                    log(Level.FINER, "exchangeIDs: PACKETSIZE (%d)",
-                            maxpktsize);
-                } catch (Exception ex) {
-                    log(Level.WARNING,
-                            "exchangeIDs: could not parse protocol version from PACKETSIZE flag: %s",
-                            s);
-                }
-            }
-
-            s = "WRITE";
-            index = respstr.indexOf(s, fromIndex);
-            if (index > 0) {
-                writeperm = true;
-                log(Level.FINER, "exchangeIDs: WRITE");
-            }
-        } else {
-            log(Level.FINER, "exchangeIDs: (%s)", respstr);
-        }
-        return DL_RETVAL._NO_ERROR;
+        return parseServerId(getReadText());
     }
 
     /**
-     * Get the number of bytes read.
+     * Get the header in the send buffer.
      * 
-     * @return the number of bytes read.
+     * @return the header text.
      */
-    public int getBytesread() {
-        return bytesread;
-    }
-
-    /**
-     * Get the data link properties.
-     * 
-     * @return the data link properties.
-     */
-    public DataLinkProperties getDataLinkProperties() {
-        return dlprops;
+    private String getHeader() {
+        return new String(sendBuffer, 3, sendBuflen - 3, ASCII);
     }
 
     /**
@@ -452,8 +432,8 @@ public class DataLinkClient implements Closeable, DataLinkConst {
             log(Level.WARNING, "getinfo: no INFO type");
             return DL_RETVAL.INVALIDARG;
         }
-        String header = String.format("INFO %s %s", infotype,
-                (infomatch != null) ? infomatch : "");
+        String header = "INFO " + infotype + " " +
+                ((infomatch != null) ? infomatch : "");
         DL_RETVAL retVal = sendpacket(header, null, 0, true);
         if (retVal.isError()) {
             return retVal;
@@ -480,81 +460,15 @@ public class DataLinkClient implements Closeable, DataLinkConst {
     }
 
     /**
-     * Get the maximum packet size for server.
-     * 
-     * @return the maximum packet size for server.
-     */
-    public int getMaxPktSize() {
-        return maxpktsize;
-    }
-
-    private String getMessage(Exception ex) {
-        String msg = ex.getMessage();
-        if (msg == null) {
-            msg = ex.toString();
-        }
-        return msg;
-    }
-
-    /**
-     * Get the last packet read.
+     * Get the payload of the last packet read in the direct read mode. The
+     * caller owns the payload and must release it, the client does not keep
+     * a reference after the next packet is read.
      * 
-     * @return the last packet read.
+     * @return the payload or null if none.
+     * @see #setDirectRead(boolean)
      */
-    public DLPacket getPacket() {
-        return dlpacket;
-    }
-
-    /**
-     * Get the read buffer.
-     * 
-     * @return the read buffer.
-     */
-    public byte[] getReadBuffer() {
-        return readBuffer;
-    }
-
-    /**
-     * Get the bytes in the read buffer as text.
-     * 
-     * @return the bytes in the read buffer as text.
-     */
-    public String getReadText() {
-        String s = readText;
-        if (s != null) {
-            return s;
-        }
-        s = new String(readBuffer, 0, bytesread, ASCII);
-        readText = s;
-        return s;
-    }
-
-    /**
-     * @return the <code>resp_value</code> as a long or
-     *         <code>Long.MIN_VALUE</code> if none.
-     */
-    public long getReponseValueLong() {
-        try {
-            return Long.parseLong(resp_value);
-        } catch (Exception ex) {
-        }
-        return Long.MIN_VALUE;
-    }
-
-    /**
-     * @return the <code>resp_value</code>
-     */
-    public String getResponseValue() {
-        return resp_value;
-    }
-
-    /**
-     * Gets the server version of the DataLink protocol.
-     * 
-     * @return the server version of the DataLink protocol.
-     */
-    public float getServerProto() {
-        return serverproto;
+    public DataLinkPayload getPayload() {
+        return payload;
     }
 
     /**
@@ -567,18 +481,9 @@ public class DataLinkClient implements Closeable, DataLinkConst {
      * @return the DataLink return value.
      */
     private DL_RETVAL handlereply(String respstr) {
-        try {
-            // status, value, size
-            String ra[] = respstr.split(RE_WS, 3);
-            if (ra.length == 3) {
-                resp_status = ra[0];
-                resp_value = ra[1];
-                resp_size = Integer.parseInt(ra[2]);
-                if (resp_size > 0 && resp_size < MAXPACKETSIZE) {
-                    return recvdata(resp_size, true);
-                }
-            }
-        } catch (Exception ex) {
+        if (parseReply(respstr) && resp_size > 0 &&
+                resp_size < MAXPACKETSIZE) {
+            return recvdata(resp_size, true);
         }
         log(Level.WARNING, "handlereply: Unable to parse reply header: '%s'",
                 respstr);
@@ -586,99 +491,12 @@ public class DataLinkClient implements Closeable, DataLinkConst {
     }
 
     /**
-     * Initialize the client. This method should be called after setting the
-     * properties and before calling <code>connect</code>. If the
-     * <code>connect</code> method is called and this method has not already
-     * been called it will be called prior to connecting.
+     * Determines if packet payloads are read into pooled direct buffers.
      * 
-     * @return true if success, false if errors.
+     * @return true if the direct read mode is enabled, false otherwise.
      */
-    public boolean init() {
-        initFlag = true;
-        boolean successFlag = true;
-
-        int index;
-        DataLinkPropertiesKey key;
-        String value;
-
-        key = DataLinkPropertiesKey.ADDRESS;
-        value = dlprops.getProperty(key);
-        try {
-            String hostname;
-            int port;
-            index = value.indexOf(DATALINK_ADDRESS_SEP);
-            // if only host name is specified
-            if (index < 0) {
-                hostname = value;
-                port = DATALINK_PORT;
-            } else { // host name and port are specified
-                hostname = value.substring(0, index);
-                if (hostname.isEmpty()) {
-                    hostname = DATALINK_HOSTNAME;
-                }
-                port = Integer.parseInt(value.substring(index + 1));
-            }
-            SocketAddress address;
-            if (!DATALINK_HOSTNAME.equals(hostname) || DATALINK_PORT != port) {
-                address = new InetSocketAddress(hostname, port);
-            } else {
-                address = DATALINK_ADDRESS;
-            }
-            if (!this.address.equals(address)) {
-                this.address = address;
-                log(Level.INFO, "init: %s (%s)", key, address.toString());
-                setLogprefix();
-            }
-        } catch (Exception ex) {
-            successFlag = false;
-            log(Level.WARNING, "init: invalid %s (%s)", key, value);
-        }
-
-        key = DataLinkPropertiesKey.IOTIMEOUT;
-        value = dlprops.getProperty(key);
-        try {
-            int iotimeout = Integer.parseInt(value);
-            if (this.iotimeout != iotimeout) {
-                this.iotimeout = iotimeout;
-                log(Level.INFO, "init: %s (%d)", key, iotimeout);
-            }
-        } catch (Exception ex) {
-            successFlag = false;
-            log(Level.WARNING, "init: invalid %s (%s)", key, value);
-        }
-
-        return successFlag;
-    }
-
-    /**
-     * Determines if this client is streaming.
-     * 
-     * @return true if streaming, false otherwise.
-     */
-    public boolean isStreaming() {
-        return streamingFlag;
-    }
-
-    /**
-     * Determines if this client is terminated.
-     * 
-     * @return true if terminated, false otherwise.
-     */
-    public boolean isTerminated() {
-        return terminateFlag;
-    }
-
-    /**
-     * Checks if there is write permission.
-     * 
-     * @return true if there is write permission, otherwise false.
-     */
-    public boolean isWritePerm() {
-        return writeperm;
-    }
-
-    private void log(Level level, String format, Object... args) {
-        logger.log(level, logprefix + String.format(format, args));
+    public boolean isDirectRead() {
+        return directFlag;
     }
 
     /**
@@ -712,9 +530,11 @@ public class DataLinkClient implements Closeable, DataLinkConst {
         }
         final int packetlen = matchpattern.length();
         final byte[] packet = matchpattern.getBytes(ASCII);
-        final String header = String.format("MATCH %d", packetlen);
-        log(Level.INFO, "match: header=\"%s\"", header);
-        DL_RETVAL retVal = sendpacket(header, packet, packetlen, true);
+        clearBuffer();
+        addBuffer("MATCH ");
+        addBuffer(packetlen);
+        log(Level.INFO, "match: header=\"%s\"", getHeader());
+        DL_RETVAL retVal = sendpacket(packet, packetlen, true);
         if (!retVal.isError()) {
             retVal = handlereply(getReadText());
         }
@@ -749,16 +569,19 @@ public class DataLinkClient implements Closeable, DataLinkConst {
                     "position: Connection in streaming mode, cannot continue");
             return DL_RETVAL.STREAMING_ERROR;
         }
-        final String header;
+        clearBuffer();
         if (pktid == DATALINK_POSITION_EARLIEST) {
-            header = "POSITION SET EARLIEST";
+            addBuffer("POSITION SET EARLIEST");
         } else if (pktid == DATALINK_POSITION_LATEST) {
-            header = "POSITION SET LATEST";
+            addBuffer("POSITION SET LATEST");
         } else {
-            header = String.format("POSITION SET %d %d", pktid, pkttime);
+            addBuffer("POSITION SET ");
+            addBuffer(pktid);
+            addBuffer(" ");
+            addBuffer(pkttime);
         }
-        log(Level.INFO, "position: header=\"%s\"", header);
-        DL_RETVAL retVal = sendpacket(header, null, 0, true);
+        log(Level.INFO, "position: header=\"%s\"", getHeader());
+        DL_RETVAL retVal = sendpacket(null, 0, true);
         if (!retVal.isError()) {
             retVal = handlereply(getReadText());
         }
@@ -790,9 +613,11 @@ public class DataLinkClient implements Closeable, DataLinkConst {
                     "positionAfter: Connection in streaming mode, cannot continue");
             return DL_RETVAL.STREAMING_ERROR;
         }
-        String header = String.format("POSITION AFTER %d", datatime);
-        log(Level.INFO, "positionAfter: header=\"%s\"", header);
-        DL_RETVAL retVal = sendpacket(header, null, 0, true);
+        clearBuffer();
+        addBuffer("POSITION AFTER ");
+        addBuffer(datatime);
+        log(Level.INFO, "positionAfter: header=\"%s\"", getHeader());
+        DL_RETVAL retVal = sendpacket(null, 0, true);
         if (!retVal.isError()) {
             retVal = handlereply(getReadText());
         }
@@ -817,39 +642,115 @@ public class DataLinkClient implements Closeable, DataLinkConst {
                     "read: Connection in streaming mode, cannot continue");
             return DL_RETVAL.STREAMING_ERROR;
         }
+        metrics.addRead();
         DL_RETVAL retVal;
         if (pktid > 0) {
-            String header = String.format("READ %d", pktid);
-            log(Level.INFO, "read: header=\"%s\"", header);
-            retVal = sendpacket(header, null, 0, true);
+            clearBuffer();
+            addBuffer("READ ");
+            addBuffer(pktid);
+            log(Level.INFO, "read: header=\"%s\"", getHeader());
+            retVal = sendpacket(null, 0, true);
         } else {
             retVal = recvheader(true);
         }
         if (!retVal.isError()) {
-            retVal = readPacket();
+            retVal = metrics.addError(readPacket());
         }
         return retVal;
     }
 
+    /**
+     * Read from the channel.
+     * 
+     * @param dst
+     *            the buffer to read into.
+     * @param blockflag
+     *            true to wait up to the I/O timeout for data, false otherwise.
+     * @return the number of bytes read, 0 if no data is available without
+     *         blocking or the client was terminated or -1 at the end of the
+     *         stream.
+     * @throws SocketTimeoutException
+     *             if no data was received within the I/O timeout.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private int read(ByteBuffer dst, boolean blockflag) throws IOException {
+        for (;;) {
+            final int n = channel.read(dst);
+            if (n != 0 || !blockflag || terminateFlag) {
+                return n;
+            }
+            if (!await(SelectionKey.OP_READ) && !terminateFlag) {
+                throw new SocketTimeoutException("Read timed out");
+            }
+        }
+    }
+
+    /**
+     * Read a packet.
+     * 
+     * @return the DataLink return value.
+     */
+    DL_RETVAL readPacket() {
+        return readPacket(dlpacket, null);
+    }
+
     /**
      * Read a packet.
      * 
+     * @param packet
+     *            the packet for the header.
+     * @param data
+     *            the buffer for the packet data or null for the read buffer.
      * @return the DataLink return value.
      */
-    private DL_RETVAL readPacket() {
+    private DL_RETVAL readPacket(DLPacket packet, byte[] data) {
         DL_RETVAL retVal = DL_RETVAL.INVALIDRESP;
-        final String respstr = getReadText();
-        String prefix = "PACKET ";
-        if (respstr.startsWith(prefix)) {
-            if (dlpacket.parse(respstr.substring(prefix.length()))) {
-                int readlen = dlpacket.getDatasize();
-                retVal = recvdata(readlen, true);
+        if (DLPacket.isPacketHeader(readBuffer, bytesread)) {
+            final long start = System.nanoTime();
+            final boolean parsed =
+                    packet.parse(readBuffer, bytesread, getPacketLimit());
+            metrics.addParse(System.nanoTime() - start);
+            if (parsed) {
+                int readlen = packet.getDatasize();
+                payload = null;
+                if (data == null && directFlag) {
+                    retVal = recvpayload(readlen);
+                    if (!retVal.isError()) {
+                        metrics.addPacket(readlen);
+                    }
+                    return retVal;
+                }
+                if (data == null) {
+                    // size the read buffer for the largest server packet
+                    data = ensureReadBuffer(Math.max(readlen, maxpktsize));
+                } else if (data.length < readlen) {
+                    log(Level.WARNING,
+                            "read: packet size (%d) larger than buffer (%d)",
+                            readlen, data.length);
+                    // discard the packet data to stay at the next reply
+                    retVal = recvdata(readlen, true);
+                    if (!retVal.isError() && bytesread != readlen) {
+                        retVal = DL_RETVAL.RECV_ERROR;
+                    }
+                    return retVal.isError() ? retVal : DL_RETVAL.INVALIDARG;
+                }
+                retVal = recvdata(data, readlen, true);
                 if (!retVal.isError() && bytesread != readlen) {
                     log(Level.WARNING, "read: problem receiving packet data");
                     retVal = DL_RETVAL.RECV_ERROR;
+                } else if (!retVal.isError()) {
+                    metrics.addPacket(readlen);
                 }
+                return retVal;
             }
-        } else if (respstr.startsWith("ERROR")) {
+            log(Level.WARNING, "read: Unable to parse reply header: '%s'",
+                    getReadText());
+            return retVal;
+        }
+        // Only the rare ERROR and ENDSTREAM replies need the text
+        final String respstr = getReadText();
+        if (respstr.startsWith("ERROR")) {
             retVal = handlereply(respstr);
         } else if (respstr.equals("ENDSTREAM")) {
             if (streamingEndFlag) {
@@ -874,20 +775,48 @@ public class DataLinkClient implements Closeable, DataLinkConst {
      * @return the DataLink return value.
      */
     private DL_RETVAL recvdata(int readlen, boolean blockflag) {
+        return recvdata(ensureReadBuffer(readlen), readlen, blockflag);
+    }
+
+    /**
+     * Receive arbitrary data from a DataLink server.
+     * 
+     * @param buf
+     *            the buffer for the data.
+     * @param readlen
+     *            the number of bytes to read.
+     * @param blockflag
+     *            true to block until data is available, false otherwise.
+     * @return the DataLink return value.
+     */
+    private DL_RETVAL recvdata(byte[] buf, int readlen, boolean blockflag) {
         readText = null;
         bytesread = 0;
         int nrecv = 0;
+        final long start = System.nanoTime();
+        final ByteBuffer dst =
+                (channel != null) ? ByteBuffer.wrap(buf, 0, readlen) : null;
         try {
             // Recv until readlen bytes have been read
             while (bytesread < readlen) {
                 if (terminateFlag) {
                     return DL_RETVAL._NO_ERROR;
                 }
-                if (!blockflag && is.available() == 0) {
+                if (dst != null) {
+                    // once some data has been read the rest is waited for
+                    nrecv = read(dst, blockflag || bytesread != 0);
+                    if (nrecv == 0) {
+                        if (terminateFlag) {
+                            return DL_RETVAL._NO_ERROR;
+                        }
+                        return DL_RETVAL.NO_DATA;
+                    }
+                } else if (!blockflag && is.available() == 0) {
                     return DL_RETVAL.NO_DATA;
+                } else {
+                    nrecv = is.read(buf, bytesread, readlen - bytesread);
                 }
-                if ((nrecv = is.read(readBuffer, bytesread,
-                        readlen - bytesread)) < 0) {
+                if (nrecv < 0) {
                     return DL_RETVAL.EOF;
                 }
                 // Update byte count and offset
@@ -903,6 +832,8 @@ public class DataLinkClient implements Closeable, DataLinkConst {
             log(Level.WARNING, "recvdata: %d %d %s", readlen, nrecv,
                     getMessage(ex));
             return DL_RETVAL.RECV_ERROR;
+        } finally {
+            metrics.addRecvdata(bytesread, System.nanoTime() - start);
         }
         return DL_RETVAL._NO_ERROR;
     }
@@ -914,7 +845,7 @@ public class DataLinkClient implements Closeable, DataLinkConst {
      *            true to block until data is available, false otherwise.
      * @return the DataLink return value.
      */
-    private DL_RETVAL recvheader(boolean blockflag) {
+    DL_RETVAL recvheader(boolean blockflag) {
         int len = 3;
         DL_RETVAL retVal = recvdata(len, blockflag);
         if (retVal.isError() || retVal == DL_RETVAL.NO_DATA) {
@@ -930,7 +861,7 @@ public class DataLinkClient implements Closeable, DataLinkConst {
         }
         // 3rd byte is the header length
         len = readBuffer[2];
-        if (len < 0 || len > readBuffer.length) {
+        if (len < 0 || len > MAXHEADERLEN) {
             log(Level.WARNING, "recvheader: Invalid header length: %d", len);
             return DL_RETVAL.INVALID_HEADER_LEN;
         }
@@ -942,6 +873,57 @@ public class DataLinkClient implements Closeable, DataLinkConst {
         return retVal;
     }
 
+    /**
+     * Receive the packet payload into a pooled direct buffer through the
+     * socket channel. The payload follows the packet header so the read
+     * waits up to the I/O timeout for each part of the payload.
+     * 
+     * @param readlen
+     *            the number of bytes to read.
+     * @return the DataLink return value.
+     */
+    private DL_RETVAL recvpayload(int readlen) {
+        readText = null;
+        bytesread = 0;
+        if (channel == null) {
+            log(Level.WARNING, "recvpayload: no channel");
+            return DL_RETVAL.NO_SOCKET;
+        }
+        final DataLinkPayload payload = new DataLinkPayload(bufferPool,
+                readlen);
+        final ByteBuffer buffer = payload.getLeasedBuffer();
+        final long start = System.nanoTime();
+        try {
+            while (buffer.hasRemaining()) {
+                final int n = read(buffer, true);
+                if (n == 0) {
+                    // terminated
+                    payload.release();
+                    return DL_RETVAL._NO_ERROR;
+                }
+                if (n < 0) {
+                    payload.release();
+                    return DL_RETVAL.EOF;
+                }
+            }
+        } catch (SocketTimeoutException ex) {
+            log(Level.WARNING, "recvpayload: socket timeout %d %d", readlen,
+                    buffer.position());
+            payload.release();
+            return DL_RETVAL.SOCKET_TIMEOUT;
+        } catch (Exception ex) {
+            log(Level.WARNING, "recvpayload: %d %d %s", readlen,
+                    buffer.position(), getMessage(ex));
+            payload.release();
+            return DL_RETVAL.RECV_ERROR;
+        } finally {
+            metrics.addRecvdata(buffer.position(), System.nanoTime() - start);
+        }
+        bytesread = readlen;
+        this.payload = payload;
+        return DL_RETVAL._NO_ERROR;
+    }
+
     /**
      * Set the packet reject parameters for a connection
      * <p>
@@ -969,9 +951,11 @@ public class DataLinkClient implements Closeable, DataLinkConst {
         }
         final int packetlen = rejectpattern.length();
         final byte[] packet = rejectpattern.getBytes(ASCII);
-        final String header = String.format("REJECT %d", packetlen);
-        log(Level.INFO, "reject: header=\"%s\"", header);
-        DL_RETVAL retVal = sendpacket(header, packet, packetlen, true);
+        clearBuffer();
+        addBuffer("REJECT ");
+        addBuffer(packetlen);
+        log(Level.INFO, "reject: header=\"%s\"", getHeader());
+        DL_RETVAL retVal = sendpacket(packet, packetlen, true);
         if (!retVal.isError()) {
             retVal = handlereply(getReadText());
         }
@@ -979,20 +963,31 @@ public class DataLinkClient implements Closeable, DataLinkConst {
     }
 
     /**
-     * Send arbitrary data to a DataLink server.
+     * Send arbitrary data to a DataLink server with a gathering write.
      * 
-     * @param buffer
-     *            the data.
-     * @param off
-     *            the start offset in the data.
-     * @param len
-     *            the number of bytes to write.
+     * @param srcs
+     *            the buffers containing the data.
+     * @param offset
+     *            the offset of the first buffer.
+     * @param length
+     *            the number of buffers.
      * @return the DataLink return value.
      */
-    private DL_RETVAL senddata(byte[] buffer, int off, int len) {
+    private DL_RETVAL senddata(ByteBuffer[] srcs, int offset, int length) {
         try {
-            os.write(buffer, off, len);
-            os.flush();
+            long remaining = 0;
+            for (int i = offset; i < offset + length; i++) {
+                remaining += srcs[i].remaining();
+            }
+            while (remaining > 0) {
+                final long n = channel.write(srcs, offset, length);
+                if (n == 0 && !await(SelectionKey.OP_WRITE)) {
+                    log(Level.WARNING, "senddata: %s", terminateFlag
+                            ? "terminated" : "socket timeout");
+                    return DL_RETVAL.SEND_ERROR;
+                }
+                remaining -= n;
+            }
             return DL_RETVAL._NO_ERROR;
         } catch (Exception ex) {
             log(Level.WARNING, "senddata: error sending data: %s",
@@ -1018,36 +1013,111 @@ public class DataLinkClient implements Closeable, DataLinkConst {
     private DL_RETVAL sendpacket(String header, byte[] packet, int packetlen,
             boolean ack) {
         final int headerlen = header.length();
-        // Sanity check that the header is not too large or zero
-        if (headerlen > MAXHEADERLEN || headerlen == 0) {
+        // Sanity check that the header is not too large
+        if (headerlen > MAXHEADERLEN) {
             log(Level.WARNING, "sendpacket: packet header size is invalid: %d",
                     headerlen);
             return DL_RETVAL.INVALIDARG;
         }
         clearBuffer();
-        addBuffer(header.length());
         addBuffer(header);
-        DL_RETVAL retVal = senddata(sendBuffer, 0, sendBuflen);
-        if (!retVal.isError() && packet != null && packetlen > 0) {
-            retVal = senddata(packet, 0, packetlen);
+        return sendpacket(packet, packetlen, ack);
+    }
+
+    /**
+     * Send the header in the send buffer and packet data to the DataLink
+     * server.
+     * 
+     * @param packet
+     *            the packet data buffer to send.
+     * @param packetlen
+     *            the Length of data in bytes to send from the packet data
+     *            buffer.
+     * @param ack
+     *            if true process acknowledgement, false otherwise.
+     * @return the DataLink return value.
+     */
+    private DL_RETVAL sendpacket(byte[] packet, int packetlen, boolean ack) {
+        if (packet == null || packetlen <= 0) {
+            return sendpacket(null, ack);
+        }
+        if (packetBuffer == null || packetBuffer.array() != packet) {
+            packetBuffer = ByteBuffer.wrap(packet);
+        }
+        packetBuffer.limit(packetlen).position(0);
+        return sendpacket(packetBuffer, ack);
+    }
+
+    /**
+     * Send the header in the send buffer and packet data to the DataLink
+     * server.
+     * 
+     * @param packet
+     *            the packet data to send from the position to the limit or
+     *            null if none.
+     * @param ack
+     *            if true process acknowledgement, false otherwise.
+     * @return the DataLink return value.
+     */
+    private DL_RETVAL sendpacket(ByteBuffer packet, boolean ack) {
+        final int headerlen = sendBuflen - 3;
+        // Sanity check that the header is not too large or zero
+        if (headerlen > MAXHEADERLEN || headerlen == 0) {
+            log(Level.WARNING, "sendpacket: packet header size is invalid: %d",
+                    headerlen);
+            return DL_RETVAL.INVALIDARG;
         }
+        sendBuffer[2] = (byte) headerlen;
+        // send the header and packet data with a single write
+        sendBuffers[0].limit(sendBuflen).position(0);
+        int length = 1;
+        final int packetlen = (packet != null) ? packet.remaining() : 0;
+        if (packetlen > 0) {
+            sendBuffers[length++] = packet;
+        }
+        DL_RETVAL retVal = senddata(sendBuffers, 0, length);
+        sendBuffers[1] = null;
+        metrics.addSendpacket(sendBuflen + packetlen);
         if (!retVal.isError() && ack) {
             retVal = recvheader(true);
         }
-        return retVal;
+        return metrics.addError(retVal);
     }
 
-    private final void setLogprefix() {
-        logprefix = String.format("[%s] DL_", address.toString());
+    /**
+     * Set the direct read mode, when enabled the payloads of the packets read
+     * by {@link #read(long)} and {@link #collect(boolean, boolean)} are read
+     * into pooled direct buffers and returned by {@link #getPayload()} rather
+     * than copied to the read buffer.
+     * 
+     * @param directFlag
+     *            true to enable the direct read mode, false otherwise.
+     */
+    public void setDirectRead(boolean directFlag) {
+        this.directFlag = directFlag;
     }
 
     /**
-     * Set the terminate parameter of a DataLink connection.
+     * Set the input stream the packets are received from, this allows the
+     * receive path to be benchmarked without a server.
+     * 
+     * @param is
+     *            the input stream.
      */
+    void setInputStream(InputStream is) {
+        this.is = is;
+    }
+
+    /**
+     * Set the terminate parameter of a DataLink connection, which also wakes
+     * up a read or write waiting for the channel.
+     */
+    @Override
     public void terminate() {
-        if (!terminateFlag) {
-            log(Level.INFO, "terminate: Terminating connection");
-            terminateFlag = true;
+        super.terminate();
+        final Selector selector = this.selector;
+        if (selector != null) {
+            selector.wakeup();
         }
     }
 
@@ -1071,6 +1141,65 @@ public class DataLinkClient implements Closeable, DataLinkConst {
      */
     public DL_RETVAL write(byte[] packet, int packetlen, IStreamid streamid,
             long datastart, long dataend, boolean ack) {
+        DL_RETVAL retVal =
+                putWriteHeader(packetlen, streamid, datastart, dataend, ack);
+        if (!retVal.isError()) {
+            retVal = sendpacket(packet, packetlen, ack);
+            if (!retVal.isError()) {
+                metrics.addWrites(1);
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * Send a packet to the DataLink server from a byte buffer, such as the
+     * buffer of a {@link DataLinkPayload}, without copying it to the heap.
+     * 
+     * @param packet
+     *            the packet data to send from the position to the limit, the
+     *            position of the buffer is not changed.
+     * @param streamid
+     *            the stream ID of packet.
+     * @param datastart
+     *            the Unix/POSIX epoch start time in microseconds.
+     * @param dataend
+     *            the Unix/POSIX epoch end time in microseconds.
+     * @param ack
+     *            if true request acknowledgement, false otherwise.
+     * @return the DataLink return value.
+     */
+    public DL_RETVAL write(ByteBuffer packet, IStreamid streamid,
+            long datastart, long dataend, boolean ack) {
+        DL_RETVAL retVal = putWriteHeader(packet.remaining(), streamid,
+                datastart, dataend, ack);
+        if (!retVal.isError()) {
+            retVal = sendpacket(packet.duplicate(), ack);
+            if (!retVal.isError()) {
+                metrics.addWrites(1);
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * Check the connection and create the header for the WRITE command in
+     * the send buffer.
+     * 
+     * @param packetlen
+     *            the Length of data in bytes to send.
+     * @param streamid
+     *            the stream ID of packet.
+     * @param datastart
+     *            the Unix/POSIX epoch start time in microseconds.
+     * @param dataend
+     *            the Unix/POSIX epoch end time in microseconds.
+     * @param ack
+     *            if true request acknowledgement, false otherwise.
+     * @return the DataLink return value.
+     */
+    private DL_RETVAL putWriteHeader(int packetlen, IStreamid streamid,
+            long datastart, long dataend, boolean ack) {
         if (socket == null) {
             log(Level.WARNING, "write: no socket");
             return DL_RETVAL.NO_SOCKET;
@@ -1091,13 +1220,161 @@ public class DataLinkClient implements Closeable, DataLinkConst {
                     packetlen, maxpktsize);
             return DL_RETVAL.INVALIDARG;
         }
+        // Sanity check that the stream ID fits in the header
+        if (streamid.getText().length() > MAXHEADERLEN) {
+            log(Level.WARNING, "write: stream ID is too long: %s",
+                    streamid.getText());
+            return DL_RETVAL.INVALIDARG;
+        }
         // Create packet header with command:
         // "WRITE streamid hpdatastart hpdataend flags size"
-        String header =
-                String.format("WRITE %s %d %d %s %d", streamid.getText(),
-                        datastart, dataend, (ack) ? "A" : "N", packetlen);
-        log(Level.FINE, "write: header=\"%s\"", header);
-        DL_RETVAL retVal = sendpacket(header, packet, packetlen, ack);
-        return retVal;
+        clearBuffer();
+        addBuffer("WRITE ");
+        addBuffer(streamid);
+        addBuffer(" ");
+        addBuffer(datastart);
+        addBuffer(" ");
+        addBuffer(dataend);
+        addBuffer((ack) ? " A " : " N ");
+        addBuffer(packetlen);
+        if (logger.isLoggable(Level.FINE)) {
+            log(Level.FINE, "write: header=\"%s\"", getHeader());
+        }
+        return DL_RETVAL._NO_ERROR;
+    }
+
+    /**
+     * Add a packet to the batch and send the batch to the DataLink server if
+     * it is full or the oldest packet has been waiting for the linger time.
+     * 
+     * @param batch
+     *            the batch.
+     * @param packet
+     *            the packet data buffer to send, which must not be modified
+     *            until the batch is sent.
+     * @param packetlen
+     *            the Length of data in bytes to send from the packet data
+     *            buffer.
+     * @param streamid
+     *            the stream ID of packet.
+     * @param datastart
+     *            the Unix/POSIX epoch start time in microseconds.
+     * @param dataend
+     *            the Unix/POSIX epoch end time in microseconds.
+     * @return the DataLink return value.
+     * @see #writeBatch(DataLinkBatch)
+     */
+    public DL_RETVAL write(DataLinkBatch batch, byte[] packet, int packetlen,
+            IStreamid streamid, long datastart, long dataend) {
+        if (batch.add(packet, packetlen, streamid, datastart, dataend) ||
+                batch.isExpired()) {
+            return writeBatch(batch);
+        }
+        return DL_RETVAL._NO_ERROR;
+    }
+
+    /**
+     * Send a batch of packets to the DataLink server with a single gathering
+     * write and clear the batch.
+     * <p>
+     * If the batch requests acknowledgement the replies for all of the packets
+     * are received after the batch has been sent.
+     * 
+     * @param batch
+     *            the batch.
+     * @return the DataLink return value, <code>INVALIDRESP</code> if the
+     *         server replied with an error for any of the packets or
+     *         <code>INVALIDARG</code> if a packet is larger than the maximum
+     *         packet size, in which case the batch is cleared without being
+     *         sent.
+     */
+    public DL_RETVAL writeBatch(DataLinkBatch batch) {
+        if (socket == null) {
+            log(Level.WARNING, "writeBatch: no socket");
+            return DL_RETVAL.NO_SOCKET;
+        }
+        // Sanity check that connection is not in streaming mode
+        if (streamingFlag) {
+            log(Level.WARNING,
+                    "writeBatch: Connection in streaming mode, cannot continue");
+            return DL_RETVAL.STREAMING_ERROR;
+        }
+        if (batch.isEmpty()) {
+            return DL_RETVAL._NO_ERROR;
+        }
+        /*
+         * Sanity check that packet data is not larger than max packet size if
+         * known
+         */
+        if (maxpktsize > 0 && batch.getMaxPacketlen() > maxpktsize) {
+            log(Level.WARNING,
+                    "writeBatch: Packet length (%d) greater than max packet size (%d)",
+                    batch.getMaxPacketlen(), maxpktsize);
+            // the packet would be rejected by every later write
+            batch.clear();
+            return DL_RETVAL.INVALIDARG;
+        }
+        log(Level.FINE, "writeBatch: %d packets, %d bytes", batch.size(),
+                batch.getBytes());
+        final int count = batch.size();
+        final int bytes = batch.getBytes();
+        DL_RETVAL retVal =
+                senddata(batch.getBuffers(), 0, batch.getBufferCount());
+        batch.clear();
+        metrics.addSendpacket(bytes);
+        if (retVal.isError()) {
+            return metrics.addError(retVal);
+        }
+        metrics.addWrites(count);
+        if (!batch.isAck()) {
+            return retVal;
+        }
+        // the server replies to the packets in the order they were sent
+        for (int i = 0; i < count; i++) {
+            DL_RETVAL replyVal = recvheader(true);
+            if (replyVal.isError()) {
+                return metrics.addError(replyVal);
+            }
+            final String respstr = getReadText();
+            if (!parseReply(respstr)) {
+                log(Level.WARNING,
+                        "writeBatch: Unable to parse reply header: '%s'",
+                        respstr);
+                return metrics.addError(DL_RETVAL.INVALIDRESP);
+            }
+            if (resp_size > 0 && !(replyVal =
+                    recvdata(resp_size, true)).isError() &&
+                    bytesread != resp_size) {
+                replyVal = DL_RETVAL.RECV_ERROR;
+            }
+            if (replyVal.isError()) {
+                return metrics.addError(replyVal);
+            }
+            if (resp_status.startsWith("ERROR")) {
+                log(Level.WARNING, "writeBatch: %s", getReadText());
+                retVal = DL_RETVAL.INVALIDRESP;
+            }
+        }
+        return metrics.addError(retVal);
+    }
+
+    /**
+     * Send the batch to the DataLink server if the oldest packet has been
+     * waiting for the linger time.
+     * <p>
+     * This should be called when no packets are being added, at the latest
+     * after the delay returned by {@link DataLinkBatch#getLingerDelay()}, so
+     * that the packets are not held longer than the linger time.
+     * 
+     * @param batch
+     *            the batch.
+     * @return the DataLink return value.
+     * @see #writeBatch(DataLinkBatch)
+     */
+    public DL_RETVAL writeExpired(DataLinkBatch batch) {
+        if (batch.isExpired()) {
+            return writeBatch(batch);
+        }
+        return DL_RETVAL._NO_ERROR;
     }
 }
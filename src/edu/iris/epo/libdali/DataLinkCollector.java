@@ -0,0 +1,371 @@
+/**
+ *    Copyright (C) 2017 IRIS (http://www.iris.edu/hq/).
+ *    
+ *    All inquiries should be sent to John Taber <taber@iris.edu>.
+ *    
+ *    This file is part of Jlibdali.
+ *
+ *    Jlibdali is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    Jlibdali is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with Jlibdali.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.iris.epo.libdali;
+
+import java.io.Closeable;
+import java.util.logging.Level;
+
+import edu.iris.epo.libdali.DataLinkClient.DL_RETVAL;
+
+/**
+ * Resilient DataLink collector which reconnects when the connection is lost
+ * and resumes streaming after the last packet received.
+ * <p>
+ * The collector tracks the packet ID and packet time of the last packet. When
+ * the connection is lost a new {@link DataLinkClient} is connected after a
+ * jittered exponential backoff, the IDs are exchanged, the match and reject
+ * patterns are sent again and the client is positioned at the last packet so
+ * that streaming resumes without duplicates or gaps.
+ * If the last packet has left the ring of the server, streaming resumes
+ * after its packet time instead.
+ * 
+ * @author kevin
+ */
+public class DataLinkCollector extends AbstractDataLinkReconnector
+        implements Closeable {
+    /** The checkpoint interval in milliseconds */
+    private long checkpointInterval;
+    private final DLPacket dlpacket = new DLPacket();
+    private String matchpattern;
+    /** The time of the next checkpoint in milliseconds */
+    private long nextCheckpoint;
+    /** The packet ID of the last packet or 0 if none */
+    private long pktid;
+    /** The packet time of the last packet */
+    private long pkttime;
+    private String rejectpattern;
+    /** The start packet ID or 0 for the server default */
+    private long startPktid;
+    private long startPkttime;
+    /** The state file or null if none */
+    private DataLinkStateFile stateFile;
+    /** The per-stream state or null if none */
+    private DataLinkStreamState streamState;
+
+    /**
+     * Create the DataLink collector.
+     * 
+     * @param progname
+     *            the program name, usually the simple name of the main class.
+     * @param logger
+     *            the logger or null for the default.
+     */
+    public DataLinkCollector(String progname, IDataLinkLogger logger) {
+        super(progname, logger);
+        registerMetrics();
+    }
+
+    /**
+     * Close the connection to the DataLink server.
+     */
+    @Override
+    public void close() {
+        terminate();
+        disconnect();
+        if (stateFile != null && pktid != 0) {
+            stateFile.checkpoint(pktid, pkttime);
+        }
+        metrics.unregister();
+    }
+
+    /**
+     * Collect a packet streaming from the DataLink server, reconnecting as
+     * needed.
+     * <p>
+     * If the <code>endflag</code> is true the ENDSTREAM command is sent and
+     * the collector does not reconnect; a client must continue collecting
+     * packets until {@link #getPacket().getDatasize()} returns <code>0</code>.
+     * 
+     * @param endflag
+     *            true to end, false otherwise.
+     * @return the DataLink return value.
+     * @see DataLinkClient#collect(boolean, boolean)
+     */
+    public DL_RETVAL collect(boolean endflag) {
+        // the previous packet has been processed once the next is requested
+        if (stateFile != null && pktid != 0) {
+            final long now = System.currentTimeMillis();
+            if (now >= nextCheckpoint) {
+                stateFile.checkpoint(pktid, pkttime);
+                nextCheckpoint = now + checkpointInterval;
+            }
+        }
+        DL_RETVAL retVal;
+        DataLinkClient dlc;
+        for (;;) {
+            if (terminateFlag) {
+                dlpacket.clear();
+                return DL_RETVAL._NO_ERROR;
+            }
+            if ((dlc = this.dlc) == null) {
+                if (endflag) {
+                    dlpacket.clear();
+                    return DL_RETVAL._NO_ERROR;
+                }
+                if ((dlc = connect()) == null) {
+                    continue;
+                }
+            }
+            retVal = dlc.collect(endflag, true);
+            if (!retVal.isError()) {
+                final DLPacket packet = dlc.getPacket();
+                if (packet.getPktid() > 0) {
+                    // skip the last packet if the server sends it again
+                    if (packet.getPktid() == pktid &&
+                            packet.getPkttime() == pkttime) {
+                        continue;
+                    }
+                    pktid = packet.getPktid();
+                    pkttime = packet.getPkttime();
+                    attempts = 0;
+                    if (streamState != null) {
+                        streamState.update(packet);
+                    }
+                }
+                return retVal;
+            }
+            if (endflag || terminateFlag) {
+                return retVal;
+            }
+            log(Level.WARNING, "collect: connection lost (%s), reconnecting",
+                    retVal);
+            disconnect();
+        }
+    }
+
+    /**
+     * Get the client for the current connection.
+     * 
+     * @return the client or null if not connected.
+     */
+    public DataLinkClient getClient() {
+        return dlc;
+    }
+
+    /**
+     * Get the last packet collected.
+     * 
+     * @return the DataLink packet.
+     */
+    public DLPacket getPacket() {
+        final DataLinkClient dlc = this.dlc;
+        return (dlc != null) ? dlc.getPacket() : dlpacket;
+    }
+
+    /**
+     * Get the packet ID of the last packet.
+     * 
+     * @return the packet ID or 0 if none.
+     */
+    public long getPktid() {
+        return pktid;
+    }
+
+    /**
+     * Get the packet time of the last packet.
+     * 
+     * @return the packet time in microseconds.
+     */
+    public long getPkttime() {
+        return pkttime;
+    }
+
+    /**
+     * Get the packet data of the last packet collected.
+     * 
+     * @return the read buffer.
+     */
+    public byte[] getReadBuffer() {
+        final DataLinkClient dlc = this.dlc;
+        return (dlc != null) ? dlc.getReadBuffer() : null;
+    }
+
+    /**
+     * Get the per-stream state which is updated with each packet collected.
+     * 
+     * @return the per-stream state or null if none.
+     */
+    public DataLinkStreamState getStreamState() {
+        return streamState;
+    }
+
+    /**
+     * Exchange IDs, send the match and reject patterns and set the position.
+     * 
+     * @param dlc
+     *            the DataLink client.
+     * @return the DataLink return value.
+     */
+    @Override
+    DL_RETVAL negotiate(DataLinkClient dlc) {
+        if (!dlc.connect()) {
+            return DL_RETVAL.NO_SOCKET;
+        }
+        DL_RETVAL retVal;
+        if ((retVal = dlc.exchangeIDs()).isError()) {
+            return retVal;
+        }
+        if (matchpattern != null) {
+            if ((retVal = dlc.match(matchpattern)).isError()) {
+                return retVal;
+            }
+            if (isErrorStatus(dlc)) {
+                return DL_RETVAL.INVALIDRESP;
+            }
+        }
+        if (rejectpattern != null) {
+            if ((retVal = dlc.reject(rejectpattern)).isError()) {
+                return retVal;
+            }
+            if (isErrorStatus(dlc)) {
+                return DL_RETVAL.INVALIDRESP;
+            }
+        }
+        if (pktid != 0) {
+            // resume after the last packet
+            log(Level.INFO, "negotiate: resuming after packet %d", pktid);
+            if ((retVal = dlc.position(pktid, pkttime)).isError()) {
+                return retVal;
+            }
+            if (!isErrorStatus(dlc)) {
+                return retVal;
+            }
+            retVal = reposition(dlc, pktid, pkttime);
+        } else if (startPktid != 0) {
+            retVal = dlc.position(startPktid, startPkttime);
+            if (!retVal.isError() && startPktid > 0 && isErrorStatus(dlc)) {
+                retVal = reposition(dlc, startPktid, startPkttime);
+            }
+        }
+        if (!retVal.isError() && isErrorStatus(dlc)) {
+            retVal = DL_RETVAL.INVALIDRESP;
+        }
+        return retVal;
+    }
+
+    /**
+     * Position the client after the packet time when the packet is no longer
+     * available, or at the earliest packet if there is no packet after that
+     * time either.
+     * 
+     * @param dlc
+     *            the DataLink client.
+     * @param pktid
+     *            the Packet ID that is no longer available.
+     * @param pkttime
+     *            the Packet time for the packet ID in microseconds.
+     * @return the DataLink return value.
+     */
+    private DL_RETVAL reposition(DataLinkClient dlc, long pktid,
+            long pkttime) {
+        DL_RETVAL retVal;
+        if (pkttime > 0) {
+            log(Level.WARNING,
+                    "negotiate: packet %d is no longer available, "
+                            + "resuming after time %d",
+                    pktid, pkttime);
+            if ((retVal = dlc.positionAfter(pkttime)).isError() ||
+                    !isErrorStatus(dlc)) {
+                return retVal;
+            }
+        }
+        log(Level.WARNING,
+                "negotiate: packet %d is no longer available, "
+                        + "resuming from the earliest packet",
+                pktid);
+        return dlc.position(DATALINK_POSITION_EARLIEST, 0);
+    }
+
+    /**
+     * Set the packet match pattern sent on each connection.
+     * 
+     * @param matchpattern
+     *            the match pattern or null if none.
+     */
+    public void setMatch(String matchpattern) {
+        this.matchpattern = matchpattern;
+    }
+
+    /**
+     * Set the position used for the first connection, later connections
+     * resume after the last packet. If the packet is no longer available the
+     * first connection starts after the packet time, or from the earliest
+     * packet if there is no packet after that time.
+     * 
+     * @param pktid
+     *            the Packet ID to set position to,
+     *            <code>DATALINK_POSITION_EARLIEST</code> for the earliest
+     *            position, <code>DATALINK_POSITION_LATEST</code for the latest
+     *            position or 0 for the server default.
+     * @param pkttime
+     *            the Packet time for the specified packet ID in microseconds.
+     */
+    public void setPosition(long pktid, long pkttime) {
+        startPktid = pktid;
+        startPkttime = pkttime;
+    }
+
+    /**
+     * Set the packet reject pattern sent on each connection.
+     * 
+     * @param rejectpattern
+     *            the reject pattern or null if none.
+     */
+    public void setReject(String rejectpattern) {
+        this.rejectpattern = rejectpattern;
+    }
+
+    /**
+     * Set the state file which checkpoints the position of the packets
+     * processed. The first connection resumes after the last checkpoint if
+     * any and the per-stream state of the state file is updated with each
+     * packet collected.
+     * <p>
+     * A packet is considered processed once the next packet is collected, the
+     * position is checkpointed at most once per interval and when the
+     * collector is closed.
+     * 
+     * @param stateFile
+     *            the state file.
+     * @param interval
+     *            the checkpoint interval in milliseconds.
+     */
+    public void setStateFile(DataLinkStateFile stateFile, long interval) {
+        this.stateFile = stateFile;
+        checkpointInterval = interval;
+        nextCheckpoint = System.currentTimeMillis() + interval;
+        streamState = stateFile.getStreamState();
+        if (stateFile.getPktid() != 0) {
+            setPosition(stateFile.getPktid(), stateFile.getPkttime());
+        }
+    }
+
+    /**
+     * Set the per-stream state which is updated with each packet collected.
+     * 
+     * @param streamState
+     *            the per-stream state or null if none.
+     */
+    public void setStreamState(DataLinkStreamState streamState) {
+        this.streamState = streamState;
+    }
+}
@@ -0,0 +1,1179 @@
+/**
+ *    Copyright (C) 2017 IRIS (http://www.iris.edu/hq/).
+ *    
+ *    All inquiries should be sent to John Taber <taber@iris.edu>.
+ *    
+ *    This file is part of Jlibdali.
+ *
+ *    Jlibdali is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    Jlibdali is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with Jlibdali.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.iris.epo.libdali;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
+import java.util.logging.Level;
+
+import edu.iris.epo.libdali.DataLinkClient.DL_RETVAL;
+
+/**
+ * Non-blocking DataLink connection driven by a {@link DataLinkSelector}.
+ * <p>
+ * The commands may be called from any thread; they only queue the command
+ * and return immediately. The responses are passed to the
+ * {@link IDataLinkListener} on the I/O thread with the same DataLink return
+ * values that the blocking {@link DataLinkClient} would return.
+ * <p>
+ * The <code>Async</code> variants of the commands also return a
+ * {@link DataLinkReply} which is completed with the response, so commands
+ * to many servers sharing a selector can be in flight at once without a
+ * thread for each request.
+ * <p>
+ * The connection counts the same {@link DataLinkMetrics} as the blocking
+ * client, which are registered as a JMX MBean while it is connected.
+ * 
+ * @author kevin
+ */
+public class DataLinkConnection extends AbstractDataLinkClient
+        implements Closeable {
+    /** Waiting for the 3 byte preamble ("DL" and the header length) */
+    private static final int STATE_PREAMBLE = 0;
+    /** Waiting for the header */
+    private static final int STATE_HEADER = 1;
+    /** Waiting for the data */
+    private static final int STATE_DATA = 2;
+
+    /**
+     * The reply for the commands whose reply is only passed to the listener
+     */
+    private static final CompletableFuture<DL_RETVAL> LISTENER_REPLY =
+            new CompletableFuture<DL_RETVAL>();
+
+    private volatile SocketChannel channel;
+    /** The connect deadline in milliseconds or 0 if connected */
+    private long connectDeadline;
+    /** The buffer currently being sent or null if none */
+    private ByteBuffer current;
+    private SelectionKey key;
+    private IDataLinkListener listener;
+    /** The number of bytes needed for the current state */
+    private int needed;
+    private final ConcurrentLinkedQueue<ByteBuffer> outbound =
+            new ConcurrentLinkedQueue<ByteBuffer>();
+    /** True if the current response is a packet */
+    private boolean packetFlag;
+    /** The receive buffer leased from the pool while connected */
+    private ByteBuffer rcvBuffer;
+    /** True if the current response is an ERROR reply */
+    private boolean replyErrorFlag;
+    /** True if the current response is the reply to a command */
+    private boolean replyFlag;
+    /** The replies for the commands sent in the order they were sent */
+    private final ConcurrentLinkedQueue<CompletableFuture<DL_RETVAL>> replies =
+            new ConcurrentLinkedQueue<CompletableFuture<DL_RETVAL>>();
+    private DataLinkSelector selector;
+    private int state = STATE_PREAMBLE;
+
+    /**
+     * Create the DataLink connection.
+     * 
+     * @param progname
+     *            the program name, usually the simple name of the main class.
+     * @param logger
+     *            the logger or null for the default.
+     */
+    public DataLinkConnection(String progname, IDataLinkLogger logger) {
+        super(progname, logger);
+    }
+
+    /**
+     * Send a command without blocking.
+     * 
+     * @param command
+     *            the command, which is given the reply and returns the
+     *            DataLink return value.
+     * @return the reply, which is completed with the DataLink return value
+     *         if the command could not be sent.
+     */
+    private DataLinkReply async(
+            Function<CompletableFuture<DL_RETVAL>, DL_RETVAL> command) {
+        final DataLinkReply reply = new DataLinkReply();
+        final DL_RETVAL retVal = command.apply(reply);
+        if (retVal.isError()) {
+            reply.complete(retVal);
+        }
+        return reply;
+    }
+
+    /**
+     * Check if the connection may send a command.
+     * 
+     * @param name
+     *            the command name for logging.
+     * @return the DataLink return value.
+     */
+    private DL_RETVAL checkCommand(String name) {
+        if (channel == null) {
+            log(Level.WARNING, "%s: no socket", name);
+            return DL_RETVAL.NO_SOCKET;
+        }
+        // Sanity check that connection is not in streaming mode
+        if (streamingFlag) {
+            log(Level.WARNING,
+                    "%s: Connection in streaming mode, cannot continue", name);
+            return DL_RETVAL.STREAMING_ERROR;
+        }
+        return DL_RETVAL._NO_ERROR;
+    }
+
+    /**
+     * Check if the connect has timed out.
+     * 
+     * @param now
+     *            the current time in milliseconds.
+     */
+    void checkTimeout(long now) {
+        if (connectDeadline != 0 && now > connectDeadline) {
+            log(Level.WARNING, "connect: timeout");
+            closeNow(metrics.addError(DL_RETVAL.SOCKET_TIMEOUT));
+        }
+    }
+
+    /**
+     * Close the connection to a DataLink server. The listener is notified on
+     * the I/O thread.
+     */
+    @Override
+    public void close() {
+        streamingFlag = false;
+        terminateFlag = true;
+        final DataLinkSelector selector = this.selector;
+        if (selector != null && !selector.isIoThread() &&
+                selector.submit(this)) {
+            return;
+        }
+        closeNow(DL_RETVAL._NO_ERROR);
+    }
+
+    /**
+     * Close the connection now and notify the listener.
+     * 
+     * @param retVal
+     *            the DataLink return value.
+     */
+    private void closeNow(DL_RETVAL retVal) {
+        final SocketChannel channel = this.channel;
+        if (channel == null) {
+            return;
+        }
+        // no more replies will be received
+        final List<CompletableFuture<DL_RETVAL>> pending =
+                new ArrayList<CompletableFuture<DL_RETVAL>>();
+        synchronized (outbound) {
+            this.channel = null;
+            outbound.clear();
+            CompletableFuture<DL_RETVAL> reply;
+            while ((reply = replies.poll()) != null) {
+                pending.add(reply);
+            }
+        }
+        streamingFlag = false;
+        streamingEndFlag = false;
+        if (key != null) {
+            key.cancel();
+            key = null;
+        }
+        DataLinkClient.closeQuietly(channel);
+        connectDeadline = 0;
+        current = null;
+        state = STATE_PREAMBLE;
+        final DL_RETVAL replyRetVal =
+                retVal.isError() ? retVal : DL_RETVAL.NO_SOCKET;
+        for (CompletableFuture<DL_RETVAL> reply : pending) {
+            if (reply != LISTENER_REPLY) {
+                reply.complete(replyRetVal);
+            }
+        }
+        try {
+            listener.closed(this, retVal);
+        } catch (RuntimeException ex) {
+            log(Level.WARNING, "closed: %s", getMessage(ex));
+        }
+        unregisterMetrics();
+        releaseBuffers();
+    }
+
+    /**
+     * Connect to a DataLink server. The listener is notified on the I/O thread
+     * when the connection is established or if it fails.
+     * 
+     * @param selector
+     *            the DataLink selector.
+     * @param listener
+     *            the listener.
+     * @return true if the connect was started, false otherwise.
+     */
+    public boolean connect(DataLinkSelector selector,
+            IDataLinkListener listener) {
+        if (!initFlag) {
+            init();
+        }
+        if (channel != null) {
+            log(Level.WARNING, "connect: already connected");
+            return false;
+        }
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            // each command is sent with a single write
+            channel.socket().setTcpNoDelay(true);
+            final boolean connectedFlag = channel.connect(address);
+            this.selector = selector;
+            this.listener = listener;
+            terminateFlag = false;
+            connectDeadline =
+                    connectedFlag ? 0 : System.currentTimeMillis() + iotimeout;
+            this.channel = channel;
+            ensureReadBuffer(DataLinkBufferPool.MIN_SIZE);
+            ensureRcvBuffer(3 + MAXHEADERLEN + getPacketLimit());
+            if (!selector.submit(this)) {
+                this.channel = null;
+                log(Level.WARNING, "connect: selector is not running");
+                DataLinkClient.closeQuietly(channel);
+                releaseBuffers();
+                return false;
+            }
+            return true;
+        } catch (Exception ex) {
+            log(Level.WARNING, "connect: %s", getMessage(ex));
+            DataLinkClient.closeQuietly(channel);
+            this.channel = null;
+            releaseBuffers();
+            return false;
+        }
+    }
+
+    /**
+     * Process the received bytes.
+     */
+    private void decode() {
+        while (channel != null) {
+            switch (state) {
+            case STATE_PREAMBLE:
+                if (rcvBuffer.remaining() < 3) {
+                    return;
+                }
+                // Test synchronization bytes
+                if (rcvBuffer.get() != 'D' || rcvBuffer.get() != 'L') {
+                    log(Level.WARNING,
+                            "recvheader: No DataLink packet detected");
+                    fail(DL_RETVAL.INVALID_SYNC);
+                    return;
+                }
+                // 3rd byte is the header length
+                needed = rcvBuffer.get() & 0xFF;
+                if (needed == 0) {
+                    log(Level.WARNING, "recvheader: Invalid header length: %d",
+                            needed);
+                    fail(DL_RETVAL.INVALID_HEADER_LEN);
+                    return;
+                }
+                state = STATE_HEADER;
+                break;
+            case STATE_HEADER:
+                if (rcvBuffer.remaining() < needed) {
+                    return;
+                }
+                fill();
+                handleHeader();
+                break;
+            case STATE_DATA:
+                if (rcvBuffer.remaining() < needed) {
+                    return;
+                }
+                fill();
+                state = STATE_PREAMBLE;
+                if (packetFlag) {
+                    metrics.addPacket(bytesread);
+                    if (!replyFlag) {
+                        // a streamed packet
+                        metrics.addCollect();
+                    }
+                }
+                deliver(DL_RETVAL._NO_ERROR);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Notify the listener of a response.
+     * 
+     * @param retVal
+     *            the DataLink return value.
+     */
+    private void deliver(DL_RETVAL retVal) {
+        try {
+            listener.received(this, retVal);
+        } catch (RuntimeException ex) {
+            log(Level.WARNING, "received: %s", getMessage(ex));
+        }
+        if (replyFlag) {
+            replyFlag = false;
+            final CompletableFuture<DL_RETVAL> reply = replies.poll();
+            if (reply == null) {
+                log(Level.WARNING, "received: unexpected reply: '%s'",
+                        getReadText());
+            } else if (reply != LISTENER_REPLY) {
+                if (reply instanceof DataLinkReply && !retVal.isError() &&
+                        !reply.isDone()) {
+                    ((DataLinkReply) reply).setResponse(
+                            packetFlag ? dlpacket : null,
+                            packetFlag ? null : resp_status,
+                            packetFlag ? null : resp_value, readBuffer,
+                            bytesread);
+                }
+                if (replyErrorFlag && !retVal.isError()) {
+                    log(Level.WARNING, "received: %s", getReadText());
+                    retVal = DL_RETVAL.INVALIDRESP;
+                }
+                reply.complete(retVal);
+            }
+        }
+        metrics.addError(retVal);
+    }
+
+    /**
+     * End streaming. The server sends any packets that were in-the-air
+     * followed by an ENDSTREAM response which is passed to the listener with
+     * an empty packet.
+     * 
+     * @return the DataLink return value.
+     */
+    public DL_RETVAL endStream() {
+        if (channel == null) {
+            log(Level.WARNING, "endStream: no socket");
+            return DL_RETVAL.NO_SOCKET;
+        }
+        if (!streamingFlag) {
+            log(Level.WARNING,
+                    "collect: Connection is not in streaming mode, cannot continue");
+            return DL_RETVAL.STREAMING_ERROR;
+        }
+        DL_RETVAL retVal = sendpacket("ENDSTREAM", null, 0, null);
+        if (retVal.isError()) {
+            log(Level.WARNING, "collect: problem sending ENDSTREAM command");
+            return retVal;
+        }
+        streamingEndFlag = true;
+        streamingFlag = false;
+        log(Level.INFO, "collect: ENDSTREAM command sent to server");
+        return retVal;
+    }
+
+    /**
+     * Send the ID command to the DataLink server. The DataLink signature in
+     * the server response is verified before it is passed to the listener.
+     * 
+     * @return the DataLink return value.
+     */
+    public DL_RETVAL exchangeIDs() {
+        DL_RETVAL retVal = checkCommand("exchangeIDs");
+        if (retVal.isError()) {
+            return retVal;
+        }
+        return sendpacket("ID " + clientid, null, 0,
+                LISTENER_REPLY);
+    }
+
+    /**
+     * Ensure the receive buffer can hold the given number of bytes, the
+     * buffer is replaced by a larger buffer from the pool if needed.
+     * 
+     * @param len
+     *            the number of bytes.
+     */
+    private void ensureRcvBuffer(int len) {
+        final ByteBuffer buf = rcvBuffer;
+        if (buf == null) {
+            rcvBuffer = bufferPool.leaseDirect(len);
+            rcvBuffer.clear();
+        } else if (buf.capacity() < len) {
+            // the received bytes are kept for decoding
+            rcvBuffer = bufferPool.leaseDirect(len);
+            rcvBuffer.clear();
+            rcvBuffer.put(buf).flip();
+            bufferPool.release(buf);
+        }
+    }
+
+    /**
+     * Notify the listener of the error and close the connection since the
+     * stream can no longer be synchronized.
+     * 
+     * @param retVal
+     *            the DataLink return value.
+     */
+    private void fail(DL_RETVAL retVal) {
+        deliver(retVal);
+        closeNow(retVal);
+    }
+
+    /**
+     * Copy the needed bytes from the receive buffer to the read buffer.
+     */
+    private void fill() {
+        rcvBuffer.get(ensureReadBuffer(needed), 0, needed);
+        bytesread = needed;
+        readText = null;
+    }
+
+    /**
+     * Send any queued commands.
+     */
+    private void flush() {
+        final SocketChannel channel = this.channel;
+        if (channel == null || key == null || connectDeadline != 0) {
+            return;
+        }
+        try {
+            ByteBuffer buf = current;
+            if (buf == null) {
+                buf = outbound.poll();
+            }
+            while (buf != null) {
+                channel.write(buf);
+                if (buf.hasRemaining()) {
+                    current = buf;
+                    key.interestOps(SelectionKey.OP_READ |
+                            SelectionKey.OP_WRITE);
+                    return;
+                }
+                buf = outbound.poll();
+            }
+            current = null;
+            key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException ex) {
+            log(Level.WARNING, "senddata: error sending data: %s",
+                    getMessage(ex));
+            closeNow(metrics.addError(DL_RETVAL.SEND_ERROR));
+        }
+    }
+
+    /**
+     * Request information from the DataLink server.
+     * 
+     * @param infotype
+     *            the INFO type to request.
+     * @param infomatch
+     *            an optional match pattern.
+     * @return the DataLink return value.
+     */
+    public DL_RETVAL getinfo(String infotype, String infomatch) {
+        return getinfo(infotype, infomatch, LISTENER_REPLY);
+    }
+
+    /**
+     * Request information from the DataLink server.
+     * 
+     * @param infotype
+     *            the INFO type to request.
+     * @param infomatch
+     *            an optional match pattern.
+     * @param reply
+     *            the reply which is completed when the server replies to the
+     *            command.
+     * @return the DataLink return value.
+     */
+    private DL_RETVAL getinfo(String infotype, String infomatch,
+            CompletableFuture<DL_RETVAL> reply) {
+        DL_RETVAL retVal = checkCommand("getinfo");
+        if (retVal.isError()) {
+            return retVal;
+        }
+        if (infotype == null) {
+            log(Level.WARNING, "getinfo: no INFO type");
+            return DL_RETVAL.INVALIDARG;
+        }
+        String header = "INFO " + infotype + " " +
+                ((infomatch != null) ? infomatch : "");
+        return sendpacket(header, null, 0, reply);
+    }
+
+    /**
+     * Request information from the DataLink server without blocking.
+     * 
+     * @param infotype
+     *            the INFO type to request.
+     * @param infomatch
+     *            an optional match pattern.
+     * @return the reply which is completed with the DataLink return value, the
+     *         INFO XML is available from the message.
+     * @see DataLinkReply
+     */
+    public DataLinkReply getinfoAsync(String infotype, String infomatch) {
+        return async(reply -> getinfo(infotype, infomatch, reply));
+    }
+
+    /**
+     * Handle the header in the read buffer.
+     */
+    private void handleHeader() {
+        state = STATE_PREAMBLE;
+        replyErrorFlag = false;
+        packetFlag = DLPacket.isPacketHeader(readBuffer, bytesread);
+        if (packetFlag) {
+            // a packet is a reply to READ unless streaming
+            replyFlag = !streamingFlag && !streamingEndFlag;
+            dlpacket.clear();
+            final long start = System.nanoTime();
+            if (dlpacket.parse(readBuffer, bytesread, getPacketLimit())) {
+                metrics.addParse(System.nanoTime() - start);
+                needed = dlpacket.getDatasize();
+                ensureRcvBuffer(needed);
+                state = STATE_DATA;
+            } else {
+                log(Level.WARNING, "read: Unable to parse reply header: '%s'",
+                        getReadText());
+                deliver(DL_RETVAL.INVALIDRESP);
+            }
+            return;
+        }
+        // Only the rare replies need the text
+        final String respstr = getReadText();
+        replyFlag = true;
+        if (respstr.startsWith("ID ")) {
+            deliver(parseServerId(respstr));
+        } else if (respstr.equals("ENDSTREAM")) {
+            replyFlag = false;
+            if (streamingEndFlag) {
+                streamingEndFlag = false;
+                dlpacket.clear();
+                deliver(DL_RETVAL._NO_ERROR);
+            } else {
+                deliver(DL_RETVAL.INVALIDRESP);
+            }
+        } else if (parseReply(respstr) && resp_size >= 0 &&
+                resp_size <= getPacketLimit()) {
+            replyErrorFlag = resp_status.startsWith("ERROR");
+            needed = resp_size;
+            ensureRcvBuffer(needed);
+            state = STATE_DATA;
+        } else {
+            log(Level.WARNING,
+                    "handlereply: Unable to parse reply header: '%s'",
+                    respstr);
+            deliver(DL_RETVAL.INVALIDRESP);
+        }
+    }
+
+    /**
+     * Handle the connection after it was submitted to the selector.
+     * 
+     * @param selector
+     *            the selector.
+     */
+    void handlePending(Selector selector) {
+        if (terminateFlag) {
+            closeNow(DL_RETVAL._NO_ERROR);
+            return;
+        }
+        final SocketChannel channel = this.channel;
+        if (channel == null) {
+            return;
+        }
+        if (key == null) {
+            try {
+                key = channel.register(selector, connectDeadline != 0
+                        ? SelectionKey.OP_CONNECT : SelectionKey.OP_READ, this);
+            } catch (IOException ex) {
+                log(Level.WARNING, "connect: %s", getMessage(ex));
+                closeNow(DL_RETVAL.NO_SOCKET);
+                return;
+            }
+            if (connectDeadline == 0) {
+                notifyConnected();
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Handle the selection key being ready.
+     * 
+     * @param key
+     *            the selection key.
+     */
+    void handleReady(SelectionKey key) {
+        if (key.isConnectable()) {
+            try {
+                if (!channel.finishConnect()) {
+                    return;
+                }
+            } catch (IOException ex) {
+                log(Level.WARNING, "connect: %s", getMessage(ex));
+                closeNow(DL_RETVAL.NO_SOCKET);
+                return;
+            }
+            connectDeadline = 0;
+            key.interestOps(SelectionKey.OP_READ);
+            notifyConnected();
+            flush();
+        }
+        if (key.isValid() && key.isWritable()) {
+            flush();
+        }
+        if (key.isValid() && key.isReadable()) {
+            recv();
+        }
+    }
+
+    /**
+     * Determines if this connection is connected.
+     * 
+     * @return true if connected, false otherwise.
+     */
+    public boolean isConnected() {
+        return channel != null && connectDeadline == 0;
+    }
+
+    /**
+     * Set the packet match parameters for a connection.
+     * 
+     * @param matchpattern
+     *            the match pattern.
+     * @return the DataLink return value.
+     * @see DataLinkClient#match(String)
+     */
+    public DL_RETVAL match(String matchpattern) {
+        return match(matchpattern, LISTENER_REPLY);
+    }
+
+    /**
+     * Set the packet match parameters for a connection.
+     * 
+     * @param matchpattern
+     *            the match pattern.
+     * @param reply
+     *            the reply which is completed when the server replies to the
+     *            command.
+     * @return the DataLink return value.
+     */
+    private DL_RETVAL match(String matchpattern,
+            CompletableFuture<DL_RETVAL> reply) {
+        DL_RETVAL retVal = checkCommand("match");
+        if (retVal.isError()) {
+            return retVal;
+        }
+        final byte[] packet = matchpattern.getBytes(ASCII);
+        final String header = "MATCH " + packet.length;
+        log(Level.INFO, "match: header=\"%s\"", header);
+        return sendpacket(header, packet, packet.length, reply);
+    }
+
+    /**
+     * Set the packet match parameters for a connection without blocking.
+     * 
+     * @param matchpattern
+     *            the match pattern.
+     * @return the reply which is completed with the DataLink return value.
+     * @see DataLinkReply
+     */
+    public DataLinkReply matchAsync(String matchpattern) {
+        return async(reply -> match(matchpattern, reply));
+    }
+
+    private void notifyConnected() {
+        registerMetrics();
+        try {
+            listener.connected(this);
+        } catch (RuntimeException ex) {
+            log(Level.WARNING, "connected: %s", getMessage(ex));
+        }
+    }
+
+    /**
+     * Position the client read position.
+     * 
+     * @param pktid
+     *            the Packet ID to set position to,
+     *            <code>DATALINK_POSITION_EARLIEST</code> for the earliest
+     *            position or <code>DATALINK_POSITION_LATEST</code> for the
+     *            latest position.
+     * @param pkttime
+     *            the Packet time for the specified packet ID in microseconds.
+     * @return the DataLink return value.
+     * @see DataLinkClient#position(long, long)
+     */
+    public DL_RETVAL position(long pktid, long pkttime) {
+        return position(pktid, pkttime, LISTENER_REPLY);
+    }
+
+    /**
+     * Position the client read position.
+     * 
+     * @param pktid
+     *            the Packet ID to set position to,
+     *            <code>DATALINK_POSITION_EARLIEST</code> for the earliest
+     *            position or <code>DATALINK_POSITION_LATEST</code> for the
+     *            latest position.
+     * @param pkttime
+     *            the Packet time for the specified packet ID in microseconds.
+     * @param reply
+     *            the reply which is completed when the server replies to the
+     *            command.
+     * @return the DataLink return value.
+     */
+    private DL_RETVAL position(long pktid, long pkttime,
+            CompletableFuture<DL_RETVAL> reply) {
+        DL_RETVAL retVal = checkCommand("position");
+        if (retVal.isError()) {
+            return retVal;
+        }
+        final String header;
+        if (pktid == DATALINK_POSITION_EARLIEST) {
+            header = "POSITION SET EARLIEST";
+        } else if (pktid == DATALINK_POSITION_LATEST) {
+            header = "POSITION SET LATEST";
+        } else {
+            header = "POSITION SET " + pktid + " " + pkttime;
+        }
+        log(Level.INFO, "position: header=\"%s\"", header);
+        return sendpacket(header, null, 0, reply);
+    }
+
+    /**
+     * Position the client read position without blocking.
+     * 
+     * @param pktid
+     *            the Packet ID to set position to,
+     *            <code>DATALINK_POSITION_EARLIEST</code> for the earliest
+     *            position or <code>DATALINK_POSITION_LATEST</code> for the
+     *            latest position.
+     * @param pkttime
+     *            the Packet time for the specified packet ID in microseconds.
+     * @return the reply which is completed with the DataLink return value, the
+     *         packet ID is available from the value.
+     * @see DataLinkReply
+     */
+    public DataLinkReply positionAsync(long pktid, long pkttime) {
+        return async(reply -> position(pktid, pkttime, reply));
+    }
+
+    /**
+     * Position the client read position based on data time.
+     * 
+     * @param datatime
+     *            the data time in microseconds.
+     * @return the DataLink return value.
+     * @see DataLinkClient#positionAfter(long)
+     */
+    public DL_RETVAL positionAfter(long datatime) {
+        return positionAfter(datatime, LISTENER_REPLY);
+    }
+
+    /**
+     * Position the client read position based on data time.
+     * 
+     * @param datatime
+     *            the data time in microseconds.
+     * @param reply
+     *            the reply which is completed when the server replies to the
+     *            command.
+     * @return the DataLink return value.
+     */
+    private DL_RETVAL positionAfter(long datatime,
+            CompletableFuture<DL_RETVAL> reply) {
+        DL_RETVAL retVal = checkCommand("positionAfter");
+        if (retVal.isError()) {
+            return retVal;
+        }
+        String header = "POSITION AFTER " + datatime;
+        log(Level.INFO, "positionAfter: header=\"%s\"", header);
+        return sendpacket(header, null, 0, reply);
+    }
+
+    /**
+     * Position the client read position based on data time without blocking.
+     * 
+     * @param datatime
+     *            the data time in microseconds.
+     * @return the reply which is completed with the DataLink return value, the
+     *         packet ID is available from the value.
+     * @see DataLinkReply
+     */
+    public DataLinkReply positionAfterAsync(long datatime) {
+        return async(reply -> positionAfter(datatime, reply));
+    }
+
+    /**
+     * Request a specific packet from the server.
+     * 
+     * @param pktid
+     *            the Packet ID to request.
+     * @return the DataLink return value.
+     */
+    public DL_RETVAL read(long pktid) {
+        return read(pktid, LISTENER_REPLY);
+    }
+
+    /**
+     * Request a specific packet from the server.
+     * 
+     * @param pktid
+     *            the Packet ID to request.
+     * @param reply
+     *            the reply which is completed when the server replies to the
+     *            command.
+     * @return the DataLink return value.
+     */
+    private DL_RETVAL read(long pktid, CompletableFuture<DL_RETVAL> reply) {
+        DL_RETVAL retVal = checkCommand("read");
+        if (retVal.isError()) {
+            return retVal;
+        }
+        if (pktid <= 0) {
+            log(Level.WARNING, "read: invalid packet ID: %d", pktid);
+            return DL_RETVAL.INVALIDARG;
+        }
+        metrics.addRead();
+        String header = "READ " + pktid;
+        log(Level.INFO, "read: header=\"%s\"", header);
+        return sendpacket(header, null, 0, reply);
+    }
+
+    /**
+     * Request a specific packet from the server without blocking.
+     * 
+     * @param pktid
+     *            the Packet ID to request.
+     * @return the reply which is completed with the DataLink return value, the
+     *         packet header and data are available from the reply.
+     * @see DataLinkReply
+     */
+    public DataLinkReply readAsync(long pktid) {
+        return async(reply -> read(pktid, reply));
+    }
+
+    /**
+     * Receive any available bytes from the DataLink server.
+     */
+    private void recv() {
+        final long start = System.nanoTime();
+        try {
+            final int nrecv = channel.read(rcvBuffer);
+            if (nrecv < 0) {
+                closeNow(metrics.addError(DL_RETVAL.EOF));
+                return;
+            }
+            metrics.addRecvdata(nrecv, System.nanoTime() - start);
+        } catch (IOException ex) {
+            log(Level.WARNING, "recvdata: %s", getMessage(ex));
+            closeNow(metrics.addError(DL_RETVAL.RECV_ERROR));
+            return;
+        }
+        rcvBuffer.flip();
+        decode();
+        if (rcvBuffer != null) {
+            rcvBuffer.compact();
+        }
+    }
+
+    /**
+     * Set the packet reject parameters for a connection.
+     * 
+     * @param rejectpattern
+     *            Reject regular expression
+     * @return the DataLink return value.
+     * @see DataLinkClient#reject(String)
+     */
+    public DL_RETVAL reject(String rejectpattern) {
+        return reject(rejectpattern, LISTENER_REPLY);
+    }
+
+    /**
+     * Set the packet reject parameters for a connection.
+     * 
+     * @param rejectpattern
+     *            Reject regular expression
+     * @param reply
+     *            the reply which is completed when the server replies to the
+     *            command.
+     * @return the DataLink return value.
+     */
+    private DL_RETVAL reject(String rejectpattern,
+            CompletableFuture<DL_RETVAL> reply) {
+        DL_RETVAL retVal = checkCommand("reject");
+        if (retVal.isError()) {
+            return retVal;
+        }
+        final byte[] packet = rejectpattern.getBytes(ASCII);
+        final String header = "REJECT " + packet.length;
+        log(Level.INFO, "reject: header=\"%s\"", header);
+        return sendpacket(header, packet, packet.length, reply);
+    }
+
+    /**
+     * Set the packet reject parameters for a connection without blocking.
+     * 
+     * @param rejectpattern
+     *            Reject regular expression
+     * @return the reply which is completed with the DataLink return value.
+     * @see DataLinkReply
+     */
+    public DataLinkReply rejectAsync(String rejectpattern) {
+        return async(reply -> reject(rejectpattern, reply));
+    }
+
+    @Override
+    void releaseBuffers() {
+        super.releaseBuffers();
+        bufferPool.release(rcvBuffer);
+        rcvBuffer = null;
+    }
+
+    /**
+     * Queue a frame for the DataLink server.
+     * 
+     * @param buf
+     *            the frame including the preamble, header and packet data.
+     * @param reply
+     *            the reply which is completed when the server replies to the
+     *            command or null if there is no reply.
+     * @return the DataLink return value.
+     */
+    private DL_RETVAL sendframe(ByteBuffer buf,
+            CompletableFuture<DL_RETVAL> reply) {
+        // the replies must be in the same order as the commands
+        synchronized (outbound) {
+            // the connection may have been closed since it was checked
+            if (channel == null) {
+                if (reply != null && reply != LISTENER_REPLY) {
+                    reply.complete(DL_RETVAL.NO_SOCKET);
+                }
+                return DL_RETVAL.NO_SOCKET;
+            }
+            if (reply != null) {
+                replies.add(reply);
+            }
+            metrics.addSendpacket(buf.remaining());
+            outbound.add(buf);
+        }
+        final DataLinkSelector selector = this.selector;
+        if (selector.isIoThread()) {
+            flush();
+        } else if (!selector.submit(this)) {
+            log(Level.WARNING, "sendframe: selector is not running");
+            // there is no I/O thread to complete the queued replies
+            closeNow(DL_RETVAL.NO_SOCKET);
+            return DL_RETVAL.NO_SOCKET;
+        }
+        return DL_RETVAL._NO_ERROR;
+    }
+
+    /**
+     * Create and queue a DataLink packet.
+     * 
+     * @param header
+     *            the DataLink packet header.
+     * @param packet
+     *            the packet data buffer to send.
+     * @param packetlen
+     *            the Length of data in bytes to send from the packet data
+     *            buffer.
+     * @param reply
+     *            the reply which is completed when the server replies to the
+     *            command or null if there is no reply.
+     * @return the DataLink return value.
+     */
+    private DL_RETVAL sendpacket(String header, byte[] packet, int packetlen,
+            CompletableFuture<DL_RETVAL> reply) {
+        final int headerlen = header.length();
+        // Sanity check that the header is not too large or zero
+        if (headerlen > MAXHEADERLEN || headerlen == 0) {
+            log(Level.WARNING, "sendpacket: packet header size is invalid: %d",
+                    headerlen);
+            return DL_RETVAL.INVALIDARG;
+        }
+        if (packet == null) {
+            packetlen = 0;
+        }
+        final byte[] frame = new byte[3 + headerlen + packetlen];
+        frame[0] = 'D';
+        frame[1] = 'L';
+        frame[2] = (byte) headerlen;
+        DataLinkEncoder.putAscii(frame, 3, header);
+        if (packetlen > 0) {
+            System.arraycopy(packet, 0, frame, 3 + headerlen, packetlen);
+        }
+        return sendframe(ByteBuffer.wrap(frame), reply);
+    }
+
+    /**
+     * Start streaming, the packets are passed to the listener as they arrive.
+     * 
+     * @return the DataLink return value.
+     */
+    public DL_RETVAL stream() {
+        DL_RETVAL retVal = checkCommand("stream");
+        if (retVal.isError()) {
+            return retVal;
+        }
+        if (streamingEndFlag) {
+            log(Level.WARNING, "stream: Connection is ending streaming");
+            return DL_RETVAL.STREAMING_ERROR;
+        }
+        retVal = sendpacket("STREAM", null, 0, null);
+        if (retVal.isError()) {
+            log(Level.WARNING, "collect: problem sending STREAM command");
+            return retVal;
+        }
+        streamingFlag = true;
+        log(Level.INFO, "collect: STREAM command sent to server");
+        return retVal;
+    }
+
+    /**
+     * Send a packet to the DataLink server. The packet data is copied so the
+     * buffer may be reused as soon as this method returns.
+     * 
+     * @param packet
+     *            the packet data buffer to send.
+     * @param packetlen
+     *            the Length of data in bytes to send from the packet data
+     *            buffer.
+     * @param streamid
+     *            the stream ID of packet.
+     * @param datastart
+     *            the Unix/POSIX epoch start time in microseconds.
+     * @param dataend
+     *            the Unix/POSIX epoch end time in microseconds.
+     * @param ack
+     *            if true request acknowledgement, false otherwise.
+     * @return the DataLink return value.
+     */
+    public DL_RETVAL write(byte[] packet, int packetlen, IStreamid streamid,
+            long datastart, long dataend, boolean ack) {
+        return write(packet, packetlen, streamid, datastart, dataend,
+                ack ? LISTENER_REPLY : null);
+    }
+
+    /**
+     * Send a packet to the DataLink server.
+     * 
+     * @param packet
+     *            the packet data buffer to send.
+     * @param packetlen
+     *            the Length of data in bytes to send from the packet data
+     *            buffer.
+     * @param streamid
+     *            the stream ID of packet.
+     * @param datastart
+     *            the Unix/POSIX epoch start time in microseconds.
+     * @param dataend
+     *            the Unix/POSIX epoch end time in microseconds.
+     * @param reply
+     *            the reply or null if no acknowledgement.
+     * @return the DataLink return value.
+     */
+    private DL_RETVAL write(byte[] packet, int packetlen, IStreamid streamid,
+            long datastart, long dataend, CompletableFuture<DL_RETVAL> reply) {
+        DL_RETVAL retVal = checkCommand("write");
+        if (retVal.isError()) {
+            return retVal;
+        }
+        /*
+         * Sanity check that packet data is not larger than max packet size if
+         * known
+         */
+        if (maxpktsize > 0 && packetlen > maxpktsize) {
+            log(Level.WARNING,
+                    "write: Packet length (%d) greater than max packet size (%d)",
+                    packetlen, maxpktsize);
+            return DL_RETVAL.INVALIDARG;
+        }
+        // Create packet header with command:
+        // "WRITE streamid hpdatastart hpdataend flags size"
+        final int headerlen = DataLinkEncoder.getWriteHeaderLength(streamid,
+                datastart, dataend, packetlen);
+        if (headerlen > MAXHEADERLEN) {
+            log(Level.WARNING, "write: packet header size is invalid: %d",
+                    headerlen);
+            return DL_RETVAL.INVALIDARG;
+        }
+        final byte[] frame = new byte[3 + headerlen + packetlen];
+        frame[0] = 'D';
+        frame[1] = 'L';
+        frame[2] = (byte) headerlen;
+        DataLinkEncoder.putWriteHeader(frame, 3, streamid, datastart, dataend,
+                reply != null, packetlen);
+        if (logger.isLoggable(Level.FINE)) {
+            log(Level.FINE, "write: header=\"%s\"",
+                    new String(frame, 3, headerlen, ASCII));
+        }
+        if (packetlen > 0) {
+            System.arraycopy(packet, 0, frame, 3 + headerlen, packetlen);
+        }
+        retVal = sendframe(ByteBuffer.wrap(frame), reply);
+        if (!retVal.isError()) {
+            metrics.addWrites(1);
+        }
+        return retVal;
+    }
+
+    /**
+     * Send a packet to the DataLink server requesting acknowledgement.
+     * <p>
+     * Any number of packets may be written without waiting for the
+     * acknowledgements, the server acknowledges the packets in the order they
+     * were written.
+     * 
+     * @param packet
+     *            the packet data buffer to send.
+     * @param packetlen
+     *            the Length of data in bytes to send from the packet data
+     *            buffer.
+     * @param streamid
+     *            the stream ID of packet.
+     * @param datastart
+     *            the Unix/POSIX epoch start time in microseconds.
+     * @param dataend
+     *            the Unix/POSIX epoch end time in microseconds.
+     * @return the acknowledgement which is completed with the DataLink return
+     *         value, <code>INVALIDRESP</code> if the server replied with an
+     *         error.
+     * @see DataLinkWriter
+     */
+    public CompletableFuture<DL_RETVAL> writeAck(byte[] packet, int packetlen,
+            IStreamid streamid, long datastart, long dataend) {
+        final CompletableFuture<DL_RETVAL> reply =
+                new CompletableFuture<DL_RETVAL>();
+        final DL_RETVAL retVal =
+                write(packet, packetlen, streamid, datastart, dataend, reply);
+        if (retVal.isError()) {
+            reply.complete(retVal);
+        }
+        return reply;
+    }
+}
@@ -0,0 +1,196 @@
+/**
+ *    Copyright (C) 2017 IRIS (http://www.iris.edu/hq/).
+ *    
+ *    All inquiries should be sent to John Taber <taber@iris.edu>.
+ *    
+ *    This file is part of Jlibdali.
+ *
+ *    Jlibdali is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    Jlibdali is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with Jlibdali.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.iris.epo.libdali;
+
+/**
+ * DataLink header encoder which writes the command tokens directly into a
+ * buffer without allocating.
+ * <p>
+ * Each method writes at the specified position and returns the position after
+ * the bytes written. The buffer must have room for the header, which is at
+ * most {@link DataLinkConst#MAXHEADERLEN} bytes for a valid header.
+ * 
+ * @author kevin
+ */
+public class DataLinkEncoder implements DataLinkConst {
+    /** The text of the smallest long which cannot be negated */
+    private static final String LONG_MIN_VALUE_TEXT =
+            Long.toString(Long.MIN_VALUE);
+
+    /**
+     * Get the number of bytes in the decimal text of the value.
+     * 
+     * @param value
+     *            the value.
+     * @return the number of bytes.
+     */
+    public static int getLongLength(long value) {
+        if (value == Long.MIN_VALUE) {
+            return LONG_MIN_VALUE_TEXT.length();
+        }
+        int len = 1;
+        if (value < 0) {
+            len++;
+            value = -value;
+        }
+        for (; value >= 10; value /= 10) {
+            len++;
+        }
+        return len;
+    }
+
+    /**
+     * Get the length of the header for the WRITE command.
+     * 
+     * @param streamid
+     *            the stream ID of packet.
+     * @param datastart
+     *            the Unix/POSIX epoch start time in microseconds.
+     * @param dataend
+     *            the Unix/POSIX epoch end time in microseconds.
+     * @param packetlen
+     *            the Length of data in bytes.
+     * @return the header length.
+     * @see #putWriteHeader(byte[], int, IStreamid, long, long, boolean, int)
+     */
+    public static int getWriteHeaderLength(IStreamid streamid, long datastart,
+            long dataend, int packetlen) {
+        // "WRITE " + streamid + " " + datastart + " " + dataend + " A "
+        return 6 + streamid.getText().length() + 1 +
+                getLongLength(datastart) + 1 + getLongLength(dataend) + 3 +
+                getLongLength(packetlen);
+    }
+
+    /**
+     * Put the text in the buffer.
+     * 
+     * @param buf
+     *            the buffer.
+     * @param pos
+     *            the position in the buffer.
+     * @param s
+     *            the ASCII text.
+     * @return the position after the text.
+     */
+    public static int putAscii(byte[] buf, int pos, String s) {
+        final int len = s.length();
+        for (int i = 0; i < len; i++) {
+            buf[pos++] = (byte) s.charAt(i);
+        }
+        return pos;
+    }
+
+    /**
+     * Put the bytes in the buffer.
+     * 
+     * @param buf
+     *            the buffer.
+     * @param pos
+     *            the position in the buffer.
+     * @param b
+     *            the bytes.
+     * @return the position after the bytes.
+     */
+    public static int putBytes(byte[] buf, int pos, byte[] b) {
+        System.arraycopy(b, 0, buf, pos, b.length);
+        return pos + b.length;
+    }
+
+    /**
+     * Put the decimal text of the value in the buffer.
+     * 
+     * @param buf
+     *            the buffer.
+     * @param pos
+     *            the position in the buffer.
+     * @param value
+     *            the value.
+     * @return the position after the text.
+     */
+    public static int putLong(byte[] buf, int pos, long value) {
+        if (value == Long.MIN_VALUE) {
+            return putAscii(buf, pos, LONG_MIN_VALUE_TEXT);
+        }
+        final int end = pos + getLongLength(value);
+        if (value < 0) {
+            buf[pos++] = '-';
+            value = -value;
+        }
+        for (int i = end - 1; i >= pos; i--) {
+            buf[i] = (byte) ('0' + (value % 10));
+            value /= 10;
+        }
+        return end;
+    }
+
+    /**
+     * Put the stream ID text in the buffer.
+     * 
+     * @param buf
+     *            the buffer.
+     * @param pos
+     *            the position in the buffer.
+     * @param streamid
+     *            the stream ID.
+     * @return the position after the stream ID.
+     */
+    public static int putStreamid(byte[] buf, int pos, IStreamid streamid) {
+        if (streamid instanceof Streamid) {
+            return putBytes(buf, pos, ((Streamid) streamid).getTextBytes());
+        }
+        return putAscii(buf, pos, streamid.getText());
+    }
+
+    /**
+     * Put the header for the WRITE command in the buffer:
+     * "WRITE streamid hpdatastart hpdataend flags size"
+     * 
+     * @param buf
+     *            the buffer.
+     * @param pos
+     *            the position in the buffer.
+     * @param streamid
+     *            the stream ID of packet.
+     * @param datastart
+     *            the Unix/POSIX epoch start time in microseconds.
+     * @param dataend
+     *            the Unix/POSIX epoch end time in microseconds.
+     * @param ack
+     *            if true request acknowledgement, false otherwise.
+     * @param packetlen
+     *            the Length of data in bytes.
+     * @return the position after the header.
+     */
+    public static int putWriteHeader(byte[] buf, int pos, IStreamid streamid,
+            long datastart, long dataend, boolean ack, int packetlen) {
+        pos = putAscii(buf, pos, "WRITE ");
+        pos = putStreamid(buf, pos, streamid);
+        buf[pos++] = ' ';
+        pos = putLong(buf, pos, datastart);
+        buf[pos++] = ' ';
+        pos = putLong(buf, pos, dataend);
+        buf[pos++] = ' ';
+        buf[pos++] = (byte) (ack ? 'A' : 'N');
+        buf[pos++] = ' ';
+        return putLong(buf, pos, packetlen);
+    }
+}
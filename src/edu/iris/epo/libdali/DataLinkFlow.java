@@ -0,0 +1,112 @@
+/**
+ *    Copyright (C) 2017 IRIS (http://www.iris.edu/hq/).
+ *    
+ *    All inquiries should be sent to John Taber <taber@iris.edu>.
+ *    
+ *    This file is part of Jlibdali.
+ *
+ *    Jlibdali is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    Jlibdali is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with Jlibdali.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.iris.epo.libdali;
+
+/**
+ * Interfaces for demand-driven publishing of packets.
+ * <p>
+ * The interfaces have the same methods and rules as
+ * <code>java.util.concurrent.Flow</code> (Reactive Streams) which is not
+ * available on Java 8, a subscriber can be adapted to the Java 9 interfaces by
+ * delegating each method.
+ * 
+ * @author kevin
+ */
+public final class DataLinkFlow {
+    /**
+     * A producer of items received by subscribers.
+     * 
+     * @param <T>
+     *            the published item type.
+     */
+    public static interface Publisher<T> {
+        /**
+         * Adds the subscriber, the subscriber's <code>onSubscribe</code>
+         * method is called with a new subscription. If the subscriber cannot
+         * be added <code>onError</code> is called instead.
+         * 
+         * @param subscriber
+         *            the subscriber.
+         */
+        public void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * A receiver of items.
+     * 
+     * @param <T>
+     *            the subscribed item type.
+     */
+    public static interface Subscriber<T> {
+        /**
+         * Called when there will be no more items.
+         */
+        public void onComplete();
+
+        /**
+         * Called when the publisher failed, no more items will be received.
+         * 
+         * @param throwable
+         *            the error.
+         */
+        public void onError(Throwable throwable);
+
+        /**
+         * Called with the next item, at most the number of items requested
+         * are received.
+         * 
+         * @param item
+         *            the item.
+         */
+        public void onNext(T item);
+
+        /**
+         * Called before any other method with the subscription, no items are
+         * received until they are requested.
+         * 
+         * @param subscription
+         *            the subscription.
+         */
+        public void onSubscribe(Subscription subscription);
+    }
+
+    /**
+     * The link between a publisher and a subscriber.
+     */
+    public static interface Subscription {
+        /**
+         * Stop receiving items.
+         */
+        public void cancel();
+
+        /**
+         * Add to the number of items the subscriber is ready to receive.
+         * 
+         * @param n
+         *            the number of items, which must be positive.
+         */
+        public void request(long n);
+    }
+
+    private DataLinkFlow() {
+    }
+}
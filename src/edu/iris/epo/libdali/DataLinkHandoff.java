@@ -0,0 +1,296 @@
+/**
+ *    Copyright (C) 2017 IRIS (http://www.iris.edu/hq/).
+ *    
+ *    All inquiries should be sent to John Taber <taber@iris.edu>.
+ *    
+ *    This file is part of Jlibdali.
+ *
+ *    Jlibdali is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    Jlibdali is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with Jlibdali.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.iris.epo.libdali;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import edu.iris.epo.libdali.DataLinkClient.DL_RETVAL;
+
+/**
+ * Lock-free single producer single consumer ring of preallocated packet slots
+ * for handing packets from the network reader thread to a processing thread.
+ * <p>
+ * The producer claims a slot, fills it in place and publishes it. The
+ * consumer claims the published slots in batches, processes them in place and
+ * releases them. No packets are allocated or copied and no locks are taken,
+ * the sequences are only ordered with lazy sets.
+ * <p>
+ * Exactly one thread may call the producer methods ({@link #claim(boolean)},
+ * {@link #publish()} and {@link #collect(DataLinkClient, boolean)}) and
+ * exactly one thread may call the consumer methods
+ * ({@link #claimBatch(int, boolean)}, {@link #get(int)} and
+ * {@link #release(int)}).
+ * 
+ * @author kevin
+ */
+public class DataLinkHandoff implements DataLinkConst {
+    /**
+     * A sequence padded to keep the producer and consumer sequences on
+     * separate cache lines, with the cached copy of the other sequence which
+     * is only used by the thread owning the sequence.
+     */
+    @SuppressWarnings("serial")
+    private static final class Sequence extends AtomicLong {
+        /** The cached copy of the other sequence */
+        long limit;
+        @SuppressWarnings("unused")
+        long p1, p2, p3, p4, p5, p6, p7;
+    }
+
+    /**
+     * A packet slot with the packet header and the packet data buffer.
+     */
+    public static final class Slot {
+        private final byte[] data = new byte[MAXPACKETSIZE];
+        private final DLPacket packet = new DLPacket();
+
+        /**
+         * Get the packet data buffer, the packet data size is returned by
+         * <code>getPacket().getDatasize()</code>.
+         * 
+         * @return the packet data buffer.
+         */
+        public byte[] getData() {
+            return data;
+        }
+
+        /**
+         * Get the packet header.
+         * 
+         * @return the packet header.
+         */
+        public DLPacket getPacket() {
+            return packet;
+        }
+    }
+
+    /** The time to park while waiting in nanoseconds */
+    private static final long PARK_NANOS = 50_000;
+
+    /** The number of spins before yielding while waiting */
+    private static final int SPIN_TRIES = 100;
+
+    /** The number of yields before parking while waiting */
+    private static final int YIELD_TRIES = 100;
+
+    /**
+     * Wait for the other thread.
+     * 
+     * @param tries
+     *            the number of times waited so far.
+     */
+    private static void idle(int tries) {
+        if (tries < SPIN_TRIES) {
+            return;
+        }
+        if (tries < SPIN_TRIES + YIELD_TRIES) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+    }
+
+    private volatile boolean closeFlag;
+    /**
+     * The consumer sequence, the next slot to release, with the consumer
+     * cached copy of the producer sequence
+     */
+    private final Sequence head = new Sequence();
+    private final int mask;
+    private final Slot[] slots;
+    /**
+     * The producer sequence, the next slot to publish, with the producer
+     * cached copy of the consumer sequence
+     */
+    private final Sequence tail = new Sequence();
+
+    /**
+     * Create the ring.
+     * 
+     * @param capacity
+     *            the number of slots which must be a power of 2.
+     */
+    public DataLinkHandoff(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException(
+                    "Invalid capacity (" + capacity + ")");
+        }
+        slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot();
+        }
+        mask = capacity - 1;
+    }
+
+    /**
+     * Claim the next slot for the producer to fill. The slot is not visible
+     * to the consumer until it is published, claiming again without
+     * publishing returns the same slot.
+     * 
+     * @param blockflag
+     *            true to wait for a free slot, false otherwise.
+     * @return the slot or null if the ring is full and not blocking or if the
+     *         ring was closed.
+     * @see #publish()
+     */
+    public Slot claim(boolean blockflag) {
+        final long seq = tail.get();
+        for (int tries = 0; seq - tail.limit >= slots.length; tries++) {
+            if (closeFlag) {
+                return null;
+            }
+            tail.limit = head.get();
+            if (seq - tail.limit < slots.length) {
+                break;
+            }
+            if (!blockflag) {
+                return null;
+            }
+            idle(tries);
+        }
+        return slots[(int) seq & mask];
+    }
+
+    /**
+     * Claim a batch of published slots for the consumer to process.
+     * 
+     * @param max
+     *            the maximum number of slots.
+     * @param blockflag
+     *            true to wait for at least one slot, false otherwise.
+     * @return the number of slots claimed which may be 0 if not blocking or
+     *         if the ring was closed and is empty.
+     * @see #get(int)
+     * @see #release(int)
+     */
+    public int claimBatch(int max, boolean blockflag) {
+        final long seq = head.get();
+        for (int tries = 0; head.limit == seq; tries++) {
+            head.limit = tail.get();
+            if (head.limit != seq) {
+                break;
+            }
+            if (!blockflag || closeFlag) {
+                // check again as the producer may publish before closing
+                head.limit = tail.get();
+                if (head.limit == seq) {
+                    return 0;
+                }
+                break;
+            }
+            idle(tries);
+        }
+        return (int) Math.min(max, head.limit - seq);
+    }
+
+    /**
+     * Close the ring, blocked producer and consumer calls return and the
+     * consumer may claim the remaining published slots.
+     */
+    public void close() {
+        closeFlag = true;
+    }
+
+    /**
+     * Collect a packet streaming from the DataLink server directly into the
+     * next slot and publish it. This method blocks while the ring is full.
+     * 
+     * @param client
+     *            the DataLink client.
+     * @param endflag
+     *            true to end, false otherwise.
+     * @return the DataLink return value.
+     * @see DataLinkClient#collect(boolean, boolean, DLPacket, byte[])
+     */
+    public DL_RETVAL collect(DataLinkClient client, boolean endflag) {
+        final Slot slot = claim(true);
+        if (slot == null) {
+            return DL_RETVAL._NO_ERROR;
+        }
+        final DL_RETVAL retVal =
+                client.collect(endflag, true, slot.packet, slot.data);
+        if (!retVal.isError() && !slot.packet.isEmpty()) {
+            publish();
+        }
+        return retVal;
+    }
+
+    /**
+     * Get a claimed slot for the consumer.
+     * 
+     * @param index
+     *            the index in the claimed batch.
+     * @return the slot.
+     * @see #claimBatch(int, boolean)
+     */
+    public Slot get(int index) {
+        return slots[(int) (head.get() + index) & mask];
+    }
+
+    /**
+     * Get the number of slots.
+     * 
+     * @return the number of slots.
+     */
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    /**
+     * Determines if the ring was closed.
+     * 
+     * @return true if closed, false otherwise.
+     */
+    public boolean isClosed() {
+        return closeFlag;
+    }
+
+    /**
+     * Publish the claimed slot to the consumer.
+     * 
+     * @see #claim(boolean)
+     */
+    public void publish() {
+        tail.lazySet(tail.get() + 1);
+    }
+
+    /**
+     * Release processed slots to the producer.
+     * 
+     * @param count
+     *            the number of slots from the claimed batch.
+     * @see #claimBatch(int, boolean)
+     */
+    public void release(int count) {
+        head.lazySet(head.get() + count);
+    }
+
+    /**
+     * Get the number of published slots not yet released.
+     * 
+     * @return the number of slots.
+     */
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+}
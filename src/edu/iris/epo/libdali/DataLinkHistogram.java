@@ -0,0 +1,392 @@
+/**
+ *    Copyright (C) 2017 IRIS (http://www.iris.edu/hq/).
+ *    
+ *    All inquiries should be sent to John Taber <taber@iris.edu>.
+ *    
+ *    This file is part of Jlibdali.
+ *
+ *    Jlibdali is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    Jlibdali is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with Jlibdali.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.iris.epo.libdali;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free log-linear histogram of non-negative values such as latencies in
+ * microseconds.
+ * <p>
+ * As in an HDR histogram the values are counted in buckets which double in
+ * size with each power of 2, each divided into linear sub-buckets, so the
+ * value recorded for any percentile is within 2% of the actual value. Values
+ * below 0 are recorded as 0 and values above {@link #MAX_VALUE} are recorded
+ * as {@link #MAX_VALUE}.
+ * <p>
+ * Recording is a single atomic increment so it may be called from any number
+ * of threads on every packet.
+ * <p>
+ * The counts are allocated for each power of 2 when the first value in it is
+ * recorded, 1 KiB for the values below 128 and 512 bytes for each power of 2
+ * above, so a histogram takes about 200 bytes plus the ranges in use rather
+ * than the 16 KiB of all the buckets. For example latencies between 0.5 s and
+ * 4 s take 4 ranges, 2 KiB. A snapshot only copies the buckets with
+ * counts.
+ * 
+ * @author kevin
+ */
+public class DataLinkHistogram {
+    /**
+     * A snapshot of the histogram counts.
+     */
+    public static final class Snapshot {
+        /** The counts of the buckets with counts */
+        private final long[] counts;
+        /** The bucket indexes in increasing order */
+        private final int[] indexes;
+        /** The number of buckets with counts */
+        private final int length;
+        private final long max;
+        private final long min;
+        private final long total;
+        private final long totalCount;
+
+        /**
+         * Create the snapshot.
+         * 
+         * @param indexes
+         *            the bucket indexes in increasing order.
+         * @param counts
+         *            the bucket counts.
+         * @param length
+         *            the number of buckets with counts.
+         * @param max
+         *            the maximum value recorded.
+         */
+        private Snapshot(int[] indexes, long[] counts, int length, long max) {
+            this.indexes = indexes;
+            this.counts = counts;
+            this.length = length;
+            long min = -1;
+            long highest = 0;
+            long total = 0;
+            long totalCount = 0;
+            for (int i = 0; i < length; i++) {
+                final int index = indexes[i];
+                final long count = counts[i];
+                if (min < 0) {
+                    min = getLowestValue(index);
+                }
+                highest = getLowestValue(index);
+                totalCount += count;
+                total += count * getMedianValue(index);
+            }
+            this.min = Math.max(min, 0);
+            // the maximum may have been reset before a concurrent value was
+            // counted
+            this.max = totalCount == 0 ? 0 : Math.max(max, highest);
+            this.total = total;
+            this.totalCount = totalCount;
+        }
+
+        /**
+         * Get the number of values recorded.
+         * 
+         * @return the number of values.
+         */
+        public long getCount() {
+            return totalCount;
+        }
+
+        /**
+         * Get the maximum value recorded.
+         * 
+         * @return the maximum value or 0 if none.
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * Get the mean of the values recorded.
+         * 
+         * @return the mean or 0 if none.
+         */
+        public double getMean() {
+            return totalCount == 0 ? 0 : (double) total / totalCount;
+        }
+
+        /**
+         * Get the lowest value recorded within the histogram precision.
+         * 
+         * @return the minimum value or 0 if none.
+         */
+        public long getMin() {
+            return min;
+        }
+
+        /**
+         * Get the value at the percentile, that is the highest value within
+         * the histogram precision such that the percentage of the values
+         * recorded are less than or equal to it.
+         * 
+         * @param percentile
+         *            the percentile between 0 and 100.
+         * @return the value or 0 if none.
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (totalCount == 0) {
+                return 0;
+            }
+            percentile = Math.min(Math.max(percentile, 0), 100);
+            final long countAtPercentile = Math.max(1,
+                    (long) Math.ceil(percentile / 100 * totalCount));
+            long count = 0;
+            for (int i = 0; i < length; i++) {
+                count += counts[i];
+                if (count >= countAtPercentile) {
+                    return Math.min(getHighestValue(indexes[i]), max);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + totalCount + ", min=" + min + ", p50=" +
+                    getValueAtPercentile(50) + ", p90=" +
+                    getValueAtPercentile(90) + ", p99=" +
+                    getValueAtPercentile(99) + ", p99.9=" +
+                    getValueAtPercentile(99.9) + ", max=" + max;
+        }
+    }
+
+    /** The largest value recorded, about 38 hours in microseconds */
+    public static final long MAX_VALUE = (1L << 37) - 1;
+
+    /** The number of buckets */
+    private static final int BUCKET_COUNT = getIndex(MAX_VALUE) + 1;
+
+    /** The number of ranges of buckets allocated together */
+    private static final int RANGE_COUNT = getRange(BUCKET_COUNT - 1) + 1;
+
+    /** The number of bits for the linear sub-buckets */
+    private static final int SUB_BUCKET_BITS = 7;
+
+    /** The number of values with a bucket of their own */
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /** The number of sub-buckets for each power of 2 above the first */
+    private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+
+    /**
+     * Get the highest value counted in the bucket.
+     * 
+     * @param index
+     *            the bucket index.
+     * @return the highest value.
+     */
+    private static long getHighestValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        final int shift =
+                (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF_COUNT + 1;
+        return getLowestValue(index) + (1L << shift) - 1;
+    }
+
+    /**
+     * Get the bucket index for the value.
+     * 
+     * @param value
+     *            the value between 0 and {@link #MAX_VALUE}.
+     * @return the bucket index.
+     */
+    private static int getIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        final int shift =
+                63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF_COUNT +
+                (int) (value >>> shift) - SUB_BUCKET_HALF_COUNT;
+    }
+
+    /**
+     * Get the lowest value counted in the bucket.
+     * 
+     * @param index
+     *            the bucket index.
+     * @return the lowest value.
+     */
+    private static long getLowestValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        index -= SUB_BUCKET_COUNT;
+        final int shift = index / SUB_BUCKET_HALF_COUNT + 1;
+        return (long) (index % SUB_BUCKET_HALF_COUNT + SUB_BUCKET_HALF_COUNT) <<
+                shift;
+    }
+
+    /**
+     * Get the range of the bucket, the first range has the buckets below
+     * {@link #SUB_BUCKET_COUNT} and each of the others the buckets of a power
+     * of 2.
+     * 
+     * @param index
+     *            the bucket index.
+     * @return the range.
+     */
+    private static int getRange(int index) {
+        return index < SUB_BUCKET_COUNT ? 0
+                : (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF_COUNT + 1;
+    }
+
+    /**
+     * Get the index of the first bucket in the range.
+     * 
+     * @param range
+     *            the range.
+     * @return the bucket index.
+     */
+    private static int getRangeStart(int range) {
+        return range == 0 ? 0
+                : SUB_BUCKET_COUNT + (range - 1) * SUB_BUCKET_HALF_COUNT;
+    }
+
+    /**
+     * Get the median value counted in the bucket.
+     * 
+     * @param index
+     *            the bucket index.
+     * @return the median value.
+     */
+    private static long getMedianValue(int index) {
+        return (getLowestValue(index) + getHighestValue(index)) / 2;
+    }
+
+    private final AtomicLong max = new AtomicLong();
+    /** The bucket counts for each range or null if not yet allocated */
+    private final AtomicReferenceArray<AtomicLongArray> ranges =
+            new AtomicReferenceArray<AtomicLongArray>(RANGE_COUNT);
+
+    /**
+     * Get the number of bytes allocated for the bucket counts.
+     * 
+     * @return the number of bytes.
+     */
+    public int getAllocatedBytes() {
+        int bytes = 0;
+        for (int range = 0; range < RANGE_COUNT; range++) {
+            final AtomicLongArray counts = ranges.get(range);
+            if (counts != null) {
+                bytes += counts.length() * 8;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Get a snapshot of the values recorded since the last interval snapshot
+     * and reset the histogram. Values recorded concurrently are counted in
+     * either this interval or the next but are never lost.
+     * 
+     * @return the snapshot.
+     */
+    public Snapshot getIntervalSnapshot() {
+        final long max = this.max.getAndSet(0);
+        return snapshot(true, max);
+    }
+
+    /**
+     * Get a snapshot of the values recorded.
+     * 
+     * @return the snapshot.
+     */
+    public Snapshot getSnapshot() {
+        return snapshot(false, max.get());
+    }
+
+    /**
+     * Record a value.
+     * 
+     * @param value
+     *            the value.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        } else if (value > MAX_VALUE) {
+            value = MAX_VALUE;
+        }
+        final int index = getIndex(value);
+        final int range = getRange(index);
+        AtomicLongArray counts = ranges.get(range);
+        if (counts == null) {
+            counts = new AtomicLongArray(
+                    getRangeStart(range + 1) - getRangeStart(range));
+            if (!ranges.compareAndSet(range, null, counts)) {
+                counts = ranges.get(range);
+            }
+        }
+        counts.incrementAndGet(index - getRangeStart(range));
+        long current;
+        while (value > (current = max.get()) &&
+                !max.compareAndSet(current, value)) {
+        }
+    }
+
+    /**
+     * Reset the histogram.
+     */
+    public void reset() {
+        getIntervalSnapshot();
+    }
+
+    /**
+     * Copy the buckets with counts.
+     * 
+     * @param resetFlag
+     *            true to reset the counts copied, false otherwise.
+     * @param max
+     *            the maximum value recorded.
+     * @return the snapshot.
+     */
+    private Snapshot snapshot(boolean resetFlag, long max) {
+        final int size = getAllocatedBytes() / 8;
+        final int[] indexes = new int[size];
+        final long[] snapshot = new long[size];
+        int length = 0;
+        for (int range = 0; range < RANGE_COUNT; range++) {
+            final AtomicLongArray counts = ranges.get(range);
+            if (counts == null) {
+                continue;
+            }
+            final int start = getRangeStart(range);
+            for (int i = 0; i < counts.length() && length < size; i++) {
+                long count = counts.get(i);
+                if (count != 0 && resetFlag) {
+                    count = counts.getAndSet(i, 0);
+                }
+                if (count != 0) {
+                    indexes[length] = start + i;
+                    snapshot[length++] = count;
+                }
+            }
+        }
+        return new Snapshot(indexes, snapshot, length, max);
+    }
+}
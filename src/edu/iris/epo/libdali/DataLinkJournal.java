@@ -0,0 +1,606 @@
+/**
+ *    Copyright (C) 2017 IRIS (http://www.iris.edu/hq/).
+ *    
+ *    All inquiries should be sent to John Taber <taber@iris.edu>.
+ *    
+ *    This file is part of Jlibdali.
+ *
+ *    Jlibdali is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    Jlibdali is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with Jlibdali.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.iris.epo.libdali;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only segmented memory-mapped journal of DataLink packets for
+ * spooling packets locally and replaying them.
+ * <p>
+ * Each packet is appended as a record with the packet header fields and the
+ * packet data at a logical offset which increases across the segment files,
+ * so any number of consumers may tail the journal by offset independently of
+ * the reader thread. The segment files are named by the offset of their first
+ * record and the oldest segments are deleted when the journal exceeds the
+ * retention size or age.
+ * <p>
+ * The record is: body length (int, written last), CRC-32 of the rest of the
+ * body (int), pktid, pkttime, datastart, dataend (long), datasize (int),
+ * stream ID length (byte), stream ID and the packet data.
+ * <p>
+ * When the journal is opened the records are checked and the journal is
+ * truncated at the first torn or corrupt record, the later segments are
+ * deleted.
+ * 
+ * @author kevin
+ */
+public class DataLinkJournal implements Closeable, DataLinkConst {
+    /**
+     * A journal segment.
+     */
+    private static final class Segment {
+        private final long base;
+        private final MappedByteBuffer buffer;
+        private final File file;
+        /** The time of the last record in milliseconds */
+        private volatile long lastTime;
+
+        private Segment(File file, long base, MappedByteBuffer buffer) {
+            this.file = file;
+            this.base = base;
+            this.buffer = buffer;
+            lastTime = file.lastModified();
+        }
+    }
+
+    /** The record header length excluding the body length and stream ID */
+    private static final int RECORD_HEADER_LENGTH = 41;
+
+    /** The segment file suffix */
+    public static final String SEGMENT_SUFFIX = ".journal";
+
+    /**
+     * Compute the checksum of a record body after the checksum.
+     * 
+     * @param crc
+     *            the checksum.
+     * @param buffer
+     *            the segment buffer.
+     * @param position
+     *            the position of the record.
+     * @param length
+     *            the body length of the record.
+     * @return the checksum.
+     */
+    private static int checksum(CRC32 crc, ByteBuffer buffer, int position,
+            int length) {
+        final ByteBuffer body = buffer.duplicate();
+        body.limit(position + 4 + length).position(position + 8);
+        crc.reset();
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Get the body length of the record at the position if the record is
+     * complete.
+     * 
+     * @param buffer
+     *            the segment buffer.
+     * @param position
+     *            the position of the record.
+     * @param limit
+     *            the position after the last record.
+     * @return the body length or -1 if there is no complete record.
+     */
+    private static int getLength(ByteBuffer buffer, int position, int limit) {
+        if (position < 0 || position + 4 + RECORD_HEADER_LENGTH > limit) {
+            return -1;
+        }
+        final int length = buffer.getInt(position);
+        if (length < RECORD_HEADER_LENGTH || length > limit - position - 4) {
+            return -1;
+        }
+        final int datasize = buffer.getInt(position + 40);
+        final int len = buffer.get(position + 44) & 0xff;
+        if (datasize < 0 || RECORD_HEADER_LENGTH + len + datasize != length) {
+            return -1;
+        }
+        return length;
+    }
+
+    /**
+     * Get the segment file name.
+     * 
+     * @param base
+     *            the offset of the first record.
+     * @return the file name.
+     */
+    private static String getSegmentName(long base) {
+        return String.format("%020d%s", base, SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Map the segment file.
+     * 
+     * @param file
+     *            the segment file.
+     * @param size
+     *            the segment size.
+     * @return the mapped buffer.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private static MappedByteBuffer map(File file, int size)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // the mapping remains valid after the channel is closed
+            return channel.map(MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * Find the end of the valid records of a segment.
+     * 
+     * @param buffer
+     *            the segment buffer.
+     * @return the position after the last record before the first torn or
+     *         corrupt record.
+     */
+    private static int recover(ByteBuffer buffer) {
+        final CRC32 crc = new CRC32();
+        final int size = buffer.capacity();
+        int position = 0;
+        int length;
+        while ((length = getLength(buffer, position, size)) > 0 &&
+                buffer.getInt(position + 4) == checksum(crc, buffer,
+                        position, length)) {
+            position += 4 + length;
+        }
+        return position;
+    }
+
+    private Segment active;
+    /** The checksum of the appended records */
+    private final CRC32 crc = new CRC32();
+    private final File dir;
+    /** The offset after the last record */
+    private volatile long end;
+    private long maxAge;
+    private long maxBytes;
+    private final int segmentSize;
+    private final ConcurrentNavigableMap<Long, Segment> segments =
+            new ConcurrentSkipListMap<>();
+    /** The number of consumers waiting for records */
+    private volatile int waiters;
+
+    /**
+     * Open the journal without retention, creating the directory if needed
+     * and recovering the existing segments.
+     * 
+     * @param dir
+     *            the journal directory.
+     * @param segmentSize
+     *            the size of the segment files in bytes, which must hold at
+     *            least one packet of the maximum size.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    public DataLinkJournal(File dir, int segmentSize) throws IOException {
+        this(dir, segmentSize, 0, 0);
+    }
+
+    /**
+     * Open the journal, creating the directory if needed and recovering the
+     * existing segments. The segments beyond the retention are deleted once
+     * the journal is recovered.
+     * 
+     * @param dir
+     *            the journal directory.
+     * @param segmentSize
+     *            the size of the segment files in bytes, which must hold at
+     *            least one packet of the maximum size.
+     * @param maxBytes
+     *            the maximum size in bytes or 0 if none.
+     * @param maxAge
+     *            the maximum age in milliseconds or 0 if none.
+     * @throws IOException
+     *             if an I/O error occurs.
+     * @see #setRetention(long, long)
+     */
+    public DataLinkJournal(File dir, int segmentSize, long maxBytes,
+            long maxAge) throws IOException {
+        if (segmentSize < 4 + RECORD_HEADER_LENGTH + 255 + MAXPACKETSIZE) {
+            throw new IllegalArgumentException(
+                    "Invalid segment size (" + segmentSize + ")");
+        }
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxBytes = maxBytes;
+        this.maxAge = maxAge;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create directory " + dir);
+        }
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                final String name = file.getName();
+                if (!name.endsWith(SEGMENT_SUFFIX) || file.length() < 4) {
+                    continue;
+                }
+                try {
+                    final long base = Long.parseLong(name.substring(0,
+                            name.length() - SEGMENT_SUFFIX.length()));
+                    // existing segments keep their size
+                    segments.put(base, new Segment(file, base,
+                            map(file, (int) file.length())));
+                } catch (NumberFormatException ex) {
+                }
+            }
+        }
+        if (segments.isEmpty()) {
+            roll(0);
+        } else {
+            // truncate at the first segment which does not end at the next
+            int position = 0;
+            for (Segment segment : segments.values()) {
+                if (active != null && active.base + position != segment.base) {
+                    // the records after the first bad record are lost
+                    segments.remove(segment.base);
+                    segment.file.delete();
+                } else {
+                    active = segment;
+                    position = recover(segment.buffer);
+                }
+            }
+            // append after the last valid record of the last segment
+            final MappedByteBuffer buffer = active.buffer;
+            if (position + 4 <= buffer.capacity() &&
+                    buffer.getInt(position) != 0) {
+                // clear the torn record so it is never read again
+                for (int i = position; i < buffer.capacity(); i++) {
+                    buffer.put(i, (byte) 0);
+                }
+                buffer.force();
+            }
+            buffer.position(position);
+            end = active.base + position;
+            retain();
+        }
+    }
+
+    /**
+     * Append a packet to the journal.
+     * 
+     * @param packet
+     *            the packet header.
+     * @param data
+     *            the packet data buffer.
+     * @return the offset of the record.
+     * @throws IOException
+     *             if an I/O error occurs creating a new segment.
+     */
+    public synchronized long append(DLPacket packet, byte[] data)
+            throws IOException {
+        final StreamidTable table = StreamidTable.getInstance();
+        Streamid streamid = table.getStreamid(packet.getStreamIndex());
+        if (streamid == null) {
+            streamid = table.getStreamid(packet.getStreamid());
+        }
+        final byte[] text = streamid.getTextBytes();
+        if (text.length > 255) {
+            throw new IllegalArgumentException(
+                    "Invalid stream ID length (" + text.length + ")");
+        }
+        final int datasize = packet.getDatasize();
+        final int length = RECORD_HEADER_LENGTH + text.length + datasize;
+        MappedByteBuffer buffer = active.buffer;
+        if (4 + length > buffer.remaining()) {
+            roll(end);
+            buffer = active.buffer;
+        }
+        final int position = buffer.position();
+        buffer.position(position + 8);
+        buffer.putLong(packet.getPktid());
+        buffer.putLong(packet.getPkttime());
+        buffer.putLong(packet.getDatastart());
+        buffer.putLong(packet.getDataend());
+        buffer.putInt(datasize);
+        buffer.put((byte) text.length);
+        buffer.put(text);
+        buffer.put(data, 0, datasize);
+        buffer.putInt(position + 4, checksum(crc, buffer, position, length));
+        // the length commits the record
+        buffer.putInt(position, length);
+        final long offset = end;
+        end = offset + 4 + length;
+        active.lastTime = System.currentTimeMillis();
+        if (waiters != 0) {
+            notifyAll();
+        }
+        return offset;
+    }
+
+    /**
+     * Wait for a record at the offset.
+     * 
+     * @param offset
+     *            the offset.
+     * @param timeout
+     *            the maximum time to wait in milliseconds.
+     * @return true if a record is available, false if the timeout elapsed.
+     * @throws InterruptedException
+     *             if interrupted while waiting.
+     */
+    public synchronized boolean await(long offset, long timeout)
+            throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeout;
+        long remaining = timeout;
+        waiters++;
+        try {
+            while (end <= offset && remaining > 0) {
+                wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+        } finally {
+            waiters--;
+        }
+        return end > offset;
+    }
+
+    /**
+     * Close the journal.
+     */
+    @Override
+    public synchronized void close() {
+        force();
+        if (active != null) {
+            active.file.setLastModified(active.lastTime);
+        }
+        segments.clear();
+    }
+
+    /**
+     * Delete the segments which only have records before the offset, such as
+     * records which have been consumed, the active segment is never deleted.
+     * 
+     * @param offset
+     *            the offset.
+     */
+    public synchronized void deleteBefore(long offset) {
+        Map.Entry<Long, Segment> entry;
+        while ((entry = segments.firstEntry()) != null &&
+                entry.getValue() != active) {
+            final Long next = segments.higherKey(entry.getKey());
+            if (next == null || next > offset) {
+                break;
+            }
+            segments.remove(entry.getKey());
+            entry.getValue().file.delete();
+        }
+    }
+
+    /**
+     * Force the records to the disk.
+     */
+    public synchronized void force() {
+        if (active != null) {
+            active.buffer.force();
+        }
+    }
+
+    /**
+     * Get a read-only view of the packet data of the record at the offset
+     * without copying it.
+     * 
+     * @param offset
+     *            the offset of the record.
+     * @return the packet data or null if there is no record at the offset.
+     */
+    public ByteBuffer getData(long offset) {
+        final long end = this.end;
+        if (offset >= end) {
+            return null;
+        }
+        final Map.Entry<Long, Segment> entry = segments.floorEntry(offset);
+        if (entry == null) {
+            return null;
+        }
+        final ByteBuffer buffer =
+                entry.getValue().buffer.asReadOnlyBuffer();
+        final int position = (int) (offset - entry.getKey());
+        final int length =
+                getLength(buffer, position, getLimit(entry, end));
+        if (length < 0) {
+            return null;
+        }
+        final int datasize = buffer.getInt(position + 40);
+        final int start = position + 4 + length - datasize;
+        buffer.limit(start + datasize).position(start);
+        return buffer.slice();
+    }
+
+    /**
+     * Get the offset after the last record, which is the offset of the next
+     * record appended.
+     * 
+     * @return the end offset.
+     */
+    public long getEndOffset() {
+        return end;
+    }
+
+    /**
+     * Get the limit of the records of a segment.
+     * 
+     * @param entry
+     *            the segment entry.
+     * @param end
+     *            the end offset.
+     * @return the position after the last record of the last segment or the
+     *         size of an earlier segment.
+     */
+    private int getLimit(Map.Entry<Long, Segment> entry, long end) {
+        if (segments.higherKey(entry.getKey()) == null) {
+            return (int) (end - entry.getKey());
+        }
+        return entry.getValue().buffer.capacity();
+    }
+
+    /**
+     * Get the number of segments.
+     * 
+     * @return the number of segments.
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Get the offset of the oldest record retained.
+     * 
+     * @return the start offset.
+     */
+    public long getStartOffset() {
+        final Map.Entry<Long, Segment> entry = segments.firstEntry();
+        return entry != null ? entry.getKey() : end;
+    }
+
+    /**
+     * Read the record at the offset.
+     * 
+     * @param offset
+     *            the offset of the record.
+     * @param packet
+     *            the packet for the header.
+     * @param data
+     *            the buffer for the packet data, at least
+     *            {@link DataLinkConst#MAXPACKETSIZE} bytes.
+     * @return the offset of the next record or the offset if there is no
+     *         complete record at the offset yet.
+     * @throws IllegalArgumentException
+     *             if the offset is before the start offset or after the end
+     *             offset.
+     */
+    public long read(long offset, DLPacket packet, byte[] data) {
+        final long end = this.end;
+        if (offset >= end) {
+            if (offset > end) {
+                throw new IllegalArgumentException(
+                        "Invalid offset (" + offset + ")");
+            }
+            return offset;
+        }
+        final Map.Entry<Long, Segment> entry = segments.floorEntry(offset);
+        if (entry == null) {
+            throw new IllegalArgumentException(
+                    "Invalid offset (" + offset + ")");
+        }
+        final ByteBuffer buffer = entry.getValue().buffer.duplicate();
+        final int position = (int) (offset - entry.getKey());
+        final int length =
+                getLength(buffer, position, getLimit(entry, end));
+        if (length < 0) {
+            return offset;
+        }
+        buffer.position(position + 8);
+        final long pktid = buffer.getLong();
+        final long pkttime = buffer.getLong();
+        final long datastart = buffer.getLong();
+        final long dataend = buffer.getLong();
+        final int datasize = buffer.getInt();
+        final int len = buffer.get() & 0xff;
+        // the stream ID bytes are interned from the data buffer
+        buffer.get(data, 0, len);
+        packet.setStreamid(
+                StreamidTable.getInstance().getStreamid(data, 0, len));
+        buffer.get(data, 0, datasize);
+        packet.setPktid(pktid);
+        packet.setPkttime(pkttime);
+        packet.setDatastart(datastart);
+        packet.setDataend(dataend);
+        packet.setDatasize(datasize);
+        return offset + 4 + length;
+    }
+
+    /**
+     * Start a new segment and delete the segments beyond the retention.
+     * 
+     * @param base
+     *            the offset of the first record of the new segment.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private void roll(long base) throws IOException {
+        if (active != null) {
+            active.buffer.force();
+            active.file.setLastModified(active.lastTime);
+        }
+        final File file = new File(dir, getSegmentName(base));
+        final Segment segment =
+                new Segment(file, base, map(file, segmentSize));
+        segments.put(base, segment);
+        active = segment;
+        end = base;
+        retain();
+    }
+
+    /**
+     * Delete the oldest segments beyond the retention size or age, the
+     * active segment is never deleted.
+     */
+    private void retain() {
+        final long now = System.currentTimeMillis();
+        Map.Entry<Long, Segment> entry;
+        while ((entry = segments.firstEntry()) != null &&
+                entry.getValue() != active) {
+            final Segment segment = entry.getValue();
+            if (!(maxBytes > 0 &&
+                    (long) segments.size() * segmentSize > maxBytes) &&
+                    !(maxAge > 0 && now - segment.lastTime > maxAge)) {
+                break;
+            }
+            segments.remove(entry.getKey());
+            segment.file.delete();
+        }
+    }
+
+    /**
+     * Set the retention, the oldest segments are deleted when a new segment
+     * is started if the journal exceeds the size or their last record is
+     * older than the age.
+     * 
+     * @param maxBytes
+     *            the maximum size in bytes or 0 if none.
+     * @param maxAge
+     *            the maximum age in milliseconds or 0 if none.
+     */
+    public synchronized void setRetention(long maxBytes, long maxAge) {
+        this.maxBytes = maxBytes;
+        this.maxAge = maxAge;
+        retain();
+    }
+}
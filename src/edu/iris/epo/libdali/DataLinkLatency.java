@@ -0,0 +1,144 @@
+/**
+ *    Copyright (C) 2017 IRIS (http://www.iris.edu/hq/).
+ *    
+ *    All inquiries should be sent to John Taber <taber@iris.edu>.
+ *    
+ *    This file is part of Jlibdali.
+ *
+ *    Jlibdali is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    Jlibdali is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with Jlibdali.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.iris.epo.libdali;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * End-to-end latency histograms for each stream ID, measuring how stale the
+ * data is when the packet arrives.
+ * <p>
+ * For each packet the data latency (arrival time minus the packet data end
+ * time) and the packet latency (arrival time minus the packet time of the
+ * server) are recorded in microseconds.
+ * <p>
+ * The histograms only allocate the counts for the powers of 2 in which
+ * latencies were recorded, so a stream whose latencies stay within a few
+ * seconds takes about 2-4 KiB for both histograms, or about 150 MiB for 50,000
+ * streams. A stream whose latencies range widely takes up to 32 KiB.
+ * {@link #remove(String)} frees the histograms of a stream which has ended.
+ * 
+ * @author kevin
+ * @see DataLinkHistogram
+ */
+public class DataLinkLatency {
+    /**
+     * The histograms for a stream ID.
+     */
+    private static final class Entry {
+        private final DataLinkHistogram dataLatency = new DataLinkHistogram();
+        private final DataLinkHistogram packetLatency =
+                new DataLinkHistogram();
+    }
+
+    private final ConcurrentMap<String, Entry> entries =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Get the data latency histogram (arrival time minus the data end time)
+     * for the stream ID.
+     * 
+     * @param streamid
+     *            the stream ID.
+     * @return the histogram or null if no packets for the stream ID.
+     */
+    public DataLinkHistogram getDataLatency(String streamid) {
+        final Entry entry = entries.get(streamid);
+        return entry != null ? entry.dataLatency : null;
+    }
+
+    /**
+     * Get the packet latency histogram (arrival time minus the packet time)
+     * for the stream ID.
+     * 
+     * @param streamid
+     *            the stream ID.
+     * @return the histogram or null if no packets for the stream ID.
+     */
+    public DataLinkHistogram getPacketLatency(String streamid) {
+        final Entry entry = entries.get(streamid);
+        return entry != null ? entry.packetLatency : null;
+    }
+
+    /**
+     * Get the stream IDs with recorded packets.
+     * 
+     * @return the stream IDs.
+     */
+    public Set<String> getStreamids() {
+        return entries.keySet();
+    }
+
+    /**
+     * Record the latency of a packet which arrived now.
+     * 
+     * @param packet
+     *            the packet.
+     */
+    public void record(DLPacket packet) {
+        record(packet, DataLinkUtils
+                .getTimeMicroseconds(System.currentTimeMillis()));
+    }
+
+    /**
+     * Record the latency of a packet.
+     * 
+     * @param packet
+     *            the packet.
+     * @param arrival
+     *            the Unix/POSIX epoch arrival time in microseconds.
+     */
+    public void record(DLPacket packet, long arrival) {
+        final String streamid = packet.getStreamid();
+        if (streamid == null) {
+            return;
+        }
+        Entry entry = entries.get(streamid);
+        if (entry == null) {
+            entry = entries.computeIfAbsent(streamid, k -> new Entry());
+        }
+        entry.dataLatency.record(arrival - packet.getDataend());
+        entry.packetLatency.record(arrival - packet.getPkttime());
+    }
+
+    /**
+     * Remove the histograms for the stream ID.
+     * 
+     * @param streamid
+     *            the stream ID.
+     */
+    public void remove(String streamid) {
+        entries.remove(streamid);
+    }
+
+    /**
+     * Reset the histograms for all of the stream IDs.
+     */
+    public void reset() {
+        for (Entry entry : entries.values()) {
+            entry.dataLatency.reset();
+            entry.packetLatency.reset();
+        }
+    }
+}
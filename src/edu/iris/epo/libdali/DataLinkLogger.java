@@ -49,6 +49,11 @@ public class DataLinkLogger implements IDataLinkLogger {
         this.logger = logger;
     }
 
+    @Override
+    public boolean isLoggable(Level level) {
+        return logger.isLoggable(level);
+    }
+
     @Override
     public void log(Level level, String msg) {
         logger.log(level, msg);
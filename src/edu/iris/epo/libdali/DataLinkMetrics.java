@@ -0,0 +1,419 @@
+/**
+ *    Copyright (C) 2017 IRIS (http://www.iris.edu/hq/).
+ *    
+ *    All inquiries should be sent to John Taber <taber@iris.edu>.
+ *    
+ *    This file is part of Jlibdali.
+ *
+ *    Jlibdali is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    Jlibdali is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with Jlibdali.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.iris.epo.libdali;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import edu.iris.epo.libdali.DataLinkClient.DL_RETVAL;
+
+/**
+ * DataLink client metrics with striped counters so they may be updated on
+ * every packet at little cost.
+ * <p>
+ * Each client has its own metrics which are also added to the metrics for the
+ * process. The process metrics are registered as the JMX MBean
+ * <code>edu.iris.epo.libdali:type=DataLinkMetrics,name="process"</code> and
+ * the client metrics are registered while the client is connected. The name
+ * of the client metrics also has the instance number of the metrics in the
+ * process, so clients with the same client ID and server each have an MBean.
+ * 
+ * @author kevin
+ */
+public class DataLinkMetrics implements DataLinkMetricsMXBean {
+    /** The JMX domain */
+    public static final String DOMAIN = "edu.iris.epo.libdali";
+
+    /** The number of metrics created in the process */
+    private static final AtomicInteger instances = new AtomicInteger();
+
+    private static final DataLinkMetrics process = createProcessMetrics();
+
+    /**
+     * Create the process metrics and register them.
+     * 
+     * @return the process metrics.
+     */
+    private static DataLinkMetrics createProcessMetrics() {
+        final DataLinkMetrics metrics = new DataLinkMetrics(null);
+        metrics.register("process");
+        return metrics;
+    }
+
+    /**
+     * Get the metrics for the process.
+     * 
+     * @return the metrics for the process.
+     */
+    public static DataLinkMetrics getProcessMetrics() {
+        return process;
+    }
+
+    private final LongAdder backlog = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder collects = new LongAdder();
+    private final LongAdder[] errors =
+            new LongAdder[DL_RETVAL.values().length];
+    /** The instance number of the metrics in the process */
+    private final int instance = instances.incrementAndGet();
+    private volatile ObjectName objectName;
+    private final LongAdder packetBytes = new LongAdder();
+    private final LongAdder packets = new LongAdder();
+    private final DataLinkMetrics parent;
+    private final LongAdder parseNanos = new LongAdder();
+    private final LongAdder readBlockedNanos = new LongAdder();
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder reconnects = new LongAdder();
+    private final LongAdder recvdatas = new LongAdder();
+    private final LongAdder sendpackets = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+
+    /**
+     * Create the metrics which are also added to the process metrics.
+     */
+    public DataLinkMetrics() {
+        this(process);
+    }
+
+    /**
+     * Create the metrics.
+     * 
+     * @param parent
+     *            the metrics the counts are also added to or null if none.
+     */
+    public DataLinkMetrics(DataLinkMetrics parent) {
+        this.parent = parent;
+        for (int i = 0; i < errors.length; i++) {
+            errors[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Add to the number of packets queued but not yet written.
+     * 
+     * @param delta
+     *            the number of packets queued, negative when written.
+     */
+    void addBacklog(long delta) {
+        backlog.add(delta);
+        if (parent != null) {
+            parent.addBacklog(delta);
+        }
+    }
+
+    /**
+     * Add a collect call.
+     */
+    void addCollect() {
+        collects.increment();
+        if (parent != null) {
+            parent.addCollect();
+        }
+    }
+
+    /**
+     * Add the DataLink return value if it is an error.
+     * 
+     * @param retVal
+     *            the DataLink return value.
+     * @return the DataLink return value.
+     */
+    DL_RETVAL addError(DL_RETVAL retVal) {
+        if (retVal.isError()) {
+            errors[retVal.ordinal()].increment();
+            if (parent != null) {
+                parent.addError(retVal);
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * Add a packet received.
+     * 
+     * @param datasize
+     *            the packet data size.
+     */
+    void addPacket(int datasize) {
+        packets.increment();
+        packetBytes.add(datasize);
+        if (parent != null) {
+            parent.addPacket(datasize);
+        }
+    }
+
+    /**
+     * Add the time spent parsing a packet header.
+     * 
+     * @param nanos
+     *            the time in nanoseconds.
+     */
+    void addParse(long nanos) {
+        parseNanos.add(nanos);
+        if (parent != null) {
+            parent.addParse(nanos);
+        }
+    }
+
+    /**
+     * Add a read call.
+     */
+    void addRead() {
+        reads.increment();
+        if (parent != null) {
+            parent.addRead();
+        }
+    }
+
+    /**
+     * Add a reconnect.
+     */
+    void addReconnect() {
+        reconnects.increment();
+        if (parent != null) {
+            parent.addReconnect();
+        }
+    }
+
+    /**
+     * Add a recvdata call.
+     * 
+     * @param bytes
+     *            the number of bytes received.
+     * @param nanos
+     *            the time spent blocked in socket reads in nanoseconds.
+     */
+    void addRecvdata(int bytes, long nanos) {
+        recvdatas.increment();
+        bytesReceived.add(bytes);
+        readBlockedNanos.add(nanos);
+        if (parent != null) {
+            parent.addRecvdata(bytes, nanos);
+        }
+    }
+
+    /**
+     * Add a sendpacket call.
+     * 
+     * @param bytes
+     *            the number of bytes sent.
+     */
+    void addSendpacket(long bytes) {
+        sendpackets.increment();
+        bytesSent.add(bytes);
+        if (parent != null) {
+            parent.addSendpacket(bytes);
+        }
+    }
+
+    /**
+     * Add written packets.
+     * 
+     * @param count
+     *            the number of packets.
+     */
+    void addWrites(int count) {
+        writes.add(count);
+        if (parent != null) {
+            parent.addWrites(count);
+        }
+    }
+
+    @Override
+    public long getBacklog() {
+        return backlog.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getCollects() {
+        return collects.sum();
+    }
+
+    @Override
+    public Map<String, Long> getErrorCounts() {
+        final Map<String, Long> map = new LinkedHashMap<>();
+        for (DL_RETVAL retVal : DL_RETVAL.values()) {
+            if (retVal.isError()) {
+                map.put(retVal.name(), errors[retVal.ordinal()].sum());
+            }
+        }
+        return map;
+    }
+
+    @Override
+    public long getErrors() {
+        long sum = 0;
+        for (LongAdder adder : errors) {
+            sum += adder.sum();
+        }
+        return sum;
+    }
+
+    /**
+     * Get the JMX object name.
+     * 
+     * @return the JMX object name or null if not registered.
+     */
+    public ObjectName getObjectName() {
+        return objectName;
+    }
+
+    @Override
+    public long getPacketBytes() {
+        return packetBytes.sum();
+    }
+
+    @Override
+    public long getPackets() {
+        return packets.sum();
+    }
+
+    /**
+     * Get the metrics the counts are also added to.
+     * 
+     * @return the parent metrics or null if none.
+     */
+    public DataLinkMetrics getParent() {
+        return parent;
+    }
+
+    @Override
+    public long getParseNanos() {
+        return parseNanos.sum();
+    }
+
+    @Override
+    public long getReadBlockedNanos() {
+        return readBlockedNanos.sum();
+    }
+
+    @Override
+    public long getReads() {
+        return reads.sum();
+    }
+
+    @Override
+    public long getReconnects() {
+        return reconnects.sum();
+    }
+
+    @Override
+    public long getRecvdatas() {
+        return recvdatas.sum();
+    }
+
+    @Override
+    public long getSendpackets() {
+        return sendpackets.sum();
+    }
+
+    @Override
+    public long getWrites() {
+        return writes.sum();
+    }
+
+    /**
+     * Register the metrics as a JMX MBean if not already registered. The
+     * object name has the instance number unless these are the process
+     * metrics.
+     * 
+     * @param name
+     *            the name, usually the client ID.
+     * @return true if registered, false otherwise.
+     */
+    public synchronized boolean register(String name) {
+        if (objectName != null) {
+            return true;
+        }
+        try {
+            final ObjectName on = new ObjectName(DOMAIN + ":type=" +
+                    DataLinkMetrics.class.getSimpleName() + ",name=" +
+                    ObjectName.quote(name) +
+                    ((parent != null) ? ",instance=" + instance : ""));
+            final MBeanServer server =
+                    ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(on)) {
+                return false;
+            }
+            server.registerMBean(this, on);
+            objectName = on;
+            return true;
+        } catch (Exception ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Reset all of the counters, the backlog is a level rather than a counter
+     * and is not reset.
+     */
+    @Override
+    public void reset() {
+        bytesReceived.reset();
+        bytesSent.reset();
+        collects.reset();
+        for (LongAdder adder : errors) {
+            adder.reset();
+        }
+        packetBytes.reset();
+        packets.reset();
+        parseNanos.reset();
+        readBlockedNanos.reset();
+        reads.reset();
+        reconnects.reset();
+        recvdatas.reset();
+        sendpackets.reset();
+        writes.reset();
+    }
+
+    /**
+     * Unregister the JMX MBean if registered.
+     */
+    public synchronized void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                    .unregisterMBean(objectName);
+        } catch (Exception ex) {
+        }
+        objectName = null;
+    }
+}
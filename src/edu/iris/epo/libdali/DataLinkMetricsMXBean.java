@@ -0,0 +1,142 @@
+/**
+ *    Copyright (C) 2017 IRIS (http://www.iris.edu/hq/).
+ *    
+ *    All inquiries should be sent to John Taber <taber@iris.edu>.
+ *    
+ *    This file is part of Jlibdali.
+ *
+ *    Jlibdali is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    Jlibdali is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with Jlibdali.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.iris.epo.libdali;
+
+import java.util.Map;
+
+/**
+ * The JMX management interface of the DataLink client metrics.
+ * 
+ * @author kevin
+ * @see DataLinkMetrics
+ */
+public interface DataLinkMetricsMXBean {
+    /**
+     * Get the number of packets queued but not yet written.
+     * 
+     * @return the number of packets.
+     */
+    public long getBacklog();
+
+    /**
+     * Get the number of bytes received including headers.
+     * 
+     * @return the number of bytes.
+     */
+    public long getBytesReceived();
+
+    /**
+     * Get the number of bytes sent including headers.
+     * 
+     * @return the number of bytes.
+     */
+    public long getBytesSent();
+
+    /**
+     * Get the number of collect calls.
+     * 
+     * @return the number of calls.
+     */
+    public long getCollects();
+
+    /**
+     * Get the number of errors for each DataLink return value.
+     * 
+     * @return the number of errors by DataLink return value name.
+     */
+    public Map<String, Long> getErrorCounts();
+
+    /**
+     * Get the total number of errors.
+     * 
+     * @return the number of errors.
+     */
+    public long getErrors();
+
+    /**
+     * Get the number of packet data bytes received.
+     * 
+     * @return the number of bytes.
+     */
+    public long getPacketBytes();
+
+    /**
+     * Get the number of packets received.
+     * 
+     * @return the number of packets.
+     */
+    public long getPackets();
+
+    /**
+     * Get the time spent parsing packet headers.
+     * 
+     * @return the time in nanoseconds.
+     */
+    public long getParseNanos();
+
+    /**
+     * Get the time spent blocked in socket reads.
+     * 
+     * @return the time in nanoseconds.
+     */
+    public long getReadBlockedNanos();
+
+    /**
+     * Get the number of read calls.
+     * 
+     * @return the number of calls.
+     */
+    public long getReads();
+
+    /**
+     * Get the number of reconnects.
+     * 
+     * @return the number of reconnects.
+     */
+    public long getReconnects();
+
+    /**
+     * Get the number of recvdata calls.
+     * 
+     * @return the number of calls.
+     */
+    public long getRecvdatas();
+
+    /**
+     * Get the number of sendpacket calls.
+     * 
+     * @return the number of calls.
+     */
+    public long getSendpackets();
+
+    /**
+     * Get the number of packets written.
+     * 
+     * @return the number of packets.
+     */
+    public long getWrites();
+
+    /**
+     * Reset all of the counters.
+     */
+    public void reset();
+}
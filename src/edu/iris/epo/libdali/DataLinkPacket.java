@@ -0,0 +1,144 @@
+/**
+ *    Copyright (C) 2017 IRIS (http://www.iris.edu/hq/).
+ *    
+ *    All inquiries should be sent to John Taber <taber@iris.edu>.
+ *    
+ *    This file is part of Jlibdali.
+ *
+ *    Jlibdali is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    Jlibdali is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with Jlibdali.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.iris.epo.libdali;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A DataLink packet header and its data which, unlike the {@link DLPacket} of
+ * a client, is not reused for the next packet.
+ * 
+ * @author kevin
+ * @see DataLinkPublisher
+ */
+public class DataLinkPacket {
+    private static byte[] copy(byte[] buf, int len) {
+        final byte[] data = new byte[len];
+        System.arraycopy(buf, 0, data, 0, len);
+        return data;
+    }
+
+    private final byte[] data;
+    private final long dataend;
+    private final long datastart;
+    private final long pktid;
+    private final long pkttime;
+    private final String streamid;
+
+    /**
+     * Create the packet.
+     * 
+     * @param streamid
+     *            the stream ID.
+     * @param pktid
+     *            the packet ID.
+     * @param pkttime
+     *            the packet time in microseconds.
+     * @param datastart
+     *            the data start time in microseconds.
+     * @param dataend
+     *            the data end time in microseconds.
+     * @param data
+     *            the packet data, which is not copied and must not be
+     *            modified.
+     */
+    DataLinkPacket(String streamid, long pktid, long pkttime,
+            long datastart, long dataend, byte[] data) {
+        this.streamid = streamid;
+        this.pktid = pktid;
+        this.pkttime = pkttime;
+        this.datastart = datastart;
+        this.dataend = dataend;
+        this.data = data;
+    }
+
+    /**
+     * Create the packet from the last packet received by a client.
+     * 
+     * @param dlpacket
+     *            the DataLink packet header.
+     * @param buf
+     *            the read buffer containing the packet data.
+     */
+    public DataLinkPacket(DLPacket dlpacket, byte[] buf) {
+        this(dlpacket.getStreamid(), dlpacket.getPktid(),
+                dlpacket.getPkttime(), dlpacket.getDatastart(),
+                dlpacket.getDataend(), copy(buf, dlpacket.getDatasize()));
+    }
+
+    /**
+     * Get a read-only view of the packet data.
+     * 
+     * @return the packet data.
+     */
+    public ByteBuffer getData() {
+        return ByteBuffer.wrap(data).asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the dataend in microseconds
+     */
+    public long getDataend() {
+        return dataend;
+    }
+
+    /**
+     * @return the datasize
+     */
+    public int getDatasize() {
+        return data.length;
+    }
+
+    /**
+     * @return the datastart in microseconds
+     */
+    public long getDatastart() {
+        return datastart;
+    }
+
+    /**
+     * @return the pktid
+     */
+    public long getPktid() {
+        return pktid;
+    }
+
+    /**
+     * @return the pkttime in microseconds
+     */
+    public long getPkttime() {
+        return pkttime;
+    }
+
+    /**
+     * @return the streamid
+     */
+    public String getStreamid() {
+        return streamid;
+    }
+
+    @Override
+    public String toString() {
+        return streamid + ' ' + pktid + ' ' + pkttime + ' ' + datastart + ' ' +
+                dataend + ' ' + data.length;
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ *    Copyright (C) 2017 IRIS (http://www.iris.edu/hq/).
+ *    
+ *    All inquiries should be sent to John Taber <taber@iris.edu>.
+ *    
+ *    This file is part of Jlibdali.
+ *
+ *    Jlibdali is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    Jlibdali is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with Jlibdali.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.iris.epo.libdali;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Packet payload in a direct byte buffer leased from a
+ * {@link DataLinkBufferPool}.
+ * <p>
+ * The payload is exposed as a read-only slice so that it may be archived or
+ * forwarded without a heap copy, for example with
+ * {@link #writeTo(WritableByteChannel)} or
+ * {@link DataLinkClient#write(ByteBuffer, IStreamid, long, long, boolean)}.
+ * The payload is reference counted: each holder which called
+ * {@link #retain()} must call {@link #release()}, and the buffer is returned
+ * to the pool when the last reference is released. The payload must not be
+ * used after it has been released.
+ * 
+ * @author kevin
+ */
+public class DataLinkPayload {
+    /** The leased buffer */
+    private final ByteBuffer buffer;
+    private final DataLinkBufferPool pool;
+    private final AtomicInteger refs = new AtomicInteger(1);
+    /** The read-only slice of the payload */
+    private final ByteBuffer slice;
+
+    /**
+     * Create the payload with a buffer leased from the pool.
+     * 
+     * @param pool
+     *            the buffer pool.
+     * @param size
+     *            the payload size in bytes.
+     */
+    DataLinkPayload(DataLinkBufferPool pool, int size) {
+        this.pool = pool;
+        buffer = pool.leaseDirect(size);
+        slice = buffer.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Get the payload as a read-only buffer, the position and limit are
+     * shared by the users of the buffer so {@link ByteBuffer#duplicate()}
+     * should be used for independent positions.
+     * 
+     * @return the read-only buffer.
+     */
+    public ByteBuffer getBuffer() {
+        return slice;
+    }
+
+    /**
+     * Get the leased buffer the payload is read into.
+     * 
+     * @return the writable buffer.
+     */
+    ByteBuffer getLeasedBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Get the payload size.
+     * 
+     * @return the payload size in bytes.
+     */
+    public int getSize() {
+        return slice.capacity();
+    }
+
+    /**
+     * Release a reference to the payload, the buffer is returned to the pool
+     * when the last reference is released.
+     * 
+     * @throws IllegalStateException
+     *             if the payload has already been released.
+     */
+    public void release() {
+        final int count = refs.decrementAndGet();
+        if (count == 0) {
+            pool.release(buffer);
+        } else if (count < 0) {
+            throw new IllegalStateException("Invalid release (" + count + ")");
+        }
+    }
+
+    /**
+     * Add a reference to the payload, for example before passing it to
+     * another thread.
+     * 
+     * @return this payload.
+     * @throws IllegalStateException
+     *             if the payload has already been released.
+     */
+    public DataLinkPayload retain() {
+        for (;;) {
+            final int count = refs.get();
+            if (count <= 0) {
+                throw new IllegalStateException(
+                        "Invalid retain (" + count + ")");
+            }
+            if (refs.compareAndSet(count, count + 1)) {
+                return this;
+            }
+        }
+    }
+
+    /**
+     * Write the whole payload to the channel, such as a
+     * {@link java.nio.channels.FileChannel}, without copying it to the heap.
+     * 
+     * @param channel
+     *            the channel.
+     * @return the number of bytes written.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    public int writeTo(WritableByteChannel channel) throws IOException {
+        final ByteBuffer src = slice.duplicate();
+        src.clear();
+        while (src.hasRemaining()) {
+            channel.write(src);
+        }
+        return src.capacity();
+    }
+}
@@ -0,0 +1,477 @@
+/**
+ *    Copyright (C) 2017 IRIS (http://www.iris.edu/hq/).
+ *    
+ *    All inquiries should be sent to John Taber <taber@iris.edu>.
+ *    
+ *    This file is part of Jlibdali.
+ *
+ *    Jlibdali is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    Jlibdali is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with Jlibdali.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.iris.epo.libdali;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+import edu.iris.epo.libdali.DataLinkClient.DL_RETVAL;
+
+/**
+ * Publisher of the packets streamed by a {@link DataLinkCollector}.
+ * <p>
+ * A reader thread collects the packets into a bounded buffer and a delivery
+ * thread passes them to the subscriber as they are requested, so the
+ * subscriber's demand controls how far the reader runs ahead. When the buffer
+ * is full the overflow policy either blocks the reader, which in turn stops
+ * reading from the socket, drops the oldest packet or spills the packets to a
+ * temporary file until the subscriber catches up.
+ * <p>
+ * A publisher supports a single subscriber.
+ * 
+ * @author kevin
+ */
+public class DataLinkPublisher implements Closeable, DataLinkConst,
+        DataLinkFlow.Publisher<DataLinkPacket> {
+    /** The overflow policy used when the buffer is full */
+    public static enum Overflow {
+        /** Block the reader until there is room in the buffer */
+        BLOCK,
+        /** Drop the oldest packet in the buffer */
+        DROP_OLDEST,
+        /** Spill the packets to a temporary file */
+        SPILL
+    }
+
+    /** The subscription */
+    private final class PacketSubscription
+            implements DataLinkFlow.Subscription {
+        @Override
+        public void cancel() {
+            synchronized (lock) {
+                cancelFlag = true;
+                lock.notifyAll();
+            }
+            collector.terminate();
+        }
+
+        @Override
+        public void request(long n) {
+            synchronized (lock) {
+                if (n <= 0) {
+                    if (error == null) {
+                        error = new IllegalArgumentException(
+                                "Invalid request (" + n + ")");
+                    }
+                } else if ((demand += n) < 0) {
+                    demand = Long.MAX_VALUE;
+                }
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /** Temporary file for the packets which do not fit in the buffer */
+    private static final class Spill implements Closeable {
+        /** The size of the fixed fields following the stream ID */
+        private static final int FIXED_SIZE = 4 * 8 + 4;
+
+        private final FileChannel channel;
+        private int count;
+        private final File file;
+        private long readPos;
+        private long writePos;
+
+        private Spill(File dir) throws IOException {
+            file = File.createTempFile("jlibdali", ".spill", dir);
+            file.deleteOnExit();
+            channel = new RandomAccessFile(file, "rw").getChannel();
+        }
+
+        @Override
+        public void close() {
+            DataLinkClient.closeQuietly(channel);
+            file.delete();
+        }
+
+        private boolean isEmpty() {
+            return count == 0;
+        }
+
+        private DataLinkPacket read() throws IOException {
+            final ByteBuffer len = read(4);
+            final byte[] streamid = new byte[len.getInt()];
+            final ByteBuffer buf = read(streamid.length + FIXED_SIZE);
+            buf.get(streamid);
+            final long pktid = buf.getLong();
+            final long pkttime = buf.getLong();
+            final long datastart = buf.getLong();
+            final long dataend = buf.getLong();
+            final ByteBuffer data = read(buf.getInt());
+            if (--count == 0) {
+                readPos = writePos = 0;
+                channel.truncate(0);
+            }
+            return new DataLinkPacket(new String(streamid, ASCII), pktid,
+                    pkttime, datastart, dataend, data.array());
+        }
+
+        private ByteBuffer read(int len) throws IOException {
+            final ByteBuffer buf = ByteBuffer.allocate(len);
+            int n;
+            while (buf.hasRemaining()) {
+                if ((n = channel.read(buf, readPos)) < 0) {
+                    throw new EOFException("spill file truncated");
+                }
+                readPos += n;
+            }
+            buf.flip();
+            return buf;
+        }
+
+        private void write(DataLinkPacket packet) throws IOException {
+            final byte[] streamid = packet.getStreamid().getBytes(ASCII);
+            final ByteBuffer buf = ByteBuffer.allocate(4 + streamid.length +
+                    FIXED_SIZE + packet.getDatasize());
+            buf.putInt(streamid.length).put(streamid)
+                    .putLong(packet.getPktid()).putLong(packet.getPkttime())
+                    .putLong(packet.getDatastart())
+                    .putLong(packet.getDataend())
+                    .putInt(packet.getDatasize()).put(packet.getData());
+            buf.flip();
+            while (buf.hasRemaining()) {
+                writePos += channel.write(buf, writePos);
+            }
+            count++;
+        }
+    }
+
+    /** The subscription for the subscribers which are rejected */
+    private static final DataLinkFlow.Subscription REJECTED =
+            new DataLinkFlow.Subscription() {
+                @Override
+                public void cancel() {
+                }
+
+                @Override
+                public void request(long n) {
+                }
+            };
+
+    private final ArrayDeque<DataLinkPacket> buffer;
+    private boolean cancelFlag;
+    private final int capacity;
+    private boolean closeFlag;
+    private final DataLinkCollector collector;
+    private boolean completeFlag;
+    private long demand;
+    private long dropped;
+    /** The error from the subscription request or null if none */
+    private Throwable error;
+    private final Object lock = new Object();
+    private final Overflow overflow;
+    /** The error which stopped the reader or null if none */
+    private Throwable readError;
+    private Spill spill;
+    private File spillDir;
+    private DataLinkFlow.Subscriber<? super DataLinkPacket> subscriber;
+
+    /**
+     * Create the publisher.
+     * 
+     * @param collector
+     *            the collector, which should be configured but not started.
+     * @param capacity
+     *            the maximum number of packets in the buffer.
+     * @param overflow
+     *            the overflow policy used when the buffer is full.
+     */
+    public DataLinkPublisher(DataLinkCollector collector, int capacity,
+            Overflow overflow) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException(
+                    "Invalid capacity (" + capacity + ")");
+        }
+        this.collector = collector;
+        this.capacity = capacity;
+        this.overflow = overflow;
+        buffer = new ArrayDeque<DataLinkPacket>(capacity);
+    }
+
+    /**
+     * Stop collecting, the packets already collected are delivered before
+     * the subscriber is completed.
+     */
+    @Override
+    public void close() {
+        synchronized (lock) {
+            closeFlag = true;
+            lock.notifyAll();
+        }
+        collector.terminate();
+    }
+
+    /**
+     * Deliver the packets to the subscriber, this is run by the delivery
+     * thread.
+     */
+    private void deliver() {
+        DataLinkPacket packet = null;
+        Throwable error = null;
+        try {
+            for (;;) {
+                synchronized (lock) {
+                    while (!cancelFlag && (error = this.error) == null &&
+                            (demand == 0 || (packet = poll()) == null) &&
+                            !(completeFlag && isEmpty())) {
+                        lock.wait();
+                    }
+                    if (cancelFlag) {
+                        return;
+                    }
+                    if (packet == null) {
+                        if (error == null) {
+                            error = readError;
+                        }
+                        break;
+                    }
+                    if (demand != Long.MAX_VALUE) {
+                        demand--;
+                    }
+                    // there is room for the reader
+                    lock.notifyAll();
+                }
+                subscriber.onNext(packet);
+                packet = null;
+            }
+        } catch (InterruptedException ex) {
+            return;
+        } catch (IOException ex) {
+            error = ex;
+        } catch (RuntimeException ex) {
+            // the subscriber failed, the subscription is cancelled
+            new PacketSubscription().cancel();
+            return;
+        } finally {
+            collector.terminate();
+            synchronized (lock) {
+                if (spill != null) {
+                    spill.close();
+                }
+            }
+        }
+        if (error != null) {
+            subscriber.onError(error);
+        } else {
+            subscriber.onComplete();
+        }
+    }
+
+    /**
+     * Get the number of packets in the buffer.
+     * 
+     * @return the number of packets.
+     */
+    public int getBuffered() {
+        synchronized (lock) {
+            return buffer.size();
+        }
+    }
+
+    /**
+     * Get the number of packets dropped because the buffer was full.
+     * 
+     * @return the number of packets dropped.
+     */
+    public long getDropped() {
+        synchronized (lock) {
+            return dropped;
+        }
+    }
+
+    /**
+     * Get the number of packets waiting in the spill file.
+     * 
+     * @return the number of packets.
+     */
+    public int getSpilled() {
+        synchronized (lock) {
+            return (spill != null) ? spill.count : 0;
+        }
+    }
+
+    /**
+     * Determines if there are no packets waiting, the lock must be held.
+     * 
+     * @return true if there are no packets waiting, false otherwise.
+     */
+    private boolean isEmpty() {
+        return buffer.isEmpty() && (spill == null || spill.isEmpty());
+    }
+
+    /**
+     * Add a packet to the buffer using the overflow policy.
+     * 
+     * @param packet
+     *            the packet.
+     * @throws InterruptedException
+     *             if interrupted while blocked.
+     * @throws IOException
+     *             if the packet could not be spilled.
+     */
+    private void offer(DataLinkPacket packet)
+            throws InterruptedException, IOException {
+        synchronized (lock) {
+            switch (overflow) {
+            case BLOCK:
+                while (buffer.size() >= capacity && !cancelFlag &&
+                        !closeFlag) {
+                    lock.wait();
+                }
+                if (cancelFlag || closeFlag) {
+                    // the buffer may still be full
+                    return;
+                }
+                buffer.add(packet);
+                break;
+            case DROP_OLDEST:
+                if (buffer.size() >= capacity) {
+                    buffer.poll();
+                    dropped++;
+                }
+                buffer.add(packet);
+                break;
+            case SPILL:
+                // once spilling the packets must be spilled to keep the order
+                if (buffer.size() < capacity && spill.isEmpty()) {
+                    buffer.add(packet);
+                } else {
+                    spill.write(packet);
+                }
+                break;
+            }
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Get the next packet and refill the buffer from the spill file, the lock
+     * must be held.
+     * 
+     * @return the packet or null if none.
+     * @throws IOException
+     *             if the spill file could not be read.
+     */
+    private DataLinkPacket poll() throws IOException {
+        final DataLinkPacket packet = buffer.poll();
+        if (spill != null) {
+            while (buffer.size() < capacity && !spill.isEmpty()) {
+                buffer.add(spill.read());
+            }
+        }
+        return packet;
+    }
+
+    /**
+     * Collect the packets into the buffer, this is run by the reader thread.
+     */
+    private void read() {
+        DL_RETVAL retVal = DL_RETVAL._NO_ERROR;
+        Throwable error = null;
+        try {
+            while (!collector.isTerminated()) {
+                retVal = collector.collect(false);
+                if (retVal.isError() || collector.isTerminated()) {
+                    break;
+                }
+                final DLPacket dlpacket = collector.getPacket();
+                if (dlpacket.getPktid() != 0) {
+                    offer(new DataLinkPacket(dlpacket,
+                            collector.getReadBuffer()));
+                }
+            }
+            if (retVal.isError()) {
+                error = new IOException("collect returned " + retVal);
+            }
+        } catch (InterruptedException ex) {
+            // the publisher is closed
+        } catch (IOException ex) {
+            error = ex;
+        } finally {
+            collector.close();
+            synchronized (lock) {
+                readError = error;
+                completeFlag = true;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Set the directory for the spill file.
+     * 
+     * @param spillDir
+     *            the directory or null for the default temporary directory.
+     */
+    public void setSpillDirectory(File spillDir) {
+        this.spillDir = spillDir;
+    }
+
+    @Override
+    public void subscribe(
+            DataLinkFlow.Subscriber<? super DataLinkPacket> subscriber) {
+        final PacketSubscription subscription = new PacketSubscription();
+        synchronized (lock) {
+            if (this.subscriber != null) {
+                subscriber.onSubscribe(REJECTED);
+                subscriber.onError(new IllegalStateException(
+                        "Only one subscriber is supported"));
+                return;
+            }
+            this.subscriber = subscriber;
+            if (overflow == Overflow.SPILL) {
+                try {
+                    spill = new Spill(spillDir);
+                } catch (IOException ex) {
+                    this.subscriber = null;
+                    subscriber.onSubscribe(REJECTED);
+                    subscriber.onError(ex);
+                    return;
+                }
+            }
+        }
+        subscriber.onSubscribe(subscription);
+        final String name = DataLinkPublisher.class.getSimpleName();
+        final Thread reader = new Thread(name + "-read") {
+            @Override
+            public void run() {
+                read();
+            }
+        };
+        final Thread delivery = new Thread(name + "-deliver") {
+            @Override
+            public void run() {
+                deliver();
+            }
+        };
+        reader.setDaemon(true);
+        delivery.setDaemon(true);
+        reader.start();
+        delivery.start();
+    }
+}
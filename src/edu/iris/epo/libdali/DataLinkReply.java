@@ -0,0 +1,156 @@
+/**
+ *    Copyright (C) 2017 IRIS (http://www.iris.edu/hq/).
+ *    
+ *    All inquiries should be sent to John Taber <taber@iris.edu>.
+ *    
+ *    This file is part of Jlibdali.
+ *
+ *    Jlibdali is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    Jlibdali is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with Jlibdali.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.iris.epo.libdali;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+import edu.iris.epo.libdali.DataLinkClient.DL_RETVAL;
+
+/**
+ * The reply to a command sent on a {@link DataLinkConnection}, which is
+ * completed on the I/O thread with the same DataLink return value that the
+ * blocking {@link DataLinkClient} would return, <code>INVALIDRESP</code> if
+ * the server replied with an error.
+ * <p>
+ * Unlike the read buffer of the connection, the reply keeps a copy of the
+ * response so it may be used on any thread once the reply is completed. For
+ * a packet the header is available from {@link #getPacket()}, for a command
+ * reply the status and value are available from {@link #getStatus()} and
+ * {@link #getValue()} and the message, such as the INFO XML or the error
+ * message, from {@link #getMessage()}.
+ * <p>
+ * The reply may also be completed by the caller, for example by a timeout,
+ * the response of the connection is then not available.
+ * 
+ * @author kevin
+ */
+public class DataLinkReply extends CompletableFuture<DL_RETVAL>
+        implements DataLinkConst {
+    /** The response data or null if none */
+    private byte[] data;
+    /** The packet header or null if not a packet */
+    private DLPacket packet;
+    private String status;
+    private String value;
+
+    /**
+     * Get the response data.
+     * 
+     * @return the packet data or the message bytes or null if no response
+     *         was received.
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * Get the response data as text.
+     * 
+     * @return the message, such as the INFO XML or the error message, or null
+     *         if no response was received.
+     */
+    public String getMessage() {
+        return data != null ? new String(data, ASCII) : null;
+    }
+
+    /**
+     * Get the packet header of a READ reply.
+     * 
+     * @return the packet header or null if the response was not a packet.
+     */
+    public DLPacket getPacket() {
+        return packet;
+    }
+
+    /**
+     * Get the reply status.
+     * 
+     * @return the status, for example "OK", "ERROR" or "INFO", or null if the
+     *         response was not a command reply.
+     */
+    public String getStatus() {
+        return status;
+    }
+
+    /**
+     * Get the reply value.
+     * 
+     * @return the value, for example the packet ID of a POSITION reply, or
+     *         null if the response was not a command reply.
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * Get the reply value as a long.
+     * 
+     * @return the value as a long or <code>Long.MIN_VALUE</code> if none.
+     */
+    public long getValueLong() {
+        try {
+            return Long.parseLong(value);
+        } catch (Exception ex) {
+        }
+        return Long.MIN_VALUE;
+    }
+
+    /**
+     * Set the response before the reply is completed.
+     * 
+     * @param packet
+     *            the packet header or null if not a packet.
+     * @param status
+     *            the reply status or null if not a command reply.
+     * @param value
+     *            the reply value or null if not a command reply.
+     * @param buf
+     *            the read buffer.
+     * @param len
+     *            the number of bytes read.
+     */
+    void setResponse(DLPacket packet, String status, String value,
+            byte[] buf, int len) {
+        if (packet != null) {
+            final DLPacket copy = new DLPacket();
+            final Streamid streamid = packet.getStreamIndex() >= 0
+                    ? StreamidTable.getInstance()
+                            .getStreamid(packet.getStreamIndex())
+                    : null;
+            if (streamid != null) {
+                copy.setStreamid(streamid);
+            } else {
+                copy.setStreamid(packet.getStreamid());
+            }
+            copy.setPktid(packet.getPktid());
+            copy.setPkttime(packet.getPkttime());
+            copy.setDatastart(packet.getDatastart());
+            copy.setDataend(packet.getDataend());
+            copy.setDatasize(packet.getDatasize());
+            this.packet = copy;
+        }
+        this.status = status;
+        this.value = value;
+        data = Arrays.copyOf(buf, len);
+    }
+}
@@ -0,0 +1,234 @@
+/**
+ *    Copyright (C) 2017 IRIS (http://www.iris.edu/hq/).
+ *    
+ *    All inquiries should be sent to John Taber <taber@iris.edu>.
+ *    
+ *    This file is part of Jlibdali.
+ *
+ *    Jlibdali is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    Jlibdali is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with Jlibdali.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.iris.epo.libdali;
+
+/**
+ * In-memory DataLink packet ring which keeps the most recent packets in
+ * preallocated slots.
+ * <p>
+ * Packet IDs start at 1 and increase by one for each packet written, once the
+ * ring is full the oldest packet is overwritten. All methods are thread safe.
+ * 
+ * @author kevin
+ * @see DataLinkServer
+ */
+public class DataLinkRing implements DataLinkConst {
+    private final int capacity;
+    private final long[] dataends;
+    private final byte[][] datas;
+    private final int[] datasizes;
+    private final long[] datastarts;
+    /** The latest packet ID or 0 if empty */
+    private long latest;
+    private final int maxpktsize;
+    private final long[] pkttimes;
+    private final String[] streamids;
+
+    /**
+     * Create the ring.
+     * 
+     * @param capacity
+     *            the maximum number of packets.
+     * @param maxpktsize
+     *            the maximum packet size.
+     */
+    public DataLinkRing(int capacity, int maxpktsize) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException(
+                    "Invalid capacity (" + capacity + ")");
+        }
+        if (maxpktsize <= 0 || maxpktsize > MAXPACKETSIZE) {
+            throw new IllegalArgumentException(
+                    "Invalid packet size (" + maxpktsize + ")");
+        }
+        this.capacity = capacity;
+        this.maxpktsize = maxpktsize;
+        dataends = new long[capacity];
+        datas = new byte[capacity][];
+        datasizes = new int[capacity];
+        datastarts = new long[capacity];
+        pkttimes = new long[capacity];
+        streamids = new String[capacity];
+    }
+
+    /**
+     * Find the first packet with a data end time after the data time.
+     * 
+     * @param datatime
+     *            the data time in microseconds.
+     * @return the packet ID or 0 if none.
+     */
+    public synchronized long findAfter(long datatime) {
+        for (long pktid = getEarliest(); pktid != 0 &&
+                pktid <= latest; pktid++) {
+            if (dataends[index(pktid)] > datatime) {
+                return pktid;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Get the maximum number of packets.
+     * 
+     * @return the maximum number of packets.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Get the earliest packet ID.
+     * 
+     * @return the earliest packet ID or 0 if empty.
+     */
+    public synchronized long getEarliest() {
+        if (latest == 0) {
+            return 0;
+        }
+        return Math.max(1, latest - capacity + 1);
+    }
+
+    /**
+     * Get the latest packet ID.
+     * 
+     * @return the latest packet ID or 0 if empty.
+     */
+    public synchronized long getLatest() {
+        return latest;
+    }
+
+    /**
+     * Get the maximum packet size.
+     * 
+     * @return the maximum packet size.
+     */
+    public int getMaxPktSize() {
+        return maxpktsize;
+    }
+
+    /**
+     * Get the stream ID of the packet.
+     * 
+     * @param pktid
+     *            the packet ID.
+     * @return the stream ID or null if the packet is not in the ring.
+     */
+    public synchronized String getStreamid(long pktid) {
+        if (!isPacket(pktid)) {
+            return null;
+        }
+        return streamids[index(pktid)];
+    }
+
+    /**
+     * Get the slot index for the packet ID.
+     * 
+     * @param pktid
+     *            the packet ID.
+     * @return the slot index.
+     */
+    private int index(long pktid) {
+        return (int) ((pktid - 1) % capacity);
+    }
+
+    /**
+     * Determines if the packet is in the ring.
+     * 
+     * @param pktid
+     *            the packet ID.
+     * @return true if the packet is in the ring, false otherwise.
+     */
+    public synchronized boolean isPacket(long pktid) {
+        return pktid > 0 && pktid <= latest && pktid > latest - capacity;
+    }
+
+    /**
+     * Read a packet from the ring.
+     * 
+     * @param pktid
+     *            the packet ID.
+     * @param dlpacket
+     *            the DataLink packet for the packet header values.
+     * @param data
+     *            the buffer for the packet data, which must be at least the
+     *            maximum packet size.
+     * @return true if the packet was read, false if the packet is not in the
+     *         ring.
+     */
+    public synchronized boolean read(long pktid, DLPacket dlpacket,
+            byte[] data) {
+        if (!isPacket(pktid)) {
+            return false;
+        }
+        final int index = index(pktid);
+        dlpacket.setStreamid(streamids[index]);
+        dlpacket.setPktid(pktid);
+        dlpacket.setPkttime(pkttimes[index]);
+        dlpacket.setDatastart(datastarts[index]);
+        dlpacket.setDataend(dataends[index]);
+        dlpacket.setDatasize(datasizes[index]);
+        System.arraycopy(datas[index], 0, data, 0, datasizes[index]);
+        return true;
+    }
+
+    /**
+     * Write a packet to the ring.
+     * 
+     * @param streamid
+     *            the stream ID of packet.
+     * @param datastart
+     *            the Unix/POSIX epoch start time in microseconds.
+     * @param dataend
+     *            the Unix/POSIX epoch end time in microseconds.
+     * @param data
+     *            the packet data buffer.
+     * @param off
+     *            the start offset in the packet data buffer.
+     * @param len
+     *            the Length of data in bytes.
+     * @return the packet ID.
+     * @throws IllegalArgumentException
+     *             if the packet is larger than the maximum packet size.
+     */
+    public synchronized long write(String streamid, long datastart,
+            long dataend, byte[] data, int off, int len) {
+        if (len < 0 || len > maxpktsize) {
+            throw new IllegalArgumentException(
+                    "Invalid data size (" + len + ")");
+        }
+        final long pktid = latest + 1;
+        final int index = index(pktid);
+        if (datas[index] == null) {
+            datas[index] = new byte[maxpktsize];
+        }
+        streamids[index] = streamid;
+        pkttimes[index] =
+                DataLinkUtils.getTimeMicroseconds(System.currentTimeMillis());
+        datastarts[index] = datastart;
+        dataends[index] = dataend;
+        datasizes[index] = len;
+        System.arraycopy(data, off, datas[index], 0, len);
+        latest = pktid;
+        return pktid;
+    }
+}
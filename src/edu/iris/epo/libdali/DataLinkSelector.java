@@ -0,0 +1,203 @@
+/**
+ *    Copyright (C) 2017 IRIS (http://www.iris.edu/hq/).
+ *    
+ *    All inquiries should be sent to John Taber <taber@iris.edu>.
+ *    
+ *    This file is part of Jlibdali.
+ *
+ *    Jlibdali is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    Jlibdali is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with Jlibdali.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.iris.epo.libdali;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+
+/**
+ * DataLink selector, an I/O thread which drives any number of non-blocking
+ * {@link DataLinkConnection}s.
+ * <p>
+ * A single selector can serve hundreds of connections; if more throughput is
+ * needed several selectors may be started and the connections distributed
+ * between them.
+ * 
+ * @author kevin
+ */
+public class DataLinkSelector implements Closeable, Runnable {
+    /** The select timeout in milliseconds used to check for I/O timeouts */
+    private static final long SELECT_TIMEOUT = 100;
+
+    private final IDataLinkLogger logger;
+    private final String name;
+    /** The connections that need to be registered or flushed */
+    private final ConcurrentLinkedQueue<DataLinkConnection> pending =
+            new ConcurrentLinkedQueue<DataLinkConnection>();
+    private Selector selector;
+    private volatile boolean terminateFlag;
+    private Thread thread;
+
+    /**
+     * Create the DataLink selector.
+     * 
+     * @param name
+     *            the name of the I/O thread.
+     * @param logger
+     *            the logger or null for the default.
+     */
+    public DataLinkSelector(String name, IDataLinkLogger logger) {
+        if (logger == null) {
+            logger = DataLinkUtils.createLogger();
+        }
+        this.logger = logger;
+        this.name = name;
+    }
+
+    /**
+     * Close the selector and all of its connections.
+     */
+    @Override
+    public void close() {
+        terminateFlag = true;
+        final Selector selector = this.selector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        final Thread thread = this.thread;
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Determines if the current thread is the I/O thread.
+     * 
+     * @return true if the current thread is the I/O thread, false otherwise.
+     */
+    public boolean isIoThread() {
+        return thread == Thread.currentThread();
+    }
+
+    /**
+     * Determines if this selector is running.
+     * 
+     * @return true if running, false otherwise.
+     */
+    public boolean isRunning() {
+        return thread != null && !terminateFlag;
+    }
+
+    private void log(Level level, String format, Object... args) {
+        logger.log(level, "[" + name + "] " + String.format(format, args));
+    }
+
+    /**
+     * Process the connections that need to be registered or flushed.
+     */
+    private void processPending() {
+        DataLinkConnection conn;
+        while ((conn = pending.poll()) != null) {
+            conn.handlePending(selector);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!terminateFlag) {
+                processPending();
+                selector.select(SELECT_TIMEOUT);
+                final Iterator<SelectionKey> it =
+                        selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    final SelectionKey key = it.next();
+                    it.remove();
+                    final DataLinkConnection conn =
+                            (DataLinkConnection) key.attachment();
+                    try {
+                        conn.handleReady(key);
+                    } catch (CancelledKeyException ex) {
+                        // connection was closed while processing
+                    }
+                }
+                final long now = System.currentTimeMillis();
+                for (SelectionKey key : selector.keys()) {
+                    if (key.isValid()) {
+                        ((DataLinkConnection) key.attachment()).checkTimeout(
+                                now);
+                    }
+                }
+            }
+        } catch (Exception ex) {
+            log(Level.SEVERE, "run: %s", ex.toString());
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                ((DataLinkConnection) key.attachment()).close();
+            }
+            processPending();
+            DataLinkClient.closeQuietly(selector);
+            terminateFlag = true;
+        }
+    }
+
+    /**
+     * Start the I/O thread.
+     * 
+     * @return true if success, false otherwise.
+     */
+    public synchronized boolean start() {
+        if (thread != null) {
+            return !terminateFlag;
+        }
+        try {
+            selector = Selector.open();
+        } catch (IOException ex) {
+            log(Level.WARNING, "start: %s", ex.toString());
+            return false;
+        }
+        final Thread thread = new Thread(this, name);
+        thread.setDaemon(true);
+        this.thread = thread;
+        thread.start();
+        return true;
+    }
+
+    /**
+     * Submit the connection so that it is registered or flushed on the I/O
+     * thread.
+     * 
+     * @param conn
+     *            the connection.
+     * @return true if submitted, false if this selector is not running.
+     */
+    boolean submit(DataLinkConnection conn) {
+        if (!isRunning()) {
+            return false;
+        }
+        pending.add(conn);
+        if (!isIoThread()) {
+            selector.wakeup();
+        }
+        return true;
+    }
+}
@@ -0,0 +1,806 @@
+/**
+ *    Copyright (C) 2017 IRIS (http://www.iris.edu/hq/).
+ *    
+ *    All inquiries should be sent to John Taber <taber@iris.edu>.
+ *    
+ *    This file is part of Jlibdali.
+ *
+ *    Jlibdali is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    Jlibdali is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with Jlibdali.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.iris.epo.libdali;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Embedded DataLink server which serves a {@link DataLinkRing} from a single
+ * non-blocking I/O thread.
+ * <p>
+ * The server implements the ID, INFO, POSITION, MATCH, REJECT, READ, STREAM,
+ * ENDSTREAM and WRITE commands and is intended as a fixture for tests and
+ * benchmarks rather than as a replacement for a ringserver.
+ * 
+ * @author kevin
+ */
+public class DataLinkServer implements Closeable, DataLinkConst, Runnable {
+    /** A connected client */
+    private final class Session {
+        private final SocketChannel channel;
+        private String clientid = EMPTY;
+        private final byte[] data = new byte[MAXPACKETSIZE];
+        private final DLPacket dlpacket = new DLPacket();
+        private final ByteBuffer in = ByteBuffer.allocate(MAX_FRAME);
+        private final SelectionKey key;
+        private Pattern match;
+        /** The next packet ID to stream or -1 if not positioned */
+        private long next = -1;
+        private final ByteBuffer out = ByteBuffer.allocate(MAX_FRAME * 4);
+        private Pattern reject;
+        /** The selected state for each stream ID */
+        private final Map<String, Boolean> selected =
+                new HashMap<String, Boolean>();
+        private boolean streamingFlag;
+
+        private Session(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        private void close() {
+            key.cancel();
+            DataLinkClient.closeQuietly(channel);
+            sessions.remove(this);
+        }
+
+        /**
+         * Fill the output buffer with the streamed packets.
+         */
+        private void fill() {
+            long latest;
+            String streamid;
+            while (streamingFlag && out.remaining() >= MAX_FRAME * 2 &&
+                    next <= (latest = ring.getLatest())) {
+                // skip the packets which have been overwritten
+                next = Math.max(next, latest - ring.getCapacity() + 1);
+                streamid = ring.getStreamid(next);
+                if (streamid != null && isSelected(streamid)) {
+                    putPacket(next);
+                }
+                next++;
+            }
+        }
+
+        /**
+         * Write the output buffer to the client.
+         * 
+         * @throws IOException
+         *             if an I/O error occurs.
+         */
+        private void flush() throws IOException {
+            if (out.position() == 0) {
+                return;
+            }
+            out.flip();
+            channel.write(out);
+            out.compact();
+            int ops = SelectionKey.OP_READ;
+            if (out.position() != 0) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            if (key.interestOps() != ops) {
+                key.interestOps(ops);
+            }
+        }
+
+        /**
+         * Handle a command.
+         * 
+         * @param header
+         *            the header.
+         * @param tokens
+         *            the header tokens.
+         * @param off
+         *            the offset of the data in the input buffer.
+         * @param len
+         *            the length of the data.
+         */
+        private void handleCommand(String header, String[] tokens, int off,
+                int len) {
+            final String command = tokens[0];
+            if (command.equals("WRITE")) {
+                handleWrite(tokens, off, len);
+            } else if (command.equals("READ")) {
+                handleRead(tokens);
+            } else if (command.equals("STREAM")) {
+                if (next < 0) {
+                    next = ring.getLatest() + 1;
+                }
+                streamingFlag = true;
+            } else if (command.equals("ENDSTREAM")) {
+                streamingFlag = false;
+                putFrame("ENDSTREAM", null);
+            } else if (command.equals("POSITION")) {
+                handlePosition(tokens);
+            } else if (command.equals("MATCH") ||
+                    command.equals("REJECT")) {
+                handleMatch(command, new String(in.array(), off, len, ASCII));
+            } else if (command.equals("ID")) {
+                clientid = header.substring(command.length()).trim();
+                putFrame("ID DataLink " + DataLinkClient.VERSION +
+                        " :: DLPROTO:1.0 PACKETSIZE:" + ring.getMaxPktSize() +
+                        " WRITE", null);
+            } else if (command.equals("INFO")) {
+                handleInfo(tokens);
+            } else {
+                putError("Unrecognized command: " + command);
+            }
+        }
+
+        private void handleInfo(String[] tokens) {
+            if (tokens.length < 2) {
+                putError("INFO requires a type");
+                return;
+            }
+            final String infotype = tokens[1];
+            final StringBuilder sb = new StringBuilder();
+            sb.append("<DataLink Version=\"").append(DataLinkClient.VERSION)
+                    .append("\" ServerID=\"").append(name).append("\">");
+            if (infotype.equals("STATUS")) {
+                sb.append("<Status RingSize=\"").append(ring.getCapacity())
+                        .append("\" PacketSize=\"")
+                        .append(ring.getMaxPktSize())
+                        .append("\" EarliestPacketID=\"")
+                        .append(ring.getEarliest())
+                        .append("\" LatestPacketID=\"")
+                        .append(ring.getLatest())
+                        .append("\" TotalConnections=\"")
+                        .append(sessions.size()).append("\"/>");
+            } else if (infotype.equals("STREAMS")) {
+                final Map<String, long[]> streams = getStreams(
+                        tokens.length > 2 ? Pattern.compile(tokens[2]) : null);
+                sb.append("<StreamList TotalStreams=\"").append(streams.size())
+                        .append("\">");
+                for (Map.Entry<String, long[]> entry : streams.entrySet()) {
+                    sb.append("<Stream Name=\"").append(entry.getKey())
+                            .append("\" EarliestPacketID=\"")
+                            .append(entry.getValue()[0])
+                            .append("\" LatestPacketID=\"")
+                            .append(entry.getValue()[1]).append("\"/>");
+                }
+                sb.append("</StreamList>");
+            } else if (infotype.equals("CONNECTIONS")) {
+                sb.append("<ConnectionList TotalConnections=\"")
+                        .append(sessions.size()).append("\">");
+                for (Session session : sessions) {
+                    sb.append("<Connection Host=\"")
+                            .append(getRemoteAddress(session.channel))
+                            .append("\" ClientID=\"").append(session.clientid)
+                            .append("\" PacketID=\"").append(session.next)
+                            .append("\"/>");
+                }
+                sb.append("</ConnectionList>");
+            } else {
+                putError("Unrecognized INFO request type: " + infotype);
+                return;
+            }
+            sb.append("</DataLink>");
+            byte[] xml = sb.toString().getBytes(ASCII);
+            if (xml.length >= MAXPACKETSIZE) {
+                xml = "<DataLink/>".getBytes(ASCII);
+            }
+            putFrame("INFO " + infotype + " " + xml.length, xml);
+        }
+
+        private void handleMatch(String command, String expression) {
+            Pattern pattern = null;
+            if (!expression.isEmpty()) {
+                try {
+                    pattern = Pattern.compile(expression);
+                } catch (PatternSyntaxException ex) {
+                    putError(command + " expression is invalid: " +
+                            ex.getDescription());
+                    return;
+                }
+            }
+            if (command.equals("MATCH")) {
+                match = pattern;
+            } else {
+                reject = pattern;
+            }
+            selected.clear();
+            int count = 0;
+            for (String streamid : getStreams(null).keySet()) {
+                if (isSelected(streamid)) {
+                    count++;
+                }
+            }
+            putReply("OK", count, count + " streams selected after " +
+                    command.toLowerCase());
+        }
+
+        private void handlePosition(String[] tokens) {
+            if (tokens.length < 3) {
+                putError("POSITION requires 2 or 3 arguments");
+                return;
+            }
+            long pktid;
+            if (tokens[1].equals("AFTER")) {
+                final long datatime = Long.parseLong(tokens[2]);
+                pktid = ring.findAfter(datatime);
+                if (pktid == 0) {
+                    putError("No packet found after " + datatime);
+                    return;
+                }
+                next = pktid;
+            } else if (!tokens[1].equals("SET")) {
+                putError("Unrecognized POSITION type: " + tokens[1]);
+                return;
+            } else if (tokens[2].equals("EARLIEST")) {
+                pktid = ring.getEarliest();
+                next = Math.max(pktid, 1);
+            } else if (tokens[2].equals("LATEST")) {
+                pktid = ring.getLatest();
+                next = pktid + 1;
+            } else {
+                pktid = Long.parseLong(tokens[2]);
+                final long pkttime =
+                        (tokens.length > 3) ? Long.parseLong(tokens[3]) : 0;
+                if (!ring.read(pktid, dlpacket, data)) {
+                    putError("Packet " + pktid + " not found");
+                    return;
+                }
+                if (tokens.length > 3 && dlpacket.getPkttime() != pkttime) {
+                    putError("Packet " + pktid + " time does not match");
+                    return;
+                }
+                // the next packet streamed is the one after the position
+                next = pktid + 1;
+            }
+            putReply("OK", pktid, "Positioned to packet ID " + pktid);
+        }
+
+        private void handleRead(String[] tokens) {
+            final long pktid = Long.parseLong(tokens[1]);
+            if (!putPacket(pktid)) {
+                putError("Packet " + pktid + " not found");
+            }
+        }
+
+        private void handleWrite(String[] tokens, int off, int len) {
+            if (len > ring.getMaxPktSize()) {
+                putError("Packet size (" + len + ") is too large");
+                return;
+            }
+            final long pktid = ring.write(tokens[1],
+                    Long.parseLong(tokens[2]), Long.parseLong(tokens[3]),
+                    in.array(), off, len);
+            if (tokens[4].indexOf('A') >= 0) {
+                putFrame("OK " + pktid + " 0", null);
+            }
+        }
+
+        /**
+         * Determines if there are packets to stream.
+         * 
+         * @return true if there are packets to stream, false otherwise.
+         */
+        private boolean isPending() {
+            return streamingFlag && next <= ring.getLatest();
+        }
+
+        private boolean isSelected(String streamid) {
+            if (match == null && reject == null) {
+                return true;
+            }
+            Boolean value = selected.get(streamid);
+            if (value == null) {
+                value = (match == null || match.matcher(streamid).find()) &&
+                        (reject == null || !reject.matcher(streamid).find());
+                selected.put(streamid, value);
+            }
+            return value;
+        }
+
+        /**
+         * Process the commands in the input buffer.
+         * 
+         * @return true if success, false if the session should be closed.
+         */
+        private boolean process() {
+            in.flip();
+            try {
+                while (in.remaining() >= 3 &&
+                        out.remaining() >= MAX_FRAME * 2) {
+                    final int start = in.position();
+                    final byte[] buf = in.array();
+                    if (buf[start] != 'D' || buf[start + 1] != 'L') {
+                        log(Level.WARNING, "process: invalid preamble from %s",
+                                getRemoteAddress(channel));
+                        return false;
+                    }
+                    final int headerlen = buf[start + 2] & 0xFF;
+                    if (in.remaining() < 3 + headerlen) {
+                        break;
+                    }
+                    final String header =
+                            new String(buf, start + 3, headerlen, ASCII);
+                    final String[] tokens = header.trim().split(RE_WS);
+                    final int datasize = getDatasize(tokens);
+                    if (datasize < 0 || datasize > MAXPACKETSIZE) {
+                        log(Level.WARNING, "process: invalid header from %s: %s",
+                                getRemoteAddress(channel), header);
+                        return false;
+                    }
+                    if (in.remaining() < 3 + headerlen + datasize) {
+                        break;
+                    }
+                    try {
+                        handleCommand(header, tokens, start + 3 + headerlen,
+                                datasize);
+                    } catch (RuntimeException ex) {
+                        putError("Invalid command: " + header);
+                    }
+                    in.position(start + 3 + headerlen + datasize);
+                }
+            } finally {
+                in.compact();
+            }
+            return true;
+        }
+
+        private void putError(String message) {
+            putReply("ERROR", 0, message);
+        }
+
+        /**
+         * Put a frame in the output buffer.
+         * 
+         * @param header
+         *            the header.
+         * @param data
+         *            the data or null if none.
+         */
+        private void putFrame(String header, byte[] data) {
+            final byte[] buf = out.array();
+            final int start = out.position();
+            final int end = DataLinkEncoder.putAscii(buf, start + 3, header);
+            buf[start] = 'D';
+            buf[start + 1] = 'L';
+            buf[start + 2] = (byte) (end - start - 3);
+            out.position(end);
+            if (data != null) {
+                out.put(data);
+            }
+        }
+
+        /**
+         * Put a packet in the output buffer.
+         * 
+         * @param pktid
+         *            the packet ID.
+         * @return true if the packet was found, false otherwise.
+         */
+        private boolean putPacket(long pktid) {
+            if (!ring.read(pktid, dlpacket, data)) {
+                return false;
+            }
+            // "PACKET streamid pktid pkttime datastart dataend datasize"
+            final byte[] buf = out.array();
+            final int start = out.position();
+            int pos = start + 3;
+            pos = DataLinkEncoder.putAscii(buf, pos, "PACKET ");
+            pos = DataLinkEncoder.putAscii(buf, pos, dlpacket.getStreamid());
+            buf[pos++] = ' ';
+            pos = DataLinkEncoder.putLong(buf, pos, pktid);
+            buf[pos++] = ' ';
+            pos = DataLinkEncoder.putLong(buf, pos, dlpacket.getPkttime());
+            buf[pos++] = ' ';
+            pos = DataLinkEncoder.putLong(buf, pos, dlpacket.getDatastart());
+            buf[pos++] = ' ';
+            pos = DataLinkEncoder.putLong(buf, pos, dlpacket.getDataend());
+            buf[pos++] = ' ';
+            pos = DataLinkEncoder.putLong(buf, pos, dlpacket.getDatasize());
+            buf[start] = 'D';
+            buf[start + 1] = 'L';
+            buf[start + 2] = (byte) (pos - start - 3);
+            out.position(pos);
+            out.put(data, 0, dlpacket.getDatasize());
+            return true;
+        }
+
+        private void putReply(String status, long value, String message) {
+            final byte[] data = message.getBytes(ASCII);
+            putFrame(status + " " + value + " " + data.length, data);
+        }
+
+        /**
+         * Stream the packets and write the output buffer until the client
+         * can take no more or there are no more packets.
+         * 
+         * @throws IOException
+         *             if an I/O error occurs.
+         */
+        private void stream() throws IOException {
+            for (int count = 0; count < MAX_FLUSH; count++) {
+                fill();
+                flush();
+                if (out.position() != 0 || !isPending()) {
+                    break;
+                }
+            }
+        }
+
+        /**
+         * Read from the client.
+         * 
+         * @return true if success, false if the session should be closed.
+         * @throws IOException
+         *             if an I/O error occurs.
+         */
+        private boolean read() throws IOException {
+            if (channel.read(in) < 0) {
+                return false;
+            }
+            return process();
+        }
+    }
+
+    /** The maximum frame size */
+    private static final int MAX_FRAME = 3 + MAXHEADERLEN + MAXPACKETSIZE;
+
+    /** The maximum number of times a session is flushed per select */
+    private static final int MAX_FLUSH = 16;
+
+    /** The select timeout in milliseconds */
+    private static final long SELECT_TIMEOUT = 100;
+
+    /**
+     * Get the size of the data following the header.
+     * 
+     * @param tokens
+     *            the header tokens.
+     * @return the size of the data or -1 if invalid.
+     */
+    private static int getDatasize(String[] tokens) {
+        try {
+            final String command = tokens[0];
+            if (command.equals("WRITE")) {
+                return (tokens.length == 6) ? Integer.parseInt(tokens[5]) : -1;
+            }
+            if (command.equals("MATCH") || command.equals("REJECT")) {
+                return (tokens.length == 2) ? Integer.parseInt(tokens[1]) : -1;
+            }
+            return 0;
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    private static String getRemoteAddress(SocketChannel channel) {
+        try {
+            return String.valueOf(channel.getRemoteAddress());
+        } catch (IOException ex) {
+            return "unknown";
+        }
+    }
+
+    private volatile boolean closeConnectionsFlag;
+    private final IDataLinkLogger logger;
+    private final String name;
+    private final DataLinkRing ring;
+    private Selector selector;
+    private ServerSocketChannel server;
+    private final List<Session> sessions = new ArrayList<Session>();
+    private volatile boolean terminateFlag;
+    private Thread thread;
+
+    /**
+     * Create the DataLink server.
+     * 
+     * @param name
+     *            the name of the server and its I/O thread.
+     * @param ring
+     *            the packet ring.
+     * @param logger
+     *            the logger or null for the default.
+     */
+    public DataLinkServer(String name, DataLinkRing ring,
+            IDataLinkLogger logger) {
+        if (logger == null) {
+            logger = DataLinkUtils.createLogger();
+        }
+        this.logger = logger;
+        this.name = name;
+        this.ring = ring;
+    }
+
+    /**
+     * Accept a client connection.
+     * 
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private void accept() throws IOException {
+        final SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        final SelectionKey key =
+                channel.register(selector, SelectionKey.OP_READ);
+        final Session session = new Session(channel, key);
+        key.attach(session);
+        sessions.add(session);
+        log(Level.FINE, "accept: %s", getRemoteAddress(channel));
+    }
+
+    /**
+     * Close the server and all of its connections.
+     */
+    @Override
+    public void close() {
+        terminateFlag = true;
+        final Selector selector = this.selector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        final Thread thread = this.thread;
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Close all client connections while leaving the server running. This
+     * may be used to test client recovery.
+     */
+    public void closeConnections() {
+        closeConnectionsFlag = true;
+        final Selector selector = this.selector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Get the address the server is listening on.
+     * 
+     * @return the address or null if not started.
+     */
+    public InetSocketAddress getAddress() {
+        final ServerSocketChannel server = this.server;
+        if (server == null) {
+            return null;
+        }
+        return (InetSocketAddress) server.socket().getLocalSocketAddress();
+    }
+
+    /**
+     * Get the packet ring.
+     * 
+     * @return the packet ring.
+     */
+    public DataLinkRing getRing() {
+        return ring;
+    }
+
+    /**
+     * Get the earliest and latest packet ID for each stream in the ring.
+     * 
+     * @param pattern
+     *            the stream ID pattern or null for all streams.
+     * @return the earliest and latest packet ID for each stream.
+     */
+    private Map<String, long[]> getStreams(Pattern pattern) {
+        final Map<String, long[]> streams =
+                new LinkedHashMap<String, long[]>();
+        String streamid;
+        long[] ids;
+        for (long pktid = ring.getEarliest(); pktid != 0 &&
+                pktid <= ring.getLatest(); pktid++) {
+            if ((streamid = ring.getStreamid(pktid)) == null ||
+                    (pattern != null && !pattern.matcher(streamid).find())) {
+                continue;
+            }
+            if ((ids = streams.get(streamid)) == null) {
+                streams.put(streamid, new long[] { pktid, pktid });
+            } else {
+                ids[1] = pktid;
+            }
+        }
+        return streams;
+    }
+
+    /**
+     * Determines if any session has packets to stream and room to send them.
+     * 
+     * @return true if a session has packets to stream, false otherwise.
+     */
+    private boolean isPending() {
+        for (Session session : sessions) {
+            if (session.out.position() == 0 && session.isPending()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Determines if the server is running.
+     * 
+     * @return true if running, false otherwise.
+     */
+    public boolean isRunning() {
+        return thread != null && !terminateFlag;
+    }
+
+    private void log(Level level, String format, Object... args) {
+        logger.log(level, "[" + name + "] " + String.format(format, args));
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!terminateFlag) {
+                if (closeConnectionsFlag) {
+                    closeConnectionsFlag = false;
+                    for (Session session : sessions
+                            .toArray(new Session[sessions.size()])) {
+                        session.close();
+                    }
+                }
+                if (isPending()) {
+                    selector.selectNow();
+                } else {
+                    selector.select(SELECT_TIMEOUT);
+                }
+                final Iterator<SelectionKey> it =
+                        selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    final SelectionKey key = it.next();
+                    it.remove();
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else if (key.isReadable()) {
+                            final Session session =
+                                    (Session) key.attachment();
+                            if (!session.read()) {
+                                session.close();
+                            }
+                        }
+                    } catch (CancelledKeyException ex) {
+                        // session was closed while processing
+                    } catch (IOException ex) {
+                        log(Level.FINE, "run: %s", ex.toString());
+                        if (key.attachment() instanceof Session) {
+                            ((Session) key.attachment()).close();
+                        }
+                    }
+                }
+                // stream the new packets and write the replies
+                for (Session session : sessions
+                        .toArray(new Session[sessions.size()])) {
+                    try {
+                        if (!session.process()) {
+                            session.close();
+                            continue;
+                        }
+                        session.stream();
+                    } catch (CancelledKeyException ex) {
+                        session.close();
+                    } catch (IOException ex) {
+                        log(Level.FINE, "run: %s", ex.toString());
+                        session.close();
+                    }
+                }
+            }
+        } catch (Exception ex) {
+            log(Level.SEVERE, "run: %s", ex.toString());
+        } finally {
+            for (Session session : sessions
+                    .toArray(new Session[sessions.size()])) {
+                session.close();
+            }
+            DataLinkClient.closeQuietly(server);
+            DataLinkClient.closeQuietly(selector);
+            terminateFlag = true;
+        }
+    }
+
+    /**
+     * Start the server.
+     * 
+     * @param address
+     *            the address to listen on, the port may be 0 to use any free
+     *            port.
+     * @return true if success, false otherwise.
+     * @see #getAddress()
+     */
+    public synchronized boolean start(SocketAddress address) {
+        if (thread != null) {
+            return !terminateFlag;
+        }
+        try {
+            selector = Selector.open();
+            server = ServerSocketChannel.open();
+            server.socket().setReuseAddress(true);
+            server.socket().bind(address);
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException ex) {
+            log(Level.WARNING, "start: %s", ex.toString());
+            DataLinkClient.closeQuietly(server);
+            DataLinkClient.closeQuietly(selector);
+            return false;
+        }
+        final Thread thread = new Thread(this, name);
+        thread.setDaemon(true);
+        this.thread = thread;
+        thread.start();
+        return true;
+    }
+
+    /**
+     * Write a packet to the ring and wake up the streaming clients.
+     * 
+     * @param streamid
+     *            the stream ID of packet.
+     * @param datastart
+     *            the Unix/POSIX epoch start time in microseconds.
+     * @param dataend
+     *            the Unix/POSIX epoch end time in microseconds.
+     * @param data
+     *            the packet data buffer.
+     * @param off
+     *            the start offset in the packet data buffer.
+     * @param len
+     *            the Length of data in bytes.
+     * @return the packet ID.
+     * @see DataLinkRing#write(String, long, long, byte[], int, int)
+     */
+    public long write(String streamid, long datastart, long dataend,
+            byte[] data, int off, int len) {
+        final long pktid =
+                ring.write(streamid, datastart, dataend, data, off, len);
+        final Selector selector = this.selector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        return pktid;
+    }
+}
@@ -0,0 +1,358 @@
+/**
+ *    Copyright (C) 2017 IRIS (http://www.iris.edu/hq/).
+ *    
+ *    All inquiries should be sent to John Taber <taber@iris.edu>.
+ *    
+ *    This file is part of Jlibdali.
+ *
+ *    Jlibdali is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    Jlibdali is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with Jlibdali.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.iris.epo.libdali;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent state file which checkpoints the last packet ID and packet time,
+ * globally and for each stream, in a memory-mapped file so a restarted
+ * collector resumes where it stopped.
+ * <p>
+ * The file has a header followed by two checkpoint banks which are written
+ * alternately. A checkpoint writes the positions to the older bank and forces
+ * them to the disk before the bank sequence and CRC are written and forced,
+ * so a crash while writing can only damage the bank being written and the
+ * other bank still holds the previous checkpoint. A new file, or a file with
+ * a different maximum number of streams, is written to a temporary file which
+ * is forced and renamed over the state file, so the previous checkpoint is
+ * never lost.
+ * 
+ * @author kevin
+ * @see DataLinkCollector#setStateFile(DataLinkStateFile, long)
+ */
+public class DataLinkStateFile implements Closeable, DataLinkConst {
+    /** The bank header length: sequence, CRC, count, pktid and pkttime */
+    private static final int BANK_HEADER_LENGTH = 32;
+
+    /** The entry length: stream ID length and text, pktid and pkttime */
+    private static final int ENTRY_LENGTH = 80;
+
+    /** The file header length: magic, version, maximum streams */
+    private static final int HEADER_LENGTH = 16;
+
+    /** The file magic number */
+    private static final int MAGIC = 0x444C5346; // "DLSF"
+
+    /** The maximum stream ID text length */
+    private static final int MAX_STREAMID_LENGTH = ENTRY_LENGTH - 17;
+
+    /** The file version */
+    private static final int VERSION = 1;
+
+    /**
+     * Get the length of a bank.
+     * 
+     * @param maxStreams
+     *            the maximum number of streams.
+     * @return the length of a bank.
+     */
+    private static int getBankLength(int maxStreams) {
+        return BANK_HEADER_LENGTH + maxStreams * ENTRY_LENGTH;
+    }
+
+    /**
+     * Get the bank offset for the sequence.
+     * 
+     * @param sequence
+     *            the sequence.
+     * @param maxStreams
+     *            the maximum number of streams.
+     * @return the bank offset.
+     */
+    private static int getBankOffset(long sequence, int maxStreams) {
+        return HEADER_LENGTH +
+                (int) (sequence & 1) * getBankLength(maxStreams);
+    }
+
+    /**
+     * Get the CRC of the bank excluding the CRC itself.
+     * 
+     * @param buffer
+     *            the buffer.
+     * @param bank
+     *            the bank offset.
+     * @param count
+     *            the number of entries.
+     * @return the CRC.
+     */
+    private static int getCrc(ByteBuffer buffer, int bank, int count) {
+        final CRC32 crc = new CRC32();
+        final ByteBuffer b = buffer.duplicate();
+        b.limit(bank + 8).position(bank);
+        crc.update(b);
+        b.limit(bank + BANK_HEADER_LENGTH + count * ENTRY_LENGTH)
+                .position(bank + 12);
+        crc.update(b);
+        return (int) crc.getValue();
+    }
+
+    private MappedByteBuffer buffer;
+    private FileChannel channel;
+    private final File file;
+    private final int maxStreams;
+    private long pktid;
+    private long pkttime;
+    /** The sequence of the last checkpoint */
+    private long sequence;
+    private final DataLinkStreamState streamState;
+
+    /**
+     * Open the state file, creating it if needed, and load the last
+     * checkpoint into the per-stream state.
+     * 
+     * @param file
+     *            the state file.
+     * @param streamState
+     *            the per-stream state.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    public DataLinkStateFile(File file, DataLinkStreamState streamState)
+            throws IOException {
+        this.file = file;
+        this.streamState = streamState;
+        maxStreams = streamState.getMaxStreams();
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            final long size =
+                    HEADER_LENGTH + 2L * getBankLength(maxStreams);
+            final boolean loaded = load();
+            if (!loaded || channel.size() != size) {
+                // create or change the layout for the maximum streams
+                replace(size, loaded);
+            }
+        } catch (IOException ex) {
+            DataLinkClient.closeQuietly(channel);
+            throw ex;
+        }
+    }
+
+    /**
+     * Write a checkpoint of the global position and the per-stream positions.
+     * 
+     * @param pktid
+     *            the packet ID of the last packet.
+     * @param pkttime
+     *            the packet time of the last packet in microseconds.
+     */
+    public synchronized void checkpoint(long pktid, long pkttime) {
+        final long sequence = this.sequence + 1;
+        final int bank = getBankOffset(sequence, maxStreams);
+        int count = 0;
+        int position = bank + BANK_HEADER_LENGTH;
+        final StreamidTable table = StreamidTable.getInstance();
+        final int capacity = streamState.getCapacity();
+        for (int slot = 0; slot < capacity && count < maxStreams; slot++) {
+            final Streamid streamid =
+                    table.getStreamid(streamState.getStreamIndex(slot));
+            if (streamid == null ||
+                    streamid.getTextBytes().length > MAX_STREAMID_LENGTH) {
+                continue;
+            }
+            final byte[] text = streamid.getTextBytes();
+            buffer.put(position, (byte) text.length);
+            for (int i = 0; i < text.length; i++) {
+                buffer.put(position + 1 + i, text[i]);
+            }
+            buffer.putLong(position + ENTRY_LENGTH - 16,
+                    streamState.getPktid(slot));
+            buffer.putLong(position + ENTRY_LENGTH - 8,
+                    streamState.getPkttime(slot));
+            position += ENTRY_LENGTH;
+            count++;
+        }
+        buffer.putInt(bank + 12, count);
+        buffer.putLong(bank + 16, pktid);
+        buffer.putLong(bank + 24, pkttime);
+        // the positions must be on the disk before the bank is committed
+        buffer.force();
+        buffer.putLong(bank, sequence);
+        buffer.putInt(bank + 8, getCrc(buffer, bank, count));
+        buffer.force();
+        this.sequence = sequence;
+        this.pktid = pktid;
+        this.pkttime = pkttime;
+    }
+
+    /**
+     * Close the state file.
+     */
+    @Override
+    public synchronized void close() {
+        DataLinkClient.closeQuietly(channel);
+    }
+
+    /**
+     * Get the state file.
+     * 
+     * @return the state file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Get the packet ID of the last checkpoint.
+     * 
+     * @return the packet ID or 0 if none.
+     */
+    public synchronized long getPktid() {
+        return pktid;
+    }
+
+    /**
+     * Get the packet time of the last checkpoint.
+     * 
+     * @return the packet time in microseconds.
+     */
+    public synchronized long getPkttime() {
+        return pkttime;
+    }
+
+    /**
+     * Get the per-stream state.
+     * 
+     * @return the per-stream state.
+     */
+    public DataLinkStreamState getStreamState() {
+        return streamState;
+    }
+
+    /**
+     * Load the newest valid checkpoint.
+     * 
+     * @return true if the file has a valid header, false otherwise.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private boolean load() throws IOException {
+        final long size = channel.size();
+        if (size < HEADER_LENGTH) {
+            return false;
+        }
+        final MappedByteBuffer buffer = channel.map(MapMode.READ_WRITE, 0,
+                size);
+        final int fileStreams = buffer.getInt(8);
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION ||
+                fileStreams <= 0 ||
+                size != HEADER_LENGTH + 2L * getBankLength(fileStreams)) {
+            return false;
+        }
+        this.buffer = buffer;
+        // use the valid bank with the newest sequence
+        int bank = -1;
+        for (int i = 0; i < 2; i++) {
+            final int offset = getBankOffset(i, fileStreams);
+            final long sequence = buffer.getLong(offset);
+            final int count = buffer.getInt(offset + 12);
+            if (sequence > 0 && (sequence & 1) == i && count >= 0 &&
+                    count <= fileStreams &&
+                    buffer.getInt(offset + 8) == getCrc(buffer, offset,
+                            count) &&
+                    sequence > this.sequence) {
+                this.sequence = sequence;
+                bank = offset;
+            }
+        }
+        if (bank < 0) {
+            return true;
+        }
+        pktid = buffer.getLong(bank + 16);
+        pkttime = buffer.getLong(bank + 24);
+        final StreamidTable table = StreamidTable.getInstance();
+        final int count = buffer.getInt(bank + 12);
+        int position = bank + BANK_HEADER_LENGTH;
+        for (int i = 0; i < count; i++, position += ENTRY_LENGTH) {
+            final int len = buffer.get(position);
+            final byte[] text = new byte[len];
+            for (int j = 0; j < len; j++) {
+                text[j] = buffer.get(position + 1 + j);
+            }
+            final int slot = streamState.getSlot(
+                    table.getStreamid(text, 0, len).getIndex());
+            if (slot >= 0) {
+                streamState.restore(slot,
+                        buffer.getLong(position + ENTRY_LENGTH - 16),
+                        buffer.getLong(position + ENTRY_LENGTH - 8));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Replace the state file with a new file for the maximum number of
+     * streams. The new file is written and forced to a temporary file which
+     * is then atomically renamed over the state file.
+     * 
+     * @param size
+     *            the file size.
+     * @param loaded
+     *            true to write a checkpoint of the loaded positions.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private void replace(long size, boolean loaded) throws IOException {
+        buffer = null;
+        channel.close();
+        final File temp = new File(file.getAbsoluteFile().getParentFile(),
+                file.getName() + ".tmp");
+        channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        boolean written = false;
+        try {
+            buffer = channel.map(MapMode.READ_WRITE, 0, size);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(8, maxStreams);
+            buffer.force();
+            if (loaded) {
+                checkpoint(pktid, pkttime);
+            }
+            written = true;
+        } finally {
+            buffer = null;
+            channel.close();
+            if (!written) {
+                temp.delete();
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(),
+                StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        buffer = channel.map(MapMode.READ_WRITE, 0, size);
+    }
+}
@@ -0,0 +1,400 @@
+/**
+ *    Copyright (C) 2017 IRIS (http://www.iris.edu/hq/).
+ *    
+ *    All inquiries should be sent to John Taber <taber@iris.edu>.
+ *    
+ *    This file is part of Jlibdali.
+ *
+ *    Jlibdali is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    Jlibdali is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with Jlibdali.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.iris.epo.libdali;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Local time-indexed packet store for range queries on recent data.
+ * <p>
+ * The packets are appended to a {@link DataLinkJournal}, usually from the
+ * collection loop, and each stream has a compact index of the data start
+ * time, data end time and journal offset of its packets in primitive arrays
+ * sorted by the data start time. A range query finds the packets by binary
+ * search and returns read-only views of the packet data in the journal
+ * segments without copying it. The index is rebuilt from the journal when
+ * the store is opened and the entries of segments deleted by the retention
+ * are dropped.
+ * 
+ * @author kevin
+ */
+public class DataLinkStore implements Closeable, DataLinkConst {
+    /**
+     * The index of the packets of a stream sorted by the data start time.
+     */
+    private static final class StreamIndex {
+        private long[] dataends = new long[INITIAL_CAPACITY];
+        private long[] datastarts = new long[INITIAL_CAPACITY];
+        /** The maximum data end time of the entries up to each index */
+        private long[] maxends = new long[INITIAL_CAPACITY];
+        private long[] offsets = new long[INITIAL_CAPACITY];
+        private int size;
+
+        /**
+         * Add an entry, late packets are inserted in order.
+         * 
+         * @param datastart
+         *            the Unix/POSIX epoch start time in microseconds.
+         * @param dataend
+         *            the Unix/POSIX epoch end time in microseconds.
+         * @param offset
+         *            the journal offset.
+         */
+        private void add(long datastart, long dataend, long offset) {
+            if (size == datastarts.length) {
+                final int capacity = size * 2;
+                dataends = Arrays.copyOf(dataends, capacity);
+                datastarts = Arrays.copyOf(datastarts, capacity);
+                maxends = Arrays.copyOf(maxends, capacity);
+                offsets = Arrays.copyOf(offsets, capacity);
+            }
+            int index = size;
+            if (index != 0 && datastarts[index - 1] > datastart) {
+                index = upperBound(datastarts, size, datastart);
+                final int length = size - index;
+                System.arraycopy(dataends, index, dataends, index + 1, length);
+                System.arraycopy(datastarts, index, datastarts, index + 1,
+                        length);
+                System.arraycopy(offsets, index, offsets, index + 1, length);
+            }
+            dataends[index] = dataend;
+            datastarts[index] = datastart;
+            offsets[index] = offset;
+            size++;
+            updateMaxends(index);
+        }
+
+        /**
+         * Remove the entries before the journal offset.
+         * 
+         * @param start
+         *            the journal offset.
+         * @return the number of entries removed.
+         */
+        private int removeBefore(long start) {
+            int count = 0;
+            for (int i = 0; i < size; i++) {
+                if (offsets[i] < start) {
+                    continue;
+                }
+                dataends[count] = dataends[i];
+                datastarts[count] = datastarts[i];
+                offsets[count] = offsets[i];
+                count++;
+            }
+            final int removed = size - count;
+            if (removed != 0) {
+                size = count;
+                updateMaxends(0);
+            }
+            return removed;
+        }
+
+        /**
+         * Update the maximum data end times from the index.
+         * 
+         * @param index
+         *            the index of the first entry changed.
+         */
+        private void updateMaxends(int index) {
+            long maxend = index != 0 ? maxends[index - 1] : Long.MIN_VALUE;
+            for (int i = index; i < size; i++) {
+                maxend = Math.max(maxend, dataends[i]);
+                maxends[i] = maxend;
+            }
+        }
+    }
+
+    /** The initial capacity of the index of a stream */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * Find the first index with a value greater than or equal to the key.
+     * 
+     * @param a
+     *            the sorted values.
+     * @param size
+     *            the number of values.
+     * @param key
+     *            the key.
+     * @return the index or the size if none.
+     */
+    private static int lowerBound(long[] a, int size, long key) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (a[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Find the first index with a value greater than the key.
+     * 
+     * @param a
+     *            the sorted values.
+     * @param size
+     *            the number of values.
+     * @param key
+     *            the key.
+     * @return the index or the size if none.
+     */
+    private static int upperBound(long[] a, int size, long key) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (a[mid] <= key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private final DataLinkJournal journal;
+    /** The number of packets indexed */
+    private long packetCount;
+    /** The journal start offset of the index */
+    private long startOffset;
+    /** The stream indexes by stream ID text */
+    private final Map<String, StreamIndex> streams = new HashMap<>();
+
+    /**
+     * Open the store, creating the directory if needed and indexing the
+     * packets in the existing segments.
+     * 
+     * @param dir
+     *            the store directory.
+     * @param segmentSize
+     *            the size of the segment files in bytes.
+     * @throws IOException
+     *             if an I/O error occurs.
+     * @see DataLinkJournal#DataLinkJournal(File, int)
+     */
+    public DataLinkStore(File dir, int segmentSize) throws IOException {
+        journal = new DataLinkJournal(dir, segmentSize);
+        startOffset = journal.getStartOffset();
+        final DLPacket packet = new DLPacket();
+        final byte[] data = new byte[MAXPACKETSIZE];
+        for (long offset = startOffset, next;
+                (next = journal.read(offset, packet, data)) != offset;
+                offset = next) {
+            index(packet, offset);
+        }
+    }
+
+    /**
+     * Append a packet to the store.
+     * 
+     * @param packet
+     *            the packet header.
+     * @param data
+     *            the packet data buffer.
+     * @return the journal offset of the packet.
+     * @throws IOException
+     *             if an I/O error occurs creating a new segment.
+     * @see AbstractDataLinkClient#getPacket()
+     * @see AbstractDataLinkClient#getReadBuffer()
+     */
+    public synchronized long append(DLPacket packet, byte[] data)
+            throws IOException {
+        final long offset = journal.append(packet, data);
+        index(packet, offset);
+        // drop the entries of the segments deleted by the retention
+        if (journal.getStartOffset() != startOffset) {
+            removeBefore(journal.getStartOffset());
+        }
+        return offset;
+    }
+
+    /**
+     * Close the store.
+     */
+    @Override
+    public synchronized void close() {
+        journal.close();
+        streams.clear();
+        packetCount = 0;
+    }
+
+    /**
+     * Force the packets to the disk.
+     */
+    public void force() {
+        journal.force();
+    }
+
+    /**
+     * Get the journal the packets are stored in.
+     * 
+     * @return the journal.
+     */
+    public DataLinkJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Get the number of packets in the store.
+     * 
+     * @return the number of packets.
+     */
+    public synchronized long getPacketCount() {
+        return packetCount;
+    }
+
+    /**
+     * Get the number of streams in the store.
+     * 
+     * @return the number of streams.
+     */
+    public synchronized int getStreamCount() {
+        return streams.size();
+    }
+
+    /**
+     * Add the packet to the index.
+     * 
+     * @param packet
+     *            the packet header.
+     * @param offset
+     *            the journal offset.
+     */
+    private void index(DLPacket packet, long offset) {
+        final String text = packet.getStreamid();
+        StreamIndex index = streams.get(text);
+        if (index == null) {
+            index = new StreamIndex();
+            streams.put(text, index);
+        }
+        index.add(packet.getDatastart(), packet.getDataend(), offset);
+        packetCount++;
+    }
+
+    /**
+     * Get the packet data of a stream between the start and end times.
+     * 
+     * @param streamid
+     *            the stream ID.
+     * @param starttime
+     *            the Unix/POSIX epoch start time in microseconds.
+     * @param endtime
+     *            the Unix/POSIX epoch end time in microseconds.
+     * @return read-only views of the data of the packets which overlap the
+     *         time range in order of the data start time.
+     */
+    public List<ByteBuffer> query(IStreamid streamid, long starttime,
+            long endtime) {
+        final List<ByteBuffer> views = new ArrayList<>();
+        query(streamid, starttime, endtime, views);
+        return views;
+    }
+
+    /**
+     * Get the packet data of a stream between the start and end times.
+     * 
+     * @param streamid
+     *            the stream ID.
+     * @param starttime
+     *            the Unix/POSIX epoch start time in microseconds.
+     * @param endtime
+     *            the Unix/POSIX epoch end time in microseconds.
+     * @param views
+     *            the list for the read-only views of the data of the packets
+     *            which overlap the time range in order of the data start
+     *            time.
+     * @return the number of packets added to the list.
+     */
+    public synchronized int query(IStreamid streamid, long starttime,
+            long endtime, List<ByteBuffer> views) {
+        final StreamIndex index = streams.get(streamid.getText());
+        if (index == null) {
+            return 0;
+        }
+        // the first packet which may end after the start time
+        final int from = lowerBound(index.maxends, index.size, starttime);
+        // the packets after the last packet starting before the end time
+        final int to = upperBound(index.datastarts, index.size, endtime);
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (index.dataends[i] < starttime) {
+                continue;
+            }
+            final ByteBuffer data = journal.getData(index.offsets[i]);
+            if (data != null) {
+                views.add(data);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Remove the index entries before the journal offset.
+     * 
+     * @param start
+     *            the journal offset.
+     */
+    private void removeBefore(long start) {
+        final Iterator<StreamIndex> it = streams.values().iterator();
+        while (it.hasNext()) {
+            final StreamIndex index = it.next();
+            packetCount -= index.removeBefore(start);
+            if (index.size == 0) {
+                it.remove();
+            }
+        }
+        startOffset = start;
+    }
+
+    /**
+     * Set the retention of the journal, the index entries of the deleted
+     * segments are removed.
+     * 
+     * @param maxBytes
+     *            the maximum size in bytes or 0 if none.
+     * @param maxAge
+     *            the maximum age in milliseconds or 0 if none.
+     * @see DataLinkJournal#setRetention(long, long)
+     */
+    public synchronized void setRetention(long maxBytes, long maxAge) {
+        journal.setRetention(maxBytes, maxAge);
+        if (journal.getStartOffset() != startOffset) {
+            removeBefore(journal.getStartOffset());
+        }
+    }
+}
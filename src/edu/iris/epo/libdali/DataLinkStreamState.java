@@ -0,0 +1,359 @@
+/**
+ *    Copyright (C) 2017 IRIS (http://www.iris.edu/hq/).
+ *    
+ *    All inquiries should be sent to John Taber <taber@iris.edu>.
+ *    
+ *    This file is part of Jlibdali.
+ *
+ *    Jlibdali is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    Jlibdali is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with Jlibdali.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.iris.epo.libdali;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-stream state table keyed by the stream ID index with the state held in
+ * primitive columns so no objects are allocated or boxed per packet.
+ * <p>
+ * The table uses open addressing with linear probing on the stream ID index
+ * from the {@link StreamidTable} and has a fixed capacity so the slot of a
+ * stream never moves. Looking up a slot is lock-free, only adding a stream
+ * locks the table, and the column updates are atomic so the table may be
+ * updated and read from any thread.
+ * 
+ * @author kevin
+ * @see DLPacket#getStreamIndex()
+ */
+public class DataLinkStreamState {
+    /**
+     * Update the column to the maximum of the current and new value.
+     * 
+     * @param column
+     *            the column.
+     * @param slot
+     *            the slot.
+     * @param value
+     *            the new value.
+     * @return the previous value.
+     */
+    private static long updateMax(AtomicLongArray column, int slot,
+            long value) {
+        long current;
+        while (value > (current = column.get(slot)) &&
+                !column.compareAndSet(slot, current, value)) {
+        }
+        return current;
+    }
+
+    private final AtomicLongArray bytes;
+    private final AtomicLongArray dataend;
+    private final AtomicLongArray datastart;
+    /** The stream ID index plus 1 for each slot or 0 if empty */
+    private final AtomicIntegerArray keys;
+    private final int mask;
+    private final int maxSize;
+    private final AtomicIntegerArray outOfOrder;
+    private final AtomicLongArray packets;
+    private final AtomicLongArray pktid;
+    private final AtomicLongArray pkttime;
+    private int size;
+
+    /**
+     * Create the table.
+     * 
+     * @param maxStreams
+     *            the maximum number of streams.
+     */
+    public DataLinkStreamState(int maxStreams) {
+        if (maxStreams <= 0 || maxStreams > 1 << 29) {
+            throw new IllegalArgumentException(
+                    "Invalid maximum streams (" + maxStreams + ")");
+        }
+        // keep the load factor at or below one half
+        final int capacity = Integer.highestOneBit(maxStreams * 2 - 1) << 1;
+        mask = capacity - 1;
+        maxSize = maxStreams;
+        keys = new AtomicIntegerArray(capacity);
+        bytes = new AtomicLongArray(capacity);
+        dataend = new AtomicLongArray(capacity);
+        datastart = new AtomicLongArray(capacity);
+        outOfOrder = new AtomicIntegerArray(capacity);
+        packets = new AtomicLongArray(capacity);
+        pktid = new AtomicLongArray(capacity);
+        pkttime = new AtomicLongArray(capacity);
+    }
+
+    /**
+     * Add the stream.
+     * 
+     * @param streamIndex
+     *            the stream ID index.
+     * @return the slot or -1 if the table is full.
+     */
+    private synchronized int add(int streamIndex) {
+        // check again now that the table is locked
+        int slot = findSlot(streamIndex);
+        if (slot >= 0 || size >= maxSize) {
+            return slot;
+        }
+        slot = streamIndex * 0x9E3779B9 & mask;
+        while (keys.get(slot) != 0) {
+            slot = (slot + 1) & mask;
+        }
+        keys.set(slot, streamIndex + 1);
+        size++;
+        return slot;
+    }
+
+    /**
+     * Find the slot for the stream without adding it.
+     * 
+     * @param streamIndex
+     *            the stream ID index.
+     * @return the slot or -1 if none.
+     * @see DLPacket#getStreamIndex()
+     */
+    public int findSlot(int streamIndex) {
+        if (streamIndex < 0) {
+            return -1;
+        }
+        final int key = streamIndex + 1;
+        int k;
+        for (int slot = streamIndex * 0x9E3779B9 & mask; (k =
+                keys.get(slot)) != 0; slot = (slot + 1) & mask) {
+            if (k == key) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Find the slot for the stream without adding it.
+     * 
+     * @param streamid
+     *            the stream ID text.
+     * @return the slot or -1 if none.
+     */
+    public int findSlot(String streamid) {
+        final Streamid s = StreamidTable.getInstance().findStreamid(streamid);
+        return s != null ? findSlot(s.getIndex()) : -1;
+    }
+
+    /**
+     * Get the total packet data bytes for the stream.
+     * 
+     * @param slot
+     *            the slot.
+     * @return the number of bytes.
+     */
+    public long getBytes(int slot) {
+        return bytes.get(slot);
+    }
+
+    /**
+     * Get the number of slots, slots may be iterated from 0 to the capacity
+     * skipping those with a stream ID index of -1.
+     * 
+     * @return the number of slots.
+     */
+    public int getCapacity() {
+        return keys.length();
+    }
+
+    /**
+     * Get the latest data end time for the stream.
+     * 
+     * @param slot
+     *            the slot.
+     * @return the data end time in microseconds.
+     */
+    public long getDataend(int slot) {
+        return dataend.get(slot);
+    }
+
+    /**
+     * Get the latest data start time for the stream.
+     * 
+     * @param slot
+     *            the slot.
+     * @return the data start time in microseconds.
+     */
+    public long getDatastart(int slot) {
+        return datastart.get(slot);
+    }
+
+    /**
+     * Get the maximum number of streams.
+     * 
+     * @return the maximum number of streams.
+     */
+    public int getMaxStreams() {
+        return maxSize;
+    }
+
+    /**
+     * Get the number of packets for the stream which ended before the
+     * previous packet.
+     * 
+     * @param slot
+     *            the slot.
+     * @return the number of packets out of order.
+     */
+    public int getOutOfOrder(int slot) {
+        return outOfOrder.get(slot);
+    }
+
+    /**
+     * Get the number of packets for the stream.
+     * 
+     * @param slot
+     *            the slot.
+     * @return the number of packets.
+     */
+    public long getPackets(int slot) {
+        return packets.get(slot);
+    }
+
+    /**
+     * Get the packet ID of the last update for the stream.
+     * 
+     * @param slot
+     *            the slot.
+     * @return the packet ID.
+     */
+    public long getPktid(int slot) {
+        return pktid.get(slot);
+    }
+
+    /**
+     * Get the packet time of the last update for the stream.
+     * 
+     * @param slot
+     *            the slot.
+     * @return the packet time in microseconds.
+     */
+    public long getPkttime(int slot) {
+        return pkttime.get(slot);
+    }
+
+    /**
+     * Get the slot for the stream, adding it if needed.
+     * 
+     * @param streamIndex
+     *            the stream ID index.
+     * @return the slot or -1 if the stream ID index is -1 or the table is
+     *         full.
+     * @see DLPacket#getStreamIndex()
+     */
+    public int getSlot(int streamIndex) {
+        final int slot = findSlot(streamIndex);
+        if (slot >= 0 || streamIndex < 0) {
+            return slot;
+        }
+        return add(streamIndex);
+    }
+
+    /**
+     * Get the stream ID index for the slot.
+     * 
+     * @param slot
+     *            the slot.
+     * @return the stream ID index or -1 if the slot is empty.
+     * @see StreamidTable#getStreamid(int)
+     */
+    public int getStreamIndex(int slot) {
+        return keys.get(slot) - 1;
+    }
+
+    /**
+     * Restore the packet ID and packet time for the stream from a checkpoint.
+     * 
+     * @param slot
+     *            the slot.
+     * @param pktid
+     *            the packet ID.
+     * @param pkttime
+     *            the packet time in microseconds.
+     */
+    void restore(int slot, long pktid, long pkttime) {
+        this.pktid.set(slot, pktid);
+        this.pkttime.set(slot, pkttime);
+    }
+
+    /**
+     * Get the number of streams.
+     * 
+     * @return the number of streams.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Update the state for the stream of the packet.
+     * 
+     * @param packet
+     *            the packet.
+     * @return the slot or -1 if the stream could not be added.
+     */
+    public int update(DLPacket packet) {
+        int streamIndex = packet.getStreamIndex();
+        if (streamIndex < 0) {
+            if (packet.getStreamid() == null) {
+                return -1;
+            }
+            streamIndex = StreamidTable.getInstance()
+                    .getStreamid(packet.getStreamid()).getIndex();
+        }
+        final int slot = getSlot(streamIndex);
+        if (slot >= 0) {
+            update(slot, packet.getPktid(), packet.getPkttime(),
+                    packet.getDatastart(), packet.getDataend(),
+                    packet.getDatasize());
+        }
+        return slot;
+    }
+
+    /**
+     * Update the state for the stream.
+     * 
+     * @param slot
+     *            the slot.
+     * @param pktid
+     *            the packet ID.
+     * @param pkttime
+     *            the packet time in microseconds.
+     * @param datastart
+     *            the data start time in microseconds.
+     * @param dataend
+     *            the data end time in microseconds.
+     * @param datasize
+     *            the packet data size.
+     */
+    public void update(int slot, long pktid, long pkttime, long datastart,
+            long dataend, int datasize) {
+        packets.incrementAndGet(slot);
+        bytes.addAndGet(slot, datasize);
+        this.pktid.set(slot, pktid);
+        this.pkttime.set(slot, pkttime);
+        if (updateMax(this.dataend, slot, dataend) > dataend) {
+            outOfOrder.incrementAndGet(slot);
+        } else {
+            updateMax(this.datastart, slot, datastart);
+        }
+    }
+}
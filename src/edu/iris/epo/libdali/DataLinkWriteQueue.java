@@ -0,0 +1,350 @@
+/**
+ *    Copyright (C) 2017 IRIS (http://www.iris.edu/hq/).
+ *    
+ *    All inquiries should be sent to John Taber <taber@iris.edu>.
+ *    
+ *    This file is part of Jlibdali.
+ *
+ *    Jlibdali is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    Jlibdali is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with Jlibdali.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.iris.epo.libdali;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import edu.iris.epo.libdali.DataLinkClient.DL_RETVAL;
+
+/**
+ * Durable store-and-forward queue in front of
+ * {@link DataLinkClient#write(byte[], int, IStreamid, long, long, boolean)}.
+ * <p>
+ * Packets are appended to a {@link DataLinkJournal} so that producers do not
+ * block on the network. A drain thread writes the packets to the DataLink
+ * server in order requesting acknowledgement, reconnecting after a jittered
+ * exponential backoff when the connection is lost. The offset of the next
+ * packet to forward is kept in a memory-mapped file so forwarding resumes
+ * after a restart; a packet may be written again if the connection is lost
+ * before it was acknowledged. Packets rejected by the server are logged and
+ * skipped.
+ * <p>
+ * The queued packets survive a crash of the process once they are enqueued
+ * but the drain thread only forces them to the disk once a second, so the
+ * packets enqueued in the last second may be lost if the operating system
+ * crashes or the power fails. Call {@link #force()} after enqueuing the
+ * packets which must not be lost.
+ * 
+ * @author kevin
+ */
+public class DataLinkWriteQueue extends AbstractDataLinkReconnector
+        implements Closeable, Runnable {
+    /** The name of the file with the offset of the next packet to forward */
+    public static final String FORWARD_FILE = "forward.offset";
+
+    /** The interval between forcing the files to the disk in milliseconds */
+    private static final long FORCE_INTERVAL = 1000;
+
+    /** The maximum time the drain thread waits for a packet in milliseconds */
+    private static final long POLL_INTERVAL = 100;
+
+    /** The number of packets queued but not yet written */
+    private final AtomicLong backlog = new AtomicLong();
+    /** The packet used to append to the journal */
+    private final DLPacket enqueuePacket = new DLPacket();
+    /** The mapped offset of the next packet to forward */
+    private final MappedByteBuffer forwardOffset;
+    private final AtomicLong forwarded = new AtomicLong();
+    private final DataLinkJournal journal;
+    /** The offset of the next packet to forward */
+    private volatile long offset;
+    private final AtomicLong rejected = new AtomicLong();
+    private Thread thread;
+
+    /**
+     * Create the write queue, packets queued by a previous instance are
+     * forwarded once the queue is started.
+     * 
+     * @param progname
+     *            the program name, usually the simple name of the main class.
+     * @param logger
+     *            the logger or null for the default.
+     * @param dir
+     *            the queue directory.
+     * @param segmentSize
+     *            the size of the segment files in bytes.
+     * @throws IOException
+     *             if an I/O error occurs.
+     * @see DataLinkJournal#DataLinkJournal(File, int)
+     */
+    public DataLinkWriteQueue(String progname, IDataLinkLogger logger,
+            File dir, int segmentSize) throws IOException {
+        super(progname, logger);
+        journal = new DataLinkJournal(dir, segmentSize);
+        try (RandomAccessFile raf =
+                new RandomAccessFile(new File(dir, FORWARD_FILE), "rw")) {
+            // the mapping remains valid after the file is closed
+            forwardOffset = raf.getChannel()
+                    .map(FileChannel.MapMode.READ_WRITE, 0, 8);
+        } catch (IOException ex) {
+            journal.close();
+            throw ex;
+        }
+        // the journal may have been removed or truncated
+        long offset = forwardOffset.getLong(0);
+        if (offset < journal.getStartOffset() ||
+                offset > journal.getEndOffset()) {
+            offset = journal.getStartOffset();
+            forwardOffset.putLong(0, offset);
+        }
+        this.offset = offset;
+        // count the packets which were not forwarded
+        final DLPacket packet = new DLPacket();
+        final byte[] data = new byte[MAXPACKETSIZE];
+        long count = 0;
+        for (long next; (next = journal.read(offset, packet, data)) != offset;
+                offset = next) {
+            count++;
+        }
+        backlog.set(count);
+        metrics.addBacklog(count);
+        registerMetrics();
+    }
+
+    /**
+     * Close the write queue, the packets which have not been written remain
+     * in the queue directory.
+     */
+    @Override
+    public void close() {
+        terminate();
+        final Thread thread;
+        synchronized (this) {
+            thread = this.thread;
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        disconnect();
+        force();
+        journal.close();
+        metrics.addBacklog(-backlog.get());
+        metrics.unregister();
+    }
+
+    /**
+     * Queue a packet to be written to the DataLink server, this does not
+     * block on the network and may be called from any thread.
+     * 
+     * @param packet
+     *            the packet data buffer to send.
+     * @param packetlen
+     *            the Length of data in bytes to send from the packet data
+     *            buffer.
+     * @param streamid
+     *            the stream ID of packet.
+     * @param datastart
+     *            the Unix/POSIX epoch start time in microseconds.
+     * @param dataend
+     *            the Unix/POSIX epoch end time in microseconds.
+     * @return the offset of the packet in the queue.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    public long enqueue(byte[] packet, int packetlen, IStreamid streamid,
+            long datastart, long dataend) throws IOException {
+        if (packetlen < 0 || packetlen > MAXPACKETSIZE) {
+            throw new IllegalArgumentException(
+                    "Invalid packet length (" + packetlen + ")");
+        }
+        final Streamid canonical;
+        if (streamid instanceof Streamid &&
+                ((Streamid) streamid).getIndex() >= 0) {
+            canonical = (Streamid) streamid;
+        } else {
+            canonical =
+                    StreamidTable.getInstance().getStreamid(streamid.getText());
+        }
+        final long offset;
+        synchronized (enqueuePacket) {
+            enqueuePacket.setStreamid(canonical);
+            enqueuePacket.setPktid(0);
+            enqueuePacket.setPkttime(0);
+            enqueuePacket.setDatastart(datastart);
+            enqueuePacket.setDataend(dataend);
+            enqueuePacket.setDatasize(packetlen);
+            offset = journal.append(enqueuePacket, packet);
+        }
+        backlog.incrementAndGet();
+        metrics.addBacklog(1);
+        return offset;
+    }
+
+    /**
+     * Wait for all queued packets to be written.
+     * 
+     * @param timeout
+     *            the maximum time to wait in milliseconds.
+     * @return true if all packets were written, false if the timeout elapsed.
+     * @throws InterruptedException
+     *             if interrupted while waiting.
+     */
+    public synchronized boolean flush(long timeout)
+            throws InterruptedException {
+        final long end = System.currentTimeMillis() + timeout;
+        long remaining = timeout;
+        while (backlog.get() != 0 && remaining > 0) {
+            wait(remaining);
+            remaining = end - System.currentTimeMillis();
+        }
+        return backlog.get() == 0;
+    }
+
+    /**
+     * Force the queued packets and the forward offset to the disk.
+     */
+    public void force() {
+        journal.force();
+        forwardOffset.force();
+    }
+
+    /**
+     * Get the number of packets queued but not yet written.
+     * 
+     * @return the number of packets.
+     */
+    public long getBacklog() {
+        return backlog.get();
+    }
+
+    /**
+     * Get the number of bytes queued but not yet written including the
+     * journal record headers.
+     * 
+     * @return the number of bytes.
+     */
+    public long getBacklogBytes() {
+        return journal.getEndOffset() - offset;
+    }
+
+    /**
+     * Get the number of packets written since the queue was created.
+     * 
+     * @return the number of packets.
+     */
+    public long getForwarded() {
+        return forwarded.get();
+    }
+
+    /**
+     * Get the number of packets rejected by the server since the queue was
+     * created.
+     * 
+     * @return the number of packets.
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Connect and exchange IDs.
+     * 
+     * @param dlc
+     *            the DataLink client.
+     * @return the DataLink return value.
+     */
+    @Override
+    DL_RETVAL negotiate(DataLinkClient dlc) {
+        if (!dlc.connect()) {
+            return DL_RETVAL.NO_SOCKET;
+        }
+        return dlc.exchangeIDs();
+    }
+
+    /**
+     * Write the queued packets to the DataLink server until terminated.
+     */
+    @Override
+    public void run() {
+        final StreamidTable table = StreamidTable.getInstance();
+        final DLPacket packet = new DLPacket();
+        final byte[] data = new byte[MAXPACKETSIZE];
+        long nextForce = System.currentTimeMillis() + FORCE_INTERVAL;
+        while (!terminateFlag) {
+            final long now = System.currentTimeMillis();
+            if (now >= nextForce) {
+                nextForce = now + FORCE_INTERVAL;
+                force();
+                journal.deleteBefore(offset);
+            }
+            try {
+                if (!journal.await(offset, POLL_INTERVAL)) {
+                    continue;
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            DataLinkClient dlc = this.dlc;
+            if (dlc == null && (dlc = connect()) == null) {
+                continue;
+            }
+            final long next = journal.read(offset, packet, data);
+            final DL_RETVAL retVal = dlc.write(data, packet.getDatasize(),
+                    table.getStreamid(packet.getStreamIndex()),
+                    packet.getDatastart(), packet.getDataend(), true);
+            if (retVal.isError()) {
+                log(Level.WARNING, "run: write failed (%s)", retVal);
+                disconnect();
+                continue;
+            }
+            attempts = 0;
+            if (isErrorStatus(dlc)) {
+                rejected.incrementAndGet();
+                log(Level.WARNING, "run: packet %s rejected", packet);
+            } else {
+                forwarded.incrementAndGet();
+            }
+            offset = next;
+            forwardOffset.putLong(0, next);
+            metrics.addBacklog(-1);
+            if (backlog.decrementAndGet() == 0) {
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Start the drain thread.
+     */
+    public synchronized void start() {
+        if (thread == null && !terminateFlag) {
+            thread = new Thread(this, progname + "-" +
+                    DataLinkWriteQueue.class.getSimpleName());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ *    Copyright (C) 2017 IRIS (http://www.iris.edu/hq/).
+ *    
+ *    All inquiries should be sent to John Taber <taber@iris.edu>.
+ *    
+ *    This file is part of Jlibdali.
+ *
+ *    Jlibdali is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    Jlibdali is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with Jlibdali.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.iris.epo.libdali;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import edu.iris.epo.libdali.DataLinkClient.DL_RETVAL;
+
+/**
+ * DataLink writer which pipelines acknowledged writes on a
+ * {@link DataLinkConnection}.
+ * <p>
+ * Up to <code>window</code> packets may be waiting for their
+ * acknowledgement; once the window is full <code>write</code> blocks until the
+ * oldest packet is acknowledged so the throughput is limited by the bandwidth
+ * rather than the round trip time.
+ * 
+ * @author kevin
+ */
+public class DataLinkWriter implements DataLinkConst {
+    private final DataLinkConnection conn;
+    private final Semaphore inflight;
+    private final int window;
+
+    /**
+     * Create the DataLink writer.
+     * 
+     * @param conn
+     *            the DataLink connection.
+     * @param window
+     *            the maximum number of packets waiting for acknowledgement.
+     */
+    public DataLinkWriter(DataLinkConnection conn, int window) {
+        if (window <= 0) {
+            throw new IllegalArgumentException(
+                    "Invalid window (" + window + ")");
+        }
+        this.conn = conn;
+        this.window = window;
+        inflight = new Semaphore(window);
+    }
+
+    /**
+     * Wait for all written packets to be acknowledged.
+     * 
+     * @param timeout
+     *            the maximum time to wait in milliseconds.
+     * @return true if all packets were acknowledged, false if the timeout
+     *         elapsed.
+     * @throws InterruptedException
+     *             if interrupted while waiting.
+     */
+    public boolean flush(long timeout) throws InterruptedException {
+        if (!inflight.tryAcquire(window, timeout, TimeUnit.MILLISECONDS)) {
+            return false;
+        }
+        inflight.release(window);
+        return true;
+    }
+
+    /**
+     * Get the DataLink connection.
+     * 
+     * @return the DataLink connection.
+     */
+    public DataLinkConnection getConnection() {
+        return conn;
+    }
+
+    /**
+     * Get the number of packets waiting for acknowledgement.
+     * 
+     * @return the number of packets waiting for acknowledgement.
+     */
+    public int getInflight() {
+        return window - inflight.availablePermits();
+    }
+
+    /**
+     * Get the maximum number of packets waiting for acknowledgement.
+     * 
+     * @return the maximum number of packets waiting for acknowledgement.
+     */
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * Send a packet to the DataLink server if the window is not full. This
+     * method may be called on the I/O thread of the selector.
+     * 
+     * @param packet
+     *            the packet data buffer to send.
+     * @param packetlen
+     *            the Length of data in bytes to send from the packet data
+     *            buffer.
+     * @param streamid
+     *            the stream ID of packet.
+     * @param datastart
+     *            the Unix/POSIX epoch start time in microseconds.
+     * @param dataend
+     *            the Unix/POSIX epoch end time in microseconds.
+     * @return the acknowledgement or null if the window is full.
+     */
+    public CompletableFuture<DL_RETVAL> tryWrite(byte[] packet, int packetlen,
+            IStreamid streamid, long datastart, long dataend) {
+        if (!inflight.tryAcquire()) {
+            return null;
+        }
+        return writeNow(packet, packetlen, streamid, datastart, dataend);
+    }
+
+    /**
+     * Send a packet to the DataLink server, blocking while the window is full.
+     * This method must not be called on the I/O thread of the selector.
+     * 
+     * @param packet
+     *            the packet data buffer to send.
+     * @param packetlen
+     *            the Length of data in bytes to send from the packet data
+     *            buffer.
+     * @param streamid
+     *            the stream ID of packet.
+     * @param datastart
+     *            the Unix/POSIX epoch start time in microseconds.
+     * @param dataend
+     *            the Unix/POSIX epoch end time in microseconds.
+     * @return the acknowledgement which is completed with the DataLink return
+     *         value.
+     * @throws InterruptedException
+     *             if interrupted while waiting for the window.
+     * @see DataLinkConnection#writeAck(byte[], int, IStreamid, long, long)
+     */
+    public CompletableFuture<DL_RETVAL> write(byte[] packet, int packetlen,
+            IStreamid streamid, long datastart, long dataend)
+            throws InterruptedException {
+        inflight.acquire();
+        return writeNow(packet, packetlen, streamid, datastart, dataend);
+    }
+
+    /**
+     * Send a packet to the DataLink server requesting acknowledgement.
+     * 
+     * @param packet
+     *            the packet data buffer to send.
+     * @param packetlen
+     *            the Length of data in bytes to send from the packet data
+     *            buffer.
+     * @param streamid
+     *            the stream ID of packet.
+     * @param datastart
+     *            the Unix/POSIX epoch start time in microseconds.
+     * @param dataend
+     *            the Unix/POSIX epoch end time in microseconds.
+     * @return the acknowledgement.
+     */
+    private CompletableFuture<DL_RETVAL> writeNow(byte[] packet, int packetlen,
+            IStreamid streamid, long datastart, long dataend) {
+        final CompletableFuture<DL_RETVAL> reply = conn.writeAck(packet,
+                packetlen, streamid, datastart, dataend);
+        reply.whenComplete((retVal, ex) -> inflight.release());
+        return reply;
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ *    Copyright (C) 2017 IRIS (http://www.iris.edu/hq/).
+ *    
+ *    All inquiries should be sent to John Taber <taber@iris.edu>.
+ *    
+ *    This file is part of Jlibdali.
+ *
+ *    Jlibdali is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    Jlibdali is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with Jlibdali.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.iris.epo.libdali;
+
+import edu.iris.epo.libdali.DataLinkClient.DL_RETVAL;
+
+/**
+ * Listener for the events of a non-blocking {@link DataLinkConnection}.
+ * <p>
+ * All methods are called on the I/O thread of the {@link DataLinkSelector}
+ * and must not block.
+ * 
+ * @author kevin
+ */
+public interface IDataLinkListener {
+    /**
+     * The connection was closed, either by a call to <code>close</code>, by
+     * the server or because of an error.
+     * 
+     * @param conn
+     *            the connection.
+     * @param retVal
+     *            the DataLink return value, <code>_NO_ERROR</code> if the
+     *            connection was closed by a call to <code>close</code>.
+     */
+    public void closed(DataLinkConnection conn, DL_RETVAL retVal);
+
+    /**
+     * The connection to the DataLink server was established. Commands such
+     * as <code>exchangeIDs</code> would usually be sent from here.
+     * 
+     * @param conn
+     *            the connection.
+     */
+    public void connected(DataLinkConnection conn);
+
+    /**
+     * A complete response was received from the DataLink server.
+     * <p>
+     * For a packet the header is available from <code>getPacket()</code>; for
+     * a command reply the status and value are available from
+     * <code>getResponseStatus()</code> and <code>getResponseValue()</code>.
+     * In both cases any data is in <code>getReadBuffer()</code> with the
+     * length <code>getBytesread()</code> and is only valid until this method
+     * returns.
+     * 
+     * @param conn
+     *            the connection.
+     * @param retVal
+     *            the DataLink return value.
+     */
+    public void received(DataLinkConnection conn, DL_RETVAL retVal);
+}
@@ -24,6 +24,18 @@ package edu.iris.epo.libdali;
 import java.util.logging.Level;
 
 public interface IDataLinkLogger {
+    /**
+     * Check if a message of the given level would actually be logged by this
+     * logger.
+     * 
+     * @param level
+     *            a message logging level
+     * @return true if the given message level is currently being logged.
+     */
+    public default boolean isLoggable(Level level) {
+        return true;
+    }
+
     /**
      * Log a message.
      * <p>
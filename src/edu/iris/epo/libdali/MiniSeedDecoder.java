@@ -0,0 +1,342 @@
+/**
+ *    Copyright (C) 2017 IRIS (http://www.iris.edu/hq/).
+ *    
+ *    All inquiries should be sent to John Taber <taber@iris.edu>.
+ *    
+ *    This file is part of Jlibdali.
+ *
+ *    Jlibdali is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    Jlibdali is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with Jlibdali.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.iris.epo.libdali;
+
+/**
+ * miniSEED 2 record decoder which reads the fixed header, blockette 1000 and
+ * the data frames directly from a buffer such as
+ * {@link DataLinkClient#getReadBuffer()}, the header values are available
+ * from the {@link MiniSeedHeader} view.
+ * <p>
+ * The samples are decoded into a caller-supplied array and no objects are
+ * allocated per record. The INT16, INT32, STEIM1 and STEIM2 encodings are
+ * supported. A decoder must only be used by one thread at a time.
+ * 
+ * @author kevin
+ */
+public class MiniSeedDecoder {
+    /** The 16-bit integer encoding */
+    public static final int ENCODING_INT16 = 1;
+
+    /** The 32-bit integer encoding */
+    public static final int ENCODING_INT32 = 3;
+
+    /** The Steim1 encoding */
+    public static final int ENCODING_STEIM1 = 10;
+
+    /** The Steim2 encoding */
+    public static final int ENCODING_STEIM2 = 11;
+
+    /** The length of a Steim frame in bytes */
+    public static final int FRAME_LENGTH = 64;
+
+    /**
+     * Get a 32-bit integer from the buffer.
+     * 
+     * @param buf
+     *            the buffer.
+     * @param pos
+     *            the position in the buffer.
+     * @param swap
+     *            true if little-endian, false if big-endian.
+     * @return the value.
+     */
+    static int getInt(byte[] buf, int pos, boolean swap) {
+        if (swap) {
+            return (buf[pos] & 0xff) | (buf[pos + 1] & 0xff) << 8 |
+                    (buf[pos + 2] & 0xff) << 16 | buf[pos + 3] << 24;
+        }
+        return buf[pos] << 24 | (buf[pos + 1] & 0xff) << 16 |
+                (buf[pos + 2] & 0xff) << 8 | (buf[pos + 3] & 0xff);
+    }
+
+    /**
+     * Get a 16-bit integer from the buffer.
+     * 
+     * @param buf
+     *            the buffer.
+     * @param pos
+     *            the position in the buffer.
+     * @param swap
+     *            true if little-endian, false if big-endian.
+     * @return the value.
+     */
+    static short getShort(byte[] buf, int pos, boolean swap) {
+        if (swap) {
+            return (short) ((buf[pos] & 0xff) | buf[pos + 1] << 8);
+        }
+        return (short) (buf[pos] << 8 | (buf[pos + 1] & 0xff));
+    }
+
+    /** The Steim differences of the current word */
+    private final int[] diffs = new int[7];
+    /** The reason the last record could not be decoded or null if none */
+    private String error;
+    private final MiniSeedHeader header = new MiniSeedHeader();
+
+    /**
+     * Decode a record.
+     * 
+     * @param buf
+     *            the buffer.
+     * @param off
+     *            the offset of the record in the buffer.
+     * @param len
+     *            the number of bytes available in the buffer.
+     * @param samples
+     *            the array for the samples.
+     * @return the number of samples decoded or -1 if the record could not be
+     *         decoded, see {@link #getError()}.
+     * @throws IllegalArgumentException
+     *             if the sample array is too small for the samples in the
+     *             record.
+     */
+    public int decode(byte[] buf, int off, int len, int[] samples) {
+        error = null;
+        if (!header.wrap(buf, off, len).isValid()) {
+            return setError(header.getError());
+        }
+        final int sampleCount = header.getSampleCount();
+        if (sampleCount > samples.length) {
+            throw new IllegalArgumentException(
+                    "Invalid samples length (" + samples.length + ")");
+        }
+        final int dataOffset = header.getDataOffset();
+        final int recordLength = header.getRecordLength();
+        if (dataOffset < MiniSeedHeader.FIXED_HEADER_LENGTH ||
+                dataOffset > recordLength) {
+            return setError("invalid beginning of data");
+        }
+        final int pos = off + dataOffset;
+        final int end = off + recordLength;
+        final boolean dataswap = header.isDataSwapped();
+        final int encoding = header.getEncoding();
+        int count;
+        switch (encoding) {
+        case ENCODING_INT16:
+            if (pos + sampleCount * 2 > end) {
+                return setError("data too short");
+            }
+            for (int i = 0; i < sampleCount; i++) {
+                samples[i] = getShort(buf, pos + i * 2, dataswap);
+            }
+            count = sampleCount;
+            break;
+        case ENCODING_INT32:
+            if (pos + sampleCount * 4 > end) {
+                return setError("data too short");
+            }
+            for (int i = 0; i < sampleCount; i++) {
+                samples[i] = getInt(buf, pos + i * 4, dataswap);
+            }
+            count = sampleCount;
+            break;
+        case ENCODING_STEIM1:
+        case ENCODING_STEIM2:
+            count = decodeSteim(buf, pos, end, dataswap,
+                    encoding == ENCODING_STEIM2, samples, sampleCount);
+            break;
+        default:
+            return setError("unsupported encoding");
+        }
+        if (count < 0) {
+            return -1;
+        }
+        if (count != sampleCount) {
+            return setError("sample count mismatch");
+        }
+        return count;
+    }
+
+    /**
+     * Decode the Steim frames.
+     * 
+     * @param buf
+     *            the buffer.
+     * @param pos
+     *            the position of the first frame.
+     * @param end
+     *            the end of the record.
+     * @param swap
+     *            true if the data is little-endian, false if big-endian.
+     * @param steim2
+     *            true for Steim2, false for Steim1.
+     * @param samples
+     *            the array for the samples.
+     * @param sampleCount
+     *            the number of samples in the record.
+     * @return the number of samples decoded or -1 if error.
+     */
+    private int decodeSteim(byte[] buf, int pos, int end, boolean swap,
+            boolean steim2, int[] samples, int sampleCount) {
+        if (sampleCount == 0) {
+            return 0;
+        }
+        if (pos + FRAME_LENGTH > end) {
+            return setError("data too short");
+        }
+        // the integration constants are the first and last sample
+        final int first = getInt(buf, pos + 4, swap);
+        final int last = getInt(buf, pos + 8, swap);
+        int count = 0;
+        for (int frame = pos; frame + FRAME_LENGTH <= end &&
+                count < sampleCount; frame += FRAME_LENGTH) {
+            final int control = getInt(buf, frame, swap);
+            for (int w = (frame == pos) ? 3 : 1; w < 16; w++) {
+                final int nibble = (control >>> (30 - 2 * w)) & 3;
+                if (nibble == 0) {
+                    continue;
+                }
+                final int word = getInt(buf, frame + 4 * w, swap);
+                final int n;
+                if (nibble == 1) {
+                    n = unpack(word, 8, 4);
+                } else if (!steim2) {
+                    n = (nibble == 2) ? unpack(word, 16, 2)
+                            : unpack(word, 32, 1);
+                } else {
+                    final int dnib = word >>> 30;
+                    if (nibble == 2) {
+                        n = (dnib == 0) ? 0 : unpack(word, 30 / dnib, dnib);
+                    } else {
+                        n = (dnib == 3) ? 0 : unpack(word, 6 - dnib, 5 + dnib);
+                    }
+                    if (n == 0) {
+                        return setError("invalid Steim2 code");
+                    }
+                }
+                for (int i = 0; i < n && count < sampleCount; i++) {
+                    // the first difference is from the previous record
+                    samples[count] = (count == 0) ? first
+                            : samples[count - 1] + diffs[i];
+                    count++;
+                }
+            }
+        }
+        if (count == sampleCount && samples[count - 1] != last) {
+            return setError("reverse integration constant mismatch");
+        }
+        return count;
+    }
+
+    /**
+     * Get the encoding of the last record.
+     * 
+     * @return the encoding.
+     */
+    public int getEncoding() {
+        return header.getEncoding();
+    }
+
+    /**
+     * Get the reason the last record could not be decoded.
+     * 
+     * @return the reason or null if none.
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * Get the header view of the last record.
+     * 
+     * @return the header.
+     */
+    public MiniSeedHeader getHeader() {
+        return header;
+    }
+
+    /**
+     * Get the record length of the last record.
+     * 
+     * @return the record length in bytes.
+     */
+    public int getRecordLength() {
+        return header.getRecordLength();
+    }
+
+    /**
+     * Get the number of samples in the last record.
+     * 
+     * @return the number of samples.
+     */
+    public int getSampleCount() {
+        return header.getSampleCount();
+    }
+
+    /**
+     * Get the sample rate of the last record.
+     * 
+     * @return the sample rate in samples per second.
+     */
+    public double getSampleRate() {
+        return header.getSampleRate();
+    }
+
+    /**
+     * Get the start time of the last record.
+     * 
+     * @return the Unix/POSIX epoch start time in microseconds.
+     */
+    public long getStartTime() {
+        return header.getStartTime();
+    }
+
+    /**
+     * Determines if the header of the last record is little-endian.
+     * 
+     * @return true if little-endian, false if big-endian.
+     */
+    public boolean isSwapped() {
+        return header.isSwapped();
+    }
+
+    /**
+     * Set the reason the record could not be decoded.
+     * 
+     * @param error
+     *            the reason.
+     * @return -1.
+     */
+    private int setError(String error) {
+        this.error = error;
+        return -1;
+    }
+
+    /**
+     * Unpack the differences from a word.
+     * 
+     * @param word
+     *            the word.
+     * @param bits
+     *            the number of bits per difference.
+     * @param n
+     *            the number of differences in the low bits of the word.
+     * @return the number of differences.
+     */
+    private int unpack(int word, int bits, int n) {
+        for (int i = 0; i < n; i++) {
+            diffs[i] = (word << (32 - bits * (n - i))) >> (32 - bits);
+        }
+        return n;
+    }
+}
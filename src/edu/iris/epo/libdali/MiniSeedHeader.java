@@ -0,0 +1,407 @@
+/**
+ *    Copyright (C) 2017 IRIS (http://www.iris.edu/hq/).
+ *    
+ *    All inquiries should be sent to John Taber <taber@iris.edu>.
+ *    
+ *    This file is part of Jlibdali.
+ *
+ *    Jlibdali is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    Jlibdali is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with Jlibdali.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.iris.epo.libdali;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Lightweight view of a miniSEED 2 record header for routing and filtering
+ * without decoding the data frames.
+ * <p>
+ * The view wraps the record bytes, such as
+ * {@link DataLinkClient#getReadBuffer()} or a pooled {@link ByteBuffer},
+ * without copying them. Nothing is parsed when the record is wrapped; the
+ * byte order and blockette 1000 are found on the first request and each
+ * value is read from the record when requested. The values are 0 if the
+ * record is not valid. A view may be reused for each record but must only be
+ * used by one thread at a time.
+ * 
+ * @author kevin
+ */
+public class MiniSeedHeader {
+    /** The length of the fixed header in bytes */
+    public static final int FIXED_HEADER_LENGTH = 48;
+
+    /** The record is not valid */
+    private static final int INVALID = -1;
+
+    /** The record has not been validated */
+    private static final int UNKNOWN = 0;
+
+    /** The record is valid */
+    private static final int VALID = 1;
+
+    /**
+     * Get the number of leap days before the year.
+     * 
+     * @param year
+     *            the year, which must be positive.
+     * @return the number of leap days.
+     */
+    private static int getLeapDays(int year) {
+        year--;
+        return year / 4 - year / 100 + year / 400;
+    }
+
+    /**
+     * Get the number of days from the epoch to the start of the year.
+     * 
+     * @param year
+     *            the year.
+     * @return the number of days.
+     */
+    static long getYearDays(int year) {
+        return 365L * (year - 1970) + getLeapDays(year) - getLeapDays(1970);
+    }
+
+    /**
+     * Determines if the year and day are valid.
+     * 
+     * @param year
+     *            the year.
+     * @param day
+     *            the day of the year.
+     * @return true if valid, false otherwise.
+     */
+    private static boolean isValidDate(int year, int day) {
+        return year >= 1900 && year <= 2500 && day >= 1 && day <= 366;
+    }
+
+    private byte[] array;
+    /** The position of blockette 1000 in the record */
+    private int b1000;
+    private ByteBuffer buffer;
+    /** The reason the record is not valid or null if none */
+    private String error;
+    private int len;
+    private int off;
+    private int recordLength;
+    /** The validation state */
+    private int state;
+    /** True if the header is little-endian */
+    private boolean swapflag;
+
+    /**
+     * Find a blockette before the limit.
+     * 
+     * @param type
+     *            the blockette type.
+     * @param limit
+     *            the end of the blockettes.
+     * @return the position of the blockette in the record or -1 if not
+     *         found.
+     */
+    private int find(int type, int limit) {
+        int next = getUShort(46);
+        // limit the number of blockettes in case of a loop
+        for (int i = 0; i < 16 && next >= FIXED_HEADER_LENGTH &&
+                next + 4 <= limit; i++) {
+            if (getUShort(next) == type) {
+                return next;
+            }
+            next = getUShort(next + 2);
+        }
+        return -1;
+    }
+
+    /**
+     * Find a blockette in the record.
+     * 
+     * @param type
+     *            the blockette type.
+     * @return the position of the blockette in the record or -1 if not
+     *         found.
+     */
+    public int findBlockette(int type) {
+        if (!isValid()) {
+            return -1;
+        }
+        return find(type, recordLength);
+    }
+
+    /**
+     * Get the byte at the position in the record.
+     * 
+     * @param pos
+     *            the position in the record.
+     * @return the byte.
+     */
+    private byte get(int pos) {
+        if (array != null) {
+            return array[off + pos];
+        }
+        return buffer.get(off + pos);
+    }
+
+    /**
+     * Get the offset of the data in the record.
+     * 
+     * @return the offset in bytes.
+     */
+    public int getDataOffset() {
+        return isValid() ? getUShort(44) : 0;
+    }
+
+    /**
+     * Get the encoding from blockette 1000.
+     * 
+     * @return the encoding.
+     */
+    public int getEncoding() {
+        return isValid() ? get(b1000 + 4) : 0;
+    }
+
+    /**
+     * Get the reason the record is not valid.
+     * 
+     * @return the reason or null if valid.
+     */
+    public String getError() {
+        isValid();
+        return error;
+    }
+
+    /**
+     * Get a 32-bit integer in the header byte order.
+     * 
+     * @param pos
+     *            the position in the record.
+     * @return the value.
+     */
+    private int getInt(int pos) {
+        final int b0 = get(pos) & 0xff;
+        final int b1 = get(pos + 1) & 0xff;
+        final int b2 = get(pos + 2) & 0xff;
+        final int b3 = get(pos + 3) & 0xff;
+        if (swapflag) {
+            return b3 << 24 | b2 << 16 | b1 << 8 | b0;
+        }
+        return b0 << 24 | b1 << 16 | b2 << 8 | b3;
+    }
+
+    /**
+     * Get the record length from blockette 1000.
+     * 
+     * @return the record length in bytes.
+     */
+    public int getRecordLength() {
+        return isValid() ? recordLength : 0;
+    }
+
+    /**
+     * Get the number of samples.
+     * 
+     * @return the number of samples.
+     */
+    public int getSampleCount() {
+        return isValid() ? getUShort(30) : 0;
+    }
+
+    /**
+     * Get the sample rate from the sample rate factor and multiplier.
+     * 
+     * @return the sample rate in samples per second.
+     */
+    public double getSampleRate() {
+        if (!isValid()) {
+            return 0;
+        }
+        final short factor = getShort(32);
+        final short multiplier = getShort(34);
+        if (factor > 0 && multiplier > 0) {
+            return (double) factor * multiplier;
+        } else if (factor > 0 && multiplier < 0) {
+            return -(double) factor / multiplier;
+        } else if (factor < 0 && multiplier > 0) {
+            return -(double) multiplier / factor;
+        } else if (factor < 0 && multiplier < 0) {
+            return 1.0 / ((double) factor * multiplier);
+        }
+        return 0;
+    }
+
+    /**
+     * Get a 16-bit integer in the header byte order.
+     * 
+     * @param pos
+     *            the position in the record.
+     * @return the value.
+     */
+    private short getShort(int pos) {
+        final int b0 = get(pos) & 0xff;
+        final int b1 = get(pos + 1) & 0xff;
+        return (short) (swapflag ? b1 << 8 | b0 : b0 << 8 | b1);
+    }
+
+    /**
+     * Get the start time including the time correction if it has not been
+     * applied and the microseconds from blockette 1001.
+     * 
+     * @return the Unix/POSIX epoch start time in microseconds.
+     */
+    public long getStartTime() {
+        if (!isValid()) {
+            return 0;
+        }
+        long time = (getYearDays(getUShort(20)) + getUShort(22) - 1) *
+                86400L + (get(24) & 0xff) * 3600L + (get(25) & 0xff) * 60L +
+                (get(26) & 0xff);
+        time = time * 1000000L + getUShort(28) * 100L;
+        if ((get(36) & 0x02) == 0) {
+            time += getInt(40) * 100L;
+        }
+        final int b1001 = find(1001, recordLength);
+        if (b1001 >= 0) {
+            time += get(b1001 + 5);
+        }
+        return time;
+    }
+
+    /**
+     * Get an unsigned 16-bit integer in the header byte order.
+     * 
+     * @param pos
+     *            the position in the record.
+     * @return the value.
+     */
+    private int getUShort(int pos) {
+        return getShort(pos) & 0xffff;
+    }
+
+    /**
+     * Determines if the data is little-endian from the word order in
+     * blockette 1000.
+     * 
+     * @return true if little-endian, false if big-endian.
+     */
+    public boolean isDataSwapped() {
+        return isValid() && get(b1000 + 5) == 0;
+    }
+
+    /**
+     * Determines if the header is little-endian, which is detected from the
+     * start year and day.
+     * 
+     * @return true if little-endian, false if big-endian.
+     */
+    public boolean isSwapped() {
+        return isValid() && swapflag;
+    }
+
+    /**
+     * Determines if the record has a valid start time, blockette 1000 and
+     * record length.
+     * 
+     * @return true if valid, false otherwise.
+     */
+    public boolean isValid() {
+        if (state == UNKNOWN) {
+            state = validate() ? VALID : INVALID;
+        }
+        return state == VALID;
+    }
+
+    /**
+     * Reset the state for a new record.
+     * 
+     * @return this header.
+     */
+    private MiniSeedHeader reset() {
+        state = UNKNOWN;
+        error = null;
+        recordLength = 0;
+        b1000 = 0;
+        return this;
+    }
+
+    /**
+     * Detect the byte order and find blockette 1000.
+     * 
+     * @return true if valid, false otherwise.
+     */
+    private boolean validate() {
+        if (len < FIXED_HEADER_LENGTH + 8) {
+            error = "record too short";
+            return false;
+        }
+        swapflag = false;
+        if (!isValidDate(getUShort(20), getUShort(22))) {
+            swapflag = true;
+            if (!isValidDate(getUShort(20), getUShort(22))) {
+                error = "invalid start time";
+                return false;
+            }
+        }
+        b1000 = find(1000, len);
+        if (b1000 < 0 || b1000 + 8 > len) {
+            error = "no blockette 1000";
+            return false;
+        }
+        final int exponent = get(b1000 + 6);
+        if (exponent < 7 || exponent > 20 || (1 << exponent) > len) {
+            error = "invalid record length";
+            return false;
+        }
+        recordLength = 1 << exponent;
+        return true;
+    }
+
+    /**
+     * Wrap the record in the buffer.
+     * 
+     * @param buf
+     *            the buffer.
+     * @param off
+     *            the offset of the record in the buffer.
+     * @param len
+     *            the number of bytes available in the buffer.
+     * @return this header.
+     */
+    public MiniSeedHeader wrap(byte[] buf, int off, int len) {
+        array = buf;
+        buffer = null;
+        this.off = off;
+        this.len = len;
+        return reset();
+    }
+
+    /**
+     * Wrap the record between the position and the limit of the buffer, the
+     * position of the buffer is not changed.
+     * 
+     * @param buffer
+     *            the buffer.
+     * @return this header.
+     */
+    public MiniSeedHeader wrap(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            return wrap(buffer.array(),
+                    buffer.arrayOffset() + buffer.position(),
+                    buffer.remaining());
+        }
+        array = null;
+        this.buffer = buffer;
+        off = buffer.position();
+        len = buffer.remaining();
+        return reset();
+    }
+}
@@ -0,0 +1,469 @@
+/**
+ *    Copyright (C) 2017 IRIS (http://www.iris.edu/hq/).
+ *    
+ *    All inquiries should be sent to John Taber <taber@iris.edu>.
+ *    
+ *    This file is part of Jlibdali.
+ *
+ *    Jlibdali is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    Jlibdali is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with Jlibdali.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.iris.epo.libdali;
+
+import java.util.Arrays;
+
+import edu.iris.epo.libdali.DataLinkClient.DL_RETVAL;
+
+/**
+ * Incremental miniSEED 2 record packer for one stream which compresses
+ * sample chunks with Steim2 into a reusable record buffer and writes each
+ * record to a {@link DataLinkClient}.
+ * <p>
+ * A record is written when it is full or, if a latency is specified, when its
+ * first sample has waited for the latency; {@link #poll()} should be called
+ * periodically for streams which may stop receiving samples. A chunk which is
+ * not contiguous with the previous samples or has a different sample rate
+ * starts a new record. A packer must only be used by one thread at a time.
+ * 
+ * @author kevin
+ */
+public class MiniSeedPacker implements DataLinkConst {
+    /** The Steim2 codes: nibble, dnib, bits and differences per word */
+    private static final int[][] CODES = { { 3, 2, 4, 7 }, { 3, 1, 5, 6 },
+            { 3, 0, 6, 5 }, { 1, -1, 8, 4 }, { 2, 3, 10, 3 }, { 2, 2, 15, 2 },
+            { 2, 1, 30, 1 } };
+
+    /** The offset of the data in the record */
+    private static final int DATA_OFFSET = 64;
+
+    /** The maximum number of differences in a word */
+    private static final int MAX_DIFFS = 7;
+
+    /**
+     * Determines if the difference fits in the number of bits.
+     * 
+     * @param diff
+     *            the difference.
+     * @param bits
+     *            the number of bits.
+     * @return true if the difference fits, false otherwise.
+     */
+    private static boolean fits(int diff, int bits) {
+        final int limit = 1 << (bits - 1);
+        return diff >= -limit && diff < limit;
+    }
+
+    /**
+     * Put a 32-bit big-endian integer in the buffer.
+     * 
+     * @param buf
+     *            the buffer.
+     * @param pos
+     *            the position in the buffer.
+     * @param value
+     *            the value.
+     */
+    private static void putInt(byte[] buf, int pos, int value) {
+        buf[pos] = (byte) (value >> 24);
+        buf[pos + 1] = (byte) (value >> 16);
+        buf[pos + 2] = (byte) (value >> 8);
+        buf[pos + 3] = (byte) value;
+    }
+
+    /**
+     * Put a 16-bit big-endian integer in the buffer.
+     * 
+     * @param buf
+     *            the buffer.
+     * @param pos
+     *            the position in the buffer.
+     * @param value
+     *            the value.
+     */
+    private static void putShort(byte[] buf, int pos, int value) {
+        buf[pos] = (byte) (value >> 8);
+        buf[pos + 1] = (byte) value;
+    }
+
+    /**
+     * Put the space padded text in the buffer.
+     * 
+     * @param buf
+     *            the buffer.
+     * @param pos
+     *            the position in the buffer.
+     * @param s
+     *            the text.
+     * @param len
+     *            the field length.
+     */
+    private static void putText(byte[] buf, int pos, String s, int len) {
+        for (int i = 0; i < len; i++) {
+            buf[pos + i] = (byte) (i < s.length() ? s.charAt(i) : ' ');
+        }
+    }
+
+    private final boolean ack;
+    private final DataLinkClient dlc;
+    /** The time the first sample of the record was added in milliseconds */
+    private long firstTime;
+    /** The frame of the next word */
+    private int frame;
+    /** The last sample added */
+    private int lastSample;
+    private final long latency;
+    /** The number of differences waiting to be packed */
+    private int pending;
+    private final int[] pendingDiffs = new int[MAX_DIFFS];
+    private final int[] pendingSamples = new int[MAX_DIFFS];
+    private final byte[] record;
+    /** The number of samples in the record */
+    private int recordCount;
+    /** The index of the first sample of the record in the segment */
+    private long recordIndex;
+    private final int recordLength;
+    private long records;
+    private double sampleRate;
+    /** The number of samples added to the segment */
+    private long segmentCount;
+    /** The start time of the contiguous segment in microseconds */
+    private long segmentStart;
+    private int sequence;
+    private final StreamidSeed streamid;
+    /** The word of the next difference */
+    private int word;
+
+    /**
+     * Create the packer.
+     * 
+     * @param dlc
+     *            the DataLink client.
+     * @param streamid
+     *            the stream ID.
+     * @param recordLength
+     *            the record length, 512 or 4096 bytes.
+     * @param latency
+     *            the maximum time in milliseconds a sample should wait in a
+     *            record or 0 to write records only when full.
+     * @param ack
+     *            if true request acknowledgement, false otherwise.
+     */
+    public MiniSeedPacker(DataLinkClient dlc, StreamidSeed streamid,
+            int recordLength, long latency, boolean ack) {
+        if (recordLength != SLINKPACKETSIZE && recordLength != 4096) {
+            throw new IllegalArgumentException(
+                    "Invalid record length (" + recordLength + ")");
+        }
+        if (latency < 0) {
+            throw new IllegalArgumentException(
+                    "Invalid latency (" + latency + ")");
+        }
+        this.dlc = dlc;
+        this.streamid = streamid;
+        this.recordLength = recordLength;
+        this.latency = latency;
+        this.ack = ack;
+        record = new byte[recordLength];
+        // the fields which are the same for every record
+        record[6] = 'D';
+        record[7] = ' ';
+        putText(record, 8, streamid.getStationCode(), 5);
+        putText(record, 13, streamid.getLocationCode(), 2);
+        putText(record, 15, streamid.getChannelCode(), 3);
+        putText(record, 18, streamid.getNetworkCode(), 2);
+        record[39] = 2;
+        putShort(record, 44, DATA_OFFSET);
+        putShort(record, 46, MiniSeedHeader.FIXED_HEADER_LENGTH);
+        putShort(record, 48, 1000);
+        putShort(record, 50, 56);
+        record[52] = MiniSeedDecoder.ENCODING_STEIM2;
+        record[53] = 1;
+        record[54] = (byte) Integer.numberOfTrailingZeros(recordLength);
+        putShort(record, 56, 1001);
+        clearRecord();
+    }
+
+    /**
+     * Add samples, writing the records which are full.
+     * 
+     * @param samples
+     *            the samples.
+     * @param off
+     *            the offset of the first sample.
+     * @param len
+     *            the number of samples.
+     * @param startTime
+     *            the Unix/POSIX epoch time of the first sample in
+     *            microseconds.
+     * @param sampleRate
+     *            the sample rate in samples per second.
+     * @return the DataLink return value.
+     * @throws IllegalArgumentException
+     *             if the sample rate is invalid or a difference between
+     *             samples does not fit in 30 bits.
+     */
+    public DL_RETVAL add(int[] samples, int off, int len, long startTime,
+            double sampleRate) {
+        if (!(sampleRate > 0)) {
+            throw new IllegalArgumentException(
+                    "Invalid sample rate (" + sampleRate + ")");
+        }
+        DL_RETVAL retVal = DL_RETVAL._NO_ERROR;
+        if (len == 0) {
+            return retVal;
+        }
+        if (segmentCount == 0 || sampleRate != this.sampleRate ||
+                Math.abs(startTime - getTime(segmentCount)) >
+                        500000 / sampleRate) {
+            // start a new segment
+            retVal = flush();
+            this.sampleRate = sampleRate;
+            segmentStart = startTime;
+            segmentCount = 0;
+            recordIndex = 0;
+            lastSample = samples[off];
+        }
+        for (int i = off; i < off + len; i++) {
+            final long diff = (long) samples[i] - lastSample;
+            if (!fits((int) diff, 30) || diff != (int) diff) {
+                throw new IllegalArgumentException(
+                        "Invalid sample difference (" + diff + ")");
+            }
+            if (recordCount == 0 && pending == 0) {
+                firstTime = System.currentTimeMillis();
+            }
+            pendingDiffs[pending] = (int) diff;
+            pendingSamples[pending] = samples[i];
+            pending++;
+            lastSample = samples[i];
+            segmentCount++;
+            if (pending == MAX_DIFFS) {
+                final DL_RETVAL r = pack(false);
+                if (r.isError()) {
+                    retVal = r;
+                }
+            }
+        }
+        if (!retVal.isError()) {
+            retVal = poll();
+        }
+        return retVal;
+    }
+
+    /**
+     * Clear the record for the next samples.
+     */
+    private void clearRecord() {
+        Arrays.fill(record, DATA_OFFSET, recordLength, (byte) 0);
+        recordCount = 0;
+        // the pending samples wait from now
+        firstTime = System.currentTimeMillis();
+        frame = 0;
+        // the first words of the first frame are the integration constants
+        word = 3;
+    }
+
+    /**
+     * Write the samples which have been added even if the record is not
+     * full.
+     * 
+     * @return the DataLink return value.
+     */
+    public DL_RETVAL flush() {
+        DL_RETVAL retVal = DL_RETVAL._NO_ERROR;
+        while (pending != 0) {
+            final DL_RETVAL r = pack(true);
+            if (r.isError()) {
+                retVal = r;
+            }
+        }
+        if (recordCount != 0) {
+            final DL_RETVAL r = writeRecord();
+            if (r.isError()) {
+                retVal = r;
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * Get the number of records written.
+     * 
+     * @return the number of records.
+     */
+    public long getRecords() {
+        return records;
+    }
+
+    /**
+     * Get the stream ID.
+     * 
+     * @return the stream ID.
+     */
+    public StreamidSeed getStreamid() {
+        return streamid;
+    }
+
+    /**
+     * Get the time of a sample in the segment.
+     * 
+     * @param index
+     *            the index of the sample in the segment.
+     * @return the Unix/POSIX epoch time in microseconds.
+     */
+    private long getTime(long index) {
+        return segmentStart + Math.round(index * 1000000.0 / sampleRate);
+    }
+
+    /**
+     * Pack the pending differences into the next word, writing the record if
+     * it is full.
+     * 
+     * @param partial
+     *            true to pack fewer differences than the word holds.
+     * @return the DataLink return value.
+     */
+    private DL_RETVAL pack(boolean partial) {
+        int[] code = null;
+        int n = 0;
+        for (int[] c : CODES) {
+            n = Math.min(c[3], pending);
+            if (n < c[3] && !partial) {
+                continue;
+            }
+            boolean fit = true;
+            for (int i = 0; i < n && fit; i++) {
+                fit = fits(pendingDiffs[i], c[2]);
+            }
+            if (fit) {
+                code = c;
+                break;
+            }
+        }
+        final int bits = code[2];
+        int value = (code[1] < 0) ? 0 : code[1] << 30;
+        final int mask = (1 << bits) - 1;
+        for (int i = 0; i < n; i++) {
+            value |= (pendingDiffs[i] & mask) << (bits * (code[3] - 1 - i));
+        }
+        final int pos = DATA_OFFSET + frame * 64;
+        putInt(record, pos + word * 4, value);
+        record[pos + (word >> 2)] |= (byte) (code[0] << (6 - 2 * (word & 3)));
+        if (recordCount == 0) {
+            putInt(record, DATA_OFFSET + 4, pendingSamples[0]);
+        }
+        recordCount += n;
+        putInt(record, DATA_OFFSET + 8, pendingSamples[n - 1]);
+        pending -= n;
+        System.arraycopy(pendingDiffs, n, pendingDiffs, 0, pending);
+        System.arraycopy(pendingSamples, n, pendingSamples, 0, pending);
+        if (++word == 16) {
+            word = 1;
+            if (DATA_OFFSET + ++frame * 64 == recordLength) {
+                return writeRecord();
+            }
+        }
+        return DL_RETVAL._NO_ERROR;
+    }
+
+    /**
+     * Write the samples if the first sample has waited for the latency.
+     * 
+     * @return the DataLink return value.
+     */
+    public DL_RETVAL poll() {
+        if (latency != 0 && (recordCount != 0 || pending != 0) &&
+                System.currentTimeMillis() - firstTime >= latency) {
+            return flush();
+        }
+        return DL_RETVAL._NO_ERROR;
+    }
+
+    /**
+     * Write the record to the DataLink server and clear it.
+     * 
+     * @return the DataLink return value.
+     */
+    private DL_RETVAL writeRecord() {
+        final long datastart = getTime(recordIndex);
+        final long dataend = getTime(recordIndex + recordCount - 1);
+        // the sequence number is 6 digits
+        sequence = (sequence % 999999) + 1;
+        for (int i = 5, s = sequence; i >= 0; i--, s /= 10) {
+            record[i] = (byte) ('0' + s % 10);
+        }
+        // the start time in BTIME with the microseconds in blockette 1001
+        final long seconds = Math.floorDiv(datastart, 1000000L);
+        final int micros = (int) Math.floorMod(datastart, 1000000L);
+        long days = Math.floorDiv(seconds, 86400L);
+        final int secondOfDay = (int) Math.floorMod(seconds, 86400L);
+        int year = 1970 + (int) (days / 366);
+        while (MiniSeedHeader.getYearDays(year + 1) <= days) {
+            year++;
+        }
+        days -= MiniSeedHeader.getYearDays(year);
+        putShort(record, 20, year);
+        putShort(record, 22, (int) days + 1);
+        record[24] = (byte) (secondOfDay / 3600);
+        record[25] = (byte) (secondOfDay / 60 % 60);
+        record[26] = (byte) (secondOfDay % 60);
+        putShort(record, 28, micros / 100);
+        putShort(record, 30, recordCount);
+        setSampleRate();
+        record[61] = (byte) (micros % 100);
+        record[63] = (byte) (recordLength / 64 - 1);
+        recordIndex += recordCount;
+        final DL_RETVAL retVal = dlc.write(record, recordLength, streamid,
+                datastart, dataend, ack);
+        if (!retVal.isError()) {
+            records++;
+        }
+        clearRecord();
+        return retVal;
+    }
+
+    /**
+     * Set the sample rate factor and multiplier in the record.
+     */
+    private void setSampleRate() {
+        int factor;
+        int multiplier = 1;
+        if (sampleRate >= 1) {
+            factor = (int) Math.round(sampleRate);
+            if (factor != sampleRate || factor > Short.MAX_VALUE) {
+                // the rate is the factor divided by the multiplier
+                multiplier = 10000;
+                while (multiplier > 1 &&
+                        sampleRate * multiplier > Short.MAX_VALUE) {
+                    multiplier /= 10;
+                }
+                factor = (int) Math.min(Math.round(sampleRate * multiplier),
+                        Short.MAX_VALUE);
+                multiplier = -multiplier;
+            }
+        } else {
+            // the rate is the multiplier divided by the negated factor
+            final double period = 1 / sampleRate;
+            while (multiplier < 10000 &&
+                    period * multiplier * 10 <= Short.MAX_VALUE &&
+                    Math.round(period * multiplier) != period * multiplier) {
+                multiplier *= 10;
+            }
+            factor = -(int) Math.min(Math.round(period * multiplier),
+                    Short.MAX_VALUE);
+        }
+        putShort(record, 32, factor);
+        putShort(record, 34, multiplier);
+    }
+}
@@ -22,7 +22,13 @@
 package edu.iris.epo.libdali;
 
 public class Streamid implements IStreamid {
+    /** The hash code of the text */
+    private final int hash;
+    /** The dense index in the stream ID table or -1 if not interned */
+    private final int index;
     private final String text, x, w, y, z, type;
+    /** The ASCII bytes of the text for encoding headers */
+    private final byte[] textBytes;
 
     /**
      * Create the stream ID.
@@ -33,7 +39,28 @@ public class Streamid implements IStreamid {
      *            the components.
      */
     public Streamid(String s) {
+        this(s, s.getBytes(DataLinkConst.ASCII), -1);
+    }
+
+    /**
+     * Create the stream ID.
+     * 
+     * @param s
+     *            the stream identifier text for the stream in the composite
+     *            form: "W_X_Y_Z/TYPE" where the underscores and slash separate
+     *            the components.
+     * @param textBytes
+     *            the ASCII bytes of the text.
+     * @param tableIndex
+     *            the dense index in the stream ID table or -1 if not
+     *            interned.
+     * @see StreamidTable
+     */
+    Streamid(String s, byte[] textBytes, int tableIndex) {
         text = s;
+        hash = s.hashCode();
+        index = tableIndex;
+        this.textBytes = textBytes;
         String w = null;
         String x = null;
         String y = null;
@@ -100,11 +127,32 @@ public class Streamid implements IStreamid {
         this.type = DataLinkUtils.getText(type);
         text = String.format("%s_%s_%s_%s/%s", this.w, this.x, this.y, this.z,
                 this.type);
+        textBytes = text.getBytes(DataLinkConst.ASCII);
+        hash = text.hashCode();
+        index = -1;
     }
 
     @Override
     public boolean equals(Object obj) {
-        return getText().equals(obj);
+        if (this == obj) {
+            return true;
+        }
+        if (obj instanceof Streamid) {
+            final Streamid other = (Streamid) obj;
+            return hash == other.hash && text.equals(other.text);
+        }
+        return text.equals(obj);
+    }
+
+    /**
+     * Get the dense index of the stream ID in the stream ID table, which may
+     * be used to index arrays of per-stream state.
+     * 
+     * @return the index or -1 if the stream ID is not interned.
+     * @see StreamidTable#getStreamid(int)
+     */
+    public int getIndex() {
+        return index;
     }
 
     @Override
@@ -112,6 +160,16 @@ public class Streamid implements IStreamid {
         return text;
     }
 
+    /**
+     * Get the ASCII bytes of the stream identifier text. The returned array
+     * must not be modified.
+     * 
+     * @return the ASCII bytes of the text.
+     */
+    public byte[] getTextBytes() {
+        return textBytes;
+    }
+
     @Override
     public String getType() {
         return type;
@@ -139,7 +197,7 @@ public class Streamid implements IStreamid {
 
     @Override
     public int hashCode() {
-        return getText().hashCode();
+        return hash;
     }
 
     @Override
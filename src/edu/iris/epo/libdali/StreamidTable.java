@@ -0,0 +1,310 @@
+/**
+ *    Copyright (C) 2017 IRIS (http://www.iris.edu/hq/).
+ *    
+ *    All inquiries should be sent to John Taber <taber@iris.edu>.
+ *    
+ *    This file is part of Jlibdali.
+ *
+ *    Jlibdali is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    Jlibdali is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with Jlibdali.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.iris.epo.libdali;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Stream ID table which interns the stream ID text so that the same stream ID
+ * bytes always map to the same String and canonical {@link Streamid} without
+ * allocating.
+ * <p>
+ * Each interned stream ID has a dense index, starting at 0 in the order the
+ * stream IDs were added, so per-stream state may be kept in arrays indexed by
+ * {@link Streamid#getIndex()}.
+ * <p>
+ * Lookups are lock-free, only adding a new stream ID locks the table.
+ * 
+ * @author kevin
+ */
+public class StreamidTable implements DataLinkConst {
+    /** The table entry */
+    private static final class Entry {
+        final byte[] bytes;
+        final int hash;
+        final Streamid streamid;
+
+        Entry(byte[] bytes, int hash, Streamid streamid) {
+            this.bytes = bytes;
+            this.hash = hash;
+            this.streamid = streamid;
+        }
+
+        boolean matches(int hash, byte[] buf, int off, int len) {
+            if (this.hash != hash || bytes.length != len) {
+                return false;
+            }
+            for (int i = 0; i < len; i++) {
+                if (bytes[i] != buf[off + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /** The initial capacity, must be a power of 2 */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /** The maximum number of stream IDs to intern */
+    private static final int MAX_SIZE = 1 << 20;
+
+    /** The shared stream ID table */
+    private static final StreamidTable TABLE = new StreamidTable();
+
+    /**
+     * Get the shared stream ID table.
+     * 
+     * @return the shared stream ID table.
+     */
+    public static StreamidTable getInstance() {
+        return TABLE;
+    }
+
+    /**
+     * Get the hash code for the bytes.
+     * 
+     * @param buf
+     *            the buffer.
+     * @param off
+     *            the start offset in the buffer.
+     * @param len
+     *            the number of bytes.
+     * @return the hash code.
+     */
+    static int hash(byte[] buf, int off, int len) {
+        int h = 0;
+        for (int i = off, end = off + len; i < end; i++) {
+            h = 31 * h + buf[i];
+        }
+        // spread the high bits since the index uses the low bits
+        return h ^ (h >>> 16);
+    }
+
+    private int size;
+
+    /** The stream IDs by index */
+    private volatile Streamid[] streamids = new Streamid[INITIAL_CAPACITY];
+
+    private volatile AtomicReferenceArray<Entry> table =
+            new AtomicReferenceArray<Entry>(INITIAL_CAPACITY);
+
+    /**
+     * Add the stream ID to the table.
+     * 
+     * @param hash
+     *            the hash code.
+     * @param buf
+     *            the buffer.
+     * @param off
+     *            the start offset in the buffer.
+     * @param len
+     *            the number of bytes.
+     * @return the stream ID.
+     */
+    private synchronized Streamid add(int hash, byte[] buf, int off,
+            int len) {
+        // check again now that the table is locked
+        Entry entry = find(table, hash, buf, off, len);
+        if (entry != null) {
+            return entry.streamid;
+        }
+        final String text = new String(buf, off, len, ASCII);
+        final byte[] bytes = new byte[len];
+        System.arraycopy(buf, off, bytes, 0, len);
+        if (size >= MAX_SIZE) {
+            return new Streamid(text, bytes, -1);
+        }
+        final Streamid streamid = new Streamid(text, bytes, size);
+        Streamid[] streamids = this.streamids;
+        if (size == streamids.length) {
+            streamids = Arrays.copyOf(streamids, size * 2);
+        }
+        streamids[size] = streamid;
+        this.streamids = streamids;
+        entry = new Entry(bytes, hash, streamid);
+        AtomicReferenceArray<Entry> table = this.table;
+        if (++size > table.length() / 2) {
+            table = resize(table);
+        }
+        insert(table, entry);
+        // the stream ID is visible to lookups once the table is written
+        this.table = table;
+        return streamid;
+    }
+
+    /**
+     * Find the entry.
+     * 
+     * @param table
+     *            the table.
+     * @param hash
+     *            the hash code.
+     * @param buf
+     *            the buffer.
+     * @param off
+     *            the start offset in the buffer.
+     * @param len
+     *            the number of bytes.
+     * @return the entry or null if none.
+     */
+    private Entry find(AtomicReferenceArray<Entry> table, int hash,
+            byte[] buf, int off, int len) {
+        final int mask = table.length() - 1;
+        Entry entry;
+        for (int index = hash & mask; (entry =
+                table.get(index)) != null; index = (index + 1) & mask) {
+            if (entry.matches(hash, buf, off, len)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find the canonical stream ID for the text without adding it to the
+     * table.
+     * 
+     * @param text
+     *            the stream ID text.
+     * @return the stream ID or null if none.
+     */
+    public Streamid findStreamid(String text) {
+        final byte[] buf = text.getBytes(ASCII);
+        final Entry entry = find(table, hash(buf, 0, buf.length), buf, 0,
+                buf.length);
+        return entry != null ? entry.streamid : null;
+    }
+
+    /**
+     * Get the canonical stream ID for the bytes, adding it to the table if
+     * needed.
+     * 
+     * @param buf
+     *            the buffer.
+     * @param off
+     *            the start offset in the buffer.
+     * @param len
+     *            the number of bytes.
+     * @return the stream ID, which is not interned with an index of -1 if the
+     *         table is full.
+     */
+    public Streamid getStreamid(byte[] buf, int off, int len) {
+        final int hash = hash(buf, off, len);
+        final Entry entry = find(table, hash, buf, off, len);
+        if (entry != null) {
+            return entry.streamid;
+        }
+        return add(hash, buf, off, len);
+    }
+
+    /**
+     * Get the stream ID for the index.
+     * 
+     * @param index
+     *            the index.
+     * @return the stream ID or null if none.
+     * @see Streamid#getIndex()
+     */
+    public Streamid getStreamid(int index) {
+        final Streamid[] streamids = this.streamids;
+        if (index < 0 || index >= streamids.length) {
+            return null;
+        }
+        return streamids[index];
+    }
+
+    /**
+     * Get the canonical stream ID for the text, adding it to the table if
+     * needed.
+     * 
+     * @param text
+     *            the stream ID text.
+     * @return the stream ID.
+     */
+    public Streamid getStreamid(String text) {
+        final byte[] buf = text.getBytes(ASCII);
+        return getStreamid(buf, 0, buf.length);
+    }
+
+    /**
+     * Insert the entry in the table.
+     * 
+     * @param table
+     *            the table.
+     * @param entry
+     *            the entry.
+     */
+    private void insert(AtomicReferenceArray<Entry> table, Entry entry) {
+        final int mask = table.length() - 1;
+        int index = entry.hash & mask;
+        while (table.get(index) != null) {
+            index = (index + 1) & mask;
+        }
+        table.set(index, entry);
+    }
+
+    /**
+     * Get the stream ID text for the bytes.
+     * 
+     * @param buf
+     *            the buffer.
+     * @param off
+     *            the start offset in the buffer.
+     * @param len
+     *            the number of bytes.
+     * @return the stream ID text.
+     */
+    public String intern(byte[] buf, int off, int len) {
+        return getStreamid(buf, off, len).getText();
+    }
+
+    /**
+     * Resize the table.
+     * 
+     * @param table
+     *            the table.
+     * @return the new table.
+     */
+    private AtomicReferenceArray<Entry> resize(
+            AtomicReferenceArray<Entry> table) {
+        final AtomicReferenceArray<Entry> newTable =
+                new AtomicReferenceArray<Entry>(table.length() * 2);
+        Entry entry;
+        for (int index = 0; index < table.length(); index++) {
+            if ((entry = table.get(index)) != null) {
+                insert(newTable, entry);
+            }
+        }
+        return newTable;
+    }
+
+    /**
+     * Get the number of stream IDs in the table.
+     * 
+     * @return the number of stream IDs in the table.
+     */
+    public synchronized int size() {
+        return size;
+    }
+}
@@ -0,0 +1,92 @@
+package edu.iris.epo.libdali.test;
+
+import java.net.InetSocketAddress;
+
+import edu.iris.epo.libdali.DataLinkConst;
+import edu.iris.epo.libdali.DataLinkProperties;
+import edu.iris.epo.libdali.DataLinkPropertiesKey;
+import edu.iris.epo.libdali.DataLinkRing;
+import edu.iris.epo.libdali.DataLinkServer;
+import edu.iris.epo.libdali.IDataLinkLogger;
+
+/**
+ * The base of the tests, which reports the failed checks and starts the
+ * embedded DataLink server for the clients under test.
+ *
+ * @author kevin
+ */
+public abstract class AbstractDataLinkTest implements DataLinkConst, Runnable {
+    /**
+     * Report the check if it failed.
+     *
+     * @param name
+     *            the check name.
+     * @param result
+     *            the check result.
+     */
+    protected void check(String name, boolean result) {
+        if (!result) {
+            System.out.printf("%s failed\n", name);
+        }
+    }
+
+    /**
+     * Get the name of the test for the clients and servers.
+     *
+     * @return the simple name of the test class.
+     */
+    protected String getName() {
+        return getClass().getSimpleName();
+    }
+
+    /**
+     * Set the server address in the DataLink properties.
+     *
+     * @param props
+     *            the DataLink properties.
+     * @param address
+     *            the server address.
+     */
+    protected void setAddress(DataLinkProperties props,
+            InetSocketAddress address) {
+        props.setProperty(DataLinkPropertiesKey.ADDRESS,
+                address.getHostString() + DATALINK_ADDRESS_SEP +
+                        address.getPort());
+    }
+
+    /**
+     * Start an embedded server on a free local port.
+     *
+     * @param ring
+     *            the packet ring.
+     * @param logger
+     *            the logger or null for the default.
+     * @return the server or null if it could not be started.
+     */
+    protected DataLinkServer startServer(DataLinkRing ring,
+            IDataLinkLogger logger) {
+        return startServer(getName(), ring, logger);
+    }
+
+    /**
+     * Start an embedded server on a free local port.
+     *
+     * @param name
+     *            the server name.
+     * @param ring
+     *            the packet ring.
+     * @param logger
+     *            the logger or null for the default.
+     * @return the server or null if it could not be started.
+     */
+    protected DataLinkServer startServer(String name, DataLinkRing ring,
+            IDataLinkLogger logger) {
+        final DataLinkServer server = new DataLinkServer(name, ring, logger);
+        if (!server.start(new InetSocketAddress("localhost", 0))) {
+            System.out.println("server start failed");
+            server.close();
+            return null;
+        }
+        return server;
+    }
+}
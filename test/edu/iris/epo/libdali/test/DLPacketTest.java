@@ -0,0 +1,91 @@
+package edu.iris.epo.libdali.test;
+
+import edu.iris.epo.libdali.DLPacket;
+import edu.iris.epo.libdali.DataLinkConst;
+import edu.iris.epo.libdali.Streamid;
+import edu.iris.epo.libdali.StreamidTable;
+
+public class DLPacketTest implements DataLinkConst, Runnable {
+
+    public static void main(String[] args) {
+        new DLPacketTest().run();
+    }
+
+    private final DLPacket bytePacket = new DLPacket();
+    private final DLPacket textPacket = new DLPacket();
+
+    private void parse(String header, boolean expected) {
+        byte[] buf = header.getBytes(ASCII);
+        boolean result = bytePacket.parse(buf, buf.length);
+        if (result != expected) {
+            System.out.printf("\"%s\" parse returned %b\n", header, result);
+        }
+        if (!result) {
+            return;
+        }
+        textPacket.parse(header.substring("PACKET ".length()));
+        validate(textPacket.toString(), bytePacket.toString());
+    }
+
+    @Override
+    public void run() {
+        parse("PACKET IU_ANMO_00_BHZ/MSEED 42 1490000000000000 "
+                + "1489999999000000 1490000000990000 512", true);
+        parse("PACKET IU_ANMO_00_BHZ/MSEED 1 -2 -3 4 0", true);
+        parse("PACKET IU_ANMO_00_BHZ/MSEED 1 2 3 4", false);
+        parse("PACKET IU_ANMO_00_BHZ/MSEED 1 2 3 4 5 6", false);
+        parse("PACKET IU_ANMO_00_BHZ/MSEED 1 2 x 4 5", false);
+        parse("PACKET IU_ANMO_00_BHZ/MSEED 1 2 3 4 " + (MAXPACKETSIZE + 1),
+                false);
+        parse("ERROR 1 2", false);
+
+        // the same stream ID bytes must give the same stream ID instance
+        byte[] buf = "PACKET XX_STA_LOC_CHAN/MSEED 1 2 3 4 5".getBytes(ASCII);
+        bytePacket.parse(buf, buf.length);
+        String streamid = bytePacket.getStreamid();
+        bytePacket.parse(buf, buf.length);
+        if (streamid != bytePacket.getStreamid()) {
+            System.out.println("stream ID was not interned");
+        }
+        validate("XX_STA_LOC_CHAN/MSEED", streamid);
+
+        // the stream ID index maps to the canonical stream ID
+        StreamidTable table = StreamidTable.getInstance();
+        int index = bytePacket.getStreamIndex();
+        Streamid canonical = table.getStreamid(index);
+        if (index < 0 || canonical == null ||
+                canonical.getText() != streamid ||
+                canonical.getIndex() != index ||
+                table.getStreamid(streamid) != canonical) {
+            System.out.printf("stream ID index %d was not canonical\n",
+                    index);
+        }
+        buf = "PACKET XX_STA_LOC_BHN/MSEED 1 2 3 4 5".getBytes(ASCII);
+        bytePacket.parse(buf, buf.length);
+        if (bytePacket.getStreamIndex() == index) {
+            System.out.println("stream ID index was not unique");
+        }
+        if (!canonical.equals(new Streamid(streamid)) ||
+                canonical.hashCode() != streamid.hashCode()) {
+            System.out.println("stream ID equals failed");
+        }
+        bytePacket.setStreamid(streamid);
+        if (bytePacket.getStreamIndex() != -1) {
+            System.out.println("stream ID index was not cleared");
+        }
+
+        // an invalid header does not add the stream ID to the table
+        int size = table.size();
+        buf = "PACKET XX_BAD_LOC_CHAN/MSEED 1 2 x 4 5".getBytes(ASCII);
+        if (bytePacket.parse(buf, buf.length) || table.size() != size ||
+                table.findStreamid("XX_BAD_LOC_CHAN/MSEED") != null) {
+            System.out.println("invalid header stream ID was interned");
+        }
+    }
+
+    private void validate(String s1, String s2) {
+        if (!s1.equals(s2)) {
+            System.out.printf("\"%s\" does not match \"%s\"\n", s1, s2);
+        }
+    }
+}
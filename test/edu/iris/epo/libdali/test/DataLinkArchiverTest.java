@@ -0,0 +1,136 @@
+package edu.iris.epo.libdali.test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import edu.iris.epo.libdali.DLPacket;
+import edu.iris.epo.libdali.DataLinkArchiver;
+import edu.iris.epo.libdali.Streamid;
+import edu.iris.epo.libdali.StreamidSeed;
+
+/**
+ * DataLink Archiver Test, checks the SDS paths, day rollover and that the
+ * packets are appended in order when files are closed by the cache.
+ *
+ * @author kevin
+ */
+public class DataLinkArchiverTest extends AbstractDataLinkTest {
+    /** 2024-12-31T23:59:00Z in microseconds */
+    private static final long DAY_END = 1735689540L * 1000000L;
+
+    public static void main(String[] args) {
+        new DataLinkArchiverTest().run();
+    }
+
+    private void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                delete(f);
+            }
+        }
+        file.delete();
+    }
+
+    private byte[] packet(int value) {
+        byte[] data = new byte[SLINKPACKETSIZE];
+        Arrays.fill(data, (byte) value);
+        return data;
+    }
+
+    @Override
+    public void run() {
+        File root = null;
+        try {
+            root = Files.createTempDirectory("DataLinkArchiverTest").toFile();
+            StreamidSeed bhz = new StreamidSeed("IU_ANMO_00_BHZ/MSEED");
+            StreamidSeed lhz = new StreamidSeed("IU", "COLA", "--", "LHZ");
+            check("path", DataLinkArchiver.getPath(bhz, DAY_END).equals(
+                    "2024/IU/ANMO/BHZ.D/IU.ANMO.00.BHZ.D.2024.366"));
+            check("empty location", DataLinkArchiver
+                    .getPath(lhz, DAY_END + 60000000L)
+                    .equals("2025/IU/COLA/LHZ.D/IU.COLA..LHZ.D.2025.001"));
+            try {
+                DataLinkArchiver.getPath(new Streamid("IU", "..", "00", "BHZ",
+                        MSEED_TYPE), DAY_END);
+                check("unsafe path", false);
+            } catch (IllegalArgumentException ex) {
+            }
+
+            byte[] p1 = packet(1);
+            byte[] p2 = packet(2);
+            byte[] p3 = packet(3);
+            byte[] p4 = packet(4);
+            try (DataLinkArchiver archiver = new DataLinkArchiver(root, 1)) {
+                check("write", archiver.write(bhz, DAY_END, p1, 0, p1.length));
+                // the other stream closes the first file
+                check("write lhz", archiver.write(lhz, DAY_END,
+                        ByteBuffer.wrap(p2)));
+                check("open files", archiver.getOpenFiles() == 1);
+                check("write again",
+                        archiver.write(bhz, DAY_END + 1, p3, 0, p3.length));
+                // the next day
+                DLPacket packet = new DLPacket();
+                packet.setStreamid(bhz.getText());
+                packet.setDatastart(DAY_END + 60000000L);
+                packet.setDatasize(p4.length);
+                check("rollover", archiver.write(packet, p4));
+                check("not miniSEED", !archiver.write(
+                        new Streamid("IU_ANMO_00_BHZ/JSON"), DAY_END, p1, 0,
+                        p1.length));
+                // the stream ID must not leave the archive directory
+                for (Streamid unsafe : new Streamid[] {
+                        new Streamid("IU", "..", "00", "BHZ", MSEED_TYPE),
+                        new Streamid("..", "ANMO", "00", "BHZ", MSEED_TYPE),
+                        new Streamid("IU", "ANMO", "00", ".", MSEED_TYPE),
+                        new Streamid("IU", "", "00", "BHZ", MSEED_TYPE),
+                        new Streamid("IU", "AN/MO", "00", "BHZ", MSEED_TYPE),
+                        new Streamid("IU", "ANMO", "0\\0", "BHZ",
+                                MSEED_TYPE) }) {
+                    check("unsafe " + unsafe,
+                            !DataLinkArchiver.isValid(unsafe) &&
+                                    !archiver.write(unsafe, DAY_END, p1, 0,
+                                            p1.length));
+                }
+                check("opened", archiver.getOpened() == 4 &&
+                        archiver.getPackets() == 4);
+            }
+
+            byte[] day1 = Files.readAllBytes(
+                    new File(root, DataLinkArchiver.getPath(bhz, DAY_END))
+                            .toPath());
+            byte[] expected = new byte[p1.length + p3.length];
+            System.arraycopy(p1, 0, expected, 0, p1.length);
+            System.arraycopy(p3, 0, expected, p1.length, p3.length);
+            check("day 1", Arrays.equals(day1, expected));
+            byte[] day2 = Files.readAllBytes(new File(root,
+                    DataLinkArchiver.getPath(bhz, DAY_END + 60000000L))
+                            .toPath());
+            check("day 2", Arrays.equals(day2, p4));
+            byte[] lhzDay = Files.readAllBytes(
+                    new File(root, DataLinkArchiver.getPath(lhz, DAY_END))
+                            .toPath());
+            check("lhz", Arrays.equals(lhzDay, p2));
+
+            // a late packet after the rollover does not reopen the files
+            Streamid cola = new Streamid("IU", "COLA", "00", "BHZ",
+                    MSEED_TYPE);
+            try (DataLinkArchiver archiver = new DataLinkArchiver(root)) {
+                for (int i = 0; i < 4; i++) {
+                    archiver.write(cola, DAY_END + (i % 2) * 60000000L, p1, 0,
+                            p1.length);
+                }
+                check("late opened", archiver.getOpened() == 2 &&
+                        archiver.getOpenFiles() == 2);
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        } finally {
+            if (root != null) {
+                delete(root);
+            }
+        }
+    }
+}
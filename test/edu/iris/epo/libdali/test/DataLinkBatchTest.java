@@ -0,0 +1,116 @@
+package edu.iris.epo.libdali.test;
+
+import edu.iris.epo.libdali.DataLinkBatch;
+import edu.iris.epo.libdali.DataLinkClient;
+import edu.iris.epo.libdali.DataLinkClient.DL_RETVAL;
+import edu.iris.epo.libdali.DataLinkRing;
+import edu.iris.epo.libdali.DataLinkServer;
+import edu.iris.epo.libdali.Streamid;
+
+/**
+ * DataLink Batch Test, writes batches of packets to the embedded DataLink
+ * server and checks the oversized packet and linger handling.
+ *
+ * @author kevin
+ */
+public class DataLinkBatchTest extends AbstractDataLinkTest {
+    private static final Streamid ANMO = new Streamid("IU_ANMO_00_BHZ/MSEED");
+
+    public static void main(String[] args) {
+        new DataLinkBatchTest().run();
+    }
+
+    private final byte[] packet = new byte[SLINKPACKETSIZE];
+
+    private void runBatch() {
+        DataLinkBatch batch = new DataLinkBatch(packet.length * 4, 0, true);
+        check("empty", batch.isEmpty() && batch.size() == 0 &&
+                batch.getLingerDelay() == Long.MAX_VALUE);
+        for (int i = 1; i <= 3; i++) {
+            check("add " + i, !batch.add(packet, packet.length, ANMO,
+                    i * 100, i * 100 + 99));
+        }
+        check("add full", batch.add(packet, packet.length, ANMO, 400, 499));
+        check("size", batch.size() == 4 &&
+                batch.getBytes() > packet.length * 4 &&
+                batch.getMaxPacketlen() == packet.length);
+        check("expired", batch.isExpired() && batch.getLingerDelay() == 0);
+        batch.clear();
+        check("clear", batch.isEmpty() && batch.getBytes() == 0 &&
+                batch.getMaxPacketlen() == 0 && !batch.isExpired());
+    }
+
+    @Override
+    public void run() {
+        runBatch();
+        DataLinkServer server = startServer(
+                new DataLinkRing(100, SLINKPACKETSIZE), null);
+        if (server == null) {
+            return;
+        }
+        DataLinkClient dlc =
+                new DataLinkClient(DataLinkBatchTest.class.getSimpleName(),
+                        null);
+        try {
+            setAddress(dlc.getDataLinkProperties(), server.getAddress());
+            check("connect", dlc.connect());
+            check("exchangeIDs", !dlc.exchangeIDs().isError());
+            runWrite(dlc, server.getRing());
+        } finally {
+            dlc.close();
+            server.close();
+        }
+    }
+
+    private void runWrite(DataLinkClient dlc, DataLinkRing ring) {
+        // the batch is written when full
+        DataLinkBatch batch = new DataLinkBatch(packet.length * 3, 60000,
+                true);
+        long latest = ring.getLatest();
+        for (int i = 1; i <= 2; i++) {
+            check("write " + i, dlc.write(batch, packet, packet.length, ANMO,
+                    i * 100, i * 100 + 99) == DL_RETVAL._NO_ERROR);
+        }
+        check("held", batch.size() == 2 && ring.getLatest() == latest);
+        check("write full", dlc.write(batch, packet, packet.length, ANMO, 300,
+                399) == DL_RETVAL._NO_ERROR);
+        check("written", batch.isEmpty() && ring.getLatest() == latest + 3);
+
+        // an oversized packet is discarded with the batch
+        latest = ring.getLatest();
+        byte[] oversized = new byte[SLINKPACKETSIZE + 1];
+        batch.add(packet, packet.length, ANMO, 400, 499);
+        batch.add(oversized, oversized.length, ANMO, 500, 599);
+        check("oversized", dlc.writeBatch(batch) == DL_RETVAL.INVALIDARG);
+        check("oversized cleared", batch.isEmpty());
+        batch.add(packet, packet.length, ANMO, 600, 699);
+        check("after oversized",
+                dlc.writeBatch(batch) == DL_RETVAL._NO_ERROR &&
+                        ring.getLatest() == latest + 1);
+
+        // the batch is written after the linger time without more packets
+        batch = new DataLinkBatch(packet.length * 100, 500, false);
+        latest = ring.getLatest();
+        check("write linger", dlc.write(batch, packet, packet.length, ANMO,
+                700, 799) == DL_RETVAL._NO_ERROR);
+        check("linger delay", batch.getLingerDelay() > 0 &&
+                batch.getLingerDelay() <= 500);
+        check("not expired",
+                dlc.writeExpired(batch) == DL_RETVAL._NO_ERROR &&
+                        batch.size() == 1);
+        try {
+            Thread.sleep(batch.getLingerDelay());
+        } catch (InterruptedException ex) {
+            return;
+        }
+        check("expired", dlc.writeExpired(batch) == DL_RETVAL._NO_ERROR &&
+                batch.isEmpty());
+        // the server stores the unacknowledged packet asynchronously
+        long end = System.currentTimeMillis() + 5000;
+        while (ring.getLatest() != latest + 1 &&
+                System.currentTimeMillis() < end) {
+            Thread.yield();
+        }
+        check("linger written", ring.getLatest() == latest + 1);
+    }
+}
@@ -0,0 +1,100 @@
+package edu.iris.epo.libdali.test;
+
+import java.nio.ByteBuffer;
+
+import edu.iris.epo.libdali.DataLinkBufferPool;
+import edu.iris.epo.libdali.DataLinkClient;
+import edu.iris.epo.libdali.DataLinkRing;
+import edu.iris.epo.libdali.DataLinkServer;
+import edu.iris.epo.libdali.Streamid;
+
+/**
+ * DataLink Buffer Pool Test, checks the size classes and reuse and that a
+ * client only leases a read buffer of the size it needs.
+ *
+ * @author kevin
+ */
+public class DataLinkBufferPoolTest extends AbstractDataLinkTest {
+    public static void main(String[] args) {
+        new DataLinkBufferPoolTest().run();
+    }
+
+    @Override
+    public void run() {
+        DataLinkBufferPool pool = new DataLinkBufferPool(2);
+        check("size class", DataLinkBufferPool.getSizeClass(1) == 512 &&
+                DataLinkBufferPool.getSizeClass(512) == 512 &&
+                DataLinkBufferPool.getSizeClass(513) == 1024 &&
+                DataLinkBufferPool.getSizeClass(MAXPACKETSIZE) ==
+                        MAXPACKETSIZE &&
+                DataLinkBufferPool.getSizeClass(
+                        DataLinkBufferPool.MAX_SIZE + 1) ==
+                        DataLinkBufferPool.MAX_SIZE + 1);
+
+        // arrays are reused up to the maximum number of buffers
+        byte[] a1 = pool.lease(600);
+        byte[] a2 = pool.lease(1000);
+        byte[] a3 = pool.lease(1024);
+        check("lease", a1.length == 1024 && a1 != a2 && a2 != a3);
+        pool.release(a1);
+        pool.release(a2);
+        pool.release(a3);
+        pool.release(new byte[100]);
+        check("pooled", pool.getPooled() == 2);
+        byte[] a4 = pool.lease(700);
+        check("reuse", a4 == a2 && pool.getPooled() == 1);
+        check("other class", pool.lease(2000).length == 2048 &&
+                pool.getPooled() == 1);
+
+        // direct buffers are cleared with the limit at the size
+        ByteBuffer b1 = pool.leaseDirect(5000);
+        check("direct", b1.isDirect() && b1.capacity() == 8192 &&
+                b1.limit() == 5000);
+        b1.position(100);
+        pool.release(b1);
+        pool.release(b1.asReadOnlyBuffer());
+        ByteBuffer b2 = pool.leaseDirect(8000);
+        check("direct reuse", b2 == b1 && b2.position() == 0 &&
+                b2.limit() == 8000);
+
+        // a writer only needs a small read buffer for the replies
+        DataLinkServer server = startServer(
+                new DataLinkRing(10, SLINKPACKETSIZE * 2), null);
+        if (server == null) {
+            return;
+        }
+        DataLinkClient dlc = new DataLinkClient(
+                DataLinkBufferPoolTest.class.getSimpleName(), null);
+        try {
+            check("unleased", dlc.getReadBuffer().length == 0);
+            setAddress(dlc.getDataLinkProperties(), server.getAddress());
+            check("connect", dlc.connect());
+            check("connected buffer",
+                    dlc.getReadBuffer().length == DataLinkBufferPool.MIN_SIZE);
+            check("exchangeIDs", !dlc.exchangeIDs().isError());
+            byte[] packet = new byte[SLINKPACKETSIZE];
+            packet[0] = 7;
+            check("write", !dlc.write(packet, packet.length,
+                    new Streamid("IU_ANMO_00_BHZ/MSEED"), 1, 2, true)
+                    .isError());
+            check("writer buffer",
+                    dlc.getReadBuffer().length == DataLinkBufferPool.MIN_SIZE);
+            // a reader needs a read buffer of the server packet size
+            byte[] held = dlc.getReadBuffer();
+            long pktid = server.getRing().getLatest();
+            check("read", !dlc.read(pktid).isError() &&
+                    dlc.getReadBuffer()[0] == 7 &&
+                    dlc.getReadBuffer().length == SLINKPACKETSIZE * 2);
+            // a replaced buffer is not reused while it may still be held
+            DataLinkBufferPool shared = DataLinkBufferPool.getInstance();
+            byte[] leased = shared.lease(held.length);
+            check("not reused", leased != held);
+            shared.release(leased);
+            dlc.close();
+            check("released", dlc.getReadBuffer().length == 0);
+        } finally {
+            dlc.close();
+            server.close();
+        }
+    }
+}
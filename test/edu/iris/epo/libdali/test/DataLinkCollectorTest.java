@@ -0,0 +1,140 @@
+package edu.iris.epo.libdali.test;
+
+import java.net.InetSocketAddress;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.iris.epo.libdali.DLPacket;
+import edu.iris.epo.libdali.DataLinkClient.DL_RETVAL;
+import edu.iris.epo.libdali.DataLinkCollector;
+import edu.iris.epo.libdali.DataLinkLogger;
+import edu.iris.epo.libdali.DataLinkRing;
+import edu.iris.epo.libdali.DataLinkServer;
+
+/**
+ * DataLink Collector Test, drops the connections while packets are written
+ * and checks that the collector resumes without duplicates or gaps.
+ *
+ * @author kevin
+ */
+public class DataLinkCollectorTest extends AbstractDataLinkTest {
+    public static void main(String[] args) {
+        DataLinkCollectorTest test = new DataLinkCollectorTest();
+        for (int index = 0; index < args.length; index++) {
+            String[] subArg = args[index].split("=");
+            if (subArg.length == 2) {
+                String arg = subArg[0].toUpperCase();
+                if (arg.startsWith("PACK")) {
+                    test.numPackets = Integer.parseInt(subArg[1]);
+                } else if (arg.startsWith("DROP")) {
+                    test.dropInterval = Integer.parseInt(subArg[1]);
+                }
+            }
+        }
+        test.run();
+    }
+
+    private int dropInterval = 3000;
+    private int numPackets = 20000;
+    private DataLinkServer server;
+
+    @Override
+    public void run() {
+        // only log severe errors since the dropped connections are expected
+        Logger logger =
+                Logger.getLogger(DataLinkCollectorTest.class.getName());
+        logger.setLevel(Level.SEVERE);
+        server = startServer(
+                new DataLinkRing(numPackets, SLINKPACKETSIZE),
+                new DataLinkLogger(logger));
+        if (server == null) {
+            return;
+        }
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                byte[] packet = new byte[SLINKPACKETSIZE];
+                for (int i = 1; i <= numPackets; i++) {
+                    server.write("IU_ANMO_00_BHZ/MSEED", i, i + 1, packet, 0,
+                            packet.length);
+                    if (i % 100 == 0) {
+                        try {
+                            Thread.sleep(1);
+                        } catch (InterruptedException ex) {
+                            return;
+                        }
+                    }
+                }
+            }
+        };
+        DataLinkCollector collector = new DataLinkCollector(
+                DataLinkCollectorTest.class.getSimpleName(),
+                new DataLinkLogger(logger));
+        InetSocketAddress address = server.getAddress();
+        setAddress(collector.getDataLinkProperties(), address);
+        collector.setBackoff(10, 100);
+        collector.setMatch("ANMO");
+        collector.setPosition(DATALINK_POSITION_EARLIEST, 0);
+        try {
+            producer.start();
+            long expected = 1;
+            while (expected <= numPackets) {
+                DL_RETVAL retVal = collector.collect(false);
+                if (retVal.isError()) {
+                    System.out.printf("collect returned %s\n", retVal);
+                    return;
+                }
+                DLPacket dlpacket = collector.getPacket();
+                if (dlpacket.getPktid() != expected) {
+                    System.out.printf("collect pktid %d expected %d\n",
+                            dlpacket.getPktid(), expected);
+                    return;
+                }
+                if (expected % dropInterval == 0) {
+                    server.closeConnections();
+                }
+                expected++;
+            }
+            if (collector.getReconnects() == 0) {
+                System.out.println("collector did not reconnect");
+            }
+            while (!collector.collect(true).isError() &&
+                    collector.getPacket().getDatasize() != 0) {
+            }
+        } finally {
+            producer.interrupt();
+            collector.close();
+            server.close();
+        }
+        runInterrupt(address, logger);
+    }
+
+    /**
+     * Check that an interrupt stops the reconnect loop.
+     */
+    private void runInterrupt(InetSocketAddress address, Logger logger) {
+        DataLinkCollector collector = new DataLinkCollector(
+                DataLinkCollectorTest.class.getSimpleName(),
+                new DataLinkLogger(logger));
+        setAddress(collector.getDataLinkProperties(), address);
+        collector.setBackoff(10000, 10000);
+        boolean[] interrupted = new boolean[1];
+        Thread thread = new Thread(() -> {
+            collector.collect(false);
+            interrupted[0] = Thread.currentThread().isInterrupted();
+        });
+        try {
+            thread.start();
+            Thread.sleep(100);
+            thread.interrupt();
+            thread.join(5000);
+            if (thread.isAlive() || !collector.isTerminated() ||
+                    !interrupted[0]) {
+                System.out.println("interrupt did not stop the collector");
+            }
+        } catch (InterruptedException ex) {
+        } finally {
+            collector.close();
+        }
+    }
+}
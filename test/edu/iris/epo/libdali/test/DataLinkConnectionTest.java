@@ -0,0 +1,113 @@
+package edu.iris.epo.libdali.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.iris.epo.libdali.DLPacket;
+import edu.iris.epo.libdali.DataLinkClient.DL_RETVAL;
+import edu.iris.epo.libdali.DataLinkConnection;
+import edu.iris.epo.libdali.DataLinkConst;
+import edu.iris.epo.libdali.DataLinkPropertiesKey;
+import edu.iris.epo.libdali.DataLinkSelector;
+import edu.iris.epo.libdali.IDataLinkListener;
+
+/**
+ * DataLink Connection Test, streams from several connections on a single
+ * selector thread.
+ *
+ * @author kevin
+ */
+public class DataLinkConnectionTest
+        implements DataLinkConst, IDataLinkListener, Runnable {
+    public static void main(String[] args) {
+        DataLinkConnectionTest test = new DataLinkConnectionTest();
+        for (int index = 0; index < args.length; index++) {
+            String[] subArg = args[index].split("=");
+            if (subArg.length == 2) {
+                String arg = subArg[0].toUpperCase();
+                if (arg.startsWith("ADDR")) {
+                    test.address = subArg[1];
+                } else if (arg.startsWith("CONN")) {
+                    test.numConnections = Integer.parseInt(subArg[1]);
+                } else if (arg.startsWith("PACK")) {
+                    test.numPackets = Long.parseLong(subArg[1]);
+                }
+            }
+        }
+        test.run();
+    }
+
+    private String address = DATALINK_ADDRESS_TEXT;
+    private CountDownLatch done;
+    private int numConnections = 4;
+    private long numPackets = 10;
+    private final AtomicLong packets = new AtomicLong();
+
+    @Override
+    public void closed(DataLinkConnection conn, DL_RETVAL retVal) {
+        if (retVal.isError()) {
+            System.err.printf("closed: %s\n", retVal);
+        }
+        done.countDown();
+    }
+
+    @Override
+    public void connected(DataLinkConnection conn) {
+        conn.exchangeIDs();
+        conn.position(DATALINK_POSITION_EARLIEST, 0);
+        conn.stream();
+    }
+
+    @Override
+    public void received(DataLinkConnection conn, DL_RETVAL retVal) {
+        if (retVal.isError()) {
+            System.err.printf("received: %s\n", retVal);
+            return;
+        }
+        final DLPacket dlpacket = conn.getPacket();
+        if (conn.isStreaming() && !dlpacket.isEmpty()) {
+            if (packets.incrementAndGet() <= numPackets) {
+                System.out.printf("read: %s\n", dlpacket);
+            } else {
+                conn.close();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        DataLinkSelector selector = new DataLinkSelector(
+                DataLinkConnectionTest.class.getSimpleName(), null);
+        List<DataLinkConnection> connections =
+                new ArrayList<DataLinkConnection>();
+        try {
+            if (!selector.start()) {
+                return;
+            }
+            done = new CountDownLatch(numConnections);
+            for (int i = 0; i < numConnections; i++) {
+                DataLinkConnection conn = new DataLinkConnection(
+                        DataLinkConnectionTest.class.getSimpleName(), null);
+                conn.getDataLinkProperties()
+                        .setProperty(DataLinkPropertiesKey.ADDRESS, address);
+                if (conn.connect(selector, this)) {
+                    connections.add(conn);
+                } else {
+                    done.countDown();
+                }
+            }
+            if (!done.await(60, TimeUnit.SECONDS)) {
+                System.err.println("Timeout waiting for connections");
+            }
+            System.out.printf("%d packets on %d connections\n",
+                    packets.get(), connections.size());
+        } catch (InterruptedException ex) {
+            ex.printStackTrace();
+        } finally {
+            selector.close();
+        }
+    }
+}
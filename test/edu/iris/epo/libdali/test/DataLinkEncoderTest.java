@@ -0,0 +1,86 @@
+package edu.iris.epo.libdali.test;
+
+import edu.iris.epo.libdali.DataLinkConst;
+import edu.iris.epo.libdali.DataLinkEncoder;
+import edu.iris.epo.libdali.IStreamid;
+import edu.iris.epo.libdali.Streamid;
+
+public class DataLinkEncoderTest implements DataLinkConst, Runnable {
+
+    public static void main(String[] args) {
+        new DataLinkEncoderTest().run();
+    }
+
+    private final byte[] buf = new byte[3 + MAXHEADERLEN];
+
+    @Override
+    public void run() {
+        final long[] values = { 0, 1, 9, 10, 99, 100, -1, -10, 512,
+                1490000000000000L, Long.MAX_VALUE, Long.MIN_VALUE };
+        for (long value : values) {
+            int end = DataLinkEncoder.putLong(buf, 3, value);
+            validate(Long.toString(value), new String(buf, 3, end - 3, ASCII));
+            if (end - 3 != DataLinkEncoder.getLongLength(value)) {
+                System.out.printf("%d length %d\n", value,
+                        DataLinkEncoder.getLongLength(value));
+            }
+        }
+        write(new Streamid("IU_ANMO_00_BHZ/MSEED"), 1489999999000000L,
+                1490000000990000L, true, 512);
+        write(new Streamid("IU", "ANMO", "00", "BHZ", "MSEED"), -2, -3, false,
+                0);
+        // a stream ID which does not cache the text bytes
+        write(new IStreamid() {
+            @Override
+            public String getText() {
+                return "XX_STA_LOC_CHAN/MSEED";
+            }
+
+            @Override
+            public String getType() {
+                return "MSEED";
+            }
+
+            @Override
+            public String getW() {
+                return "XX";
+            }
+
+            @Override
+            public String getX() {
+                return "STA";
+            }
+
+            @Override
+            public String getY() {
+                return "LOC";
+            }
+
+            @Override
+            public String getZ() {
+                return "CHAN";
+            }
+        }, 1, 2, true, MAXPACKETSIZE);
+    }
+
+    private void validate(String s1, String s2) {
+        if (!s1.equals(s2)) {
+            System.out.printf("\"%s\" does not match \"%s\"\n", s1, s2);
+        }
+    }
+
+    private void write(IStreamid streamid, long datastart, long dataend,
+            boolean ack, int packetlen) {
+        String expected = String.format("WRITE %s %d %d %s %d",
+                streamid.getText(), datastart, dataend, (ack) ? "A" : "N",
+                packetlen);
+        int end = DataLinkEncoder.putWriteHeader(buf, 3, streamid, datastart,
+                dataend, ack, packetlen);
+        validate(expected, new String(buf, 3, end - 3, ASCII));
+        int headerlen = DataLinkEncoder.getWriteHeaderLength(streamid,
+                datastart, dataend, packetlen);
+        if (headerlen != expected.length()) {
+            System.out.printf("\"%s\" length %d\n", expected, headerlen);
+        }
+    }
+}
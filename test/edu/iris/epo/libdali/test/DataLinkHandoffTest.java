@@ -0,0 +1,152 @@
+package edu.iris.epo.libdali.test;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.iris.epo.libdali.DLPacket;
+import edu.iris.epo.libdali.DataLinkClient;
+import edu.iris.epo.libdali.DataLinkClient.DL_RETVAL;
+import edu.iris.epo.libdali.DataLinkHandoff;
+import edu.iris.epo.libdali.DataLinkLogger;
+import edu.iris.epo.libdali.DataLinkRing;
+import edu.iris.epo.libdali.DataLinkServer;
+
+/**
+ * DataLink Handoff Test, hands packets from a producer thread to the consumer
+ * in batches.
+ *
+ * @author kevin
+ */
+public class DataLinkHandoffTest extends AbstractDataLinkTest {
+    private static final String ANMO = "IU_ANMO_00_BHZ/MSEED";
+
+    public static void main(String[] args) {
+        new DataLinkHandoffTest().run();
+    }
+
+    /**
+     * Consume the packets and check the packet IDs are consecutive.
+     * 
+     * @param handoff
+     *            the ring.
+     * @param name
+     *            the test name.
+     * @param numPackets
+     *            the number of packets expected.
+     */
+    private void consume(DataLinkHandoff handoff, String name,
+            long numPackets) {
+        long pktid = 0;
+        int count;
+        while ((count = handoff.claimBatch(16, true)) != 0) {
+            for (int i = 0; i < count; i++) {
+                DataLinkHandoff.Slot slot = handoff.get(i);
+                DLPacket packet = slot.getPacket();
+                if (packet.getPktid() != pktid + 1 ||
+                        slot.getData()[0] != (byte) packet.getPktid() ||
+                        !ANMO.equals(packet.getStreamid())) {
+                    System.out.printf("%s expected %d: %s\n", name, pktid + 1,
+                            packet);
+                }
+                pktid = packet.getPktid();
+            }
+            handoff.release(count);
+        }
+        if (pktid != numPackets) {
+            System.out.printf("%s last packet %d\n", name, pktid);
+        }
+    }
+
+    private void produce(DataLinkHandoff handoff, long numPackets) {
+        for (long pktid = 1; pktid <= numPackets; pktid++) {
+            DataLinkHandoff.Slot slot = handoff.claim(true);
+            DLPacket packet = slot.getPacket();
+            packet.setStreamid(ANMO);
+            packet.setPktid(pktid);
+            packet.setDatasize(1);
+            slot.getData()[0] = (byte) pktid;
+            handoff.publish();
+        }
+        handoff.close();
+    }
+
+    @Override
+    public void run() {
+        DataLinkHandoff handoff = new DataLinkHandoff(64);
+        if (handoff.claim(false) == null || handoff.size() != 0 ||
+                handoff.claimBatch(1, false) != 0) {
+            System.out.println("empty ring failed");
+        }
+        try {
+            new DataLinkHandoff(3);
+            System.out.println("invalid capacity accepted");
+        } catch (IllegalArgumentException ex) {
+        }
+
+        final int numPackets = 1000000;
+        Thread producer = new Thread(() -> produce(handoff, numPackets));
+        producer.start();
+        consume(handoff, "handoff", numPackets);
+        join(producer);
+
+        runServer(new DataLinkHandoff(64), 5000);
+    }
+
+    private void join(Thread thread) {
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+        }
+    }
+
+    /**
+     * Collect the packets from the embedded server into the ring.
+     * 
+     * @param handoff
+     *            the ring.
+     * @param numPackets
+     *            the number of packets.
+     */
+    private void runServer(DataLinkHandoff handoff, int numPackets) {
+        Logger logger = Logger.getLogger(DataLinkHandoffTest.class.getName());
+        logger.setLevel(Level.SEVERE);
+        DataLinkServer server = startServer(
+                new DataLinkRing(numPackets, SLINKPACKETSIZE),
+                new DataLinkLogger(logger));
+        if (server == null) {
+            return;
+        }
+        DataLinkClient dlc = new DataLinkClient(
+                DataLinkHandoffTest.class.getSimpleName(),
+                new DataLinkLogger(logger));
+        try {
+            byte[] data = new byte[SLINKPACKETSIZE];
+            for (int i = 1; i <= numPackets; i++) {
+                data[0] = (byte) i;
+                server.write(ANMO, i, i + 1, data, 0, data.length);
+            }
+            setAddress(dlc.getDataLinkProperties(), server.getAddress());
+            if (!dlc.connect() || dlc.exchangeIDs().isError() || dlc
+                    .position(DATALINK_POSITION_EARLIEST, 0).isError()) {
+                System.out.println("server connect failed");
+                return;
+            }
+            Thread producer = new Thread(() -> {
+                for (int i = 0; i < numPackets; i++) {
+                    DL_RETVAL retVal = handoff.collect(dlc, false);
+                    if (retVal.isError()) {
+                        System.out.printf("collect returned %s\n", retVal);
+                        break;
+                    }
+                }
+                handoff.close();
+            });
+            producer.start();
+            consume(handoff, "server", numPackets);
+            join(producer);
+        } finally {
+            dlc.close();
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package edu.iris.epo.libdali.test;
+
+import edu.iris.epo.libdali.DLPacket;
+import edu.iris.epo.libdali.DataLinkHistogram;
+import edu.iris.epo.libdali.DataLinkLatency;
+
+/**
+ * DataLink Histogram Test, checks the percentiles are within the histogram
+ * precision.
+ *
+ * @author kevin
+ */
+public class DataLinkHistogramTest extends AbstractDataLinkTest {
+    public static void main(String[] args) {
+        new DataLinkHistogramTest().run();
+    }
+
+    private void checkValue(String name, long value, long expected) {
+        if (Math.abs(value - expected) > expected / 50) {
+            System.out.printf("%s %d expected %d\n", name, value, expected);
+        }
+    }
+
+    @Override
+    public void run() {
+        DataLinkHistogram histogram = new DataLinkHistogram();
+        check("empty", histogram.getSnapshot().getCount() == 0 &&
+                histogram.getSnapshot().getValueAtPercentile(50) == 0);
+        final int count = 1000000;
+        for (int value = 1; value <= count; value++) {
+            histogram.record(value);
+        }
+        DataLinkHistogram.Snapshot snapshot = histogram.getSnapshot();
+        check("count", snapshot.getCount() == count);
+        check("min", snapshot.getMin() == 1);
+        check("max", snapshot.getMax() == count);
+        checkValue("mean", (long) snapshot.getMean(), count / 2);
+        for (double percentile : new double[] { 1, 10, 50, 90, 99, 99.9 }) {
+            checkValue("p" + percentile,
+                    snapshot.getValueAtPercentile(percentile),
+                    (long) (percentile / 100 * count));
+        }
+        check("p100", snapshot.getValueAtPercentile(100) == count);
+
+        // the interval snapshot resets the histogram
+        check("interval", histogram.getIntervalSnapshot().getCount() == count);
+        check("interval reset", histogram.getSnapshot().getCount() == 0);
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        snapshot = histogram.getIntervalSnapshot();
+        check("clamp", snapshot.getMin() == 0 &&
+                snapshot.getMax() == DataLinkHistogram.MAX_VALUE);
+
+        // record from several threads
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int value = 0; value < count; value++) {
+                    histogram.record(value);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+            }
+        }
+        check("threads",
+                histogram.getSnapshot().getCount() == count * threads.length);
+
+        // the latency for each stream ID
+        DataLinkLatency latency = new DataLinkLatency();
+        DLPacket packet = new DLPacket();
+        final long arrival = 1490000000000000L;
+        for (int i = 0; i < 100; i++) {
+            packet.setStreamid((i % 2 == 0) ? "IU_ANMO_00_BHZ/MSEED"
+                    : "IU_COLA_00_BHZ/MSEED");
+            packet.setDataend(arrival - 2000000 - i * 1000);
+            packet.setPkttime(arrival - 1000000);
+            latency.record(packet, arrival);
+        }
+        check("streamids", latency.getStreamids().size() == 2);
+        snapshot =
+                latency.getDataLatency("IU_ANMO_00_BHZ/MSEED").getSnapshot();
+        check("data count", snapshot.getCount() == 50);
+        checkValue("data min", snapshot.getMin(), 2000000);
+        checkValue("data max", snapshot.getMax(), 2098000);
+        snapshot = latency.getPacketLatency("IU_COLA_00_BHZ/MSEED")
+                .getSnapshot();
+        checkValue("packet p50", snapshot.getValueAtPercentile(50), 1000000);
+        // only the powers of 2 with latencies are allocated
+        check("allocated", latency.getDataLatency("IU_ANMO_00_BHZ/MSEED")
+                .getAllocatedBytes() == 1024 &&
+                latency.getPacketLatency("IU_COLA_00_BHZ/MSEED")
+                        .getAllocatedBytes() == 512);
+        check("missing", latency.getDataLatency("XX_STA") == null);
+        latency.reset();
+        check("latency reset", latency.getPacketLatency("IU_COLA_00_BHZ/MSEED")
+                .getSnapshot().getCount() == 0);
+    }
+}
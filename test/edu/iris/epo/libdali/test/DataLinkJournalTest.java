@@ -0,0 +1,223 @@
+package edu.iris.epo.libdali.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import edu.iris.epo.libdali.DLPacket;
+import edu.iris.epo.libdali.DataLinkJournal;
+
+/**
+ * DataLink Journal Test, appends packets while a consumer tails the journal
+ * and checks the recovery and retention.
+ *
+ * @author kevin
+ */
+public class DataLinkJournalTest extends AbstractDataLinkTest {
+    private static final String ANMO = "IU_ANMO_00_BHZ/MSEED";
+
+    public static void main(String[] args) {
+        new DataLinkJournalTest().run();
+    }
+
+    private final int numPackets = 1000;
+    private final int segmentSize = 20000;
+
+    private void append(DataLinkJournal journal, int first, int last)
+            throws IOException {
+        DLPacket packet = new DLPacket();
+        byte[] data = new byte[SLINKPACKETSIZE];
+        packet.setStreamid(ANMO);
+        packet.setDatasize(data.length);
+        for (int i = first; i <= last; i++) {
+            packet.setPktid(i);
+            packet.setPkttime(i * 10);
+            packet.setDatastart(i * 100);
+            packet.setDataend(i * 100 + 99);
+            data[0] = (byte) i;
+            journal.append(packet, data);
+        }
+    }
+
+    /**
+     * Corrupt the last byte of the packet data of a record.
+     */
+    private void corrupt(File dir, long offset) throws IOException {
+        File segment = null;
+        long base = -1;
+        for (File file : dir.listFiles()) {
+            long b = Long.parseLong(file.getName().substring(0, 20));
+            if (b <= offset && b > base) {
+                base = b;
+                segment = file;
+            }
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            long position = offset - base;
+            raf.seek(position);
+            raf.seek(position + 4 + raf.readInt() - 1);
+            int value = raf.read();
+            raf.seek(raf.getFilePointer() - 1);
+            raf.write(value ^ 0xff);
+        }
+    }
+
+    private void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    /**
+     * Read the packets and check they are consecutive.
+     * 
+     * @return the number of packets read or -1 if error.
+     */
+    private int readAll(DataLinkJournal journal, long offset, long first,
+            boolean tail) throws InterruptedException {
+        DLPacket packet = new DLPacket();
+        byte[] data = new byte[MAXPACKETSIZE];
+        int count = 0;
+        for (long expected = first; expected <= numPackets; expected++) {
+            if (tail && !journal.await(offset, 10000)) {
+                System.out.println("await timeout");
+                return -1;
+            }
+            long next = journal.read(offset, packet, data);
+            if (next == offset || packet.getPktid() != expected ||
+                    packet.getDataend() != expected * 100 + 99 ||
+                    data[0] != (byte) expected ||
+                    packet.getDatasize() != SLINKPACKETSIZE ||
+                    !ANMO.equals(packet.getStreamid()) ||
+                    packet.getStreamIndex() < 0) {
+                System.out.printf("read %d expected %d\n",
+                        packet.getPktid(), expected);
+                return -1;
+            }
+            offset = next;
+            count++;
+        }
+        check("end", journal.read(offset, packet, data) == offset);
+        return count;
+    }
+
+    /**
+     * Corrupt records and check that the journal is truncated.
+     */
+    private void runTorn(File dir) throws IOException, InterruptedException {
+        DataLinkJournal journal = new DataLinkJournal(dir, segmentSize);
+        long[] offsets = new long[numPackets + 1];
+        for (int i = 1; i <= numPackets; i++) {
+            offsets[i] = journal.getEndOffset();
+            append(journal, i, i);
+        }
+        journal.close();
+
+        // a torn record in the last segment truncates the segment
+        corrupt(dir, offsets[numPackets - 1]);
+        journal = new DataLinkJournal(dir, segmentSize);
+        check("torn end", journal.getEndOffset() == offsets[numPackets - 1]);
+        DLPacket packet = new DLPacket();
+        byte[] data = new byte[MAXPACKETSIZE];
+        check("torn read", journal.read(offsets[numPackets - 2], packet,
+                data) == offsets[numPackets - 1] &&
+                packet.getPktid() == numPackets - 2);
+        check("torn next", journal.read(offsets[numPackets - 1], packet,
+                data) == offsets[numPackets - 1]);
+        // the torn record is replaced
+        append(journal, numPackets - 1, numPackets);
+        int segments = journal.getSegmentCount();
+        journal.close();
+        journal = new DataLinkJournal(dir, segmentSize);
+        check("replaced", journal.getSegmentCount() == segments &&
+                readAll(journal, 0, 1, false) == numPackets);
+        journal.close();
+
+        // a corrupt record in an earlier segment truncates the journal
+        corrupt(dir, offsets[numPackets / 2]);
+        journal = new DataLinkJournal(dir, segmentSize);
+        check("corrupt end", journal.getEndOffset() == offsets[numPackets / 2]);
+        check("corrupt segments", journal.getSegmentCount() < segments);
+        journal.close();
+
+        // the age retention is checked when the journal is opened
+        append(journal = new DataLinkJournal(dir, segmentSize), 1, 100);
+        journal.close();
+        Thread.sleep(10);
+        journal = new DataLinkJournal(dir, segmentSize, 0, 1);
+        check("open age", journal.getSegmentCount() == 1);
+        journal.close();
+    }
+
+    @Override
+    public void run() {
+        File dir = null;
+        try {
+            dir = Files.createTempDirectory("DataLinkJournalTest").toFile();
+            DataLinkJournal journal = new DataLinkJournal(dir, segmentSize);
+            try {
+                new DataLinkJournal(dir, 1000);
+                System.out.println("invalid segment size accepted");
+            } catch (IllegalArgumentException ex) {
+            }
+
+            // tail the journal while appending
+            final int[] tailed = new int[1];
+            Thread consumer = new Thread(() -> {
+                try {
+                    tailed[0] = readAll(journal, 0, 1, true);
+                } catch (InterruptedException ex) {
+                }
+            });
+            consumer.start();
+            append(journal, 1, numPackets);
+            consumer.join();
+            check("tail", tailed[0] == numPackets);
+            check("segments", journal.getSegmentCount() > 10);
+            long end = journal.getEndOffset();
+            journal.close();
+
+            // recover the journal
+            DataLinkJournal reopened = new DataLinkJournal(dir, segmentSize);
+            check("recover end", reopened.getEndOffset() == end);
+            check("recover read", readAll(reopened, 0, 1, false) == numPackets);
+
+            // retain by size
+            reopened.setRetention(segmentSize * 5L, 0);
+            check("retain size", reopened.getSegmentCount() <= 5);
+            long start = reopened.getStartOffset();
+            check("start", start > 0);
+            try {
+                reopened.read(0, new DLPacket(), new byte[MAXPACKETSIZE]);
+                System.out.println("deleted offset accepted");
+            } catch (IllegalArgumentException ex) {
+            }
+            DLPacket packet = new DLPacket();
+            reopened.read(start, packet, new byte[MAXPACKETSIZE]);
+            long first = packet.getPktid();
+            check("retain read", first > 1 && readAll(reopened, start, first,
+                    false) == numPackets - first + 1);
+
+            // retain by age
+            append(reopened, numPackets + 1, numPackets + 100);
+            Thread.sleep(10);
+            reopened.setRetention(0, 1);
+            check("retain age", reopened.getSegmentCount() == 1);
+            reopened.close();
+            delete(dir);
+            dir = Files.createTempDirectory("DataLinkJournalTest").toFile();
+            runTorn(dir);
+        } catch (IOException | InterruptedException ex) {
+            System.out.println(ex);
+        } finally {
+            if (dir != null) {
+                delete(dir);
+            }
+        }
+    }
+}
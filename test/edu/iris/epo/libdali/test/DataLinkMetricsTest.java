@@ -0,0 +1,130 @@
+package edu.iris.epo.libdali.test;
+
+import java.lang.management.ManagementFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import edu.iris.epo.libdali.DataLinkClient;
+import edu.iris.epo.libdali.DataLinkLogger;
+import edu.iris.epo.libdali.DataLinkMetrics;
+import edu.iris.epo.libdali.DataLinkRing;
+import edu.iris.epo.libdali.DataLinkServer;
+import edu.iris.epo.libdali.DataLinkUtils;
+import edu.iris.epo.libdali.IStreamid;
+
+/**
+ * DataLink Metrics Test, checks the client metrics against the embedded
+ * DataLink server.
+ *
+ * @author kevin
+ */
+public class DataLinkMetricsTest extends AbstractDataLinkTest {
+    public static void main(String[] args) {
+        new DataLinkMetricsTest().run();
+    }
+
+    private final int numPackets = 100;
+
+    @Override
+    public void run() {
+        Logger logger = Logger.getLogger(DataLinkMetricsTest.class.getName());
+        logger.setLevel(Level.SEVERE);
+        DataLinkServer server = startServer(
+                new DataLinkRing(numPackets * 2, SLINKPACKETSIZE),
+                new DataLinkLogger(logger));
+        if (server == null) {
+            return;
+        }
+        DataLinkClient dlc =
+                new DataLinkClient(DataLinkMetricsTest.class.getSimpleName(),
+                        new DataLinkLogger(logger));
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            DataLinkMetrics process = DataLinkMetrics.getProcessMetrics();
+            check("process registered", process.getObjectName() != null &&
+                    mbs.isRegistered(process.getObjectName()));
+            long processPackets = process.getPackets();
+
+            setAddress(dlc.getDataLinkProperties(), server.getAddress());
+            check("connect", dlc.connect());
+            DataLinkMetrics metrics = dlc.getMetrics();
+            ObjectName name = metrics.getObjectName();
+            check("client registered", name != null && mbs.isRegistered(name));
+
+            // another client of the same server has its own MBean
+            DataLinkClient other = new DataLinkClient(
+                    DataLinkMetricsTest.class.getSimpleName(),
+                    new DataLinkLogger(logger));
+            setAddress(other.getDataLinkProperties(), server.getAddress());
+            check("other connect", other.connect());
+            ObjectName otherName = other.getMetrics().getObjectName();
+            check("other registered", otherName != null &&
+                    !otherName.equals(name) && mbs.isRegistered(otherName));
+            other.close();
+            check("exchangeIDs", !dlc.exchangeIDs().isError());
+
+            // write packets
+            IStreamid streamid =
+                    DataLinkUtils.createStreamid("IU", "ANMO", "00", "BHZ");
+            byte[] packet = new byte[SLINKPACKETSIZE];
+            for (int i = 0; i < numPackets; i++) {
+                check("write", !dlc.write(packet, packet.length, streamid, i,
+                        i + 1, true).isError());
+            }
+            check("writes", metrics.getWrites() == numPackets);
+            check("bytes sent",
+                    metrics.getBytesSent() > numPackets * SLINKPACKETSIZE);
+
+            // read a packet and a missing packet
+            check("read", !dlc.read(1).isError());
+            dlc.read(numPackets * 4);
+            check("reads", metrics.getReads() == 2);
+
+            // collect the packets
+            check("position", !dlc.position(DATALINK_POSITION_EARLIEST, 0)
+                    .isError());
+            for (int i = 0; i < numPackets; i++) {
+                check("collect", !dlc.collect(false, true).isError());
+            }
+            check("collects", metrics.getCollects() == numPackets);
+            check("packets", metrics.getPackets() == numPackets + 1);
+            check("packet bytes", metrics.getPacketBytes() ==
+                    (numPackets + 1) * SLINKPACKETSIZE);
+            check("bytes received", metrics.getBytesReceived() > metrics
+                    .getPacketBytes());
+            check("recvdatas", metrics.getRecvdatas() > metrics.getPackets());
+            check("sendpackets", metrics.getSendpackets() > numPackets);
+            check("nanos", metrics.getReadBlockedNanos() > 0 &&
+                    metrics.getParseNanos() > 0);
+            check("errors", metrics.getErrors() == 0);
+            check("process packets",
+                    process.getPackets() - processPackets == numPackets + 1);
+            check("MBean packets", Long.valueOf(numPackets + 1)
+                    .equals(mbs.getAttribute(name, "Packets")));
+
+            // the error counts
+            server.closeConnections();
+            check("collect closed", dlc.collect(false, true).isError());
+            long errors = 0;
+            for (long count : metrics.getErrorCounts().values()) {
+                errors += count;
+            }
+            check("error counts", metrics.getErrors() == 1 && errors == 1);
+            dlc.close();
+            check("client unregistered",
+                    metrics.getObjectName() == null && !mbs.isRegistered(name));
+
+            metrics.reset();
+            check("reset", metrics.getPackets() == 0 &&
+                    process.getPackets() - processPackets == numPackets + 1);
+        } catch (Exception ex) {
+            System.out.println(ex);
+        } finally {
+            dlc.close();
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package edu.iris.epo.libdali.test;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import edu.iris.epo.libdali.DLPacket;
+import edu.iris.epo.libdali.DataLinkClient;
+import edu.iris.epo.libdali.DataLinkClient.DL_RETVAL;
+import edu.iris.epo.libdali.DataLinkPayload;
+import edu.iris.epo.libdali.DataLinkPropertiesKey;
+import edu.iris.epo.libdali.DataLinkRing;
+import edu.iris.epo.libdali.DataLinkServer;
+import edu.iris.epo.libdali.Streamid;
+
+/**
+ * DataLink Payload Test, checks the direct read mode and that a payload can
+ * be written to a file and forwarded to another server without copying.
+ *
+ * @author kevin
+ */
+public class DataLinkPayloadTest extends AbstractDataLinkTest {
+    public static void main(String[] args) {
+        new DataLinkPayloadTest().run();
+    }
+
+    private DataLinkClient connect(DataLinkServer server) {
+        DataLinkClient dlc = new DataLinkClient(
+                DataLinkPayloadTest.class.getSimpleName(), null);
+        setAddress(dlc.getDataLinkProperties(), server.getAddress());
+        check("connect", dlc.connect());
+        check("exchangeIDs", !dlc.exchangeIDs().isError());
+        return dlc;
+    }
+
+    private DataLinkServer createServer() {
+        return startServer(new DataLinkRing(10, SLINKPACKETSIZE), null);
+    }
+
+    /**
+     * Check that a payload read from a stalled server times out.
+     */
+    private void runStalled() throws Exception {
+        try (ServerSocket ss = new ServerSocket(0)) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try (Socket socket = ss.accept()) {
+                        byte[] header = ("PACKET IU_ANMO_00_BHZ/MSEED 1 2 3 4 "
+                                + SLINKPACKETSIZE).getBytes(ASCII);
+                        OutputStream os = socket.getOutputStream();
+                        os.write('D');
+                        os.write('L');
+                        os.write(header.length);
+                        os.write(header);
+                        // only part of the payload is sent
+                        os.write(new byte[100]);
+                        os.flush();
+                        Thread.sleep(10000);
+                    } catch (Exception ex) {
+                    }
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+            DataLinkClient dlc = new DataLinkClient(
+                    DataLinkPayloadTest.class.getSimpleName(), null);
+            try {
+                setAddress(dlc.getDataLinkProperties(),
+                        new InetSocketAddress("localhost", ss.getLocalPort()));
+                dlc.getDataLinkProperties()
+                        .setProperty(DataLinkPropertiesKey.IOTIMEOUT, "200");
+                check("stalled connect", dlc.connect());
+                dlc.setDirectRead(true);
+                long start = System.currentTimeMillis();
+                check("stalled timeout",
+                        dlc.read(1) == DL_RETVAL.SOCKET_TIMEOUT &&
+                                dlc.getPayload() == null &&
+                                System.currentTimeMillis() - start < 5000);
+            } finally {
+                dlc.close();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        DataLinkServer source = createServer();
+        DataLinkServer target = createServer();
+        if (source == null || target == null) {
+            return;
+        }
+        DataLinkClient reader = null;
+        DataLinkClient writer = null;
+        File file = null;
+        try {
+            reader = connect(source);
+            writer = connect(target);
+            Streamid streamid = new Streamid("IU_ANMO_00_BHZ/MSEED");
+            byte[] packet = new byte[SLINKPACKETSIZE];
+            for (int i = 0; i < packet.length; i++) {
+                packet[i] = (byte) i;
+            }
+            check("write", !reader.write(packet, packet.length, streamid, 1, 2,
+                    true).isError());
+
+            reader.setDirectRead(true);
+            check("direct", reader.isDirectRead());
+            long pktid = source.getRing().getLatest();
+            check("read", !reader.read(pktid).isError());
+            DataLinkPayload payload = reader.getPayload();
+            check("payload", payload != null &&
+                    payload.getSize() == packet.length);
+            if (payload == null) {
+                return;
+            }
+            ByteBuffer buffer = payload.getBuffer();
+            check("read only", buffer.isReadOnly() && buffer.isDirect() &&
+                    buffer.remaining() == packet.length);
+            byte[] data = new byte[packet.length];
+            buffer.duplicate().get(data);
+            check("data", Arrays.equals(data, packet));
+
+            // write the payload to a file
+            file = File.createTempFile("payload", ".dat");
+            try (FileChannel fc = FileChannel.open(file.toPath(),
+                    StandardOpenOption.WRITE)) {
+                check("writeTo", payload.writeTo(fc) == packet.length);
+            }
+            check("file", Arrays.equals(Files.readAllBytes(file.toPath()),
+                    packet));
+
+            // forward the payload to the other server
+            check("forward", !writer.write(buffer, streamid, 1, 2, true)
+                    .isError() && buffer.remaining() == packet.length);
+            DLPacket dlpacket = new DLPacket();
+            check("ring", target.getRing().read(target.getRing().getLatest(),
+                    dlpacket, data) && dlpacket.getDatasize() == packet.length
+                    && Arrays.equals(data, packet));
+
+            // the payload is released when the last reference is released
+            payload.retain();
+            payload.release();
+            payload.release();
+            try {
+                payload.release();
+                check("double release", false);
+            } catch (IllegalStateException ex) {
+            }
+            try {
+                payload.retain();
+                check("retain released", false);
+            } catch (IllegalStateException ex) {
+            }
+            runStalled();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        } finally {
+            if (file != null) {
+                file.delete();
+            }
+            if (reader != null) {
+                reader.close();
+            }
+            if (writer != null) {
+                writer.close();
+            }
+            source.close();
+            target.close();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package edu.iris.epo.libdali.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.iris.epo.libdali.DataLinkCollector;
+import edu.iris.epo.libdali.DataLinkFlow;
+import edu.iris.epo.libdali.DataLinkLogger;
+import edu.iris.epo.libdali.DataLinkPacket;
+import edu.iris.epo.libdali.DataLinkPublisher;
+import edu.iris.epo.libdali.DataLinkPublisher.Overflow;
+import edu.iris.epo.libdali.DataLinkRing;
+import edu.iris.epo.libdali.DataLinkServer;
+
+/**
+ * DataLink Publisher Test, a slow subscriber with each overflow policy.
+ *
+ * @author kevin
+ */
+public class DataLinkPublisherTest extends AbstractDataLinkTest {
+    /** The slow subscriber */
+    private class TestSubscriber
+            implements DataLinkFlow.Subscriber<DataLinkPacket> {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private Throwable error;
+        private long lastPktid;
+        private boolean orderFlag = true;
+        private DataLinkPublisher publisher;
+        private long received;
+        private int spilled;
+        private DataLinkFlow.Subscription subscription;
+
+        @Override
+        public void onComplete() {
+            done.countDown();
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+            done.countDown();
+        }
+
+        @Override
+        public void onNext(DataLinkPacket packet) {
+            if (packet.getPktid() <= lastPktid ||
+                    packet.getData().get(0) != (byte) packet.getPktid()) {
+                orderFlag = false;
+            }
+            lastPktid = packet.getPktid();
+            spilled = Math.max(spilled, publisher.getSpilled());
+            if (++received % REQUEST == 0) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException ex) {
+                }
+                subscription.request(REQUEST);
+            }
+            if (lastPktid == numPackets) {
+                publisher.close();
+            }
+        }
+
+        @Override
+        public void onSubscribe(DataLinkFlow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(REQUEST);
+        }
+    }
+
+    private static final int REQUEST = 10;
+
+    public static void main(String[] args) {
+        new DataLinkPublisherTest().run();
+    }
+
+    private Logger logger;
+    private final int numPackets = 5000;
+    private DataLinkServer server;
+
+    @Override
+    public void run() {
+        logger = Logger.getLogger(DataLinkPublisherTest.class.getName());
+        logger.setLevel(Level.SEVERE);
+        server = startServer(
+                new DataLinkRing(numPackets, SLINKPACKETSIZE),
+                new DataLinkLogger(logger));
+        if (server == null) {
+            return;
+        }
+        try {
+            byte[] packet = new byte[SLINKPACKETSIZE];
+            for (int i = 1; i <= numPackets; i++) {
+                packet[0] = (byte) i;
+                server.write("IU_ANMO_00_BHZ/MSEED", i, i + 1, packet, 0,
+                        packet.length);
+            }
+            for (Overflow overflow : Overflow.values()) {
+                run(overflow);
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    private void run(Overflow overflow) {
+        DataLinkCollector collector = new DataLinkCollector(
+                DataLinkPublisherTest.class.getSimpleName(),
+                new DataLinkLogger(logger));
+        setAddress(collector.getDataLinkProperties(), server.getAddress());
+        collector.setPosition(DATALINK_POSITION_EARLIEST, 0);
+        DataLinkPublisher publisher =
+                new DataLinkPublisher(collector, 100, overflow);
+        TestSubscriber subscriber = new TestSubscriber();
+        subscriber.publisher = publisher;
+        publisher.subscribe(subscriber);
+        try {
+            if (!subscriber.done.await(60, TimeUnit.SECONDS)) {
+                System.out.printf("%s timeout\n", overflow);
+                return;
+            }
+        } catch (InterruptedException ex) {
+            return;
+        } finally {
+            publisher.close();
+        }
+        if (subscriber.error != null) {
+            System.out.printf("%s error %s\n", overflow, subscriber.error);
+        }
+        if (!subscriber.orderFlag || subscriber.lastPktid != numPackets) {
+            System.out.printf("%s out of order, last %d\n", overflow,
+                    subscriber.lastPktid);
+        }
+        long dropped = publisher.getDropped();
+        if (subscriber.received + dropped != numPackets) {
+            System.out.printf("%s received %d dropped %d\n", overflow,
+                    subscriber.received, dropped);
+        }
+        if (overflow == Overflow.DROP_OLDEST && dropped == 0 ||
+                overflow != Overflow.DROP_OLDEST && dropped != 0) {
+            System.out.printf("%s dropped %d\n", overflow, dropped);
+        }
+        if (overflow == Overflow.SPILL && subscriber.spilled == 0) {
+            System.out.printf("%s did not spill\n", overflow);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package edu.iris.epo.libdali.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import edu.iris.epo.libdali.DataLinkClient.DL_RETVAL;
+import edu.iris.epo.libdali.DataLinkConnection;
+import edu.iris.epo.libdali.DataLinkReply;
+import edu.iris.epo.libdali.DataLinkRing;
+import edu.iris.epo.libdali.DataLinkSelector;
+import edu.iris.epo.libdali.DataLinkServer;
+import edu.iris.epo.libdali.IDataLinkListener;
+
+/**
+ * DataLink Reply Test, issues the async commands to several servers on a
+ * single selector thread and checks the replies.
+ *
+ * @author kevin
+ */
+public class DataLinkReplyTest
+        extends AbstractDataLinkTest implements IDataLinkListener {
+    private static final String ANMO = "IU_ANMO_00_BHZ/MSEED";
+
+    public static void main(String[] args) {
+        new DataLinkReplyTest().run();
+    }
+
+    private final Semaphore closed = new Semaphore(0);
+    private final Semaphore connected = new Semaphore(0);
+    private final int numServers = 3;
+
+    @Override
+    public void closed(DataLinkConnection conn, DL_RETVAL retVal) {
+        closed.release();
+    }
+
+    @Override
+    public void connected(DataLinkConnection conn) {
+        conn.exchangeIDs();
+        connected.release();
+    }
+
+    @Override
+    public void received(DataLinkConnection conn, DL_RETVAL retVal) {
+    }
+
+    @Override
+    public void run() {
+        DataLinkSelector selector = new DataLinkSelector(
+                DataLinkReplyTest.class.getSimpleName(), null);
+        List<DataLinkServer> servers = new ArrayList<DataLinkServer>();
+        List<DataLinkConnection> connections =
+                new ArrayList<DataLinkConnection>();
+        try {
+            if (!selector.start()) {
+                System.out.println("selector start failed");
+                return;
+            }
+            byte[] data = new byte[SLINKPACKETSIZE];
+            for (int i = 0; i < numServers; i++) {
+                DataLinkServer server = startServer(getName() + i,
+                        new DataLinkRing(10, SLINKPACKETSIZE), null);
+                if (server == null) {
+                    return;
+                }
+                servers.add(server);
+                for (int j = 1; j <= 3; j++) {
+                    data[0] = (byte) (i * 10 + j);
+                    server.getRing().write(ANMO, j * 1000, j * 1000 + 999,
+                            data, 0, data.length);
+                }
+                DataLinkConnection conn = new DataLinkConnection(
+                        DataLinkReplyTest.class.getSimpleName(), null);
+                setAddress(conn.getDataLinkProperties(), server.getAddress());
+                check("connect", conn.connect(selector, this));
+                connections.add(conn);
+            }
+            check("connected", connected.tryAcquire(numServers, 10,
+                    TimeUnit.SECONDS));
+
+            // all of the commands are in flight at once
+            List<DataLinkReply> infos = new ArrayList<DataLinkReply>();
+            List<DataLinkReply> positions = new ArrayList<DataLinkReply>();
+            List<DataLinkReply> matches = new ArrayList<DataLinkReply>();
+            List<DataLinkReply> rejects = new ArrayList<DataLinkReply>();
+            List<DataLinkReply> reads = new ArrayList<DataLinkReply>();
+            List<DataLinkReply> missing = new ArrayList<DataLinkReply>();
+            List<DataLinkReply> all = new ArrayList<DataLinkReply>();
+            for (DataLinkConnection conn : connections) {
+                infos.add(conn.getinfoAsync("STATUS", null));
+                positions.add(conn.positionAfterAsync(2000));
+                matches.add(conn.matchAsync("IU_.*"));
+                rejects.add(conn.rejectAsync("(["));
+                reads.add(conn.readAsync(2));
+                missing.add(conn.readAsync(99));
+            }
+            all.addAll(infos);
+            all.addAll(positions);
+            all.addAll(matches);
+            all.addAll(rejects);
+            all.addAll(reads);
+            all.addAll(missing);
+            CompletableFuture.allOf(all.toArray(new CompletableFuture<?>[0]))
+                    .get(10, TimeUnit.SECONDS);
+
+            for (int i = 0; i < numServers; i++) {
+                DataLinkReply info = infos.get(i);
+                check("info", info.get() == DL_RETVAL._NO_ERROR &&
+                        info.getMessage().contains("ServerID=\"" +
+                                DataLinkReplyTest.class.getSimpleName() + i));
+                DataLinkReply position = positions.get(i);
+                check("positionAfter",
+                        position.get() == DL_RETVAL._NO_ERROR &&
+                                "OK".equals(position.getStatus()) &&
+                                position.getValueLong() == 2);
+                check("match", matches.get(i).get() == DL_RETVAL._NO_ERROR &&
+                        matches.get(i).getValueLong() == 1);
+                DataLinkReply reject = rejects.get(i);
+                check("reject", reject.get() == DL_RETVAL.INVALIDRESP &&
+                        "ERROR".equals(reject.getStatus()));
+                DataLinkReply read = reads.get(i);
+                check("read", read.get() == DL_RETVAL._NO_ERROR &&
+                        read.getPacket() != null &&
+                        read.getPacket().getPktid() == 2 &&
+                        ANMO.equals(read.getPacket().getStreamid()) &&
+                        read.getData().length == SLINKPACKETSIZE &&
+                        read.getData()[0] == (byte) (i * 10 + 2));
+                DataLinkReply notFound = missing.get(i);
+                check("read missing",
+                        notFound.get() == DL_RETVAL.INVALIDRESP &&
+                                notFound.getPacket() == null &&
+                                notFound.getMessage().contains("not found"));
+            }
+
+            // the commands fail without a connection
+            DataLinkConnection conn = new DataLinkConnection(
+                    DataLinkReplyTest.class.getSimpleName(), null);
+            check("no socket", conn.readAsync(1).get() == DL_RETVAL.NO_SOCKET);
+
+            // the caller may complete the reply, e.g. with a timeout
+            DataLinkReply timeout = new DataLinkReply();
+            check("complete", timeout.complete(DL_RETVAL.SOCKET_TIMEOUT) &&
+                    timeout.get() == DL_RETVAL.SOCKET_TIMEOUT &&
+                    timeout.getData() == null);
+
+            // commands racing the close complete and do not shift the
+            // replies of the next connection
+            conn = connections.get(0);
+            for (int i = 0; i < 20; i++) {
+                final DataLinkConnection c = conn;
+                final List<DataLinkReply> racing =
+                        new ArrayList<DataLinkReply>();
+                Thread thread = new Thread() {
+                    @Override
+                    public void run() {
+                        for (int j = 0; j < 50; j++) {
+                            racing.add(c.readAsync(1));
+                        }
+                    }
+                };
+                thread.start();
+                conn.close();
+                thread.join();
+                check("closed", closed.tryAcquire(10, TimeUnit.SECONDS));
+                CompletableFuture
+                        .allOf(racing.toArray(new CompletableFuture<?>[0]))
+                        .get(10, TimeUnit.SECONDS);
+                check("reconnect", conn.connect(selector, this) &&
+                        connected.tryAcquire(10, TimeUnit.SECONDS));
+                DataLinkReply read = conn.readAsync(3);
+                check("read after reconnect",
+                        read.get(10, TimeUnit.SECONDS) == DL_RETVAL._NO_ERROR &&
+                                read.getPacket().getPktid() == 3);
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        } finally {
+            for (DataLinkConnection conn : connections) {
+                conn.close();
+            }
+            selector.close();
+            for (DataLinkServer server : servers) {
+                server.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package edu.iris.epo.libdali.test;
+
+import edu.iris.epo.libdali.DLPacket;
+import edu.iris.epo.libdali.DataLinkClient;
+import edu.iris.epo.libdali.DataLinkClient.DL_RETVAL;
+import edu.iris.epo.libdali.DataLinkRing;
+import edu.iris.epo.libdali.DataLinkServer;
+import edu.iris.epo.libdali.DataLinkUtils;
+import edu.iris.epo.libdali.IStreamid;
+
+/**
+ * DataLink Server Test, runs the DataLink client against the embedded
+ * DataLink server.
+ *
+ * @author kevin
+ */
+public class DataLinkServerTest extends AbstractDataLinkTest {
+    private static final String ANMO = "IU_ANMO_00_BHZ/MSEED";
+    private static final String COLA = "IU_COLA_00_BHZ/MSEED";
+
+    public static void main(String[] args) {
+        DataLinkServerTest test = new DataLinkServerTest();
+        for (int index = 0; index < args.length; index++) {
+            String[] subArg = args[index].split("=");
+            if (subArg.length == 2) {
+                String arg = subArg[0].toUpperCase();
+                if (arg.startsWith("PACK")) {
+                    test.numPackets = Integer.parseInt(subArg[1]);
+                }
+            }
+        }
+        test.run();
+    }
+
+    private int numPackets = 100;
+    private final byte[] packet = new byte[SLINKPACKETSIZE];
+    private DataLinkServer server;
+
+    private DL_RETVAL check(String name, DL_RETVAL retVal) {
+        if (retVal.isError()) {
+            System.out.printf("%s returned %s\n", name, retVal);
+        }
+        return retVal;
+    }
+
+    private DataLinkClient connect() {
+        DataLinkClient dlc =
+                new DataLinkClient(DataLinkServerTest.class.getSimpleName(),
+                        null);
+        setAddress(dlc.getDataLinkProperties(), server.getAddress());
+        check("connect", dlc.connect());
+        check("exchangeIDs", dlc.exchangeIDs());
+        return dlc;
+    }
+
+    @Override
+    public void run() {
+        server = startServer(
+                new DataLinkRing(numPackets * 2, SLINKPACKETSIZE), null);
+        if (server == null) {
+            return;
+        }
+        DataLinkClient reader = null;
+        DataLinkClient writer = null;
+        try {
+            // ANMO packets have odd packet IDs
+            for (int i = 1; i <= numPackets; i++) {
+                packet[0] = (byte) i;
+                server.write((i % 2 != 0) ? ANMO : COLA, i * 100L,
+                        i * 100L + 99, packet, 0, packet.length);
+            }
+            reader = connect();
+            check("maxpktsize", reader.getMaxPktSize() == SLINKPACKETSIZE);
+            check("writeperm", reader.isWritePerm());
+            if (!check("getinfo", reader.getinfo("STATUS", null)).isError()) {
+                check("getinfo STATUS",
+                        reader.getReadText().contains("<Status"));
+            }
+            check("getinfo BOGUS", reader.getinfo("BOGUS", null).isError());
+            runRead(reader);
+            runStream(reader, writer = connect());
+            reader.close();
+            runNonBlocking(reader = connect());
+        } finally {
+            if (reader != null) {
+                reader.close();
+            }
+            if (writer != null) {
+                writer.close();
+            }
+            server.close();
+        }
+    }
+
+    private void runNonBlocking(DataLinkClient dlc) {
+        DLPacket dlpacket = dlc.getPacket();
+        if (check("position earliest",
+                dlc.position(DATALINK_POSITION_EARLIEST, 0)).isError()) {
+            return;
+        }
+        // the packets are collected without blocking as they arrive
+        long latest = server.getRing().getLatest();
+        long expected = 1;
+        long end = System.currentTimeMillis() + 10000;
+        while (expected <= latest && System.currentTimeMillis() < end) {
+            DL_RETVAL retVal = dlc.collect(false, false);
+            if (retVal == DL_RETVAL.NO_DATA) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                continue;
+            }
+            if (check("collect non-blocking", retVal).isError()) {
+                return;
+            }
+            if (dlpacket.getPktid() != expected) {
+                System.out.printf("collect non-blocking pktid %d expected %d\n",
+                        dlpacket.getPktid(), expected);
+                return;
+            }
+            expected++;
+        }
+        check("collect non-blocking count", expected == latest + 1);
+        // nothing more is available
+        check("collect no data",
+                dlc.collect(false, false) == DL_RETVAL.NO_DATA);
+        // end the stream
+        while (!check("collect end", dlc.collect(true, true)).isError() &&
+                dlpacket.getDatasize() != 0) {
+        }
+    }
+
+    private void runRead(DataLinkClient dlc) {
+        DLPacket dlpacket = dlc.getPacket();
+        if (!check("read", dlc.read(5)).isError()) {
+            check("read pktid", dlpacket.getPktid() == 5);
+            check("read streamid", ANMO.equals(dlpacket.getStreamid()));
+            check("read datastart", dlpacket.getDatastart() == 500);
+            check("read datasize",
+                    dlpacket.getDatasize() == SLINKPACKETSIZE);
+            check("read data", dlc.getReadBuffer()[0] == 5);
+        }
+        // the server ERROR reply is returned in the response status
+        check("read missing", dlc.read(numPackets * 4).isError() ||
+                "ERROR".equals(dlc.getResponseStatus()));
+    }
+
+    private void runStream(DataLinkClient reader, DataLinkClient writer) {
+        DLPacket dlpacket = reader.getPacket();
+        if (check("read 10", reader.read(10)).isError()) {
+            return;
+        }
+        long pkttime = dlpacket.getPkttime();
+        check("match", reader.match("ANMO"));
+        check("match count", reader.getReponseValueLong() == 1);
+        check("position bad time",
+                reader.position(10, pkttime + 1).isError() ||
+                        "ERROR".equals(reader.getResponseStatus()));
+        check("position", reader.position(10, pkttime));
+        // a packet larger than the buffer is discarded and the stream must
+        // resume after it without gaps
+        DLPacket small = new DLPacket();
+        check("collect small buffer", reader.collect(false, true, small,
+                new byte[SLINKPACKETSIZE / 2]) == DL_RETVAL.INVALIDARG &&
+                small.getPktid() == 11);
+        long expected = 13;
+        while (expected <= numPackets) {
+            if (check("collect", reader.collect(false, true)).isError()) {
+                return;
+            }
+            if (dlpacket.getPktid() != expected) {
+                System.out.printf("collect pktid %d expected %d\n",
+                        dlpacket.getPktid(), expected);
+                return;
+            }
+            expected += 2;
+        }
+        // the packets written by another client are streamed
+        IStreamid streamid = DataLinkUtils.createStreamid("IU", "ANMO", "00",
+                "BHZ");
+        packet[0] = 42;
+        if (check("write", writer.write(packet, packet.length, streamid, 1, 2,
+                true)).isError()) {
+            return;
+        }
+        check("write pktid",
+                writer.getReadText().equals("OK " + (numPackets + 1) + " 0"));
+        if (!check("collect write", reader.collect(false, true)).isError()) {
+            check("collect write pktid",
+                    dlpacket.getPktid() == numPackets + 1);
+            check("collect write data", reader.getReadBuffer()[0] == 42);
+        }
+        // end the stream
+        while (!check("collect end", reader.collect(true, true)).isError() &&
+                dlpacket.getDatasize() != 0) {
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package edu.iris.epo.libdali.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.iris.epo.libdali.DLPacket;
+import edu.iris.epo.libdali.DataLinkCollector;
+import edu.iris.epo.libdali.DataLinkLogger;
+import edu.iris.epo.libdali.DataLinkRing;
+import edu.iris.epo.libdali.DataLinkServer;
+import edu.iris.epo.libdali.DataLinkStateFile;
+import edu.iris.epo.libdali.DataLinkStreamState;
+
+/**
+ * DataLink State File Test, checks the checkpoints survive a damaged bank and
+ * the collector resumes after the last checkpoint.
+ *
+ * @author kevin
+ */
+public class DataLinkStateFileTest extends AbstractDataLinkTest {
+    private static final String ANMO = "IU_ANMO_00_BHZ/MSEED";
+    private static final String COLA = "IU_COLA_00_BHZ/MSEED";
+
+    public static void main(String[] args) {
+        new DataLinkStateFileTest().run();
+    }
+
+    private File file;
+    private Logger logger;
+
+    private DataLinkCollector createCollector(DataLinkServer server) {
+        DataLinkCollector collector = new DataLinkCollector(
+                DataLinkStateFileTest.class.getSimpleName(),
+                new DataLinkLogger(logger));
+        setAddress(collector.getDataLinkProperties(), server.getAddress());
+        collector.setPosition(DATALINK_POSITION_EARLIEST, 0);
+        return collector;
+    }
+
+    /**
+     * Get the packet ID of the stream in the per-stream state.
+     */
+    private long getPktid(DataLinkStreamState state, String streamid) {
+        int slot = state.findSlot(streamid);
+        return slot < 0 ? -1 : state.getPktid(slot);
+    }
+
+    private DataLinkStateFile open(int maxStreams) throws IOException {
+        return new DataLinkStateFile(file,
+                new DataLinkStreamState(maxStreams));
+    }
+
+    @Override
+    public void run() {
+        logger = Logger.getLogger(DataLinkStateFileTest.class.getName());
+        logger.setLevel(Level.SEVERE);
+        try {
+            file = File.createTempFile("DataLinkStateFileTest", ".state");
+            runCheckpoint();
+            runCollector();
+        } catch (IOException ex) {
+            System.out.println(ex);
+        } finally {
+            if (file != null) {
+                file.delete();
+            }
+        }
+    }
+
+    private void runCheckpoint() throws IOException {
+        DataLinkStateFile stateFile = open(100);
+        check("empty", stateFile.getPktid() == 0);
+        DataLinkStreamState state = stateFile.getStreamState();
+        DLPacket packet = new DLPacket();
+        packet.setStreamid(ANMO);
+        packet.setPktid(10);
+        state.update(packet);
+        stateFile.checkpoint(10, 1000);
+        packet.setStreamid(COLA);
+        packet.setPktid(20);
+        state.update(packet);
+        stateFile.checkpoint(20, 2000);
+        stateFile.close();
+
+        stateFile = open(100);
+        state = stateFile.getStreamState();
+        check("pktid", stateFile.getPktid() == 20);
+        check("pkttime", stateFile.getPkttime() == 2000);
+        check("stream pktid", getPktid(state, ANMO) == 10 &&
+                getPktid(state, COLA) == 20);
+        stateFile.close();
+
+        // damage the newest bank, the second checkpoint is in the first bank
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(16 + 40);
+            raf.write(raf.read() ^ 0xff);
+        }
+        stateFile = open(100);
+        state = stateFile.getStreamState();
+        check("damaged pktid", stateFile.getPktid() == 10);
+        check("damaged stream pktid", getPktid(state, ANMO) == 10 &&
+                getPktid(state, COLA) == -1);
+        stateFile.close();
+
+        // change the maximum number of streams
+        stateFile = open(200);
+        check("layout pktid", stateFile.getPktid() == 10 &&
+                getPktid(stateFile.getStreamState(), ANMO) == 10);
+        check("layout temporary", !new File(file.getPath() + ".tmp").exists());
+        stateFile.checkpoint(30, 3000);
+        stateFile.close();
+        stateFile = open(200);
+        check("layout reopen pktid", stateFile.getPktid() == 30);
+        stateFile.close();
+    }
+
+    private void runCollector() throws IOException {
+        file.delete();
+        final int numPackets = 1000;
+        DataLinkServer server = startServer(
+                new DataLinkRing(numPackets, SLINKPACKETSIZE),
+                new DataLinkLogger(logger));
+        if (server == null) {
+            return;
+        }
+        try {
+            byte[] data = new byte[SLINKPACKETSIZE];
+            for (int i = 1; i <= numPackets; i++) {
+                server.write((i % 2 != 0) ? ANMO : COLA, i, i + 1, data, 0,
+                        data.length);
+            }
+            DataLinkStateFile stateFile = open(100);
+            DataLinkCollector collector = createCollector(server);
+            collector.setStateFile(stateFile, 0);
+            for (int i = 1; i <= numPackets / 2; i++) {
+                if (collector.collect(false).isError() ||
+                        collector.getPktid() != i) {
+                    System.out.printf("collect %d failed\n", i);
+                    break;
+                }
+            }
+            collector.close();
+            stateFile.close();
+
+            // restart resumes after the last packet
+            stateFile = open(100);
+            check("collector pktid", stateFile.getPktid() == numPackets / 2);
+            check("collector stream pktid",
+                    getPktid(stateFile.getStreamState(),
+                            ANMO) == numPackets / 2 - 1 &&
+                            getPktid(stateFile.getStreamState(),
+                                    COLA) == numPackets / 2);
+            collector = createCollector(server);
+            collector.setStateFile(stateFile, 0);
+            if (collector.collect(false).isError() ||
+                    collector.getPktid() != numPackets / 2 + 1) {
+                System.out.printf("resume pktid %d\n", collector.getPktid());
+            }
+            collector.close();
+
+            // a packet no longer in the ring resumes after its time
+            stateFile.checkpoint(numPackets * 2, 600);
+            collector = createCollector(server);
+            collector.setStateFile(stateFile, 0);
+            if (collector.collect(false).isError() ||
+                    collector.getPktid() != 600) {
+                System.out.printf("resume after pktid %d\n",
+                        collector.getPktid());
+            }
+            collector.close();
+            stateFile.close();
+        } finally {
+            server.close();
+        }
+    }
+}
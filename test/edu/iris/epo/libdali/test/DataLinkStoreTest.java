@@ -0,0 +1,119 @@
+package edu.iris.epo.libdali.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.List;
+
+import edu.iris.epo.libdali.DLPacket;
+import edu.iris.epo.libdali.DataLinkStore;
+import edu.iris.epo.libdali.Streamid;
+
+/**
+ * DataLink Store Test, checks the range queries with interleaved streams and
+ * late packets, the index recovery and the retention.
+ *
+ * @author kevin
+ */
+public class DataLinkStoreTest extends AbstractDataLinkTest {
+    private static final Streamid ANMO =
+            new Streamid("IU_ANMO_00_BHZ/MSEED");
+    private static final Streamid COLA =
+            new Streamid("IU_COLA_00_BHZ/MSEED");
+
+    public static void main(String[] args) {
+        new DataLinkStoreTest().run();
+    }
+
+    private final int segmentSize = 20000;
+
+    private void append(DataLinkStore store, Streamid streamid, int i)
+            throws IOException {
+        DLPacket packet = new DLPacket();
+        byte[] data = new byte[SLINKPACKETSIZE];
+        packet.setStreamid(streamid.getText());
+        packet.setDatasize(data.length);
+        packet.setDatastart(i * 100);
+        packet.setDataend(i * 100 + 99);
+        data[0] = (byte) i;
+        data[data.length - 1] = (byte) i;
+        store.append(packet, data);
+    }
+
+    /**
+     * Check the query returns the consecutive packets.
+     */
+    private void check(String name, List<ByteBuffer> views, int first,
+            int last) {
+        boolean result = views.size() == last - first + 1;
+        for (int i = 0; result && i < views.size(); i++) {
+            ByteBuffer view = views.get(i);
+            result = view.isReadOnly() && view.remaining() == SLINKPACKETSIZE &&
+                    view.get(0) == (byte) (first + i) &&
+                    view.get(SLINKPACKETSIZE - 1) == (byte) (first + i);
+        }
+        check(name, result);
+    }
+
+    private void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Override
+    public void run() {
+        File dir = null;
+        try {
+            dir = Files.createTempDirectory("DataLinkStoreTest").toFile();
+            DataLinkStore store = new DataLinkStore(dir, segmentSize);
+            for (int i = 1; i <= 100; i++) {
+                if (i != 50) {
+                    append(store, ANMO, i);
+                }
+                append(store, COLA, i);
+            }
+            // a late packet
+            append(store, ANMO, 50);
+            check("count", store.getPacketCount() == 200 &&
+                    store.getStreamCount() == 2);
+            check("range", store.query(ANMO, 4050, 5150), 40, 51);
+            check("exact", store.query(COLA, 1000, 1099), 10, 10);
+            check("all", store.query(ANMO, Long.MIN_VALUE, Long.MAX_VALUE),
+                    1, 100);
+            check("before", store.query(ANMO, 0, 99).isEmpty());
+            check("after", store.query(ANMO, 10100, 20000).isEmpty());
+            check("unknown", store.query(new Streamid("IU_ANMO_00_BHN/MSEED"),
+                    0, 10000).isEmpty());
+            store.close();
+
+            // the index is rebuilt when the store is opened
+            store = new DataLinkStore(dir, segmentSize);
+            check("recovered", store.getPacketCount() == 200);
+            check("recovered range", store.query(ANMO, 4050, 5150), 40, 51);
+
+            // the deleted segments are removed from the index
+            store.setRetention(2 * segmentSize, 0);
+            for (int i = 101; i <= 200; i++) {
+                append(store, ANMO, i);
+            }
+            long count = store.getPacketCount();
+            check("retention", count < 300 && count == store.query(ANMO,
+                    Long.MIN_VALUE, Long.MAX_VALUE).size() +
+                    store.query(COLA, Long.MIN_VALUE, Long.MAX_VALUE).size());
+            check("retained", store.query(ANMO, 19000, 19999), 190, 199);
+            store.close();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        } finally {
+            if (dir != null) {
+                delete(dir);
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package edu.iris.epo.libdali.test;
+
+import edu.iris.epo.libdali.DLPacket;
+import edu.iris.epo.libdali.DataLinkStreamState;
+import edu.iris.epo.libdali.StreamidTable;
+
+/**
+ * DataLink Stream State Test, updates the per-stream state from parsed packets
+ * on several threads.
+ *
+ * @author kevin
+ */
+public class DataLinkStreamStateTest extends AbstractDataLinkTest {
+    public static void main(String[] args) {
+        new DataLinkStreamStateTest().run();
+    }
+
+    private final int numStreams = 5000;
+
+    @Override
+    public void run() {
+        DataLinkStreamState state = new DataLinkStreamState(numStreams);
+        check("empty", state.size() == 0 && state.findSlot(0) == -1 &&
+                state.getSlot(-1) == -1);
+        try {
+            new DataLinkStreamState(0);
+            System.out.println("invalid maximum streams accepted");
+        } catch (IllegalArgumentException ex) {
+        }
+
+        // the headers for each stream
+        byte[][] headers = new byte[numStreams][];
+        for (int i = 0; i < numStreams; i++) {
+            headers[i] = String.format("PACKET XX_S%04d__BHZ/MSEED 1 1 1 1 512",
+                    i).getBytes(ASCII);
+        }
+        final int rounds = 100;
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int first = t;
+            threads[t] = new Thread(() -> {
+                DLPacket packet = new DLPacket();
+                for (int round = 1; round <= rounds; round++) {
+                    for (int i = 0; i < numStreams; i++) {
+                        packet.parse(headers[i], headers[i].length);
+                        // each thread updates with its own times
+                        long time = round * 1000 + first;
+                        if (state.update(packet) < 0) {
+                            System.out.println("update failed");
+                            return;
+                        }
+                        state.update(state.findSlot(packet.getStreamIndex()),
+                                round, time, time, time, 0);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+            }
+        }
+        check("size", state.size() == numStreams);
+        for (int i = 0; i < numStreams; i++) {
+            int slot = state.findSlot(String.format("XX_S%04d__BHZ/MSEED", i));
+            if (slot < 0) {
+                System.out.printf("stream %d missing\n", i);
+                continue;
+            }
+            check("packets", state.getPackets(slot) ==
+                    2L * rounds * threads.length);
+            check("bytes",
+                    state.getBytes(slot) == 512L * rounds * threads.length);
+            check("pktid", state.getPktid(slot) == rounds);
+            check("dataend", state.getDataend(slot) == rounds * 1000 +
+                    threads.length - 1);
+            check("stream index", StreamidTable.getInstance()
+                    .getStreamid(state.getStreamIndex(slot)).getText()
+                    .equals(String.format("XX_S%04d__BHZ/MSEED", i)));
+        }
+
+        // the last packet is stored even if the packet ID is lower
+        int slot = state.findSlot("XX_S0000__BHZ/MSEED");
+        state.update(slot, 1, 5, 5, 5, 0);
+        check("last pktid",
+                state.getPktid(slot) == 1 && state.getPkttime(slot) == 5);
+
+        // a lookup does not add the stream ID
+        int size = StreamidTable.getInstance().size();
+        check("unknown", state.findSlot("XX_NONE__BHZ/MSEED") == -1 &&
+                StreamidTable.getInstance().size() == size);
+
+        // the table is full
+        byte[] header = "PACKET XX_FULL__BHZ/MSEED 1 1 1 1 512".getBytes(ASCII);
+        DLPacket packet = new DLPacket();
+        packet.parse(header, header.length);
+        check("full", state.update(packet) == -1);
+    }
+}
@@ -0,0 +1,154 @@
+package edu.iris.epo.libdali.test;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import edu.iris.epo.libdali.DLPacket;
+import edu.iris.epo.libdali.DataLinkLogger;
+import edu.iris.epo.libdali.DataLinkRing;
+import edu.iris.epo.libdali.DataLinkServer;
+import edu.iris.epo.libdali.DataLinkWriteQueue;
+import edu.iris.epo.libdali.Streamid;
+
+/**
+ * DataLink Write Queue Test, queues packets while the server is not
+ * available, drops the connections while the packets are forwarded and checks
+ * that every packet reaches the server in order.
+ *
+ * @author kevin
+ */
+public class DataLinkWriteQueueTest extends AbstractDataLinkTest {
+    private static final Streamid ANMO = new Streamid("IU_ANMO_00_BHZ/MSEED");
+
+    public static void main(String[] args) {
+        new DataLinkWriteQueueTest().run();
+    }
+
+    private final int numPackets = 2000;
+    private final int segmentSize = 100000;
+
+    private void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private void enqueue(DataLinkWriteQueue queue, int first, int last)
+            throws Exception {
+        byte[] data = new byte[SLINKPACKETSIZE];
+        for (int i = first; i <= last; i++) {
+            data[0] = (byte) i;
+            queue.enqueue(data, data.length, ANMO, i * 100, i * 100 + 99);
+        }
+    }
+
+    private DataLinkWriteQueue open(File dir, DataLinkLogger logger,
+            InetSocketAddress address) throws Exception {
+        DataLinkWriteQueue queue = new DataLinkWriteQueue(
+                DataLinkWriteQueueTest.class.getSimpleName(), logger, dir,
+                segmentSize);
+        setAddress(queue.getDataLinkProperties(), address);
+        queue.setBackoff(10, 100);
+        return queue;
+    }
+
+    @Override
+    public void run() {
+        // only log severe errors since the dropped connections are expected
+        Logger logger =
+                Logger.getLogger(DataLinkWriteQueueTest.class.getName());
+        logger.setLevel(Level.SEVERE);
+        DataLinkLogger dlLogger = new DataLinkLogger(logger);
+        DataLinkServer server = startServer(
+                new DataLinkRing(numPackets * 2, SLINKPACKETSIZE), dlLogger);
+        if (server == null) {
+            return;
+        }
+        File dir = null;
+        DataLinkWriteQueue queue = null;
+        try {
+            dir = Files.createTempDirectory("DataLinkWriteQueueTest")
+                    .toFile();
+            InetSocketAddress address = server.getAddress();
+
+            // the packets queued before a restart are not lost
+            queue = open(dir, dlLogger, address);
+            // the shared metrics are registered while not connected
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = queue.getMetrics().getObjectName();
+            check("metrics registered",
+                    name != null && mbs.isRegistered(name));
+            enqueue(queue, 1, numPackets / 2);
+            check("backlog", queue.getBacklog() == numPackets / 2);
+            check("metrics backlog",
+                    queue.getMetrics().getBacklog() == numPackets / 2);
+            queue.close();
+            check("metrics unregistered", !mbs.isRegistered(name));
+            queue = open(dir, dlLogger, address);
+            check("restart backlog", queue.getBacklog() == numPackets / 2);
+            name = queue.getMetrics().getObjectName();
+
+            // the connections are dropped while forwarding
+            queue.start();
+            enqueue(queue, numPackets / 2 + 1, numPackets);
+            for (int i = 0; i < 3 && queue.getBacklog() != 0; i++) {
+                Thread.sleep(20);
+                server.closeConnections();
+            }
+            check("flush", queue.flush(10000));
+            check("flush backlog", queue.getBacklog() == 0 &&
+                    queue.getBacklogBytes() == 0 &&
+                    queue.getMetrics().getBacklog() == 0);
+            check("rejected", queue.getRejected() == 0);
+            check("reconnects", queue.getMetrics().getReconnects() != 0);
+
+            // packets may be written again after a dropped connection but
+            // never out of order
+            DataLinkRing ring = server.getRing();
+            DLPacket packet = new DLPacket();
+            byte[] data = new byte[MAXPACKETSIZE];
+            long expected = 1;
+            for (long pktid = ring.getEarliest(); pktid <= ring.getLatest();
+                    pktid++) {
+                if (!ring.read(pktid, packet, data)) {
+                    continue;
+                }
+                long i = packet.getDatastart() / 100;
+                if (i == expected) {
+                    expected++;
+                } else if (i > expected || data[0] != (byte) i) {
+                    System.out.printf("packet %d expected %d\n", i,
+                            expected);
+                    return;
+                }
+            }
+            check("forwarded", expected == numPackets + 1);
+            check("metrics still registered", mbs.isRegistered(name));
+
+            // nothing is forwarded again after a restart
+            queue = open(dir, dlLogger, address);
+            check("restart forwarded", queue.getBacklog() == 0);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        } finally {
+            if (queue != null) {
+                queue.close();
+            }
+            server.close();
+            if (dir != null) {
+                delete(dir);
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package edu.iris.epo.libdali.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import edu.iris.epo.libdali.DLPacket;
+import edu.iris.epo.libdali.DataLinkClient.DL_RETVAL;
+import edu.iris.epo.libdali.DataLinkConnection;
+import edu.iris.epo.libdali.DataLinkMetrics;
+import edu.iris.epo.libdali.DataLinkRing;
+import edu.iris.epo.libdali.DataLinkSelector;
+import edu.iris.epo.libdali.DataLinkServer;
+import edu.iris.epo.libdali.DataLinkWriter;
+import edu.iris.epo.libdali.IDataLinkListener;
+import edu.iris.epo.libdali.Streamid;
+
+/**
+ * DataLink Writer Test, pipelines acknowledged writes to the embedded
+ * DataLink server and checks the window limit.
+ *
+ * @author kevin
+ */
+public class DataLinkWriterTest
+        extends AbstractDataLinkTest implements IDataLinkListener {
+    private static final Streamid ANMO = new Streamid("IU_ANMO_00_BHZ/MSEED");
+
+    public static void main(String[] args) {
+        new DataLinkWriterTest().run();
+    }
+
+    private final Semaphore connected = new Semaphore(0);
+    private final int numPackets = 200;
+    private final byte[] packet = new byte[SLINKPACKETSIZE];
+    private final List<CompletableFuture<DL_RETVAL>> replies =
+            new ArrayList<CompletableFuture<DL_RETVAL>>();
+    private final int window = 8;
+    private DataLinkWriter writer;
+
+    @Override
+    public void closed(DataLinkConnection conn, DL_RETVAL retVal) {
+    }
+
+    @Override
+    public void connected(DataLinkConnection conn) {
+        conn.exchangeIDs();
+        // the acknowledgements can not be received on the I/O thread so the
+        // window fills up
+        writer = new DataLinkWriter(conn, window);
+        for (int i = 1; i <= window; i++) {
+            CompletableFuture<DL_RETVAL> reply =
+                    writer.tryWrite(packet, packet.length, ANMO, i * 100,
+                            i * 100 + 99);
+            check("tryWrite " + i, reply != null);
+            replies.add(reply);
+        }
+        check("window full",
+                writer.tryWrite(packet, packet.length, ANMO, 0, 99) == null &&
+                        writer.getInflight() == window);
+        connected.release();
+    }
+
+    @Override
+    public void received(DataLinkConnection conn, DL_RETVAL retVal) {
+    }
+
+    @Override
+    public void run() {
+        DataLinkServer server = startServer(
+                new DataLinkRing(numPackets * 2, SLINKPACKETSIZE), null);
+        if (server == null) {
+            return;
+        }
+        DataLinkSelector selector = new DataLinkSelector(
+                DataLinkWriterTest.class.getSimpleName(), null);
+        DataLinkConnection conn = new DataLinkConnection(
+                DataLinkWriterTest.class.getSimpleName(), null);
+        try {
+            if (!selector.start()) {
+                System.out.println("selector start failed");
+                return;
+            }
+            setAddress(conn.getDataLinkProperties(), server.getAddress());
+            check("connect", conn.connect(selector, this));
+            if (!connected.tryAcquire(10, TimeUnit.SECONDS)) {
+                System.out.println("connected failed");
+                return;
+            }
+            check("flush window", writer.flush(10000) &&
+                    writer.getInflight() == 0);
+
+            // the blocking writes never exceed the window
+            int maxInflight = 0;
+            for (int i = window + 1; i <= numPackets; i++) {
+                replies.add(writer.write(packet, packet.length, ANMO,
+                        i * 100, i * 100 + 99));
+                maxInflight = Math.max(maxInflight, writer.getInflight());
+            }
+            check("max inflight", maxInflight <= window);
+            check("flush", writer.flush(10000) && writer.getInflight() == 0);
+            for (CompletableFuture<DL_RETVAL> reply : replies) {
+                if (reply.get() != DL_RETVAL._NO_ERROR) {
+                    System.out.printf("reply returned %s\n", reply.get());
+                    return;
+                }
+            }
+
+            // the packets are acknowledged and stored in the order written
+            DataLinkRing ring = server.getRing();
+            DLPacket dlpacket = new DLPacket();
+            byte[] data = new byte[SLINKPACKETSIZE];
+            check("written", ring.getLatest() - ring.getEarliest() + 1 ==
+                    numPackets);
+            long expected = 1;
+            for (long pktid = ring.getEarliest(); pktid <= ring.getLatest();
+                    pktid++) {
+                if (ring.read(pktid, dlpacket, data) &&
+                        dlpacket.getDatastart() == expected * 100) {
+                    expected++;
+                }
+            }
+            check("order", expected == numPackets + 1);
+
+            // a rejected packet releases its place in the window
+            byte[] oversized = new byte[SLINKPACKETSIZE + 1];
+            check("oversized", writer.write(oversized, oversized.length, ANMO,
+                    0, 99).get(10, TimeUnit.SECONDS) == DL_RETVAL.INVALIDARG &&
+                    writer.getInflight() == 0);
+
+            // the connection has metrics like the blocking client
+            DataLinkMetrics metrics = conn.getMetrics();
+            check("metrics", metrics.getObjectName() != null &&
+                    metrics.getWrites() == numPackets &&
+                    metrics.getSendpackets() == numPackets + 1 &&
+                    metrics.getRecvdatas() > 0 && metrics.getErrors() == 0);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        } finally {
+            conn.close();
+            server.close();
+            selector.close();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package edu.iris.epo.libdali.test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Random;
+
+import edu.iris.epo.libdali.MiniSeedDecoder;
+import edu.iris.epo.libdali.MiniSeedHeader;
+
+/**
+ * miniSEED Decoder Test, decodes hand built Steim1, Steim2 and integer
+ * records and checks the header values and the samples, and checks the
+ * header view of a direct buffer.
+ *
+ * @author kevin
+ */
+public class MiniSeedDecoderTest extends AbstractDataLinkTest {
+    /** The Steim1 codes: nibble, dnib, bits and differences per word */
+    private static final int[][] STEIM1_CODES =
+            { { 1, -1, 8, 4 }, { 2, -1, 16, 2 }, { 3, -1, 32, 1 } };
+
+    /** The Steim2 codes: nibble, dnib, bits and differences per word */
+    private static final int[][] STEIM2_CODES = { { 3, 2, 4, 7 },
+            { 3, 1, 5, 6 }, { 3, 0, 6, 5 }, { 1, -1, 8, 4 }, { 2, 3, 10, 3 },
+            { 2, 2, 15, 2 }, { 2, 1, 30, 1 } };
+
+    public static void main(String[] args) {
+        new MiniSeedDecoderTest().run();
+    }
+
+    private final MiniSeedDecoder decoder = new MiniSeedDecoder();
+    private final long startTime = LocalDateTime.of(2020, 4, 9, 10, 20, 30)
+            .toEpochSecond(ZoneOffset.UTC) * 1000000L + 123400 + 56;
+
+    /**
+     * Create a record with the fixed header, blockettes 1000 and 1001 and
+     * the data at offset 64.
+     */
+    private ByteBuffer createRecord(ByteOrder order, int encoding,
+            int exponent, int nsamples) {
+        ByteBuffer bb = ByteBuffer.allocate(1 << exponent).order(order);
+        bb.put("000001D ANMO 00BHZIU".getBytes());
+        bb.putShort((short) 2020).putShort((short) 100);
+        bb.put((byte) 10).put((byte) 20).put((byte) 30).put((byte) 0);
+        bb.putShort((short) 1234);
+        bb.putShort((short) nsamples);
+        bb.putShort((short) 40).putShort((short) 1);
+        bb.put((byte) 0).put((byte) 0).put((byte) 0).put((byte) 2);
+        bb.putInt(0);
+        bb.putShort((short) 64).putShort((short) 48);
+        // blockette 1000
+        bb.putShort((short) 1000).putShort((short) 56);
+        bb.put((byte) encoding);
+        bb.put((byte) (order == ByteOrder.BIG_ENDIAN ? 1 : 0));
+        bb.put((byte) exponent).put((byte) 0);
+        // blockette 1001 with the microseconds
+        bb.putShort((short) 1001).putShort((short) 0);
+        bb.put((byte) 100).put((byte) 56).put((byte) 0).put((byte) 0);
+        return bb;
+    }
+
+    /**
+     * Encode the samples in Steim frames after the header.
+     *
+     * @return the number of samples encoded.
+     */
+    private int encodeSteim(ByteBuffer bb, int[][] codes, int[] samples) {
+        int[] diffs = new int[samples.length];
+        for (int i = 1; i < samples.length; i++) {
+            diffs[i] = samples[i] - samples[i - 1];
+        }
+        int frames = (bb.capacity() - 64) / 64;
+        int count = 0;
+        for (int f = 0; f < frames && count < samples.length; f++) {
+            int frame = 64 + f * 64;
+            int control = 0;
+            for (int w = (f == 0) ? 3 : 1; w < 16 &&
+                    count < samples.length; w++) {
+                int[] code = null;
+                for (int[] c : codes) {
+                    int n = Math.min(c[3], samples.length - count);
+                    boolean fits = true;
+                    for (int i = 0; i < n && fits; i++) {
+                        fits = fits(diffs[count + i], c[2]);
+                    }
+                    if (fits) {
+                        code = c;
+                        break;
+                    }
+                }
+                int word = (code[1] < 0) ? 0 : code[1] << 30;
+                for (int i = 0; i < code[3]; i++) {
+                    int diff = (count < samples.length) ? diffs[count++] : 0;
+                    int mask = (code[2] == 32) ? -1 : (1 << code[2]) - 1;
+                    word |= (diff & mask) << (code[2] * (code[3] - 1 - i));
+                }
+                control |= code[0] << (30 - 2 * w);
+                bb.putInt(frame + 4 * w, word);
+            }
+            bb.putInt(frame, control);
+        }
+        bb.putInt(68, samples[0]);
+        bb.putInt(72, samples[count - 1]);
+        return count;
+    }
+
+    private boolean fits(int diff, int bits) {
+        return bits == 32 ||
+                (diff >= -(1 << (bits - 1)) && diff < (1 << (bits - 1)));
+    }
+
+    @Override
+    public void run() {
+        Random random = new Random(42);
+        int[] samples = new int[1000];
+        // small differences with occasional large steps
+        for (int i = 1; i < samples.length; i++) {
+            int range = (i % 50 == 0) ? 1 << 24 : (i % 7 == 0) ? 1000 : 10;
+            samples[i] = samples[i - 1] + random.nextInt(2 * range) - range;
+        }
+        int[] decoded = new int[samples.length];
+
+        for (int steim = 1; steim <= 2; steim++) {
+            ByteBuffer bb = createRecord(ByteOrder.BIG_ENDIAN,
+                    steim == 1 ? MiniSeedDecoder.ENCODING_STEIM1
+                            : MiniSeedDecoder.ENCODING_STEIM2,
+                    12, 0);
+            int count = encodeSteim(bb,
+                    steim == 1 ? STEIM1_CODES : STEIM2_CODES, samples);
+            bb.putShort(30, (short) count);
+            byte[] record = bb.array();
+            String name = "Steim" + steim;
+            int n = decoder.decode(record, 0, record.length, decoded);
+            check(name + " decode " + decoder.getError(), n == count);
+            for (int i = 0; i < n; i++) {
+                if (decoded[i] != samples[i]) {
+                    System.out.printf("%s sample %d is %d expected %d\n",
+                            name, i, decoded[i], samples[i]);
+                    break;
+                }
+            }
+            check(name + " header", decoder.getStartTime() == startTime &&
+                    decoder.getSampleRate() == 40 &&
+                    decoder.getRecordLength() == 4096 &&
+                    !decoder.isSwapped());
+
+            // the reverse integration constant detects corruption
+            bb.putInt(72, samples[count - 1] + 1);
+            check(name + " corrupt",
+                    decoder.decode(record, 0, record.length, decoded) < 0);
+            check(name + " short",
+                    decoder.decode(record, 0, 1000, decoded) < 0);
+        }
+
+        // little-endian integers
+        ByteBuffer bb = createRecord(ByteOrder.LITTLE_ENDIAN,
+                MiniSeedDecoder.ENCODING_INT32, 9, 100);
+        for (int i = 0; i < 100; i++) {
+            bb.putInt(64 + i * 4, samples[i]);
+        }
+        byte[] record = bb.array();
+        int n = decoder.decode(record, 0, record.length, decoded);
+        check("INT32 decode", n == 100 && decoded[99] == samples[99] &&
+                decoder.isSwapped() && decoder.getStartTime() == startTime);
+        try {
+            decoder.decode(record, 0, record.length, new int[10]);
+            System.out.println("samples length was not checked");
+        } catch (IllegalArgumentException ex) {
+        }
+
+        // the header view of a little-endian record in a direct buffer
+        ByteBuffer direct = ByteBuffer.allocateDirect(record.length + 8);
+        direct.position(8);
+        direct.put(record);
+        direct.position(8);
+        MiniSeedHeader header = new MiniSeedHeader().wrap(direct);
+        check("header", header.isValid() && header.isSwapped() &&
+                header.isDataSwapped() &&
+                header.getEncoding() == MiniSeedDecoder.ENCODING_INT32 &&
+                header.getSampleCount() == 100 &&
+                header.getSampleRate() == 40 &&
+                header.getRecordLength() == 512 &&
+                header.getDataOffset() == 64 &&
+                header.getStartTime() == startTime &&
+                header.findBlockette(1001) == 56 &&
+                direct.position() == 8);
+        direct.put(8 + 20, (byte) 0);
+        direct.put(8 + 21, (byte) 0);
+        check("header invalid", !header.wrap(direct).isValid() &&
+                header.getError() != null && header.getStartTime() == 0);
+    }
+}
@@ -0,0 +1,144 @@
+package edu.iris.epo.libdali.test;
+
+import java.util.Random;
+
+import edu.iris.epo.libdali.DLPacket;
+import edu.iris.epo.libdali.DataLinkClient;
+import edu.iris.epo.libdali.DataLinkRing;
+import edu.iris.epo.libdali.DataLinkServer;
+import edu.iris.epo.libdali.MiniSeedDecoder;
+import edu.iris.epo.libdali.MiniSeedPacker;
+import edu.iris.epo.libdali.StreamidSeed;
+
+/**
+ * miniSEED Packer Test, packs sample chunks into records written to the
+ * server and decodes the records from the ring.
+ *
+ * @author kevin
+ */
+public class MiniSeedPackerTest extends AbstractDataLinkTest {
+    private static final long START_TIME = 1586427630123456L;
+
+    public static void main(String[] args) {
+        new MiniSeedPackerTest().run();
+    }
+
+    private final MiniSeedDecoder decoder = new MiniSeedDecoder();
+    private DataLinkServer server;
+
+    /**
+     * Decode the records in the ring and check the samples.
+     *
+     * @return the next packet ID.
+     */
+    private long checkRecords(String name, long pktid, int[] expected,
+            int count, double sampleRate) {
+        DataLinkRing ring = server.getRing();
+        DLPacket packet = new DLPacket();
+        byte[] data = new byte[MAXPACKETSIZE];
+        int[] samples = new int[4096];
+        double period = 1000000.0 / sampleRate;
+        int index = 0;
+        for (; index < count && ring.read(pktid, packet, data); pktid++) {
+            int n = decoder.decode(data, 0, packet.getDatasize(), samples);
+            if (n <= 0) {
+                System.out.printf("%s decode %s\n", name, decoder.getError());
+                return pktid;
+            }
+            long start = START_TIME + Math.round(index * period);
+            if (decoder.getStartTime() != start ||
+                    packet.getDatastart() != start ||
+                    packet.getDataend() !=
+                            START_TIME + Math.round((index + n - 1) * period) ||
+                    decoder.getSampleRate() != sampleRate) {
+                System.out.printf("%s record %d start %d expected %d\n", name,
+                        pktid, decoder.getStartTime(), start);
+            }
+            for (int i = 0; i < n; i++, index++) {
+                if (samples[i] != expected[index]) {
+                    System.out.printf("%s sample %d is %d expected %d\n",
+                            name, index, samples[i], expected[index]);
+                    return pktid;
+                }
+            }
+        }
+        check(name + " count", index == count);
+        return pktid;
+    }
+
+    private DataLinkClient connect() {
+        DataLinkClient dlc = new DataLinkClient(
+                MiniSeedPackerTest.class.getSimpleName(), null);
+        setAddress(dlc.getDataLinkProperties(), server.getAddress());
+        check("connect", dlc.connect());
+        check("exchangeIDs", !dlc.exchangeIDs().isError());
+        return dlc;
+    }
+
+    @Override
+    public void run() {
+        server = startServer(new DataLinkRing(1000, 4096), null);
+        if (server == null) {
+            return;
+        }
+        DataLinkClient dlc = null;
+        try {
+            dlc = connect();
+            StreamidSeed streamid =
+                    new StreamidSeed("IU", "ANMO", "00", "BHZ");
+            Random random = new Random(42);
+            int[] samples = new int[5000];
+            for (int i = 1; i < samples.length; i++) {
+                int range = (i % 100 == 0) ? 1 << 20 : (i % 7 == 0) ? 500 : 5;
+                samples[i] =
+                        samples[i - 1] + random.nextInt(2 * range) - range;
+            }
+
+            // 512 byte records written when full
+            MiniSeedPacker packer =
+                    new MiniSeedPacker(dlc, streamid, 512, 0, true);
+            for (int off = 0; off < samples.length; off += 137) {
+                int len = Math.min(137, samples.length - off);
+                check("add", !packer.add(samples, off, len,
+                        START_TIME + off * 25000L, 40).isError());
+            }
+            check("flush", !packer.flush().isError());
+            long pktid = checkRecords("512", server.getRing().getEarliest(),
+                    samples, samples.length, 40);
+
+            // a gap starts a new record
+            packer.add(samples, 0, 10, START_TIME, 40);
+            packer.add(samples, 10, 10, START_TIME + 10 * 25000L + 1000000, 40);
+            packer.flush();
+            pktid = checkRecords("gap", pktid, samples, 10, 40);
+            DLPacket packet = new DLPacket();
+            byte[] data = new byte[MAXPACKETSIZE];
+            server.getRing().read(pktid++, packet, data);
+            check("gap start", decoder.decode(data, 0, packet.getDatasize(),
+                    new int[512]) == 10 &&
+                    decoder.getStartTime() ==
+                            START_TIME + 10 * 25000L + 1000000);
+
+            // 4096 byte records with a fractional sample rate
+            packer = new MiniSeedPacker(dlc, streamid, 4096, 0, true);
+            packer.add(samples, 0, samples.length, START_TIME, 2.5);
+            packer.flush();
+            pktid = checkRecords("4096", pktid, samples, samples.length,
+                    2.5);
+
+            // the latency writes a partial record
+            packer = new MiniSeedPacker(dlc, streamid, 512, 1, false);
+            packer.add(samples, 0, 10, START_TIME, 40);
+            Thread.sleep(5);
+            packer.poll();
+            check("latency", packer.getRecords() == 1);
+        } catch (InterruptedException ex) {
+            ex.printStackTrace();
+        } finally {
+            if (dlc != null) {
+                dlc.close();
+            }
+            server.close();
+        }
+    }
+}